@@ -9,6 +9,9 @@ LOCAL_SRC_FILES := $(call all-java-files-under, src)
 
 LOCAL_PACKAGE_NAME := CellBroadcastReceiver
 
+# The carrier profile table is memory-mapped, so it must be stored uncompressed.
+LOCAL_AAPT_FLAGS := -0 .dat
+
 include $(BUILD_PACKAGE)
 
 # This finds and builds the test apk as well, so a single make does both.
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import java.util.ArrayList;
+
+/**
+ * Schedules the audio of emergency alerts: each alert plays the attention tone for its
+ * duration, then, after a pause, its text is spoken. Alerts that arrive while another
+ * alert plays are queued by {@link CellBroadcastClassifier#getPriority priority}, then
+ * in order of arrival:
+ * <ul>
+ * <li>A higher priority alert preempts the current one: the speech is interrupted and
+ * the new alert plays its full tone (continuing the tone if it is playing). The
+ * preempted alert is queued again, and its text is spoken after the new alert; its tone
+ * is not repeated.</li>
+ * <li>An alert of the same or lower priority is queued behind. With
+ * {@link #TONE_POLICY_MERGE}, an alert that arrives while the tone plays joins it: the
+ * tone lasts until the longest duration of the joined alerts, measured from the start
+ * of the tone, and the joined alerts only speak their text when their turn comes. With
+ * {@link #TONE_POLICY_SEPARATE}, every alert plays its own tone.</li>
+ * </ul>
+ * Time and audio output are provided by a {@link Clock} and a {@link Player}, so the
+ * queue can be tested on the host. Not thread safe: all calls, including those of the
+ * clock callbacks, must be made on the same thread.
+ */
+final class AlertPlaybackQueue {
+
+    /** Alerts arriving while the tone plays join it. */
+    static final int TONE_POLICY_MERGE = 0;
+
+    /** Every alert plays its own tone. */
+    static final int TONE_POLICY_SEPARATE = 1;
+
+    /** Pause duration between alert sound and alert speech. */
+    static final int PAUSE_DURATION_BEFORE_SPEAKING_MSEC = 1000;
+
+    /** Source of time and delayed callbacks. */
+    interface Clock {
+        long uptimeMillis();
+
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    /** Audio output of alerts. */
+    interface Player {
+        /** Start the attention tone and vibration. */
+        void startTone();
+
+        /** Stop the attention tone and vibration. */
+        void stopTone();
+
+        /**
+         * Start speaking the text of an alert. {@link #onSpeechCompleted} must be called
+         * after the text was spoken, unless {@link #stopSpeaking} is called first.
+         * @return false if the text can't be spoken
+         */
+        boolean speak(Alert alert);
+
+        /** Stop speaking. */
+        void stopSpeaking();
+
+        /** Called when the last alert has finished playing. */
+        void onQueueEmpty();
+    }
+
+    /** An alert to play. */
+    static final class Alert {
+        /** The delivery time of the broadcast; identifies the alert to remove. */
+        final long mDeliveryTime;
+
+        final int mPriority;
+        final int mToneDurationMsec;
+
+        /** The text to speak, or null. */
+        final String mMessageBody;
+
+        /** The language of the text, or null for the default language. */
+        final String mLanguage;
+
+        /** True if the tone of this alert was played with another alert. */
+        boolean mTonePlayed;
+
+        Alert(long deliveryTime, int priority, int toneDurationMsec, String messageBody,
+                String language) {
+            mDeliveryTime = deliveryTime;
+            mPriority = priority;
+            mToneDurationMsec = toneDurationMsec;
+            mMessageBody = messageBody;
+            mLanguage = language;
+        }
+    }
+
+    private static final int PHASE_IDLE = 0;
+    private static final int PHASE_TONE = 1;
+    private static final int PHASE_PAUSE = 2;
+    private static final int PHASE_SPEAKING = 3;
+
+    private final Clock mClock;
+    private final Player mPlayer;
+    private final int mTonePolicy;
+
+    /** Alerts waiting to play, by priority, then in order of arrival. */
+    private final ArrayList<Alert> mQueue = new ArrayList<Alert>();
+
+    /** The alert playing, or null. */
+    private Alert mCurrent;
+
+    private int mPhase = PHASE_IDLE;
+
+    /** Uptime when the tone started. */
+    private long mToneStartTime;
+
+    /** Uptime when the tone ends. */
+    private long mToneEndTime;
+
+    private final Runnable mToneFinished = new Runnable() {
+        public void run() {
+            onToneFinished();
+        }
+    };
+
+    private final Runnable mPauseFinished = new Runnable() {
+        public void run() {
+            onPauseFinished();
+        }
+    };
+
+    AlertPlaybackQueue(Clock clock, Player player, int tonePolicy) {
+        mClock = clock;
+        mPlayer = player;
+        mTonePolicy = tonePolicy;
+    }
+
+    /** Add an alert, playing it now or when its turn comes. */
+    void add(Alert alert) {
+        if (mCurrent == null) {
+            play(alert);
+        } else if (alert.mPriority > mCurrent.mPriority) {
+            Alert preempted = mCurrent;
+            preempted.mTonePlayed = true;
+            if (mPhase == PHASE_SPEAKING) {
+                mPlayer.stopSpeaking();
+            }
+            mClock.removeCallbacks(mPauseFinished);
+            enqueue(preempted, true);
+            play(alert);
+        } else {
+            if (mPhase == PHASE_TONE && mTonePolicy == TONE_POLICY_MERGE) {
+                alert.mTonePlayed = true;
+                setToneEndTime(Math.max(mToneEndTime,
+                        mToneStartTime + alert.mToneDurationMsec));
+            }
+            enqueue(alert, false);
+        }
+    }
+
+    /** Called by the player after the text of the current alert was spoken. */
+    void onSpeechCompleted() {
+        if (mPhase == PHASE_SPEAKING) {
+            playNext();
+        }
+    }
+
+    /**
+     * Drop an alert that was dismissed. If it is playing, it is stopped and the next
+     * alert plays; the alerts that joined its tone don't play the tone again.
+     * @param deliveryTime the delivery time of the alert
+     */
+    void remove(long deliveryTime) {
+        if (mCurrent != null && mCurrent.mDeliveryTime == deliveryTime) {
+            mClock.removeCallbacks(mToneFinished);
+            mClock.removeCallbacks(mPauseFinished);
+            if (mPhase == PHASE_TONE) {
+                mPlayer.stopTone();
+            } else if (mPhase == PHASE_SPEAKING) {
+                mPlayer.stopSpeaking();
+            }
+            playNext();
+            return;
+        }
+        for (int i = 0; i < mQueue.size(); i++) {
+            if (mQueue.get(i).mDeliveryTime == deliveryTime) {
+                mQueue.remove(i);
+                return;
+            }
+        }
+    }
+
+    /** Stop playing and drop all alerts. */
+    void clear() {
+        mClock.removeCallbacks(mToneFinished);
+        mClock.removeCallbacks(mPauseFinished);
+        if (mPhase == PHASE_TONE) {
+            mPlayer.stopTone();
+        } else if (mPhase == PHASE_SPEAKING) {
+            mPlayer.stopSpeaking();
+        }
+        mQueue.clear();
+        mCurrent = null;
+        mPhase = PHASE_IDLE;
+    }
+
+    /** Return the number of alerts playing or waiting to play. */
+    int size() {
+        return mQueue.size() + (mCurrent != null ? 1 : 0);
+    }
+
+    /**
+     * Insert an alert by priority.
+     * @param first true to insert before the alerts of the same priority
+     */
+    private void enqueue(Alert alert, boolean first) {
+        int index = 0;
+        while (index < mQueue.size() && (mQueue.get(index).mPriority > alert.mPriority
+                || (!first && mQueue.get(index).mPriority == alert.mPriority))) {
+            index++;
+        }
+        mQueue.add(index, alert);
+    }
+
+    private void play(Alert alert) {
+        mCurrent = alert;
+        if (alert.mTonePlayed) {
+            onToneFinished();
+            return;
+        }
+        // when preempting, the tone continues with the duration of the new alert
+        if (mPhase != PHASE_TONE) {
+            mPlayer.startTone();
+            mPhase = PHASE_TONE;
+        }
+        mToneStartTime = mClock.uptimeMillis();
+        setToneEndTime(mToneStartTime + alert.mToneDurationMsec);
+    }
+
+    private void setToneEndTime(long endTime) {
+        mToneEndTime = endTime;
+        mClock.removeCallbacks(mToneFinished);
+        mClock.postDelayed(mToneFinished, Math.max(0, endTime - mClock.uptimeMillis()));
+    }
+
+    private void onToneFinished() {
+        if (mPhase == PHASE_TONE) {
+            mPlayer.stopTone();
+        }
+        if (mCurrent.mMessageBody != null) {
+            mPhase = PHASE_PAUSE;
+            mClock.postDelayed(mPauseFinished, PAUSE_DURATION_BEFORE_SPEAKING_MSEC);
+        } else {
+            playNext();
+        }
+    }
+
+    private void onPauseFinished() {
+        if (mPlayer.speak(mCurrent)) {
+            mPhase = PHASE_SPEAKING;
+        } else {
+            playNext();
+        }
+    }
+
+    private void playNext() {
+        mPhase = PHASE_IDLE;
+        mCurrent = null;
+        if (mQueue.isEmpty()) {
+            mPlayer.onQueueEmpty();
+        } else {
+            play(mQueue.remove(0));
+        }
+    }
+}
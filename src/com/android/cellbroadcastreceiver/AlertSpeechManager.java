@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Keeps the text-to-speech engine used to speak alerts. Binding and initializing the
+ * engine takes a while, so it is warmed up ahead of time (when the emergency channels
+ * are enabled, and when an emergency alert arrives) with the language the alert is
+ * likely to use, and kept across alerts. The engine is shut down after it has been
+ * idle for {@link #IDLE_SHUTDOWN_MSEC}. The initialization latency is recorded in
+ * {@link CellBroadcastMetrics}.
+ *
+ * The text of an alert is split into sentences by {@link SpeechChunker} and queued
+ * chunk by chunk, so the engine starts speaking the first sentence while it synthesizes
+ * the next ones. The chunks are synthesized to files by {@link #prepare} as soon as the
+ * alert arrives, while the attention tone plays, so that speaking them only has to play
+ * the files. The files are kept in a {@link SpeechFileCache}, so rebroadcasts are not
+ * synthesized again.
+ *
+ * Several alerts may use the engine at once: one is spoken while the next ones are
+ * synthesized. The language is therefore passed with each text rather than kept as
+ * state, and is set on the engine right before each request is issued; the engine
+ * copies it into the request. Stopping the speech flushes the queue of the engine,
+ * so the syntheses it cancels are issued again. Must only be used on the main thread.
+ */
+final class AlertSpeechManager implements TextToSpeech.OnInitListener {
+    private static final String TAG = "AlertSpeechManager";
+
+    /** Time to keep the engine after the last use. */
+    private static final int IDLE_SHUTDOWN_MSEC = 5 * 60 * 1000;
+
+    /** Maximum total size of the cached speech files. */
+    private static final long MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    /** Directory of the cached speech files, in the cache directory. */
+    private static final String CACHE_DIRECTORY = "speech";
+
+    /** Mobile country codes of Japan, where alerts are ETWS alerts in Japanese. */
+    private static final String[] JAPAN_MCCS = { "440", "441" };
+
+    /**
+     * Prefix of the utterance IDs of spoken chunks, followed by the generation of the
+     * text and the index of the chunk.
+     */
+    private static final String SPEAK_UTTERANCE_PREFIX = "speak:";
+
+    /**
+     * Prefix of the utterance IDs of syntheses, followed by the generation of the
+     * syntheses and the cache key of the chunk.
+     */
+    private static final String SYNTHESIZE_UTTERANCE_PREFIX = "synthesize:";
+
+    /** Listener for the end of the speech started by {@link #speak}. */
+    interface OnSpeechCompletedListener {
+        /** Called on the main thread after the last chunk was spoken. */
+        void onSpeechCompleted();
+    }
+
+    /** A text to speak, and its language. */
+    private static final class LocalizedText {
+        final String mText;
+        final String mLanguage;
+
+        LocalizedText(String text, String language) {
+            mText = text;
+            mLanguage = language;
+        }
+    }
+
+    private static AlertSpeechManager sInstance;
+
+    private final Context mContext;
+
+    private final Handler mHandler = new Handler();
+
+    /** The engine, or null if shut down. */
+    private TextToSpeech mTts;
+
+    /** True after the engine was initialized successfully. */
+    private boolean mTtsEngineReady;
+
+    /** Elapsed realtime when the engine was created. */
+    private long mInitStartTime;
+
+    /** The language last set on the engine, or null if none was set. */
+    private Locale mEngineLocale;
+
+    /** The language to load when the engine is initialized, if there's nothing to prepare. */
+    private String mWarmUpLanguage;
+
+    /** Number of alerts using the engine; it is only shut down when there are none. */
+    private int mUsers;
+
+    /** The speech files, created when first used. */
+    private SpeechFileCache mCache;
+
+    /** Texts to synthesize when the engine is initialized. */
+    private final ArrayList<LocalizedText> mPendingTexts = new ArrayList<LocalizedText>();
+
+    /** The chunks being synthesized, by cache key. */
+    private final HashMap<String, LocalizedText> mSynthesizing =
+            new HashMap<String, LocalizedText>();
+
+    /** Incremented when the queue is flushed, to ignore the completion of cancelled syntheses. */
+    private int mSynthesisGeneration;
+
+    /** Chunks of the text being spoken, or null. */
+    private ArrayList<String> mSpeechChunks;
+
+    /** The language of the text being spoken. */
+    private String mSpeechLanguage;
+
+    /** Number of chunks spoken so far. */
+    private int mSpokenChunks;
+
+    /** Incremented for each text spoken, to ignore the completion of stopped chunks. */
+    private int mSpeechGeneration;
+
+    private OnSpeechCompletedListener mSpeechListener;
+
+    /** Key of the first chunk, if the chunks are queued when its synthesis completes. */
+    private String mSpeakWhenSynthesized;
+
+    /** Receives the completion of chunks and syntheses, on a binder thread. */
+    private final TextToSpeech.OnUtteranceCompletedListener mUtteranceListener =
+            new TextToSpeech.OnUtteranceCompletedListener() {
+                public void onUtteranceCompleted(final String utteranceId) {
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            if (utteranceId.startsWith(SPEAK_UTTERANCE_PREFIX)) {
+                                onChunkCompleted(utteranceId);
+                            } else if (utteranceId.startsWith(SYNTHESIZE_UTTERANCE_PREFIX)) {
+                                onSynthesisCompleted(utteranceId);
+                            }
+                        }
+                    });
+                }
+            };
+
+    private final Runnable mShutdownRunnable = new Runnable() {
+        public void run() {
+            if (DBG) Log.d(TAG, "shutting down idle TTS engine");
+            shutdown();
+        }
+    };
+
+    private AlertSpeechManager(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /** Return the process-wide manager. */
+    static AlertSpeechManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AlertSpeechManager(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Warm up the engine from any thread.
+     * @param context the Context
+     * @param language the language of the next alert, or null for the default language
+     */
+    static void warmUpAsync(final Context context, final String language) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            public void run() {
+                getInstance(context).warmUp(language);
+            }
+        });
+    }
+
+    /**
+     * Return the language that alerts are likely to use on the current network:
+     * Japanese for ETWS alerts in Japan, English for CMAS alerts elsewhere.
+     */
+    static String getLikelyLanguage(Context context) {
+        TelephonyManager tm = (TelephonyManager) context.getSystemService(
+                Context.TELEPHONY_SERVICE);
+        String networkOperator = tm.getNetworkOperator();
+        if (networkOperator != null && networkOperator.length() >= 3) {
+            String mcc = networkOperator.substring(0, 3);
+            for (String japanMcc : JAPAN_MCCS) {
+                if (japanMcc.equals(mcc)) {
+                    return "ja";
+                }
+            }
+        }
+        return "en";
+    }
+
+    /**
+     * Create the engine if necessary and load the language of the next alert, unless
+     * an alert is being spoken.
+     * @param language the language, or null for the default language
+     */
+    void warmUp(String language) {
+        if (mTts == null) {
+            if (DBG) Log.d(TAG, "creating TTS engine");
+            mInitStartTime = SystemClock.elapsedRealtime();
+            mTts = new TextToSpeech(mContext, this);
+        }
+        if (!mTtsEngineReady) {
+            mWarmUpLanguage = language;
+        } else if (mSpeechChunks == null) {
+            selectLanguage(language);
+        }
+        if (mUsers == 0) {
+            mHandler.removeCallbacks(mShutdownRunnable);
+            mHandler.postDelayed(mShutdownRunnable, IDLE_SHUTDOWN_MSEC);
+        }
+    }
+
+    /** Keep the engine while an alert may speak. Call {@link #release} when done. */
+    void acquire() {
+        mUsers++;
+        mHandler.removeCallbacks(mShutdownRunnable);
+    }
+
+    /**
+     * Stop speaking, and start the idle timer if no other alert uses the engine. The
+     * speech files of the alerts are then no longer needed, and may be evicted.
+     */
+    void release() {
+        if (--mUsers > 0) {
+            stop();
+        } else {
+            // nothing left to speak: cancel all syntheses
+            stopSpeaking();
+            cancelSyntheses();
+            if (mTtsEngineReady) {
+                mTts.stop();
+            }
+            if (mCache != null) {
+                mCache.unpinAll();
+            }
+            if (mTts != null) {
+                mHandler.postDelayed(mShutdownRunnable, IDLE_SHUTDOWN_MSEC);
+            }
+        }
+    }
+
+    /**
+     * Callback from TTS engine after initialization.
+     * @param status {@link TextToSpeech#SUCCESS} or {@link TextToSpeech#ERROR}.
+     */
+    public void onInit(int status) {
+        if (mTts == null) {
+            return;     // shut down before the initialization completed
+        }
+        long latency = SystemClock.elapsedRealtime() - mInitStartTime;
+        if (DBG) Log.v(TAG, "onInit() TTS engine status: " + status);
+        if (status == TextToSpeech.SUCCESS) {
+            mTtsEngineReady = true;
+            CellBroadcastMetrics.recordLatency(CellBroadcastMetrics.TTS_INIT, latency);
+            mTts.setOnUtteranceCompletedListener(mUtteranceListener);
+            if (mPendingTexts.isEmpty()) {
+                selectLanguage(mWarmUpLanguage);
+            }
+            ArrayList<LocalizedText> pendingTexts = new ArrayList<LocalizedText>(mPendingTexts);
+            mPendingTexts.clear();
+            for (LocalizedText pendingText : pendingTexts) {
+                prepare(pendingText.mText, pendingText.mLanguage);
+            }
+        } else {
+            Log.e(TAG, "onInit() TTS engine error: " + status);
+            shutdown();
+        }
+    }
+
+    /**
+     * Set the language of the next requests on the engine, if it isn't set already.
+     * Requests that were issued already keep their language.
+     * @param language the language, or null for the default language
+     */
+    private void selectLanguage(String language) {
+        Locale locale = getLocale(language);
+        if (locale.equals(mEngineLocale)) {
+            return;
+        }
+        if (DBG) Log.v(TAG, "Setting TTS language to '" + locale + '\'');
+        int result = mTts.setLanguage(locale);
+        // success values are >= 0, failure returns negative value
+        if (DBG) Log.v(TAG, "TTS setLanguage() returned: " + result);
+        mEngineLocale = (result >= 0) ? locale : null;
+    }
+
+    /**
+     * Return whether the engine is initialized and supports a language. This doesn't
+     * change the language of the engine.
+     * @param language the language, or null for the default language
+     */
+    boolean canSpeak(String language) {
+        return mTtsEngineReady
+                && mTts.isLanguageAvailable(getLocale(language)) >= TextToSpeech.LANG_AVAILABLE;
+    }
+
+    /**
+     * Synthesize the chunks of a text to files, unless they are cached. If the engine
+     * isn't initialized yet, the text is synthesized when it is. The files are kept
+     * until the last user of the engine releases it, so the syntheses of later alerts
+     * don't evict them before the text is spoken.
+     * @param text the text that will be spoken
+     * @param language the language of the text, or null for the default language
+     */
+    void prepare(String text, String language) {
+        if (!mTtsEngineReady) {
+            mPendingTexts.add(new LocalizedText(text, language));
+            return;
+        }
+        if (!canSpeak(language)) {
+            return;
+        }
+        // the engine synthesizes in order, so the first chunk is ready first
+        for (String chunk : split(text, language)) {
+            String key = getKey(chunk, language);
+            getCache().pin(key);
+            if (mSynthesizing.containsKey(key) || getCache().get(key) != null) {
+                continue;
+            }
+            synthesize(key, new LocalizedText(chunk, language));
+        }
+    }
+
+    /** Synthesize a chunk to the temporary file of its key. */
+    private void synthesize(String key, LocalizedText chunk) {
+        selectLanguage(chunk.mLanguage);
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID,
+                SYNTHESIZE_UTTERANCE_PREFIX + mSynthesisGeneration + ':' + key);
+        if (mTts.synthesizeToFile(chunk.mText, params, getCache().getTempFile(key).getPath())
+                == TextToSpeech.SUCCESS) {
+            if (DBG) Log.d(TAG, "synthesizing " + key);
+            mSynthesizing.put(key, chunk);
+        }
+    }
+
+    /**
+     * Issue the syntheses cancelled by a flush of the queue again, except the chunks
+     * that are spoken live. They are queued after the chunks being spoken.
+     */
+    private void resynthesize(ArrayList<String> spokenKeys) {
+        HashMap<String, LocalizedText> cancelled =
+                new HashMap<String, LocalizedText>(mSynthesizing);
+        cancelSyntheses();
+        for (String key : spokenKeys) {
+            cancelled.remove(key);
+        }
+        for (String key : cancelled.keySet()) {
+            synthesize(key, cancelled.get(key));
+        }
+    }
+
+    /** Forget the syntheses in progress; their completions are ignored. */
+    private void cancelSyntheses() {
+        mSynthesisGeneration++;
+        mSynthesizing.clear();
+    }
+
+    /** Add a synthesized file to the cache, and start speaking if it was due. */
+    private void onSynthesisCompleted(String utteranceId) {
+        int generationEnd = utteranceId.indexOf(':', SYNTHESIZE_UTTERANCE_PREFIX.length());
+        int generation = Integer.parseInt(
+                utteranceId.substring(SYNTHESIZE_UTTERANCE_PREFIX.length(), generationEnd));
+        String key = utteranceId.substring(generationEnd + 1);
+        if (generation != mSynthesisGeneration || mSynthesizing.remove(key) == null) {
+            return;     // cancelled by a flush of the queue
+        }
+        File file = getCache().put(key);
+        if (DBG) Log.d(TAG, "synthesized " + key + ": " + file);
+        if (key.equals(mSpeakWhenSynthesized)) {
+            mSpeakWhenSynthesized = null;
+            queueChunks();
+        }
+    }
+
+    /**
+     * Speak a text, interrupting the text being spoken. The text is spoken chunk by
+     * chunk, playing the files synthesized by {@link #prepare} if they are ready, and
+     * synthesizing the other chunks live. If the first chunk is still being synthesized,
+     * the chunks are queued when its synthesis completes.
+     * @param text the text to speak
+     * @param language the language of the text, or null for the default language
+     * @param listener called after the last chunk was spoken, unless stopped
+     * @return false if the text can't be spoken, or has nothing to speak
+     */
+    boolean speak(String text, String language, OnSpeechCompletedListener listener) {
+        if (!canSpeak(language)) {
+            return false;
+        }
+        stopSpeaking();
+        ArrayList<String> chunks = split(text, language);
+        if (chunks.isEmpty()) {
+            return false;
+        }
+        mSpeechChunks = chunks;
+        mSpeechLanguage = language;
+        mSpeechListener = listener;
+
+        String firstKey = getKey(chunks.get(0), language);
+        if (mSynthesizing.containsKey(firstKey) && getCache().get(firstKey) == null) {
+            if (DBG) Log.d(TAG, "waiting for synthesis of " + firstKey);
+            mSpeakWhenSynthesized = firstKey;
+        } else {
+            queueChunks();
+        }
+        return true;
+    }
+
+    /**
+     * Queue all chunks of the text. Flushing the queue cancels the syntheses that are
+     * still in progress; the chunks of this text are synthesized live instead, and the
+     * syntheses for the other alerts are issued again after the chunks.
+     */
+    private void queueChunks() {
+        ArrayList<String> liveKeys = new ArrayList<String>();
+        selectLanguage(mSpeechLanguage);
+        for (int i = 0; i < mSpeechChunks.size(); i++) {
+            String chunk = mSpeechChunks.get(i);
+            int queueMode = (i == 0) ? TextToSpeech.QUEUE_FLUSH : TextToSpeech.QUEUE_ADD;
+            HashMap<String, String> params = new HashMap<String, String>();
+            params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID,
+                    SPEAK_UTTERANCE_PREFIX + mSpeechGeneration + ':' + i);
+
+            String key = getKey(chunk, mSpeechLanguage);
+            File file = getCache().get(key);
+            if (file != null) {
+                // The key stands for the file, so that the text itself is never mapped
+                // to a file that may be evicted later.
+                getCache().pin(key);
+                mTts.addSpeech(key, file.getPath());
+                mTts.speak(key, queueMode, params);
+            } else {
+                mTts.speak(chunk, queueMode, params);
+                liveKeys.add(key);
+            }
+        }
+        resynthesize(liveKeys);
+    }
+
+    /** Track the progress of the text, and notify the listener after the last chunk. */
+    private void onChunkCompleted(String utteranceId) {
+        int generationEnd = utteranceId.indexOf(':', SPEAK_UTTERANCE_PREFIX.length());
+        int generation = Integer.parseInt(
+                utteranceId.substring(SPEAK_UTTERANCE_PREFIX.length(), generationEnd));
+        if (generation != mSpeechGeneration || mSpeechChunks == null) {
+            return;     // chunk of a stopped text
+        }
+        mSpokenChunks++;
+        if (DBG) Log.d(TAG, "spoke chunk " + mSpokenChunks + " of " + mSpeechChunks.size());
+        if (mSpokenChunks == mSpeechChunks.size()) {
+            OnSpeechCompletedListener listener = mSpeechListener;
+            stopSpeaking();
+            if (listener != null) {
+                listener.onSpeechCompleted();
+            }
+        }
+    }
+
+    /** Forget the text being spoken; completions of its chunks are ignored. */
+    private void stopSpeaking() {
+        mSpeechGeneration++;
+        mSpeechChunks = null;
+        mSpeechLanguage = null;
+        mSpokenChunks = 0;
+        mSpeechListener = null;
+        mSpeakWhenSynthesized = null;
+    }
+
+    /**
+     * Stop speaking. Stopping the engine cancels the syntheses in progress too; they
+     * are issued again, since they are for alerts that are still queued.
+     */
+    void stop() {
+        stopSpeaking();
+        if (mTtsEngineReady) {
+            mTts.stop();
+            resynthesize(new ArrayList<String>());
+        }
+    }
+
+    private static Locale getLocale(String language) {
+        return (language != null) ? new Locale(language) : Locale.getDefault();
+    }
+
+    private static ArrayList<String> split(String text, String language) {
+        return SpeechChunker.split(text, getLocale(language));
+    }
+
+    private String getKey(String text, String language) {
+        return SpeechFileCache.getKey(text, language, mTts.getDefaultEngine());
+    }
+
+    private SpeechFileCache getCache() {
+        if (mCache == null) {
+            mCache = new SpeechFileCache(new File(mContext.getCacheDir(), CACHE_DIRECTORY),
+                    MAX_CACHE_BYTES);
+        }
+        return mCache;
+    }
+
+    private void shutdown() {
+        mHandler.removeCallbacks(mShutdownRunnable);
+        if (mTts != null) {
+            mTts.shutdown();
+            mTts = null;
+        }
+        mTtsEngineReady = false;
+        mEngineLocale = null;
+        mPendingTexts.clear();
+        cancelSyntheses();
+        stopSpeaking();
+    }
+}
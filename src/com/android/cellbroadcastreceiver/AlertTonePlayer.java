@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.SystemClock;
+import android.util.Log;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Plays the attention signal of emergency alerts. The tone is loaded into an
+ * {@link AudioSink} once and stays resident for the life of the process, so starting
+ * an alert doesn't generate or copy any samples. The tone is loaded ahead
+ * of time by {@link #load}, e.g. when the emergency channels are enabled; otherwise the
+ * first alert loads it. May be used from any thread.
+ */
+final class AlertTonePlayer {
+    private static final String TAG = "AlertTonePlayer";
+
+    /** Audio output that plays the attention signal in a loop. */
+    interface AudioSink {
+        /** Return whether the tone is loaded and ready to start. */
+        boolean isLoaded();
+
+        /** Load the tone. This may be slow. */
+        void load();
+
+        /** Start playing the loaded tone from the beginning, looping until stopped. */
+        void start(float volume);
+
+        /** Stop playing. The tone stays loaded. */
+        void stop();
+
+        /** Unload the tone and free the audio resources. */
+        void release();
+    }
+
+    private static AlertTonePlayer sInstance;
+
+    private final AudioSink mSink;
+
+    /** True between {@link #start} and {@link #stop}. */
+    private boolean mPlaying;
+
+    /** Return the process-wide player of the attention signal. */
+    static synchronized AlertTonePlayer getInstance() {
+        if (sInstance == null) {
+            sInstance = new AlertTonePlayer(new AudioTrackSink());
+        }
+        return sInstance;
+    }
+
+    AlertTonePlayer(AudioSink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Load the tone if it isn't loaded yet. This takes tens of milliseconds to
+     * synthesize the tone, so call it from a worker thread to load the tone ahead of time.
+     * @return true if the tone is loaded
+     */
+    synchronized boolean load() {
+        if (!mSink.isLoaded()) {
+            long startTime = SystemClock.elapsedRealtime();
+            try {
+                mSink.load();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to load alert tone", e);
+                mSink.release();
+                return false;
+            }
+            if (DBG) Log.d(TAG, "loaded alert tone in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        }
+        return true;
+    }
+
+    /**
+     * Start playing the tone in a loop. If the tone wasn't loaded ahead of time, it is
+     * loaded first.
+     * @param volume the volume, between 0.0 and 1.0
+     * @return true if the tone started playing
+     */
+    synchronized boolean start(float volume) {
+        long startTime = SystemClock.elapsedRealtime();
+        stop();
+        if (!load()) {
+            return false;
+        }
+        mSink.start(volume);
+        mPlaying = true;
+        CellBroadcastMetrics.recordLatency(CellBroadcastMetrics.ALERT_TONE_START,
+                SystemClock.elapsedRealtime() - startTime);
+        return true;
+    }
+
+    /** Stop playing the tone, if playing. The tone stays loaded for the next alert. */
+    synchronized void stop() {
+        if (mPlaying) {
+            mSink.stop();
+            mPlaying = false;
+        }
+    }
+
+    /**
+     * Plays the tone from {@link AttentionToneGenerator} with a static {@link AudioTrack}:
+     * the samples are written to the track once, and the track loops over them. The
+     * track is paused rather than stopped: stopping a static track discards its
+     * samples, and they can't be reloaded before API 18.
+     */
+    static final class AudioTrackSink implements AudioSink {
+        /** The loaded track, or null if not loaded. */
+        private AudioTrack mTrack;
+
+        public synchronized boolean isLoaded() {
+            return mTrack != null;
+        }
+
+        public synchronized void load() {
+            short[] samples = AttentionToneGenerator.generateCadence();
+            AudioTrack track = new AudioTrack(AudioManager.STREAM_ALARM,
+                    AttentionToneGenerator.SAMPLE_RATE, AudioFormat.CHANNEL_OUT_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT, samples.length * 2, AudioTrack.MODE_STATIC);
+            int written = track.write(samples, 0, samples.length);
+            if (written != samples.length || track.getState() != AudioTrack.STATE_INITIALIZED) {
+                track.release();
+                throw new IllegalStateException("AudioTrack write returned " + written);
+            }
+            track.setLoopPoints(0, samples.length, -1);
+            mTrack = track;
+        }
+
+        public synchronized void start(float volume) {
+            if (mTrack != null) {
+                mTrack.setStereoVolume(volume, volume);
+                // rewind the paused (or never played) track
+                mTrack.setPlaybackHeadPosition(0);
+                mTrack.play();
+            }
+        }
+
+        public synchronized void stop() {
+            if (mTrack != null) {
+                mTrack.pause();
+            }
+        }
+
+        /** Return the playback head position of the track in frames, or -1 if not loaded. */
+        synchronized int getPlaybackHeadPosition() {
+            return (mTrack != null) ? mTrack.getPlaybackHeadPosition() : -1;
+        }
+
+        public synchronized void release() {
+            if (mTrack != null) {
+                mTrack.release();
+                mTrack = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+/**
+ * Synthesizes the attention signal of emergency alerts: the 853 Hz + 960 Hz dual tone
+ * of CMAS, played with the CMAS cadence (2 s on, 0.5 s off, 1 s on, 0.5 s off, 1 s on,
+ * 0.5 s off). The vibration pattern of alerts uses the same cadence.
+ *
+ * Both frequencies are whole numbers of Hz, so the dual tone repeats exactly every
+ * second: one second of samples is computed into a table, and the tone segments of the
+ * cadence are copied from it. Every tone segment starts at the start of the table, where
+ * both sine waves cross zero. Pure Java, so it can be tested on the host.
+ */
+final class AttentionToneGenerator {
+
+    /** Sample rate of the generated 16-bit mono PCM. */
+    static final int SAMPLE_RATE = 16000;
+
+    /** First frequency of the CMAS attention signal. */
+    static final int TONE_FREQUENCY_1 = 853;
+
+    /** Second frequency of the CMAS attention signal. */
+    static final int TONE_FREQUENCY_2 = 960;
+
+    /** Peak amplitude of each sine wave, so that their sum stays below full scale. */
+    static final int TONE_AMPLITUDE = 14000;
+
+    /** Duration of the tone and silence segments of one cycle, starting with a tone. */
+    private static final int[] CADENCE_MSEC = { 2000, 500, 1000, 500, 1000, 500 };
+
+    private AttentionToneGenerator() {}
+
+    /**
+     * Return the vibration pattern matching the cadence, for
+     * {@link android.os.Vibrator#vibrate(long[], int)} repeating from index 1.
+     */
+    static long[] getVibratePattern() {
+        long[] pattern = new long[CADENCE_MSEC.length + 1];
+        pattern[0] = 0;     // start vibrating immediately, with the tone
+        for (int i = 0; i < CADENCE_MSEC.length; i++) {
+            pattern[i + 1] = CADENCE_MSEC[i];
+        }
+        return pattern;
+    }
+
+    /** Return the number of samples of a cadence segment. */
+    static int getSegmentLength(int index) {
+        return CADENCE_MSEC[index] * SAMPLE_RATE / 1000;
+    }
+
+    /** Return the number of segments of one cycle; even segments are tone, odd silence. */
+    static int getSegmentCount() {
+        return CADENCE_MSEC.length;
+    }
+
+    /**
+     * Compute one second of the dual tone. The phase of each sample is computed from
+     * the sample index modulo the sample rate, so there is no accumulated phase error.
+     * @return {@link #SAMPLE_RATE} samples, repeating seamlessly
+     */
+    static short[] generateToneTable() {
+        short[] table = new short[SAMPLE_RATE];
+        double radiansPerSample = 2 * Math.PI / SAMPLE_RATE;
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            double sample = Math.sin(radiansPerSample * ((TONE_FREQUENCY_1 * i) % SAMPLE_RATE))
+                    + Math.sin(radiansPerSample * ((TONE_FREQUENCY_2 * i) % SAMPLE_RATE));
+            table[i] = (short) Math.round(sample * TONE_AMPLITUDE);
+        }
+        return table;
+    }
+
+    /**
+     * Generate one cycle of the attention signal, to be played in a loop.
+     * @return 16-bit mono PCM samples at {@link #SAMPLE_RATE}
+     */
+    static short[] generateCadence() {
+        short[] table = generateToneTable();
+        int length = 0;
+        for (int i = 0; i < CADENCE_MSEC.length; i++) {
+            length += getSegmentLength(i);
+        }
+
+        short[] samples = new short[length];
+        int offset = 0;
+        for (int i = 0; i < CADENCE_MSEC.length; i++) {
+            int segmentLength = getSegmentLength(i);
+            if (i % 2 == 0) {
+                for (int j = 0; j < segmentLength; j += table.length) {
+                    System.arraycopy(table, 0, samples, offset + j,
+                            Math.min(table.length, segmentLength - j));
+                }
+            }
+            // silence segments are left zero
+            offset += segmentLength;
+        }
+        return samples;
+    }
+}
@@ -20,8 +20,8 @@ package com.android.cellbroadcastreceiver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Parcel;
 import android.os.Parcelable;
-import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
 
@@ -35,6 +35,11 @@ public abstract class BroadcastMessage implements Parcelable {
     protected final long mDeliveryTime;
     protected boolean mIsRead = false;
 
+    /** Classification flags, computed on first use unless read from the database. */
+    private int mClassFlags = CellBroadcastClassifier.UNCLASSIFIED;
+    /** Display category, computed on first use unless read from the database. */
+    private int mCategory = CellBroadcastClassifier.UNCLASSIFIED;
+
     protected BroadcastMessage(int messageId, String languageCode,
             String messageBody, long deliveryTime, boolean isRead) {
         mMessageIdentifier = messageId;
@@ -117,7 +122,9 @@ public abstract class BroadcastMessage implements Parcelable {
      *
      * @return true if the message is PWS type; false otherwise
      */
-    public abstract boolean isPublicAlertMessage();
+    public boolean isPublicAlertMessage() {
+        return (getClassFlags() & CellBroadcastClassifier.FLAG_PUBLIC_ALERT) != 0;
+    }
 
     /**
      * Returns whether the broadcast is an emergency (PWS) message type,
@@ -125,21 +132,96 @@ public abstract class BroadcastMessage implements Parcelable {
      *
      * @return true if the message is PWS type, excluding Amber alerts
      */
-    public abstract boolean isEmergencyAlertMessage();
+    public boolean isEmergencyAlertMessage() {
+        return (getClassFlags() & CellBroadcastClassifier.FLAG_EMERGENCY_ALERT) != 0;
+    }
+
     /**
      * Return whether the broadcast is an ETWS emergency message type.
      * @return true if the message is ETWS emergency type; false otherwise
      */
-    public abstract boolean isEtwsMessage();
+    public boolean isEtwsMessage() {
+        return (getClassFlags() & CellBroadcastClassifier.FLAG_ETWS) != 0;
+    }
 
     /**
      * Return whether the broadcast is a CMAS emergency message type.
      * @return true if the message is CMAS emergency type; false otherwise
      */
-    public abstract boolean isCmasMessage();
+    public boolean isCmasMessage() {
+        return (getClassFlags() & CellBroadcastClassifier.FLAG_CMAS) != 0;
+    }
+
+    public int getDialogTitleResource() {
+        return CellBroadcastClassifier.getDialogTitleResource(getCategory());
+    }
+
+    /**
+     * Return the classification flags, computing them if they were not stored.
+     * @return a combination of the CellBroadcastClassifier FLAG_* constants
+     */
+    int getClassFlags() {
+        if (mClassFlags == CellBroadcastClassifier.UNCLASSIFIED) {
+            mClassFlags = CellBroadcastClassifier.computeClassFlags(getFormat(),
+                    mMessageIdentifier);
+        }
+        return mClassFlags;
+    }
+
+    /**
+     * Return the display category, computing it if it was not stored.
+     * @return one of the CellBroadcastClassifier CATEGORY_* constants
+     */
+    int getCategory() {
+        if (mCategory == CellBroadcastClassifier.UNCLASSIFIED) {
+            mCategory = CellBroadcastClassifier.computeCategory(getFormat(),
+                    mMessageIdentifier, getClassFlags());
+        }
+        return mCategory;
+    }
+
+    /**
+     * Read the stored classification columns, if the row has been classified.
+     * @param cursor an open SQLite cursor pointing to the row to read
+     */
+    protected void readClassificationFromCursor(Cursor cursor) {
+        if (!cursor.isNull(CellBroadcastDatabase.COLUMN_CLASS_FLAGS)
+                && !cursor.isNull(CellBroadcastDatabase.COLUMN_CATEGORY)) {
+            mClassFlags = cursor.getInt(CellBroadcastDatabase.COLUMN_CLASS_FLAGS);
+            mCategory = cursor.getInt(CellBroadcastDatabase.COLUMN_CATEGORY);
+        }
+    }
+
+    /**
+     * Add the classification columns to the values for insertion into the database.
+     * @param cv the ContentValues to add to
+     */
+    protected void putClassification(ContentValues cv) {
+        cv.put(CellBroadcastDatabase.Columns.CLASS_FLAGS, getClassFlags());
+        cv.put(CellBroadcastDatabase.Columns.CATEGORY, getCategory());
+        cv.put(CellBroadcastDatabase.Columns.PRIORITY,
+                CellBroadcastClassifier.getPriority(getCategory()));
+        cv.put(CellBroadcastDatabase.Columns.CATEGORY_GROUP,
+                CellBroadcastFilter.getCategoryGroup(getCategory()));
+    }
 
+    /**
+     * Write the classification, so that receivers of the parcel don't recompute it.
+     * @param out the Parcel to write to
+     */
+    protected void writeClassificationToParcel(Parcel out) {
+        out.writeInt(getClassFlags());
+        out.writeInt(getCategory());
+    }
 
-    public abstract int getDialogTitleResource();
+    /**
+     * Read the classification written by {@link #writeClassificationToParcel}.
+     * @param in the Parcel to read from
+     */
+    protected void readClassificationFromParcel(Parcel in) {
+        mClassFlags = in.readInt();
+        mCategory = in.readInt();
+    }
 
     public abstract String getIntentExtraName();
 
@@ -151,10 +233,7 @@ public abstract class BroadcastMessage implements Parcelable {
      * @return a String to use in the broadcast list UI
      */
     String getDateString(Context context) {
-        int flags = DateUtils.FORMAT_NO_NOON_MIDNIGHT | DateUtils.FORMAT_SHOW_TIME |
-                DateUtils.FORMAT_ABBREV_ALL | DateUtils.FORMAT_SHOW_DATE |
-                DateUtils.FORMAT_CAP_AMPM;
-        return DateUtils.formatDateTime(context, mDeliveryTime, flags);
+        return formatDateString(context, mDeliveryTime);
     }
 
     /**
@@ -163,56 +242,38 @@ public abstract class BroadcastMessage implements Parcelable {
      * @return a String for populating the list item AccessibilityEvent for TTS
      */
     String getSpokenDateString(Context context) {
-        int flags = DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_DATE;
-        return DateUtils.formatDateTime(context, mDeliveryTime, flags);
+        return formatSpokenDateString(context, mDeliveryTime);
     }
 
-    abstract boolean isOperatorDefinedEmergencyId();
+    /**
+     * Return the abbreviated date string for a delivery time.
+     * @param context the context object
+     * @param deliveryTime the delivery time to format
+     * @return a String to use in the broadcast list UI
+     */
+    static String formatDateString(Context context, long deliveryTime) {
+        int flags = DateUtils.FORMAT_NO_NOON_MIDNIGHT | DateUtils.FORMAT_SHOW_TIME |
+                DateUtils.FORMAT_ABBREV_ALL | DateUtils.FORMAT_SHOW_DATE |
+                DateUtils.FORMAT_CAP_AMPM;
+        return DateUtils.formatDateTime(context, deliveryTime, flags);
+    }
 
     /**
-     * Return whether the messageId is operator defined emergency ID.
-     * @param emergencyIdRange contains operator defined emergency IDs.
-     * @see #isOperatorDefinedEmergencyId(String, int)
-     * @return true this.messageId is operator defined, false otherwise
+     * Return the date string for a delivery time, suitable for text-to-speech.
+     * @param context the context object
+     * @param deliveryTime the delivery time to format
+     * @return a String for populating the list item AccessibilityEvent for TTS
      */
-    boolean isOperatorDefinedEmergencyId(String emergencyIdRange) {
-        return isOperatorDefinedEmergencyId(emergencyIdRange, getMessageIdentifier());
+    static String formatSpokenDateString(Context context, long deliveryTime) {
+        int flags = DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_DATE;
+        return DateUtils.formatDateTime(context, deliveryTime, flags);
     }
 
     /**
-     * Return whether the messageId is operator defined emergency ID.
-     * @param emergencyIdRange contains operator defined emergency IDs.
-     * @param messageId id to check against operator defined emergency IDs.
-     * Sample format of emergencyIdRange:
-     * "1,3,9-12,15"
-     * "0x1,0x3,0x9-0xc,0xf"
-     * @see java.lang.Integer.decode(String)
+     * Return whether the messageId is in the operator defined emergency range.
      * @return true this.messageId is operator defined, false otherwise
      */
-    static boolean isOperatorDefinedEmergencyId(String emergencyIdRange, int messageId) {
-        // Check for system property defining the emergency channel ranges to enable
-        if (TextUtils.isEmpty(emergencyIdRange)) {
-            return false;
-        }
-        try {
-            for (String channelRange : emergencyIdRange.split(",")) {
-                int dashIndex = channelRange.indexOf('-');
-                if (dashIndex != -1) {
-                    int startId = Integer.decode(channelRange.substring(0, dashIndex).trim());
-                    int endId = Integer.decode(channelRange.substring(dashIndex + 1).trim());
-                    if (messageId >= startId && messageId <= endId) {
-                        return true;
-                    }
-                } else {
-                    int emergencyMessageId = Integer.decode(channelRange.trim());
-                    if (emergencyMessageId == messageId) {
-                        return true;
-                    }
-                }
-            }
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Number Format Exception parsing emergency channel range", e);
-        }
-        return false;
+    boolean isOperatorDefinedEmergencyId() {
+        return (getClassFlags() & CellBroadcastClassifier.FLAG_OPERATOR_EMERGENCY) != 0;
     }
 }
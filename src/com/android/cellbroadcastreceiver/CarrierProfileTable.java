@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only table of the channel profiles of carriers, compiled from
+ * tools/carrier_profiles.txt by the CarrierProfileCompiler host tool. The table is
+ * memory-mapped and searched in place, so looking up a carrier needs neither parsing
+ * nor allocation.
+ *
+ * Format (big-endian):
+ * <pre>
+ * header:   int magic, int version, int profileCount, int rangeCount
+ * profiles: profileCount x {int key, int flags, int gsmFirstRange, int gsmRangeCount,
+ *           int cdmaFirstRange, int cdmaRangeCount}, sorted by key
+ * ranges:   rangeCount x {char startId, char endId, char flags}; the ranges of each
+ *           profile and format are sorted by start identifier and disjoint
+ * </pre>
+ * The key of a profile is {@link #getKey getKey(mcc, mnc)}; {@link #MNC_ANY} matches
+ * the networks of a country that have no profile of their own.
+ *
+ * Uses no Android APIs, so it can be tested on the host. May be used from any thread.
+ */
+final class CarrierProfileTable {
+
+    /** "CBPF" */
+    static final int MAGIC = 0x43425046;
+    static final int VERSION = 1;
+
+    /** Mobile network code of a profile that applies to a whole country. */
+    static final int MNC_ANY = 1023;
+
+    /* Message formats, the ranges of a profile are kept per format. */
+
+    static final int FORMAT_GSM = 0;
+    static final int FORMAT_CDMA = 1;
+
+    /* Profile flags. */
+
+    /** Brazil behaviour: show the channel 50 setting, and enable channel 50. */
+    static final int PROFILE_FLAG_CHANNEL_50 = 1 << 0;
+
+    /* Range flags. */
+
+    /** The range is an operator defined emergency range: its broadcasts are alerts. */
+    static final int RANGE_FLAG_EMERGENCY = 1 << 0;
+
+    static final int HEADER_SIZE = 16;
+    static final int PROFILE_SIZE = 24;
+    static final int RANGE_SIZE = 6;
+
+    private final ByteBuffer mBuffer;
+    private final int mProfileCount;
+    private final int mRangeCount;
+
+    /**
+     * Memory-map a table from a file, e.g. an uncompressed asset of the package.
+     * @param channel the channel of the file
+     * @param offset the offset of the table in the file
+     * @param length the length of the table
+     * @throws IOException if the file can't be mapped or isn't a valid table
+     */
+    static CarrierProfileTable map(FileChannel channel, long offset, long length)
+            throws IOException {
+        return new CarrierProfileTable(channel.map(FileChannel.MapMode.READ_ONLY,
+                offset, length));
+    }
+
+    /**
+     * Create a table on a buffer.
+     * @throws IOException if the buffer doesn't contain a valid table
+     */
+    CarrierProfileTable(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a carrier profile table");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("unsupported carrier profile table version "
+                    + buffer.getInt(4));
+        }
+        mProfileCount = buffer.getInt(8);
+        mRangeCount = buffer.getInt(12);
+        if (mProfileCount < 0 || mRangeCount < 0 || buffer.capacity()
+                != HEADER_SIZE + mProfileCount * PROFILE_SIZE + mRangeCount * RANGE_SIZE) {
+            throw new IOException("truncated carrier profile table");
+        }
+        for (int profile = 0; profile < mProfileCount; profile++) {
+            for (int format = FORMAT_GSM; format <= FORMAT_CDMA; format++) {
+                int first = getFirstRange(profile, format);
+                int count = getRangeCount(profile, format);
+                if (first < 0 || count < 0 || first + count > mRangeCount) {
+                    throw new IOException("invalid ranges in carrier profile " + profile);
+                }
+            }
+        }
+    }
+
+    /** Return the key of the profile of a network. */
+    static int getKey(int mcc, int mnc) {
+        return (mcc << 10) | mnc;
+    }
+
+    /** Return the number of profiles. */
+    int getProfileCount() {
+        return mProfileCount;
+    }
+
+    /**
+     * Find the profile of a network: the profile of the network itself, or else the
+     * profile of its country.
+     * @param mcc the mobile country code
+     * @param mnc the mobile network code
+     * @return the index of the profile, or -1 if there is none
+     */
+    int findProfile(int mcc, int mnc) {
+        int profile = findKey(getKey(mcc, mnc));
+        if (profile == -1 && mnc != MNC_ANY) {
+            profile = findKey(getKey(mcc, MNC_ANY));
+        }
+        return profile;
+    }
+
+    private int findKey(int key) {
+        int low = 0;
+        int high = mProfileCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = getProfileKey(mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    int getProfileKey(int profile) {
+        return mBuffer.getInt(getProfileOffset(profile));
+    }
+
+    /** Return the PROFILE_FLAG_* flags of a profile. */
+    int getProfileFlags(int profile) {
+        return mBuffer.getInt(getProfileOffset(profile) + 4);
+    }
+
+    /** Return the number of ranges of a profile for a message format. */
+    int getRangeCount(int profile, int format) {
+        return mBuffer.getInt(getProfileOffset(profile) + 12 + format * 8);
+    }
+
+    int getRangeStartId(int profile, int format, int index) {
+        return mBuffer.getChar(getRangeOffset(profile, format, index));
+    }
+
+    int getRangeEndId(int profile, int format, int index) {
+        return mBuffer.getChar(getRangeOffset(profile, format, index) + 2);
+    }
+
+    /** Return the RANGE_FLAG_* flags of a range. */
+    int getRangeFlags(int profile, int format, int index) {
+        return mBuffer.getChar(getRangeOffset(profile, format, index) + 4);
+    }
+
+    /** Return whether a profile has a range for a message format with all of the flags. */
+    boolean hasRange(int profile, int format, int flags) {
+        int count = getRangeCount(profile, format);
+        for (int i = 0; i < count; i++) {
+            if ((getRangeFlags(profile, format, i) & flags) == flags) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the range of a profile that contains a message identifier.
+     * @param profile the index of the profile
+     * @param format the message format, FORMAT_GSM or FORMAT_CDMA
+     * @param messageId the message identifier (GSM) or service category (CDMA)
+     * @return the index of the range, or -1 if no range contains the identifier
+     */
+    int findRange(int profile, int format, int messageId) {
+        // find the last range that starts at or before the identifier
+        int low = 0;
+        int high = getRangeCount(profile, format) - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getRangeStartId(profile, format, mid) <= messageId) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found != -1 && getRangeEndId(profile, format, found) >= messageId) {
+            return found;
+        }
+        return -1;
+    }
+
+    private int getFirstRange(int profile, int format) {
+        return mBuffer.getInt(getProfileOffset(profile) + 8 + format * 8);
+    }
+
+    private static int getProfileOffset(int profile) {
+        return HEADER_SIZE + profile * PROFILE_SIZE;
+    }
+
+    private int getRangeOffset(int profile, int format, int index) {
+        return HEADER_SIZE + mProfileCount * PROFILE_SIZE
+                + (getFirstRange(profile, format) + index) * RANGE_SIZE;
+    }
+}
@@ -25,7 +25,6 @@ import android.content.Context;
 import android.database.Cursor;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.os.SystemProperties;
 import android.telephony.SmsCbConstants;
 import android.telephony.EmergencyMessage.Certainty;
 import android.telephony.EmergencyMessage.Severity;
@@ -51,6 +50,11 @@ public class CdmaBroadcastMessage extends BroadcastMessage {
     static final String EMERGENCY_BROADCAST_RANGE =
             "ro.cb.cdma.emergencyids";
 
+    /* Cached enum values, since values() allocates a new array on every call. */
+    private static final Severity[] SEVERITY_VALUES = Severity.values();
+    private static final Urgency[] URGENCY_VALUES = Urgency.values();
+    private static final Certainty[] CERTAINTY_VALUES = Certainty.values();
+
     private final Severity mSeverity;
     private final Urgency mUrgency;
     private final Certainty mCertainty;
@@ -124,6 +128,7 @@ public class CdmaBroadcastMessage extends BroadcastMessage {
         dest.writeInt(mLanguageCodeInt);
         dest.writeLong(mDeliveryTime);
         dest.writeInt(mIsRead ? 1 : 0);
+        writeClassificationToParcel(dest);
     }
 
     public int describeContents() {
@@ -133,15 +138,17 @@ public class CdmaBroadcastMessage extends BroadcastMessage {
     public static final Parcelable.Creator<CdmaBroadcastMessage>
             CREATOR = new Parcelable.Creator<CdmaBroadcastMessage>() {
         public CdmaBroadcastMessage createFromParcel(Parcel in) {
-            return new CdmaBroadcastMessage(
+            CdmaBroadcastMessage message = new CdmaBroadcastMessage(
                     in.readString(),
                     in.readInt(),
-                    Severity.values()[in.readInt()],
-                    Urgency.values()[in.readInt()],
-                    Certainty.values()[in.readInt()],
+                    SEVERITY_VALUES[in.readInt()],
+                    URGENCY_VALUES[in.readInt()],
+                    CERTAINTY_VALUES[in.readInt()],
                     in.readInt(),
                     in.readLong(),
                     (in.readInt() != 0));
+            message.readClassificationFromParcel(in);
+            return message;
         }
 
         public CdmaBroadcastMessage[] newArray(int size) {
@@ -161,13 +168,14 @@ public class CdmaBroadcastMessage extends BroadcastMessage {
         long deliveryTime = cursor.getLong(CellBroadcastDatabase.COLUMN_DELIVERY_TIME);
         boolean isRead = (cursor.getInt(CellBroadcastDatabase.COLUMN_MESSAGE_READ) != 0);
 
-        Severity severity = Severity.values()[cursor.getInt(CellBroadcastDatabase.COLUMN_SEVERITY)];
-        Urgency urgency = Urgency.values()[cursor.getInt(CellBroadcastDatabase.COLUMN_URGENCY)];
-        Certainty certainty = Certainty.values()[cursor.getInt(CellBroadcastDatabase.COLUMN_CERTAINTY)];
+        Severity severity = SEVERITY_VALUES[cursor.getInt(CellBroadcastDatabase.COLUMN_SEVERITY)];
+        Urgency urgency = URGENCY_VALUES[cursor.getInt(CellBroadcastDatabase.COLUMN_URGENCY)];
+        Certainty certainty = CERTAINTY_VALUES[cursor.getInt(CellBroadcastDatabase.COLUMN_CERTAINTY)];
 
         CdmaBroadcastMessage message = new CdmaBroadcastMessage(
                 body, messageId, severity, urgency, certainty,
                 languageCodeStringToInt(language), deliveryTime, isRead);
+        message.readClassificationFromCursor(cursor);
         return message;
     }
 
@@ -176,16 +184,18 @@ public class CdmaBroadcastMessage extends BroadcastMessage {
      * @return a new ContentValues object containing this object's data
      */
     public ContentValues getContentValues() {
-        ContentValues cv = new ContentValues(9);
+        ContentValues cv = new ContentValues(13);
         cv.put(CellBroadcastDatabase.Columns.MESSAGE_IDENTIFIER, getMessageIdentifier());
         cv.put(CellBroadcastDatabase.Columns.LANGUAGE_CODE, getLanguageCode());
         cv.put(CellBroadcastDatabase.Columns.MESSAGE_BODY, getMessageBody());
+        CellBroadcastDatabase.putSnippet(cv, getMessageBody());
         cv.put(CellBroadcastDatabase.Columns.DELIVERY_TIME, getDeliveryTime());
         cv.put(CellBroadcastDatabase.Columns.MESSAGE_READ, isRead());
         cv.put(CellBroadcastDatabase.Columns.MESSAGE_FORMAT, getFormat());
         cv.put(CellBroadcastDatabase.Columns.SEVERITY, getSeverity().ordinal());
         cv.put(CellBroadcastDatabase.Columns.URGENCY, getUrgency().ordinal());
         cv.put(CellBroadcastDatabase.Columns.CERTAINTY, getCertainty().ordinal());
+        putClassification(cv);
         return cv;
     }
 
@@ -201,73 +211,6 @@ public class CdmaBroadcastMessage extends BroadcastMessage {
         return mCertainty;
     }
 
-    /**
-     * Return whether the broadcast is an emergency (PWS) message type.
-     * This includes lower priority test messages and Amber alerts.
-     *
-     * All public alerts show the flashing warning icon in the dialog,
-     * but only emergency alerts play the alert sound and speak the message.
-     *
-     * @return true if the message is PWS type; false otherwise
-     */
-    public boolean isPublicAlertMessage() {
-        return (isEtwsMessage() || isCmasMessage());
-    }
-
-    /**
-     * Returns whether the broadcast is an emergency (PWS) message type,
-     * including test messages, but excluding lower priority Amber alert broadcasts.
-     *
-     * @return true if the message is PWS type, excluding Amber alerts
-     */
-    public boolean isEmergencyAlertMessage() {
-        return (isPublicAlertMessage()) &&
-                getMessageIdentifier() != CMAS_AMBER;
-    }
-
-    /**
-     * Return whether the broadcast is an ETWS emergency message type.
-     * @return true if the message is ETWS emergency type; false otherwise
-     */
-    public boolean isEtwsMessage() {
-        return false; //not supported in CDMA
-    }
-
-    /**
-     * Return whether the broadcast is a CMAS emergency message type.
-     * @return true if the message is CMAS emergency type; false otherwise
-     */
-    public boolean isCmasMessage() {
-        return getMessageIdentifier() >= CMAS_FIRST_IDENTIFIER &&
-                getMessageIdentifier() <= CMAS_LAST_IDENTIFIER;
-    }
-
-    public int getDialogTitleResource() {
-        switch (getMessageIdentifier()) {
-            case CdmaBroadcastMessage.CMAS_PRESIDENTIAL:
-                return R.string.cmas_presidential_level_alert;
-
-            case CdmaBroadcastMessage.CMAS_EXTREME:
-                return R.string.cmas_extreme_alert;
-
-            case CdmaBroadcastMessage.CMAS_SEVERE:
-                return R.string.cmas_severe_alert;
-
-            case CdmaBroadcastMessage.CMAS_AMBER:
-                return R.string.cmas_amber_alert;
-
-            case CdmaBroadcastMessage.CMAS_TEST:
-                return R.string.cmas_required_monthly_test;
-
-            default:
-                if (isPublicAlertMessage() || isOperatorDefinedEmergencyId()) {
-                    return R.string.pws_other_message_identifiers;
-                } else {
-                    return R.string.cb_other_message_identifiers;
-                }
-        }
-    }
-
     public String getIntentExtraName() {
         return SMS_CDMA_MESSAGE_EXTRA;
     }
@@ -282,9 +225,4 @@ public class CdmaBroadcastMessage extends BroadcastMessage {
         }
         return 0; //unspecified
     }
-
-    boolean isOperatorDefinedEmergencyId() {
-        return isOperatorDefinedEmergencyId(
-                SystemProperties.get(EMERGENCY_BROADCAST_RANGE));
-    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.app.Activity;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Translucent activity that presents received broadcasts, started by the notification
+ * of each broadcast (and immediately, by its full screen intent, for emergency alerts).
+ * Unlike {@link CellBroadcastListActivity}, it has no content view and no database
+ * access: the alert dialog is rendered from the parceled message alone, so the time to
+ * the first frame only depends on the dialog. Dismissing the alerts (which updates the
+ * database through {@link CellBroadcastDatabaseService}) finishes the activity.
+ *
+ * The time from receiving an alert to the first frame of its dialog is recorded in
+ * {@link CellBroadcastMetrics}; run "adb shell dumpsys activity top" while an alert
+ * is shown to print the metrics.
+ */
+public class CellBroadcastAlertActivity extends Activity {
+    private static final String TAG = "CellBroadcastAlertActivity";
+
+    /** The dialog presenting the pending alerts, or null. */
+    private CellBroadcastAlertDialog mAlertDialog;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        // a recreated activity gets the intent it was first started with again
+        handleIntent(getIntent(), savedInstanceState == null);
+        if (mAlertDialog == null) {
+            finish();   // nothing to show
+        }
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        handleIntent(intent, true);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mAlertDialog != null) {
+            // undismissed alerts stay queued for the next alert activity
+            mAlertDialog.setOnDismissListener(null);
+            mAlertDialog.dismiss();
+            mAlertDialog = null;
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Add the broadcast of an intent to the pending alerts and show the alert dialog.
+     * @param intent the intent of the broadcast
+     * @param newIntent false if the activity is recreated with the intent delivered before
+     */
+    private void handleIntent(Intent intent, boolean newIntent) {
+        CellBroadcastAlertQueue queue = CellBroadcastAlertQueue.getPendingAlerts();
+        BroadcastMessage bm = intent.getParcelableExtra(CellBroadcastMessage.SMS_CB_MESSAGE_EXTRA);
+        if (bm == null) {
+            bm = intent.getParcelableExtra(CdmaBroadcastMessage.SMS_CDMA_MESSAGE_EXTRA);
+        }
+        CellBroadcastAlertQueue.Alert alert = null;
+        if (bm != null) {
+            // The notification is cancelled when the user dismisses the alert.
+            int notificationId = intent.getIntExtra(CellBroadcastAlertService.NOTIFICATION_ID_EXTRA,
+                    CellBroadcastAlertQueue.NO_NOTIFICATION);
+            alert = queue.add(bm, notificationId);
+        } else {
+            Log.e(TAG, "intent did not have parcelable for gsm or cdma broadcast");
+        }
+
+        long receivedTime = intent.getLongExtra(CellBroadcastAlertService.RECEIVED_TIME_EXTRA, -1);
+        // only once per alert, the full screen intent may be sent again
+        boolean recordFirstFrame = newIntent && alert != null && receivedTime != -1
+                && !alert.mFirstFrameRecorded;
+
+        if (mAlertDialog != null) {
+            if (alert != null) {
+                mAlertDialog.onAlertAdded(alert);
+                if (recordFirstFrame) {
+                    recordFirstFrame(alert, receivedTime);
+                }
+            }
+            return;
+        }
+        if (queue.size() == 0) {
+            return;
+        }
+        mAlertDialog = new CellBroadcastAlertDialog(this, queue);
+        mAlertDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            public void onDismiss(DialogInterface dialog) {
+                mAlertDialog = null;
+                finish();
+            }
+        });
+        mAlertDialog.show();
+
+        if (recordFirstFrame) {
+            recordFirstFrame(alert, receivedTime);
+        }
+    }
+
+    /**
+     * Record the time from receiving an alert to the first frame of the alert dialog.
+     * @param alert the alert shown by the dialog
+     * @param receivedTime the elapsed realtime when the alert was received
+     */
+    private void recordFirstFrame(final CellBroadcastAlertQueue.Alert alert,
+            final long receivedTime) {
+        alert.mFirstFrameRecorded = true;
+        final View decorView = mAlertDialog.getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    public boolean onPreDraw() {
+                        decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        // runs after the traversal that draws the first frame
+                        decorView.post(new Runnable() {
+                            public void run() {
+                                long latency = SystemClock.elapsedRealtime() - receivedTime;
+                                CellBroadcastMetrics.recordLatency(
+                                        CellBroadcastMetrics.ALERT_FIRST_FRAME, latency);
+                                if (alert.mMessage.getCategory()
+                                        == CellBroadcastClassifier.CATEGORY_CMAS_PRESIDENTIAL) {
+                                    CellBroadcastMetrics.recordLatency(CellBroadcastMetrics
+                                            .PRESIDENTIAL_ALERT_FIRST_FRAME, latency);
+                                }
+                            }
+                        });
+                        return true;
+                    }
+                });
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        CellBroadcastMetrics.dump(prefix, writer);
+    }
+}
@@ -19,35 +19,38 @@ package com.android.cellbroadcastreceiver;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetFileDescriptor;
-import android.content.res.Resources;
 import android.media.AudioManager;
-import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnErrorListener;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
+import android.os.SystemClock;
 import android.os.Vibrator;
-import android.speech.tts.TextToSpeech;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
-import java.util.Locale;
-
 import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
 
 /**
  * Manages alert audio and vibration and text-to-speech. Runs as a service so that
  * it can continue to play if another activity overrides the CellBroadcastListActivity.
+ * The tone and the TTS engine are kept across alerts by {@link AlertTonePlayer} and
+ * {@link AlertSpeechManager}. Alerts that arrive while another alert plays are
+ * scheduled by an {@link AlertPlaybackQueue}.
  */
-public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnInitListener,
-        TextToSpeech.OnUtteranceCompletedListener {
+public class CellBroadcastAlertAudio extends Service
+        implements AlertSpeechManager.OnSpeechCompletedListener, AlertPlaybackQueue.Player {
     private static final String TAG = "CellBroadcastAlertAudio";
 
     /** Action to start playing alert audio/vibration/speech. */
     static final String ACTION_START_ALERT_AUDIO = "ACTION_START_ALERT_AUDIO";
 
+    /** Action to stop playing a dismissed alert, or to drop it from the queue. */
+    static final String ACTION_STOP_ALERT_AUDIO = "ACTION_STOP_ALERT_AUDIO";
+
+    /** Extra for the delivery time of the broadcast, which identifies the alert. */
+    public static final String ALERT_AUDIO_DELIVERY_TIME_EXTRA =
+            "com.android.cellbroadcastreceiver.ALERT_AUDIO_DELIVERY_TIME";
+
     /** Extra for alert audio duration (from settings). */
     public static final String ALERT_AUDIO_DURATION_EXTRA =
             "com.android.cellbroadcastreceiver.ALERT_AUDIO_DURATION";
@@ -60,71 +63,37 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     public static final String ALERT_AUDIO_MESSAGE_LANGUAGE =
             "com.android.cellbroadcastreceiver.ALERT_AUDIO_MESSAGE_LANGUAGE";
 
-    /** Pause duration between alert sound and alert speech. */
-    private static final int PAUSE_DURATION_BEFORE_SPEAKING_MSEC = 1000;
+    /** Extra for the priority of the alert, see {@link CellBroadcastClassifier#getPriority}. */
+    public static final String ALERT_AUDIO_PRIORITY_EXTRA =
+            "com.android.cellbroadcastreceiver.ALERT_AUDIO_PRIORITY";
 
     /** Vibration uses the same on/off pattern as the CMAS alert tone */
-    private static final long[] sVibratePattern = new long[] { 0, 2000, 500, 1000, 500, 1000, 500 };
-
-    private static final int STATE_IDLE = 0;
-    private static final int STATE_ALERTING = 1;
-    private static final int STATE_PAUSING = 2;
-    private static final int STATE_SPEAKING = 3;
-
-    private int mState;
-
-    private TextToSpeech mTts;
-    private boolean mTtsEngineReady;
+    private static final long[] sVibratePattern = AttentionToneGenerator.getVibratePattern();
 
-    private String mMessageBody;
-    private String mMessageLanguage;
-    private boolean mTtsLanguageSupported;
+    private AlertSpeechManager mSpeechManager;
 
     private Vibrator mVibrator;
-    private MediaPlayer mMediaPlayer;
+    private AlertTonePlayer mTonePlayer;
     private AudioManager mAudioManager;
     private TelephonyManager mTelephonyManager;
     private int mInitialCallState;
 
-    // Internal messages
-    private static final int ALERT_SOUND_FINISHED = 1000;
-    private static final int ALERT_PAUSE_FINISHED = 1001;
-    private final Handler mHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case ALERT_SOUND_FINISHED:
-                    if (DBG) Log.v(TAG, "ALERT_SOUND_FINISHED");
-                    stop();     // stop alert sound
-                    // if we can speak the message text
-                    if (mMessageBody != null && mTtsEngineReady && mTtsLanguageSupported) {
-                        mHandler.sendMessageDelayed(mHandler.obtainMessage(ALERT_PAUSE_FINISHED),
-                                PAUSE_DURATION_BEFORE_SPEAKING_MSEC);
-                        mState = STATE_PAUSING;
-                    } else {
-                        stopSelf();
-                        mState = STATE_IDLE;
-                    }
-                    break;
-
-                case ALERT_PAUSE_FINISHED:
-                    if (DBG) Log.v(TAG, "ALERT_PAUSE_FINISHED");
-                    if (mMessageBody != null && mTtsEngineReady && mTtsLanguageSupported) {
-                        if (DBG) Log.v(TAG, "Speaking broadcast text: " + mMessageBody);
-                        mTts.speak(mMessageBody, TextToSpeech.QUEUE_FLUSH, null);
-                        mState = STATE_SPEAKING;
-                    } else {
-                        Log.w(TAG, "TTS engine not ready or language not supported");
-                        stopSelf();
-                        mState = STATE_IDLE;
-                    }
-                    break;
-
-                default:
-                    Log.e(TAG, "Handler received unknown message, what=" + msg.what);
-            }
-        }
-    };
+    private final Handler mHandler = new Handler();
+
+    private final AlertPlaybackQueue mPlaybackQueue = new AlertPlaybackQueue(
+            new AlertPlaybackQueue.Clock() {
+                public long uptimeMillis() {
+                    return SystemClock.uptimeMillis();
+                }
+
+                public void postDelayed(Runnable runnable, long delayMillis) {
+                    mHandler.postDelayed(runnable, delayMillis);
+                }
+
+                public void removeCallbacks(Runnable runnable) {
+                    mHandler.removeCallbacks(runnable);
+                }
+            }, this, AlertPlaybackQueue.TONE_POLICY_MERGE);
 
     private final PhoneStateListener mPhoneStateListener = new PhoneStateListener() {
         @Override
@@ -138,51 +107,18 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     };
 
     /**
-     * Callback from TTS engine after initialization.
-     * @param status {@link TextToSpeech#SUCCESS} or {@link TextToSpeech#ERROR}.
-     */
-    public void onInit(int status) {
-        if (DBG) Log.v(TAG, "onInit() TTS engine status: " + status);
-        if (status == TextToSpeech.SUCCESS) {
-            mTtsEngineReady = true;
-            // try to set the TTS language to match the broadcast
-            setTtsLanguage();
-        } else {
-            mTtsEngineReady = false;
-            mTts = null;
-            Log.e(TAG, "onInit() TTS engine error: " + status);
-        }
-    }
-
-    /**
-     * Try to set the TTS engine language to the value of mMessageLanguage.
-     * mTtsLanguageSupported will be updated based on the response.
+     * Callback from the speech manager after the message text was spoken.
      */
-    private void setTtsLanguage() {
-        if (mMessageLanguage != null) {
-            if (DBG) Log.v(TAG, "Setting TTS language to '" + mMessageLanguage + '\'');
-            int result = mTts.setLanguage(new Locale(mMessageLanguage));
-            // success values are >= 0, failure returns negative value
-            if (DBG) Log.v(TAG, "TTS setLanguage() returned: " + result);
-            mTtsLanguageSupported = result >= 0;
-        } else {
-            // try to use the default TTS language for broadcasts with no language specified
-            if (DBG) Log.v(TAG, "No language specified in broadcast: using default");
-            mTtsLanguageSupported = true;
-        }
-    }
-
-    /**
-     * Callback from TTS engine.
-     * @param utteranceId the identifier of the utterance.
-     */
-    public void onUtteranceCompleted(String utteranceId) {
-        stopSelf();
+    public void onSpeechCompleted() {
+        mPlaybackQueue.onSpeechCompleted();
     }
 
     @Override
     public void onCreate() {
         mVibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
+        mTonePlayer = AlertTonePlayer.getInstance();
+        mSpeechManager = AlertSpeechManager.getInstance(this);
+        mSpeechManager.acquire();
         mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
         // Listen for incoming calls to kill the alarm.
         mTelephonyManager =
@@ -194,15 +130,13 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
 
     @Override
     public void onDestroy() {
-        stop();
+        mPlaybackQueue.clear();
+        mAudioManager.abandonAudioFocus(null);
         // Stop listening for incoming calls.
         mTelephonyManager.listen(mPhoneStateListener, 0);
         CellBroadcastAlertWakeLock.releaseCpuLock();
-        // shutdown TTS engine
-        if (mTts != null) {
-            mTts.stop();
-            mTts.shutdown();
-        }
+        // keep the TTS engine for the next alert until it has been idle for a while
+        mSpeechManager.release();
     }
 
     @Override
@@ -218,23 +152,38 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
             return START_NOT_STICKY;
         }
 
+        long deliveryTime = intent.getLongExtra(ALERT_AUDIO_DELIVERY_TIME_EXTRA, 0);
+        if (ACTION_STOP_ALERT_AUDIO.equals(intent.getAction())) {
+            mPlaybackQueue.remove(deliveryTime);
+            if (mPlaybackQueue.size() == 0) {
+                stopSelf();
+                return START_NOT_STICKY;
+            }
+            return START_STICKY;
+        }
+
         // This extra should always be provided by CellBroadcastAlertService,
         // but default to 4 seconds just to be safe
         int duration = intent.getIntExtra(ALERT_AUDIO_DURATION_EXTRA, 4);
+        int priority = intent.getIntExtra(ALERT_AUDIO_PRIORITY_EXTRA, 0);
 
         // Get text to speak (if enabled by user)
-        mMessageBody = intent.getStringExtra(ALERT_AUDIO_MESSAGE_BODY);
-        mMessageLanguage = intent.getStringExtra(ALERT_AUDIO_MESSAGE_LANGUAGE);
-
-        if (mMessageBody != null) {
-            if (mTts == null) {
-                mTts = new TextToSpeech(this, this);
-            } else if (mTtsEngineReady) {
-                setTtsLanguage();
-            }
+        String messageBody = intent.getStringExtra(ALERT_AUDIO_MESSAGE_BODY);
+        String language = intent.getStringExtra(ALERT_AUDIO_MESSAGE_LANGUAGE);
+
+        if (messageBody != null) {
+            // normally warmed up already by CellBroadcastAlertService
+            mSpeechManager.warmUp(language);
         }
 
-        play(duration * 1000);  // convert to milliseconds
+        // play now, or after the alerts that are playing
+        mPlaybackQueue.add(new AlertPlaybackQueue.Alert(deliveryTime, priority,
+                duration * 1000, messageBody, language));   // convert to milliseconds
+
+        if (messageBody != null) {
+            // Synthesize the speech while the alert sound plays.
+            mSpeechManager.prepare(messageBody, language);
+        }
 
         // Record the initial call state here so that the new alarm has the
         // newest state.
@@ -247,95 +196,62 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     private static final float IN_CALL_VOLUME = 0.125f;
 
     /**
-     * Start playing the alert sound, and send delayed message when it's time to stop.
-     * @param duration the alert sound duration in milliseconds
+     * Start playing the alert sound and vibration.
      */
-    private void play(int duration) {
-        // stop() checks to see if we are already playing.
-        stop();
-
-        if (DBG) Log.v(TAG, "play()");
-
-        // future optimization: reuse media player object
-        mMediaPlayer = new MediaPlayer();
-        mMediaPlayer.setOnErrorListener(new OnErrorListener() {
-            public boolean onError(MediaPlayer mp, int what, int extra) {
-                Log.e(TAG, "Error occurred while playing audio.");
-                mp.stop();
-                mp.release();
-                mMediaPlayer = null;
-                return true;
-            }
-        });
-
-        try {
-            // Check if we are in a call. If we are, play the alert
-            // sound at a low volume to not disrupt the call.
-            if (mTelephonyManager.getCallState()
-                    != TelephonyManager.CALL_STATE_IDLE) {
-                Log.v(TAG, "in call: reducing volume");
-                mMediaPlayer.setVolume(IN_CALL_VOLUME, IN_CALL_VOLUME);
-            }
-            setDataSourceFromResource(getResources(), mMediaPlayer,
-                    R.raw.attention_signal);
-            mAudioManager.requestAudioFocus(null, AudioManager.STREAM_ALARM,
-                    AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
-            startAlarm(mMediaPlayer);
-        } catch (Exception ex) {
-            Log.e(TAG, "Failed to play alert sound", ex);
+    public void startTone() {
+        if (DBG) Log.v(TAG, "startTone()");
+
+        // Check if we are in a call. If we are, play the alert
+        // sound at a low volume to not disrupt the call.
+        float volume = 1.0f;
+        if (mTelephonyManager.getCallState()
+                != TelephonyManager.CALL_STATE_IDLE) {
+            Log.v(TAG, "in call: reducing volume");
+            volume = IN_CALL_VOLUME;
+        }
+        mAudioManager.requestAudioFocus(null, AudioManager.STREAM_ALARM,
+                AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
+        // the tone is normally loaded already, see CellBroadcastConfigService
+        if (!mTonePlayer.start(volume)) {
+            Log.e(TAG, "Failed to play alert sound");
         }
 
-        /* Start the vibrator after everything is ok with the media player */
+        /* Start the vibrator after the alert sound */
         mVibrator.vibrate(sVibratePattern, 1);
-
-        // stop alert after the specified duration
-        mHandler.sendMessageDelayed(mHandler.obtainMessage(ALERT_SOUND_FINISHED), duration);
-        mState = STATE_ALERTING;
     }
 
-    // Do the common stuff when starting the alarm.
-    private static void startAlarm(MediaPlayer player)
-            throws java.io.IOException, IllegalArgumentException,
-                   IllegalStateException {
-        player.setAudioStreamType(AudioManager.STREAM_ALARM);
-        player.setLooping(true);
-        player.prepare();
-        player.start();
+    /**
+     * Stop the alert sound and vibration.
+     */
+    public void stopTone() {
+        if (DBG) Log.v(TAG, "stopTone()");
+        // the tone stays loaded for the next alert
+        mTonePlayer.stop();
+        mVibrator.cancel();
     }
 
-    private static void setDataSourceFromResource(Resources resources,
-            MediaPlayer player, int res) throws java.io.IOException {
-        AssetFileDescriptor afd = resources.openRawResourceFd(res);
-        if (afd != null) {
-            player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
-                    afd.getLength());
-            afd.close();
+    /**
+     * Start speaking the text of an alert.
+     * @return false if the TTS engine isn't ready or doesn't support the language
+     */
+    public boolean speak(AlertPlaybackQueue.Alert alert) {
+        if (!mSpeechManager.canSpeak(alert.mLanguage)) {
+            Log.w(TAG, "TTS engine not ready or language not supported");
+            return false;
         }
+        if (DBG) Log.v(TAG, "Speaking broadcast text: " + alert.mMessageBody);
+        return mSpeechManager.speak(alert.mMessageBody, alert.mLanguage, this);
+    }
+
+    public void stopSpeaking() {
+        mSpeechManager.stop();
     }
 
     /**
-     * Stops alert audio and speech.
+     * Stop the service after the last alert was played.
      */
-    public void stop() {
-        if (DBG) Log.v(TAG, "stop()");
-
-        mHandler.removeMessages(ALERT_SOUND_FINISHED);
-        mHandler.removeMessages(ALERT_PAUSE_FINISHED);
-
-        if (mState == STATE_ALERTING) {
-            // Stop audio playing
-            if (mMediaPlayer != null) {
-                mMediaPlayer.stop();
-                mMediaPlayer.release();
-                mMediaPlayer = null;
-            }
-
-            // Stop vibrator
-            mVibrator.cancel();
-        } else if (mState == STATE_SPEAKING && mTts != null) {
-            mTts.stop();
-        }
+    public void onQueueEmpty() {
         mAudioManager.abandonAudioFocus(null);
-        mState = STATE_IDLE;
+        stopSelf();
     }
 }
@@ -18,6 +18,7 @@ package com.android.cellbroadcastreceiver;
 
 import android.app.AlertDialog;
 import android.app.KeyguardManager;
+import android.app.NotificationManager;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -25,20 +26,27 @@ import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.view.View;
 import android.view.WindowManager;
+import android.widget.Button;
 import android.widget.ImageView;
 
 /**
  * Custom alert dialog with optional flashing warning icon.
  * Alert audio and text-to-speech handled by {@link CellBroadcastAlertAudio}.
+ *
+ * One dialog presents a whole {@link CellBroadcastAlertQueue}: the most severe alert
+ * first, with Previous and Next buttons and a count in the title when several alerts
+ * are pending. Dismissing an alert marks only that broadcast read and cancels only its
+ * notification, then shows the next alert; the dialog closes when the queue is empty.
  */
 public class CellBroadcastAlertDialog extends AlertDialog {
 
-    /** Whether to show the flashing warning icon. */
-    private final boolean mShowWarningIcon;
+    /** The alerts to present. */
+    private final CellBroadcastAlertQueue mQueue;
 
-    /** The broadcast delivery time, for marking as read (or 0). */
-    private final long mDeliveryTime;
+    /** The alert currently shown. */
+    private CellBroadcastAlertQueue.Alert mAlert;
 
     /** Length of time for the warning icon to be visible. */
     private static final int WARNING_ICON_ON_DURATION_MSEC = 800;
@@ -49,8 +57,11 @@ public class CellBroadcastAlertDialog extends AlertDialog {
     /** Warning icon state. false = visible, true = off */
     private boolean mIconAnimationState;
 
-    /** Stop animating icon after {@link #onStop()} is called. */
-    private boolean mStopAnimation;
+    /** True while the warning icon is animated (started and showing an emergency alert). */
+    private boolean mAnimating;
+
+    /** True between {@link #onStart()} and {@link #onStop()}. */
+    private boolean mStarted;
 
     /** The warning icon Drawable. */
     private Drawable mWarningIcon;
@@ -61,18 +72,21 @@ public class CellBroadcastAlertDialog extends AlertDialog {
     /** Keyguard lock to show emergency alerts while in the lock screen. */
     private KeyguardManager.KeyguardLock mKeyguardLock;
 
+    /** True if the keyguard is disabled by this dialog. */
+    private boolean mKeyguardDisabled;
+
     /** Icon animation handler for flashing warning alerts. */
     private final Handler mAnimationHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             if (mIconAnimationState) {
                 mWarningIconView.setAlpha(255);
-                if (!mStopAnimation) {
+                if (mAnimating) {
                     mAnimationHandler.sendEmptyMessageDelayed(0, WARNING_ICON_ON_DURATION_MSEC);
                 }
             } else {
                 mWarningIconView.setAlpha(0);
-                if (!mStopAnimation) {
+                if (mAnimating) {
                     mAnimationHandler.sendEmptyMessageDelayed(0, WARNING_ICON_OFF_DURATION_MSEC);
                 }
             }
@@ -82,57 +96,179 @@ public class CellBroadcastAlertDialog extends AlertDialog {
     };
 
     /**
-     * Create a new alert dialog for the broadcast notification.
+     * Create a new alert dialog for a previously received broadcast.
+     * @param context the local Context
+     * @param message the broadcast to show
+     */
+    public CellBroadcastAlertDialog(Context context, BroadcastMessage message) {
+        this(context, new CellBroadcastAlertQueue());
+        mQueue.add(message, CellBroadcastAlertQueue.NO_NOTIFICATION);
+    }
+
+    /**
+     * Create a new alert dialog presenting a queue of alerts. The queue must not be
+     * empty when the dialog is shown; call {@link #onAlertAdded} after adding alerts.
      * @param context the local Context
-     * @param titleId the resource ID of the dialog title
-     * @param body the message body contents
-     * @param showWarningIcon true if the flashing warning icon should be shown
-     * @param deliveryTime the delivery time of the broadcast, for marking as read
+     * @param queue the alerts to show, removed as the user dismisses them
      */
-    public CellBroadcastAlertDialog(Context context, int titleId, CharSequence body,
-            boolean showWarningIcon, long deliveryTime) {
+    public CellBroadcastAlertDialog(Context context, CellBroadcastAlertQueue queue) {
         super(context);
-        mShowWarningIcon = showWarningIcon;
-        mDeliveryTime = deliveryTime;
+        mQueue = queue;
 
-        setTitle(titleId);
-        setMessage(body);
         setCancelable(true);
-        setOnCancelListener(new AlertDialog.OnCancelListener() {
-            public void onCancel(DialogInterface dialog) {
-                dialog.dismiss();
-            }
-        });
+        setCanceledOnTouchOutside(false);
         setButton(DialogInterface.BUTTON_NEUTRAL, context.getText(R.string.button_dismiss),
-                new DialogInterface.OnClickListener() {
-                    public void onClick(DialogInterface dialog, int whichButton) {
-                        dialog.dismiss();
-                    }
-                });
-
-        // Set warning icon for emergency alert
-        if (mShowWarningIcon) {
-            mWarningIcon = getContext().getResources().getDrawable(R.drawable.ic_warning_large);
-            setIcon(mWarningIcon);
-        }
+                (DialogInterface.OnClickListener) null);
+        setButton(DialogInterface.BUTTON_NEGATIVE, context.getText(R.string.button_previous),
+                (DialogInterface.OnClickListener) null);
+        setButton(DialogInterface.BUTTON_POSITIVE, context.getText(R.string.button_next),
+                (DialogInterface.OnClickListener) null);
+
+        // The icon view is only created if there is an icon; it is hidden for other alerts.
+        mWarningIcon = getContext().getResources().getDrawable(R.drawable.ic_warning_large);
+        setIcon(mWarningIcon);
+        // set the title and message before the content is installed
+        setTitle("");
+        setMessage("");
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        if (mShowWarningIcon) {
-            // Turn screen on and show above the keyguard for emergency alert
-            getWindow().addFlags(WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED
-                    | WindowManager.LayoutParams.FLAG_DISMISS_KEYGUARD
-                    | WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON
-                    | WindowManager.LayoutParams.FLAG_TURN_SCREEN_ON
-                    | WindowManager.LayoutParams.FLAG_ALLOW_LOCK_WHILE_SCREEN_ON);
+        if (mQueue.hasEmergencyAlert()) {
+            addEmergencyWindowFlags();
         }
         super.onCreate(savedInstanceState);
-        if (mShowWarningIcon) {
-            KeyguardManager km = (KeyguardManager)
-                    getContext().getSystemService(Context.KEYGUARD_SERVICE);
-            mKeyguardLock = km.newKeyguardLock("CellBroadcastReceiver");
-            mWarningIconView = (ImageView) findViewById(com.android.internal.R.id.icon);
+        KeyguardManager km = (KeyguardManager)
+                getContext().getSystemService(Context.KEYGUARD_SERVICE);
+        mKeyguardLock = km.newKeyguardLock("CellBroadcastReceiver");
+        mWarningIconView = (ImageView) findViewById(com.android.internal.R.id.icon);
+
+        // Handle the buttons here, so that paging doesn't dismiss the dialog.
+        getButton(BUTTON_NEUTRAL).setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                dismissAlert();
+            }
+        });
+        getButton(BUTTON_NEGATIVE).setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                showAlert(mQueue.indexOf(mAlert) - 1);
+            }
+        });
+        getButton(BUTTON_POSITIVE).setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                showAlert(mQueue.indexOf(mAlert) + 1);
+            }
+        });
+        showAlert(0);
+    }
+
+    private void addEmergencyWindowFlags() {
+        // Turn screen on and show above the keyguard for emergency alert
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED
+                | WindowManager.LayoutParams.FLAG_DISMISS_KEYGUARD
+                | WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON
+                | WindowManager.LayoutParams.FLAG_TURN_SCREEN_ON
+                | WindowManager.LayoutParams.FLAG_ALLOW_LOCK_WHILE_SCREEN_ON);
+    }
+
+    /**
+     * Update the dialog after an alert was added to the queue. A new alert of higher
+     * priority than the current one is shown immediately.
+     * @param alert the alert that was added
+     */
+    void onAlertAdded(CellBroadcastAlertQueue.Alert alert) {
+        if (mWarningIconView == null) {
+            return;     // not created yet: the first alert will be shown by onCreate()
+        }
+        if (alert.isEmergencyAlert()) {
+            addEmergencyWindowFlags();
+        }
+        if (alert.mPriority > mAlert.mPriority) {
+            showAlert(mQueue.indexOf(alert));
+        } else {
+            showAlert(mQueue.indexOf(mAlert));     // update the count and buttons
+        }
+    }
+
+    /** Show the alert at a position in the queue. */
+    private void showAlert(int index) {
+        int count = mQueue.size();
+        index = Math.max(0, Math.min(index, count - 1));
+        mAlert = mQueue.get(index);
+        BroadcastMessage message = mAlert.mMessage;
+
+        Context context = getContext();
+        CharSequence title = context.getText(message.getDialogTitleResource());
+        if (count > 1) {
+            title = context.getString(R.string.alert_dialog_title_count, title, index + 1,
+                    count);
+        }
+        setTitle(title);
+        setMessage(message.getMessageBody());
+
+        Button previous = getButton(BUTTON_NEGATIVE);
+        Button next = getButton(BUTTON_POSITIVE);
+        previous.setVisibility(count > 1 ? View.VISIBLE : View.GONE);
+        next.setVisibility(count > 1 ? View.VISIBLE : View.GONE);
+        previous.setEnabled(index > 0);
+        next.setEnabled(index < count - 1);
+
+        boolean isEmergency = mAlert.isEmergencyAlert();
+        mWarningIconView.setVisibility(isEmergency ? View.VISIBLE : View.GONE);
+        updateAnimation();
+        if (isEmergency && mStarted && !mKeyguardDisabled) {
+            mKeyguardLock.disableKeyguard();
+            mKeyguardDisabled = true;
+        }
+    }
+
+    /** Animate the warning icon while started and showing an emergency alert. */
+    private void updateAnimation() {
+        boolean animate = mStarted && mAlert != null && mAlert.isEmergencyAlert();
+        if (animate && !mAnimating) {
+            mAnimationHandler.sendEmptyMessageDelayed(0, WARNING_ICON_ON_DURATION_MSEC);
+        } else if (!animate && mAnimating) {
+            mAnimationHandler.removeMessages(0);
+            mWarningIconView.setAlpha(255);
+            mIconAnimationState = false;
+        }
+        mAnimating = animate;
+    }
+
+    /**
+     * Dismiss the current alert: stop playing it in the {@link CellBroadcastAlertAudio}
+     * service, mark the broadcast read, cancel its notification and show the next
+     * alert, or close the dialog and stop the service if there are none.
+     */
+    private void dismissAlert() {
+        CellBroadcastAlertQueue.Alert alert = mAlert;
+        Context context = getContext();
+        // Start database service to mark broadcast as read
+        Intent intent = new Intent(context, CellBroadcastDatabaseService.class);
+        intent.setAction(CellBroadcastDatabaseService.ACTION_MARK_BROADCAST_READ);
+        intent.putExtra(CellBroadcastDatabaseService.DATABASE_DELIVERY_TIME_EXTRA,
+                alert.mMessage.getDeliveryTime());
+        context.startService(intent);
+        if (alert.mNotificationId != CellBroadcastAlertQueue.NO_NOTIFICATION) {
+            NotificationManager notificationManager = (NotificationManager)
+                    context.getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.cancel(alert.mNotificationId);
+        }
+
+        int index = mQueue.indexOf(alert);
+        mQueue.remove(alert);
+        if (mQueue.size() == 0) {
+            // Stop playing alert sound/vibration/speech (if started)
+            context.stopService(new Intent(context, CellBroadcastAlertAudio.class));
+            dismiss();
+        } else {
+            // Stop playing this alert only; the other alerts keep their turn
+            Intent audioIntent = new Intent(context, CellBroadcastAlertAudio.class);
+            audioIntent.setAction(CellBroadcastAlertAudio.ACTION_STOP_ALERT_AUDIO);
+            audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_DELIVERY_TIME_EXTRA,
+                    alert.mMessage.getDeliveryTime());
+            context.startService(audioIntent);
+            showAlert(index);
         }
     }
 
@@ -141,43 +277,37 @@ public class CellBroadcastAlertDialog extends AlertDialog {
      */
     @Override
     protected void onStart() {
-        if (mShowWarningIcon) {
+        mStarted = true;
+        if (mAlert != null && mAlert.isEmergencyAlert()) {
             // Disable keyguard
             mKeyguardLock.disableKeyguard();
-            // start icon animation
-            mAnimationHandler.sendEmptyMessageDelayed(0, WARNING_ICON_ON_DURATION_MSEC);
+            mKeyguardDisabled = true;
         }
+        updateAnimation();
     }
 
     /**
-     * Stop animating warning icon and stop the {@link CellBroadcastAlertAudio}
-     * service if necessary.
+     * Stop animating warning icon. Alerts that weren't dismissed stay in the queue.
      */
     @Override
     protected void onStop() {
-        // Stop playing alert sound/vibration/speech (if started)
-        Context context = getContext();
-        context.stopService(new Intent(context, CellBroadcastAlertAudio.class));
-        // Start database service to mark broadcast as read
-        Intent intent = new Intent(context, CellBroadcastDatabaseService.class);
-        intent.setAction(CellBroadcastDatabaseService.ACTION_MARK_BROADCAST_READ);
-        intent.putExtra(CellBroadcastDatabaseService.DATABASE_DELIVERY_TIME_EXTRA, mDeliveryTime);
-        context.startService(intent);
-        if (mShowWarningIcon) {
+        mStarted = false;
+        if (mKeyguardDisabled) {
             // Reenable keyguard
             mKeyguardLock.reenableKeyguard();
-            // stop animating icon
-            mStopAnimation = true;
+            mKeyguardDisabled = false;
         }
+        updateAnimation();
     }
 
     /**
      * Ignore the back button for emergency alerts (user must dismiss with button).
+     * Otherwise, the back button dismisses the current alert.
      */
     @Override
     public void onBackPressed() {
-        if (!mShowWarningIcon) {
-            super.onBackPressed();
+        if (!mAlert.isEmergencyAlert()) {
+            dismissAlert();
         }
     }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import java.util.ArrayList;
+
+/**
+ * Alerts waiting to be shown by a {@link CellBroadcastAlertDialog}, ordered by
+ * {@link CellBroadcastClassifier#getPriority priority}, then by delivery time, so that
+ * the most severe alert is shown first and the rest can be paged through.
+ *
+ * Received alerts are added to the process-wide queue returned by
+ * {@link #getPendingAlerts}, shown by the single alert dialog of
+ * {@link CellBroadcastAlertActivity}, and removed when the user dismisses them.
+ * Must only be used on the main thread.
+ */
+final class CellBroadcastAlertQueue {
+
+    /** Notification ID of alerts that have no notification (e.g. viewed from the history). */
+    static final int NO_NOTIFICATION = -1;
+
+    /** An alert in the queue. */
+    static final class Alert {
+        final BroadcastMessage mMessage;
+        final int mNotificationId;
+        final int mPriority;
+
+        /** True once the time to the first frame of the alert was recorded. */
+        boolean mFirstFrameRecorded;
+
+        Alert(BroadcastMessage message, int notificationId) {
+            mMessage = message;
+            mNotificationId = notificationId;
+            mPriority = CellBroadcastClassifier.getPriority(message.getCategory());
+        }
+
+        /** Return whether the alert is shown with the flashing warning icon. */
+        boolean isEmergencyAlert() {
+            return mMessage.isPublicAlertMessage() || mMessage.isOperatorDefinedEmergencyId();
+        }
+
+        /** Return whether this alert is shown before another alert. */
+        boolean isBefore(Alert other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority;
+            }
+            return mMessage.getDeliveryTime() < other.mMessage.getDeliveryTime();
+        }
+    }
+
+    private static CellBroadcastAlertQueue sPendingAlerts;
+
+    private final ArrayList<Alert> mAlerts = new ArrayList<Alert>();
+
+    /** Return the queue of received alerts that the user hasn't dismissed yet. */
+    static CellBroadcastAlertQueue getPendingAlerts() {
+        if (sPendingAlerts == null) {
+            sPendingAlerts = new CellBroadcastAlertQueue();
+        }
+        return sPendingAlerts;
+    }
+
+    /**
+     * Add an alert in priority order. The same notification may be opened more than
+     * once (e.g. by its full screen intent, then by the user), so alerts with the
+     * notification ID of a queued alert are ignored.
+     * @param message the broadcast to show
+     * @param notificationId the ID of the notification of the broadcast, or
+     *        {@link #NO_NOTIFICATION}
+     * @return the added alert, or the queued alert with the same notification ID
+     */
+    Alert add(BroadcastMessage message, int notificationId) {
+        if (notificationId != NO_NOTIFICATION) {
+            for (Alert alert : mAlerts) {
+                if (alert.mNotificationId == notificationId) {
+                    return alert;
+                }
+            }
+        }
+        Alert alert = new Alert(message, notificationId);
+        int index = mAlerts.size();
+        while (index > 0 && alert.isBefore(mAlerts.get(index - 1))) {
+            index--;
+        }
+        mAlerts.add(index, alert);
+        return alert;
+    }
+
+    /** Remove an alert, if queued. */
+    void remove(Alert alert) {
+        mAlerts.remove(alert);
+    }
+
+    /** Return the alert at a position in the queue. */
+    Alert get(int index) {
+        return mAlerts.get(index);
+    }
+
+    /** Return the position of an alert, or -1 if it isn't queued. */
+    int indexOf(Alert alert) {
+        return mAlerts.indexOf(alert);
+    }
+
+    int size() {
+        return mAlerts.size();
+    }
+
+    /** Return whether any queued alert is an emergency alert. */
+    boolean hasEmergencyAlert() {
+        for (Alert alert : mAlerts) {
+            if (alert.isEmergencyAlert()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
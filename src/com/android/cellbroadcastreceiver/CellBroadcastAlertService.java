@@ -26,6 +26,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.Telephony;
 import android.telephony.SmsCbConstants;
@@ -42,6 +43,24 @@ import android.util.Log;
 public class CellBroadcastAlertService extends Service {
     private static final String TAG = "CellBroadcastAlertService";
 
+    /** Identifier for getExtra() for the ID of the notification of a displayed broadcast. */
+    static final String NOTIFICATION_ID_EXTRA =
+            "com.android.cellbroadcastreceiver.NOTIFICATION_ID";
+
+    /** Action sent when the user clears the summary notification of non-emergency broadcasts. */
+    static final String ACTION_SUMMARY_DISMISSED = "ACTION_SUMMARY_DISMISSED";
+
+    /** Action sent by the alarm that posts a coalesced update of the summary notification. */
+    static final String ACTION_SUMMARY_UPDATE = "ACTION_SUMMARY_UPDATE";
+
+    /**
+     * Identifier for getExtra() for the elapsed realtime when the broadcast was received.
+     * Only the full screen intent has it, so a later tap on the notification isn't
+     * recorded as the time to the first frame of the alert.
+     */
+    static final String RECEIVED_TIME_EXTRA =
+            "com.android.cellbroadcastreceiver.RECEIVED_TIME";
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         String action = intent.getAction();
@@ -51,6 +70,10 @@ public class CellBroadcastAlertService extends Service {
         } else if (Telephony.Sms.Intents.EMERGENCY_CDMA_MESSAGE_RECEIVED_ACTION.equals(action)) {
             // handle emergency CDMA broadcasts
             handleBroadcastIntent(intent, true);
+        } else if (ACTION_SUMMARY_DISMISSED.equals(action)) {
+            CellBroadcastSummaryNotification.onDismissed(this);
+        } else if (ACTION_SUMMARY_UPDATE.equals(action)) {
+            CellBroadcastSummaryNotification.onUpdateAlarm(this);
         } else {
             Log.e(TAG, "Unrecognized intent action: " + action);
         }
@@ -59,6 +82,7 @@ public class CellBroadcastAlertService extends Service {
     }
 
     private void handleBroadcastIntent(Intent intent, boolean isCdma) {
+        long receivedTime = SystemClock.elapsedRealtime();
         Bundle extras = intent.getExtras();
         if (extras == null) {
             Log.e(TAG, "received " + intent.getAction() + " with no extras!");
@@ -123,16 +147,21 @@ public class CellBroadcastAlertService extends Service {
         }
 
         // add notification to the bar
-        addToNotificationBar(bm);
+        addToNotificationBar(bm, receivedTime);
         if (bm.isEmergencyAlertMessage() || bm.isOperatorDefinedEmergencyId()) {
             // start audio/vibration/speech service for emergency alerts
             Intent audioIntent = new Intent(this, CellBroadcastAlertAudio.class);
             audioIntent.setAction(CellBroadcastAlertAudio.ACTION_START_ALERT_AUDIO);
+            audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_DELIVERY_TIME_EXTRA,
+                    bm.getDeliveryTime());
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
             String duration = prefs.getString(CellBroadcastSettings.KEY_ALERT_SOUND_DURATION,
                     CellBroadcastSettings.ALERT_SOUND_DEFAULT_DURATION);
             audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_DURATION_EXTRA,
                     Integer.parseInt(duration));
+            // a more severe alert interrupts the alert playing
+            audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_PRIORITY_EXTRA,
+                    CellBroadcastClassifier.getPriority(bm.getCategory()));
 
             if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERT_SPEECH, true)) {
                 audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_MESSAGE_BODY,
@@ -148,6 +177,8 @@ public class CellBroadcastAlertService extends Service {
                 }
                 audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_MESSAGE_LANGUAGE,
                         language);
+                // start binding the TTS engine while the alert tone plays
+                AlertSpeechManager.getInstance(this).warmUp(language);
             }
             startService(audioIntent);
         }
@@ -225,7 +256,16 @@ public class CellBroadcastAlertService extends Service {
         }
     }
 
-    private void addToNotificationBar(BroadcastMessage message) {
+    /**
+     * Post a notification for an emergency alert, or add a non-emergency broadcast to
+     * the {@link CellBroadcastSummaryNotification}.
+     */
+    private void addToNotificationBar(BroadcastMessage message, long receivedTime) {
+        if (!message.isEmergencyAlertMessage() && !message.isOperatorDefinedEmergencyId()) {
+            CellBroadcastSummaryNotification.add(this, message);
+            return;
+        }
+
         int channelTitleId = message.getDialogTitleResource();
         CharSequence channelName = getText(channelTitleId);
         String messageBody = message.getMessageBody();
@@ -237,20 +277,16 @@ public class CellBroadcastAlertService extends Service {
                 .getNextNotificationId();
 
         PendingIntent pi = PendingIntent.getActivity(this, 0, createDisplayMessageIntent(
-                this, message, notificationId), 0);
+                this, message, notificationId, -1), 0);
 
         notification.setLatestEventInfo(this, channelName, messageBody, pi);
 
-        if (message.isEmergencyAlertMessage() ||
-                message.isOperatorDefinedEmergencyId()) {
-            // Emergency: open notification immediately
-            notification.fullScreenIntent = pi;
-            // use default notification lights (CellBroadcastAlertAudio plays sound/vibration)
-            notification.defaults = Notification.DEFAULT_LIGHTS;
-        } else {
-            // use default sound/vibration/lights for non-emergency broadcasts
-            notification.defaults = Notification.DEFAULT_ALL;
-        }
+        // Emergency: open notification immediately. The request code keeps the intents
+        // apart, they only differ in their extras.
+        notification.fullScreenIntent = PendingIntent.getActivity(this, 1,
+                createDisplayMessageIntent(this, message, notificationId, receivedTime), 0);
+        // use default notification lights (CellBroadcastAlertAudio plays sound/vibration)
+        notification.defaults = Notification.DEFAULT_LIGHTS;
 
         Log.i(TAG, "addToNotificationBar notificationId: " + notificationId);
 
@@ -261,10 +297,14 @@ public class CellBroadcastAlertService extends Service {
     }
 
     static Intent createDisplayMessageIntent(Context context,
-            BroadcastMessage message, int notificationId) {
-        // Trigger the list activity to fire up a dialog that shows the received messages
-        Intent intent = new Intent(context, CellBroadcastListActivity.class);
+            BroadcastMessage message, int notificationId, long receivedTime) {
+        // Trigger the alert activity to fire up a dialog that shows the received messages
+        Intent intent = new Intent(context, CellBroadcastAlertActivity.class);
         intent.putExtra(message.getIntentExtraName(), message);
+        intent.putExtra(NOTIFICATION_ID_EXTRA, notificationId);
+        if (receivedTime != -1) {
+            intent.putExtra(RECEIVED_TIME_EXTRA, receivedTime);
+        }
 
         // This line is needed to make this intent compare differently than the other intents
         // created here for other messages. Without this line, the PendingIntent always gets the
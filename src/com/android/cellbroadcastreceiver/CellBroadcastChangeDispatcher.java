@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * In-process dispatcher of broadcast database changes to UI consumers.
+ * {@link CellBroadcastDatabaseService} reports each change from its worker thread;
+ * changes reported within a short window are coalesced into a single
+ * {@link ChangeEvent}, delivered on the main thread, which carries the affected
+ * row IDs so that consumers can update incrementally.
+ *
+ * Listeners are held by weak references, so a registered activity is never leaked.
+ * The listener object itself must therefore be strongly referenced by its owner
+ * (e.g. an activity implementing {@link Listener}, not an anonymous class).
+ */
+final class CellBroadcastChangeDispatcher {
+    private static final String TAG = "CellBroadcastChangeDispatcher";
+
+    /** Coalesce changes reported within this window into a single event. */
+    private static final int DISPATCH_DELAY_MSEC = 100;
+
+    /** Never delay an event more than this after the first coalesced change. */
+    private static final int MAX_DISPATCH_DELAY_MSEC = 500;
+
+    /** Callback for database changes. */
+    interface Listener {
+        /**
+         * Called on the main thread after one or more database changes.
+         * @param event the coalesced changes
+         */
+        void onBroadcastsChanged(ChangeEvent event);
+    }
+
+    /** A set of coalesced database changes. */
+    static final class ChangeEvent {
+        /** Generation of the last change included in this event. */
+        final long mGeneration;
+        /** True if rows were changed without being identified (e.g. delete all). */
+        final boolean mAllRowsChanged;
+        final long[] mInsertedRowIds;
+        final long[] mUpdatedRowIds;
+        final long[] mDeletedRowIds;
+
+        ChangeEvent(long generation, boolean allRowsChanged, long[] insertedRowIds,
+                long[] updatedRowIds, long[] deletedRowIds) {
+            mGeneration = generation;
+            mAllRowsChanged = allRowsChanged;
+            mInsertedRowIds = insertedRowIds;
+            mUpdatedRowIds = updatedRowIds;
+            mDeletedRowIds = deletedRowIds;
+        }
+
+        /** Return whether rows were inserted, and no rows updated or deleted. */
+        boolean isInsertOnly() {
+            return !mAllRowsChanged && mInsertedRowIds.length != 0
+                    && mUpdatedRowIds.length == 0 && mDeletedRowIds.length == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "ChangeEvent{generation=" + mGeneration + " all=" + mAllRowsChanged
+                    + " inserted=" + mInsertedRowIds.length
+                    + " updated=" + mUpdatedRowIds.length
+                    + " deleted=" + mDeletedRowIds.length + '}';
+        }
+    }
+
+    private static final Object sLock = new Object();
+
+    private static final ArrayList<WeakReference<Listener>> sListeners =
+            new ArrayList<WeakReference<Listener>>();
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    /* Pending changes, guarded by sLock. */
+    private static long sGeneration;
+    private static boolean sPendingAllRows;
+    private static final HashSet<Long> sPendingInserted = new HashSet<Long>();
+    private static final HashSet<Long> sPendingUpdated = new HashSet<Long>();
+    private static final HashSet<Long> sPendingDeleted = new HashSet<Long>();
+    private static long sFirstPendingTime;
+    private static boolean sDispatchPending;
+
+    private static final Runnable sDispatchRunnable = new Runnable() {
+        public void run() {
+            dispatch();
+        }
+    };
+
+    private CellBroadcastChangeDispatcher() {}
+
+    /**
+     * Register a listener, held by a weak reference. Must be called on the main thread.
+     * @param listener the listener to add
+     */
+    static void register(Listener listener) {
+        for (int i = sListeners.size() - 1; i >= 0; i--) {
+            Listener l = sListeners.get(i).get();
+            if (l == null) {
+                sListeners.remove(i);
+            } else if (l == listener) {
+                return;
+            }
+        }
+        sListeners.add(new WeakReference<Listener>(listener));
+    }
+
+    /**
+     * Unregister a listener. Must be called on the main thread.
+     * @param listener the listener to remove
+     */
+    static void unregister(Listener listener) {
+        for (int i = sListeners.size() - 1; i >= 0; i--) {
+            Listener l = sListeners.get(i).get();
+            if (l == null || l == listener) {
+                sListeners.remove(i);
+            }
+        }
+    }
+
+    /** Report an inserted row. May be called from any thread. */
+    static void notifyInserted(long rowId) {
+        synchronized (sLock) {
+            sPendingInserted.add(rowId);
+            scheduleDispatchLocked();
+        }
+    }
+
+    /** Report updated rows. May be called from any thread. */
+    static void notifyUpdated(long[] rowIds) {
+        synchronized (sLock) {
+            for (long rowId : rowIds) {
+                sPendingUpdated.add(rowId);
+            }
+            scheduleDispatchLocked();
+        }
+    }
+
+    /** Report deleted rows. May be called from any thread. */
+    static void notifyDeleted(long[] rowIds) {
+        synchronized (sLock) {
+            for (long rowId : rowIds) {
+                sPendingInserted.remove(rowId);
+                sPendingUpdated.remove(rowId);
+                sPendingDeleted.add(rowId);
+            }
+            scheduleDispatchLocked();
+        }
+    }
+
+    /** Report a change to an unknown set of rows. May be called from any thread. */
+    static void notifyAllChanged() {
+        synchronized (sLock) {
+            sPendingAllRows = true;
+            scheduleDispatchLocked();
+        }
+    }
+
+    private static void scheduleDispatchLocked() {
+        sGeneration++;
+        long now = SystemClock.uptimeMillis();
+        if (!sDispatchPending) {
+            sDispatchPending = true;
+            sFirstPendingTime = now;
+        }
+        // Debounce, but don't postpone the event indefinitely during a long burst.
+        long dispatchTime = Math.min(now + DISPATCH_DELAY_MSEC,
+                sFirstPendingTime + MAX_DISPATCH_DELAY_MSEC);
+        sHandler.removeCallbacks(sDispatchRunnable);
+        sHandler.postAtTime(sDispatchRunnable, dispatchTime);
+    }
+
+    private static void dispatch() {
+        ChangeEvent event;
+        synchronized (sLock) {
+            if (!sDispatchPending) {
+                return;
+            }
+            event = new ChangeEvent(sGeneration, sPendingAllRows, toArray(sPendingInserted),
+                    toArray(sPendingUpdated), toArray(sPendingDeleted));
+            sPendingAllRows = false;
+            sPendingInserted.clear();
+            sPendingUpdated.clear();
+            sPendingDeleted.clear();
+            sDispatchPending = false;
+        }
+        if (DBG) Log.d(TAG, "dispatching " + event);
+
+        for (int i = sListeners.size() - 1; i >= 0; i--) {
+            Listener listener = sListeners.get(i).get();
+            if (listener == null) {
+                sListeners.remove(i);
+            } else {
+                listener.onBroadcastsChanged(event);
+            }
+        }
+    }
+
+    private static long[] toArray(HashSet<Long> set) {
+        long[] array = new long[set.size()];
+        int i = 0;
+        for (Long value : set) {
+            array[i++] = value;
+        }
+        return array;
+    }
+}
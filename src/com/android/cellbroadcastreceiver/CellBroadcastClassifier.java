@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Configuration;
+import android.os.SystemProperties;
+import android.preference.PreferenceManager;
+import android.telephony.SmsCbConstants;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.telephony.gsm.SmsCbHeader;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Derives the classification flags and display category of a broadcast from its
+ * message format and message identifier. The result is computed once when the
+ * broadcast is received and stored in the database, so that the list UI and the
+ * dialogs read plain integers instead of re-deriving them on every bind.
+ *
+ * The operator defined emergency ranges come from the profile of the carrier in
+ * {@link CarrierProfileTable}, which is memory-mapped once per process and searched
+ * in place. Carriers without a profile fall back to read-only system properties,
+ * also parsed once per process. When the carrier, the properties or the application
+ * version change (e.g. after an OTA), previously stored rows are reclassified
+ * by {@link CellBroadcastDatabaseService#ACTION_RECLASSIFY_BROADCASTS}.
+ */
+final class CellBroadcastClassifier {
+    private static final String TAG = "CellBroadcastClassifier";
+
+    /** Preference key for the stamp of the last completed reclassification pass. */
+    private static final String PREF_KEY_CLASSIFICATION_STAMP = "classification_stamp";
+
+    /** GSM message identifier of the area info broadcasts (channel 50), used in Brazil. */
+    static final int MESSAGE_ID_AREA_INFO = 50;
+
+    /** Value stored in the database before a row has been classified. */
+    static final int UNCLASSIFIED = -1;
+
+    /* Classification flags. */
+
+    /** Emergency (PWS) message type, including test messages and Amber alerts. */
+    static final int FLAG_PUBLIC_ALERT          = 1 << 0;
+    /** Emergency (PWS) message type, excluding lower priority Amber alerts. */
+    static final int FLAG_EMERGENCY_ALERT       = 1 << 1;
+    /** Message identifier is in the operator defined emergency range. */
+    static final int FLAG_OPERATOR_EMERGENCY    = 1 << 2;
+    /** ETWS emergency message type. */
+    static final int FLAG_ETWS                  = 1 << 3;
+    /** CMAS emergency message type. */
+    static final int FLAG_CMAS                  = 1 << 4;
+
+    /* Display categories. These values are stored in the database, do not renumber. */
+
+    static final int CATEGORY_OTHER                     = 0;
+    static final int CATEGORY_PWS_OTHER                 = 1;
+    static final int CATEGORY_ETWS_EARTHQUAKE           = 2;
+    static final int CATEGORY_ETWS_TSUNAMI              = 3;
+    static final int CATEGORY_ETWS_EARTHQUAKE_TSUNAMI   = 4;
+    static final int CATEGORY_ETWS_TEST                 = 5;
+    static final int CATEGORY_ETWS_OTHER                = 6;
+    static final int CATEGORY_CMAS_PRESIDENTIAL         = 7;
+    static final int CATEGORY_CMAS_EXTREME              = 8;
+    static final int CATEGORY_CMAS_SEVERE               = 9;
+    static final int CATEGORY_CMAS_AMBER                = 10;
+    static final int CATEGORY_CMAS_TEST                 = 11;
+    static final int CATEGORY_CMAS_EXERCISE             = 12;
+    static final int CATEGORY_CMAS_OPERATOR_DEFINED     = 13;
+    static final int CATEGORY_AREA_INFO                 = 14;
+
+    /** Asset of the carrier profile table, stored uncompressed so it can be mapped. */
+    private static final String CARRIER_PROFILES_ASSET = "carrier_profiles.dat";
+
+    /** The carrier profile table, or null if not loaded or it failed to load. */
+    private static CarrierProfileTable sProfileTable;
+    private static boolean sProfileTableLoaded;
+
+    /** Parsed operator emergency ranges as {start, end} pairs, or null if not loaded. */
+    private static int[] sGsmEmergencyRanges;
+    private static int[] sCdmaEmergencyRanges;
+
+    private CellBroadcastClassifier() {}
+
+    /**
+     * Return the classification flags for a message.
+     * @param format {@link TelephonyManager#PHONE_TYPE_GSM} or
+     *        {@link TelephonyManager#PHONE_TYPE_CDMA}
+     * @param messageId the message identifier (GSM) or service category (CDMA)
+     * @return a combination of the FLAG_* constants
+     */
+    static int computeClassFlags(int format, int messageId) {
+        int flags = 0;
+        if (format == TelephonyManager.PHONE_TYPE_CDMA) {
+            if (messageId >= CdmaBroadcastMessage.CMAS_FIRST_IDENTIFIER &&
+                    messageId <= CdmaBroadcastMessage.CMAS_LAST_IDENTIFIER) {
+                flags |= FLAG_CMAS | FLAG_PUBLIC_ALERT;
+                if (messageId != CdmaBroadcastMessage.CMAS_AMBER) {
+                    flags |= FLAG_EMERGENCY_ALERT;
+                }
+            }
+        } else {
+            if (SmsCbHeader.isEmergencyMessage(messageId)) {
+                flags |= FLAG_PUBLIC_ALERT;
+                if (messageId !=
+                        SmsCbConstants.MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY) {
+                    flags |= FLAG_EMERGENCY_ALERT;
+                }
+            }
+            if (SmsCbHeader.isEtwsMessage(messageId)) {
+                flags |= FLAG_ETWS;
+            }
+            if (SmsCbHeader.isCmasMessage(messageId)) {
+                flags |= FLAG_CMAS;
+            }
+        }
+        if (isOperatorDefinedEmergencyId(format, messageId)) {
+            flags |= FLAG_OPERATOR_EMERGENCY;
+        }
+        return flags;
+    }
+
+    /**
+     * Return the display category for a message.
+     * @param format the message format
+     * @param messageId the message identifier (GSM) or service category (CDMA)
+     * @param flags the flags returned by {@link #computeClassFlags}
+     * @return one of the CATEGORY_* constants
+     */
+    static int computeCategory(int format, int messageId, int flags) {
+        if (format == TelephonyManager.PHONE_TYPE_CDMA) {
+            switch (messageId) {
+                case CdmaBroadcastMessage.CMAS_PRESIDENTIAL:
+                    return CATEGORY_CMAS_PRESIDENTIAL;
+
+                case CdmaBroadcastMessage.CMAS_EXTREME:
+                    return CATEGORY_CMAS_EXTREME;
+
+                case CdmaBroadcastMessage.CMAS_SEVERE:
+                    return CATEGORY_CMAS_SEVERE;
+
+                case CdmaBroadcastMessage.CMAS_AMBER:
+                    return CATEGORY_CMAS_AMBER;
+
+                case CdmaBroadcastMessage.CMAS_TEST:
+                    return CATEGORY_CMAS_TEST;
+
+                default:
+                    break;
+            }
+        } else {
+            switch (messageId) {
+                case SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_WARNING:
+                    return CATEGORY_ETWS_EARTHQUAKE;
+
+                case SmsCbConstants.MESSAGE_ID_ETWS_TSUNAMI_WARNING:
+                    return CATEGORY_ETWS_TSUNAMI;
+
+                case SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_AND_TSUNAMI_WARNING:
+                    return CATEGORY_ETWS_EARTHQUAKE_TSUNAMI;
+
+                case SmsCbConstants.MESSAGE_ID_ETWS_TEST_MESSAGE:
+                    return CATEGORY_ETWS_TEST;
+
+                case SmsCbConstants.MESSAGE_ID_ETWS_OTHER_EMERGENCY_TYPE:
+                    return CATEGORY_ETWS_OTHER;
+
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL:
+                    return CATEGORY_CMAS_PRESIDENTIAL;
+
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED:
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_LIKELY:
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_EXPECTED_OBSERVED:
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_EXPECTED_LIKELY:
+                    return CATEGORY_CMAS_EXTREME;
+
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_IMMEDIATE_OBSERVED:
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_IMMEDIATE_LIKELY:
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_OBSERVED:
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_LIKELY:
+                    return CATEGORY_CMAS_SEVERE;
+
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY:
+                    return CATEGORY_CMAS_AMBER;
+
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST:
+                    return CATEGORY_CMAS_TEST;
+
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXERCISE:
+                    return CATEGORY_CMAS_EXERCISE;
+
+                case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_OPERATOR_DEFINED_USE:
+                    return CATEGORY_CMAS_OPERATOR_DEFINED;
+
+                case MESSAGE_ID_AREA_INFO:
+                    return CATEGORY_AREA_INFO;
+
+                default:
+                    break;
+            }
+        }
+        if ((flags & (FLAG_PUBLIC_ALERT | FLAG_OPERATOR_EMERGENCY)) != 0) {
+            return CATEGORY_PWS_OTHER;
+        } else {
+            return CATEGORY_OTHER;
+        }
+    }
+
+    /**
+     * Return the priority of a category, for sorting the history by severity.
+     * @param category one of the CATEGORY_* constants
+     * @return the priority: higher for more severe alerts, 0 for non-emergency broadcasts
+     */
+    static int getPriority(int category) {
+        switch (category) {
+            case CATEGORY_CMAS_PRESIDENTIAL:
+                return 10;
+
+            case CATEGORY_ETWS_EARTHQUAKE_TSUNAMI:
+            case CATEGORY_ETWS_EARTHQUAKE:
+            case CATEGORY_ETWS_TSUNAMI:
+                return 9;
+
+            case CATEGORY_CMAS_EXTREME:
+                return 8;
+
+            case CATEGORY_CMAS_SEVERE:
+                return 7;
+
+            case CATEGORY_ETWS_OTHER:
+                return 6;
+
+            case CATEGORY_CMAS_AMBER:
+                return 5;
+
+            case CATEGORY_CMAS_OPERATOR_DEFINED:
+                return 4;
+
+            case CATEGORY_PWS_OTHER:
+                return 3;
+
+            case CATEGORY_ETWS_TEST:
+            case CATEGORY_CMAS_TEST:
+            case CATEGORY_CMAS_EXERCISE:
+                return 1;
+
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Return the resource ID of the dialog and list item title for a category.
+     * @param category one of the CATEGORY_* constants
+     * @return the string resource ID
+     */
+    static int getDialogTitleResource(int category) {
+        switch (category) {
+            case CATEGORY_ETWS_EARTHQUAKE:
+                return R.string.etws_earthquake_warning;
+
+            case CATEGORY_ETWS_TSUNAMI:
+                return R.string.etws_tsunami_warning;
+
+            case CATEGORY_ETWS_EARTHQUAKE_TSUNAMI:
+                return R.string.etws_earthquake_and_tsunami_warning;
+
+            case CATEGORY_ETWS_TEST:
+                return R.string.etws_test_message;
+
+            case CATEGORY_ETWS_OTHER:
+                return R.string.etws_other_emergency_type;
+
+            case CATEGORY_CMAS_PRESIDENTIAL:
+                return R.string.cmas_presidential_level_alert;
+
+            case CATEGORY_CMAS_EXTREME:
+                return R.string.cmas_extreme_alert;
+
+            case CATEGORY_CMAS_SEVERE:
+                return R.string.cmas_severe_alert;
+
+            case CATEGORY_CMAS_AMBER:
+                return R.string.cmas_amber_alert;
+
+            case CATEGORY_CMAS_TEST:
+                return R.string.cmas_required_monthly_test;
+
+            case CATEGORY_CMAS_EXERCISE:
+                return R.string.cmas_exercise_alert;
+
+            case CATEGORY_CMAS_OPERATOR_DEFINED:
+                return R.string.cmas_operator_defined_alert;
+
+            case CATEGORY_PWS_OTHER:
+                return R.string.pws_other_message_identifiers;
+
+            case CATEGORY_AREA_INFO:
+                return R.string.cb_area_info_message;
+
+            default:
+                return R.string.cb_other_message_identifiers;
+        }
+    }
+
+    /**
+     * Return whether the message identifier is in the operator defined emergency range
+     * for the specified format: an emergency range of the carrier profile, or if the
+     * profile has none, of the system property (parsed once per process).
+     * @param format the message format
+     * @param messageId the message identifier to check
+     * @return true if the message identifier is operator defined; false otherwise
+     */
+    static synchronized boolean isOperatorDefinedEmergencyId(int format, int messageId) {
+        Context context = CellBroadcastReceiverApp.getCellBroadcastReceiverApp();
+        int profile = (context != null) ? getCarrierProfile(context) : -1;
+        int tableFormat = getTableFormat(format);
+        if (profile != -1 && sProfileTable.hasRange(profile, tableFormat,
+                CarrierProfileTable.RANGE_FLAG_EMERGENCY)) {
+            int range = sProfileTable.findRange(profile, tableFormat, messageId);
+            return range != -1 && (sProfileTable.getRangeFlags(profile, tableFormat, range)
+                    & CarrierProfileTable.RANGE_FLAG_EMERGENCY) != 0;
+        }
+
+        int[] ranges;
+        if (format == TelephonyManager.PHONE_TYPE_CDMA) {
+            if (sCdmaEmergencyRanges == null) {
+                sCdmaEmergencyRanges = parseRanges(
+                        SystemProperties.get(CdmaBroadcastMessage.EMERGENCY_BROADCAST_RANGE));
+            }
+            ranges = sCdmaEmergencyRanges;
+        } else {
+            if (sGsmEmergencyRanges == null) {
+                sGsmEmergencyRanges = parseRanges(
+                        SystemProperties.get(CellBroadcastMessage.EMERGENCY_BROADCAST_RANGE));
+            }
+            ranges = sGsmEmergencyRanges;
+        }
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (messageId >= ranges[i] && messageId <= ranges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the ranges of the carrier profile for a message format.
+     * @param context the context to use
+     * @param format the message format
+     * @param emergency true for the operator defined emergency ranges, false for the
+     *        other channels of the carrier
+     * @return the ranges, or null if the carrier has no profile or no such ranges
+     */
+    static synchronized ChannelRangeSet getCarrierRanges(Context context, int format,
+            boolean emergency) {
+        int profile = getCarrierProfile(context);
+        if (profile == -1) {
+            return null;
+        }
+        int tableFormat = getTableFormat(format);
+        ChannelRangeSet ranges = new ChannelRangeSet();
+        int count = sProfileTable.getRangeCount(profile, tableFormat);
+        for (int i = 0; i < count; i++) {
+            boolean isEmergency = (sProfileTable.getRangeFlags(profile, tableFormat, i)
+                    & CarrierProfileTable.RANGE_FLAG_EMERGENCY) != 0;
+            if (isEmergency == emergency) {
+                ranges.add(sProfileTable.getRangeStartId(profile, tableFormat, i),
+                        sProfileTable.getRangeEndId(profile, tableFormat, i));
+            }
+        }
+        return ranges.size() != 0 ? ranges : null;
+    }
+
+    /**
+     * Return whether channel 50 (Brazil) is supported: by the carrier profile, or by the
+     * show_brazil_settings resource.
+     * @param context the context to use
+     * @return true to show the channel 50 setting and enable the channel
+     */
+    static synchronized boolean isChannel50Supported(Context context) {
+        if (context.getResources().getBoolean(R.bool.show_brazil_settings)) {
+            return true;
+        }
+        int profile = getCarrierProfile(context);
+        return profile != -1 && (sProfileTable.getProfileFlags(profile)
+                & CarrierProfileTable.PROFILE_FLAG_CHANNEL_50) != 0;
+    }
+
+    /**
+     * Return the profile of the carrier of the SIM, from the MCC and MNC of the current
+     * configuration. The table is mapped on first use. Call with the class lock held.
+     * @return the index of the profile in {@link #sProfileTable}, or -1 if there is none
+     */
+    private static int getCarrierProfile(Context context) {
+        if (!sProfileTableLoaded) {
+            sProfileTableLoaded = true;
+            sProfileTable = loadProfileTable(context);
+        }
+        Configuration config = context.getResources().getConfiguration();
+        if (sProfileTable == null || config.mcc == 0) {
+            return -1;      // no table, or no SIM
+        }
+        return sProfileTable.findProfile(config.mcc, config.mnc);
+    }
+
+    private static CarrierProfileTable loadProfileTable(Context context) {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getAssets().openFd(CARRIER_PROFILES_ASSET);
+            // the mapping stays valid after the descriptor is closed
+            CarrierProfileTable table = CarrierProfileTable.map(
+                    new FileInputStream(afd.getFileDescriptor()).getChannel(),
+                    afd.getStartOffset(), afd.getLength());
+            if (DBG) Log.d(TAG, "mapped " + table.getProfileCount() + " carrier profiles");
+            return table;
+        } catch (IOException e) {
+            Log.e(TAG, "can't load the carrier profile table", e);
+            return null;
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static int getTableFormat(int format) {
+        return format == TelephonyManager.PHONE_TYPE_CDMA
+                ? CarrierProfileTable.FORMAT_CDMA : CarrierProfileTable.FORMAT_GSM;
+    }
+
+    /**
+     * Parse a channel range string into {start, end} pairs.
+     * @param emergencyIdRange the range string, e.g. "1,3,9-12,15" or "0x1,0x9-0xc"
+     * @return the parsed ranges (empty if the string is empty or invalid)
+     */
+    static int[] parseRanges(String emergencyIdRange) {
+        if (TextUtils.isEmpty(emergencyIdRange)) {
+            return new int[0];
+        }
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        try {
+            for (String channelRange : emergencyIdRange.split(",")) {
+                int dashIndex = channelRange.indexOf('-');
+                if (dashIndex != -1) {
+                    values.add(Integer.decode(channelRange.substring(0, dashIndex).trim()));
+                    values.add(Integer.decode(channelRange.substring(dashIndex + 1).trim()));
+                } else {
+                    int messageId = Integer.decode(channelRange.trim());
+                    values.add(messageId);
+                    values.add(messageId);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // keep the ranges parsed before the error, like the original per-call parser
+            Log.e(TAG, "Number Format Exception parsing emergency channel range", e);
+        }
+        int[] ranges = new int[values.size() & ~1];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = values.get(i);
+        }
+        return ranges;
+    }
+
+    /**
+     * Return a stamp identifying the inputs of the classification: the carrier profile,
+     * the operator emergency range properties and the application version.
+     * @param context the context to use
+     * @return the classification stamp
+     */
+    static String getClassificationStamp(Context context) {
+        int versionCode = 0;
+        try {
+            versionCode = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "can't find own package info", e);
+        }
+        int profile;
+        synchronized (CellBroadcastClassifier.class) {
+            profile = getCarrierProfile(context);
+            if (profile != -1) {
+                profile = sProfileTable.getProfileKey(profile);
+            }
+        }
+        return versionCode + "|" + profile + '|'
+                + SystemProperties.get(CellBroadcastMessage.EMERGENCY_BROADCAST_RANGE) + '|'
+                + SystemProperties.get(CdmaBroadcastMessage.EMERGENCY_BROADCAST_RANGE);
+    }
+
+    /**
+     * Return whether stored rows may have been classified with different inputs.
+     * @param context the context to use
+     * @return true if a reclassification pass should be run
+     */
+    static boolean needsReclassification(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return !getClassificationStamp(context).equals(
+                prefs.getString(PREF_KEY_CLASSIFICATION_STAMP, null));
+    }
+
+    /**
+     * Remember that stored rows have been classified with the specified inputs.
+     * @param context the context to use
+     * @param stamp the stamp returned by {@link #getClassificationStamp}
+     */
+    static void setClassificationStamp(Context context, String stamp) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(PREF_KEY_CLASSIFICATION_STAMP, stamp).apply();
+    }
+}
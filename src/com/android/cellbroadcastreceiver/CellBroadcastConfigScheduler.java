@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.telephony.ServiceState;
+import android.util.Log;
+
+import com.android.internal.telephony.TelephonyIntents;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Schedules the configuration passes of {@link CellBroadcastConfigService}. The triggers
+ * (service state changes, SIM changes, airplane mode off, settings changes) that arrive
+ * within {@link #DEBOUNCE_MSEC} of the first one are collapsed into a single pass,
+ * started by an alarm. The first in service state after boot starts a pass right away
+ * instead, and that pass runs exactly once per boot.
+ *
+ * The phone forgets the enabled channels when it restarts, so the first pass after boot
+ * and the passes after the radio was off (airplane mode, or a restart of the radio or
+ * the phone process) are full passes, which don't trust the ranges applied before.
+ *
+ * The scheduling state is kept in the preferences and the alarm outlives the process,
+ * so a trigger is never lost when the process dies. May be used from any thread.
+ */
+final class CellBroadcastConfigScheduler {
+    private static final String TAG = "CellBroadcastConfigScheduler";
+
+    /** Time to collect the triggers of a scheduled pass. */
+    static final long DEBOUNCE_MSEC = 3000;
+
+    /** Extra of the first pass after boot, which runs only once per boot. */
+    static final String EXTRA_FIRST_PASS = "com.android.cellbroadcastreceiver.FIRST_PASS";
+
+    /** Preference key of the last service state received. */
+    private static final String PREF_KEY_SERVICE_STATE = "config_service_state";
+
+    /** Preference key of the elapsed realtime of the scheduled pass. */
+    private static final String PREF_KEY_PENDING_TIME = "config_pending_time";
+
+    /** Preference key of whether the first pass of this boot ran, cleared at boot. */
+    private static final String PREF_KEY_FIRST_PASS_DONE = "config_first_pass_done";
+
+    /** Preference key of whether the next pass must be a full pass. */
+    private static final String PREF_KEY_FULL_PASS = "config_full_pass";
+
+    /** Preference key of the MCC and MNC of the SIM, see {@link #getCarrierKey}. */
+    private static final String PREF_KEY_CARRIER = "config_carrier";
+
+    private static final Object sLock = new Object();
+
+    private CellBroadcastConfigScheduler() {}
+
+    /**
+     * Handle the service state at boot. The scheduling state and the ranges applied of
+     * the previous boot are cleared: the radio starts with no channels enabled, and the
+     * alarm of a scheduled pass didn't survive the reboot. If a first pass ran already
+     * in this boot before we got here, the first pass just runs again.
+     *
+     * The service state broadcast may have been sent before our receiver could get it,
+     * so the sticky broadcast is read here.
+     */
+    static void onBootCompleted(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        synchronized (sLock) {
+            SharedPreferences.Editor editor = prefs.edit()
+                    .remove(PREF_KEY_SERVICE_STATE)
+                    .remove(PREF_KEY_PENDING_TIME)
+                    .remove(PREF_KEY_FIRST_PASS_DONE)
+                    .remove(PREF_KEY_FULL_PASS);
+            CellBroadcastConfigService.forgetAppliedRanges(editor);
+            editor.apply();
+        }
+
+        // a receiver context may not be allowed to register, the application context is
+        Intent intent = context.getApplicationContext().registerReceiver(null,
+                new IntentFilter(TelephonyIntents.ACTION_SERVICE_STATE_CHANGED));
+        if (intent != null) {
+            onServiceStateChanged(context, ServiceState.newFromBundle(intent.getExtras()));
+        }
+    }
+
+    /**
+     * Handle a service state change: the first in service state after boot starts a
+     * pass now, later changes to an in service state, or to another SIM, schedule one.
+     * The carrier profile, so the channels, depend on the MCC and MNC of the SIM.
+     */
+    static void onServiceStateChanged(Context context, ServiceState serviceState) {
+        int state = serviceState.getState();
+        int carrier = getCarrierKey(context);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        synchronized (sLock) {
+            int previousState = prefs.getInt(PREF_KEY_SERVICE_STATE, -1);
+            int previousCarrier = prefs.getInt(PREF_KEY_CARRIER, carrier);
+            if (state != previousState || carrier != previousCarrier
+                    || !prefs.contains(PREF_KEY_CARRIER)) {
+                // most broadcasts only change the signal or the operator, not the state
+                prefs.edit()
+                        .putInt(PREF_KEY_SERVICE_STATE, state)
+                        .putInt(PREF_KEY_CARRIER, carrier)
+                        .apply();
+            }
+            if (state != ServiceState.STATE_IN_SERVICE
+                    && state != ServiceState.STATE_EMERGENCY_ONLY) {
+                return;
+            }
+            if (!prefs.getBoolean(PREF_KEY_FIRST_PASS_DONE, false)) {
+                // duplicates are skipped by onConfigStarted() until the first pass is done
+                Log.d(TAG, "first service state since boot: " + serviceState);
+                context.startService(getConfigIntent(context, true));
+            } else if (state != previousState || carrier != previousCarrier) {
+                Log.d(TAG, "service state or SIM changed: " + serviceState + " carrier "
+                        + previousCarrier + " -> " + carrier);
+                if (previousState == ServiceState.STATE_POWER_OFF) {
+                    // the radio was off or restarted, it may have forgotten the channels
+                    prefs.edit().putBoolean(PREF_KEY_FULL_PASS, true).apply();
+                }
+                scheduleConfig(context);
+            }
+        }
+    }
+
+    /**
+     * Return the key of the MCC and MNC of the SIM in the current configuration, as
+     * {@link CarrierProfileTable#getKey}; 0 without a SIM.
+     */
+    private static int getCarrierKey(Context context) {
+        Configuration config = context.getResources().getConfiguration();
+        return CarrierProfileTable.getKey(config.mcc, config.mnc);
+    }
+
+    /** Configure the channels of the new format now, after a switch between GSM and CDMA. */
+    static void onPhoneTypeChanged(Context context) {
+        context.startService(getConfigIntent(context, false));
+    }
+
+    /**
+     * Schedule a full pass after {@link #DEBOUNCE_MSEC}, e.g. after airplane mode, when
+     * the radio may have forgotten the channels enabled before.
+     */
+    static void scheduleFullConfig(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        synchronized (sLock) {
+            prefs.edit().putBoolean(PREF_KEY_FULL_PASS, true).apply();
+            scheduleConfig(context);
+        }
+    }
+
+    /** Schedule a pass after {@link #DEBOUNCE_MSEC}, unless one is scheduled already. */
+    static void scheduleConfig(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        synchronized (sLock) {
+            long now = SystemClock.elapsedRealtime();
+            long pendingTime = prefs.getLong(PREF_KEY_PENDING_TIME, 0);
+            // a pending time too far ahead was set in the previous boot, before it was
+            // cleared at boot completed
+            if (pendingTime > now && pendingTime <= now + DEBOUNCE_MSEC) {
+                if (DBG) Log.d(TAG, "configuration pass already scheduled");
+                return;
+            }
+            pendingTime = now + DEBOUNCE_MSEC;
+            AlarmManager alarmManager =
+                    (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, pendingTime,
+                    PendingIntent.getService(context, 0, getConfigIntent(context, false), 0));
+            prefs.edit().putLong(PREF_KEY_PENDING_TIME, pendingTime).apply();
+            if (DBG) Log.d(TAG, "scheduled configuration pass");
+        }
+    }
+
+    /**
+     * Called by the config service before a pass. Triggers that arrive from now on
+     * schedule another pass, since the settings may have changed after they were read.
+     * @return false to skip the pass, if the first pass of this boot ran already
+     */
+    static boolean onConfigStarted(Context context, Intent intent) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        synchronized (sLock) {
+            if (intent.getBooleanExtra(EXTRA_FIRST_PASS, false)) {
+                return !prefs.getBoolean(PREF_KEY_FIRST_PASS_DONE, false);
+            }
+            prefs.edit().remove(PREF_KEY_PENDING_TIME).apply();
+            return true;
+        }
+    }
+
+    /**
+     * Called by the config service when a pass starts, to know whether it is a full pass:
+     * the first pass after boot, or a pass after the radio was off. The request is
+     * cleared, a radio restart during the pass requests another one.
+     * @return true if the ranges applied before must not be trusted
+     */
+    static boolean takeFullPassRequest(Context context, Intent intent) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        synchronized (sLock) {
+            boolean fullPass = prefs.getBoolean(PREF_KEY_FULL_PASS, false);
+            if (fullPass) {
+                prefs.edit().remove(PREF_KEY_FULL_PASS).apply();
+            }
+            return fullPass || intent.getBooleanExtra(EXTRA_FIRST_PASS, false);
+        }
+    }
+
+    /**
+     * Called by the config service after a pass. The first pass is only recorded when it
+     * is done: if the process dies before, the service intent is delivered again.
+     */
+    static void onConfigFinished(Context context, Intent intent) {
+        if (intent.getBooleanExtra(EXTRA_FIRST_PASS, false)) {
+            PreferenceManager.getDefaultSharedPreferences(context).edit()
+                    .putBoolean(PREF_KEY_FIRST_PASS_DONE, true)
+                    .apply();
+        }
+    }
+
+    private static Intent getConfigIntent(Context context, boolean firstPass) {
+        Intent intent = new Intent(CellBroadcastConfigService.ACTION_ENABLE_CHANNELS, null,
+                context, CellBroadcastConfigService.class);
+        if (firstPass) {
+            intent.putExtra(EXTRA_FIRST_PASS, true);
+        }
+        return intent;
+    }
+}
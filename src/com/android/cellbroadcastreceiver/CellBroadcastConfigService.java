@@ -20,11 +20,11 @@ package com.android.cellbroadcastreceiver;
 import android.app.IntentService;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.res.Resources;
 import android.os.SystemProperties;
 import android.preference.PreferenceManager;
 import android.telephony.SmsCbConstants;
 import android.telephony.SmsManager;
+import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -35,11 +35,19 @@ import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
 /**
  * This service manages enabling and disabling ranges of message identifiers
  * that the radio should listen for. It operates independently of the other
- * services and runs at boot time and after exiting airplane mode.
+ * services and is started by {@link CellBroadcastConfigScheduler} when the phone
+ * gets in service, after exiting airplane mode and when the settings change.
  *
  * Note that the entire range of emergency channels is enabled. Test messages
  * and lower priority broadcasts are filtered out in CellBroadcastAlertService
- * if the user has not enabled them in settings.
+ * if the user has not enabled them in settings. The emergency ranges and the other
+ * channels of the carrier come from its profile in {@link CarrierProfileTable}; carriers
+ * without a profile may set the ranges in system properties instead.
+ *
+ * The ranges applied are kept in the preferences, so that each configuration only
+ * enables and disables the ranges that changed, see {@link ChannelConfigBatch}. So are
+ * the ranges managed by earlier configurations, so that a full pass also disables the
+ * ranges of another carrier or of changed system properties.
  *
  * TODO: add notification to re-enable channels after a radio reset.
  */
@@ -49,185 +57,302 @@ public class CellBroadcastConfigService extends IntentService {
     static final String ACTION_ENABLE_CHANNELS_GSM = "ACTION_ENABLE_CHANNELS_GSM";
     static final String ACTION_ENABLE_CHANNELS_CDMA = "ACTION_ENABLE_CHANNELS_CDMA";
 
+    /** Enable the channels of the current phone type, see {@link CellBroadcastConfigScheduler}. */
+    static final String ACTION_ENABLE_CHANNELS = "ACTION_ENABLE_CHANNELS";
+
+    /** Preference keys of the channel ranges applied, see {@link ChannelRangeSet}. */
+    private static final String PREF_KEY_APPLIED_GSM_CHANNELS = "applied_gsm_channels";
+    private static final String PREF_KEY_APPLIED_CDMA_CHANNELS = "applied_cdma_channels";
+
+    /**
+     * Preference keys of all the ranges ever managed, kept across boots: the ranges of a
+     * previous carrier profile are still disabled by a full pass after a SIM change.
+     */
+    private static final String PREF_KEY_MANAGED_GSM_CHANNELS = "managed_gsm_channels";
+    private static final String PREF_KEY_MANAGED_CDMA_CHANNELS = "managed_cdma_channels";
+
+    /** Preference key of the format ("gsm" or "cdma") of the last configuration. */
+    private static final String PREF_KEY_CONFIGURED_FORMAT = "configured_channel_format";
+
     public CellBroadcastConfigService() {
         super(TAG);          // use class name for worker thread name
+        // deliver the intent again if the process dies during a pass
+        setIntentRedelivery(true);
     }
 
-    private void setChannelRange(SmsManager manager, String ranges, boolean enable, boolean isCdma) {
-        if (DBG) Log.d(TAG, "setChannelRange: " + ranges);
-
-        try {
-            for (String channelRange : ranges.split(",")) {
-                int dashIndex = channelRange.indexOf('-');
-                if (dashIndex != -1) {
-                    int startId = Integer.decode(channelRange.substring(0, dashIndex).trim());
-                    int endId = Integer.decode(channelRange.substring(dashIndex + 1).trim());
-                    if (enable) {
-                        if (DBG) Log.d(TAG, "enabling emergency IDs " + startId + '-' + endId);
-                        if (isCdma) {
-                            manager.enableCdmaBroadcastRange(startId, endId);
-                        } else {
-                            manager.enableCellBroadcastRange(startId, endId);
-                        }
-                    } else {
-                        if (DBG) Log.d(TAG, "disabling emergency IDs " + startId + '-' + endId);
-                        if (isCdma) {
-                            manager.disableCdmaBroadcastRange(startId, endId);
-                        } else {
-                            manager.disableCellBroadcastRange(startId, endId);
-                        }
-                    }
-                } else {
-                    int messageId = Integer.decode(channelRange.trim());
-                    if (enable) {
-                        if (DBG) Log.d(TAG, "enabling emergency message ID " + messageId);
-                        if (isCdma) {
-                            manager.enableCdmaBroadcast(messageId);
-                        } else {
-                            manager.enableCellBroadcast(messageId);
-                        }
-                    } else {
-                        if (DBG) Log.d(TAG, "disabling emergency message ID " + messageId);
-                        if (isCdma) {
-                            manager.disableCdmaBroadcast(messageId);
-                        } else {
-                            manager.disableCellBroadcast(messageId);
-                        }
-                    }
-                }
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (ACTION_ENABLE_CHANNELS.equals(intent.getAction())) {
+            if (!CellBroadcastConfigScheduler.onConfigStarted(this, intent)) {
+                if (DBG) Log.d(TAG, "skipping duplicate configuration pass");
+                return;
             }
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Number Format Exception parsing emergency channel range", e);
+            boolean fullPass = CellBroadcastConfigScheduler.takeFullPassRequest(this, intent);
+            boolean isCdma = CellBroadcastReceiver.phoneIsCdma();
+            checkFormatSwitch(isCdma);
+            if (isCdma) {
+                configCdmaChannels(fullPass);
+            } else {
+                configGsmChannels(fullPass);
+            }
+            CellBroadcastConfigScheduler.onConfigFinished(this, intent);
+        } else if (ACTION_ENABLE_CHANNELS_GSM.equals(intent.getAction())) {
+            configGsmChannels(true);
+        } else if (ACTION_ENABLE_CHANNELS_CDMA.equals(intent.getAction())) {
+            configCdmaChannels(true);
         }
 
-        // Make sure CMAS Presidential is enabled (See 3GPP TS 22.268 Section 6.2).
-        if (DBG) Log.d(TAG, "setChannelRange: enabling CMAS Presidential");
-        if (isCdma) {
-            manager.enableCdmaBroadcast(CdmaBroadcastMessage.CMAS_PRESIDENTIAL);
-        } else {
-            manager.enableCellBroadcast(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL);
+        // Load the attention signal and the TTS engine now, so the first alert doesn't
+        // wait for them.
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS, true)) {
+            AlertTonePlayer.getInstance().load();
+            if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERT_SPEECH, true)) {
+                AlertSpeechManager.warmUpAsync(this,
+                        AlertSpeechManager.getLikelyLanguage(this));
+            }
         }
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        if (ACTION_ENABLE_CHANNELS_GSM.equals(intent.getAction())) {
-            configGsmChannels();
-        } else if (ACTION_ENABLE_CHANNELS_CDMA.equals(intent.getAction())) {
-            configCdmaChannels();
+    /**
+     * Forget the ranges applied if the phone switched between GSM and CDMA since the last
+     * configuration: the phone of the new format starts with no channels enabled, so the
+     * next configuration of either format must be a full one.
+     */
+    private void checkFormatSwitch(boolean isCdma) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        String format = isCdma ? "cdma" : "gsm";
+        String lastFormat = prefs.getString(PREF_KEY_CONFIGURED_FORMAT, format);
+        SharedPreferences.Editor editor = prefs.edit();
+        if (!format.equals(lastFormat)) {
+            Log.d(TAG, "phone switched from " + lastFormat + " to " + format);
+            forgetAppliedRanges(editor);
         }
+        editor.putString(PREF_KEY_CONFIGURED_FORMAT, format).apply();
+    }
+
+    /**
+     * Forget the ranges applied, so that the next configuration is a full one. Called
+     * at boot, since the phone starts with no channels enabled.
+     */
+    static void forgetAppliedRanges(SharedPreferences.Editor editor) {
+        editor.remove(PREF_KEY_APPLIED_GSM_CHANNELS).remove(PREF_KEY_APPLIED_CDMA_CHANNELS);
     }
 
-    private void configGsmChannels() {
+    private void configGsmChannels(boolean fullPass) {
         try {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-            Resources res = getResources();
-
-            // Check for system property defining the emergency channel ranges to enable
-            String emergencyIdRange = SystemProperties.get(
-                    CellBroadcastMessage.EMERGENCY_BROADCAST_RANGE);
 
             boolean enableEmergencyAlerts = prefs.getBoolean(
                     CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS, true);
 
-            boolean enableChannel50Alerts = res.getBoolean(R.bool.show_brazil_settings) &&
-                    prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_CHANNEL_50_ALERTS, true);
+            boolean enableChannel50Alerts = CellBroadcastClassifier.isChannel50Supported(this)
+                    && prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_CHANNEL_50_ALERTS, true);
+
+            ChannelRangeSet emergencyRanges = getEmergencyRanges(
+                    TelephonyManager.PHONE_TYPE_GSM,
+                    CellBroadcastMessage.EMERGENCY_BROADCAST_RANGE,
+                    SmsCbConstants.MESSAGE_ID_PWS_FIRST_IDENTIFIER,
+                    SmsCbConstants.MESSAGE_ID_PWS_LAST_IDENTIFIER);
+            ChannelRangeSet carrierRanges = CellBroadcastClassifier.getCarrierRanges(this,
+                    TelephonyManager.PHONE_TYPE_GSM, false);
+            int presidentialId = SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL;
+
+            ChannelRangeSet managedRanges = new ChannelRangeSet();
+            managedRanges.addAll(emergencyRanges);
+            managedRanges.add(presidentialId, presidentialId);
+            managedRanges.add(CellBroadcastClassifier.MESSAGE_ID_AREA_INFO,
+                    CellBroadcastClassifier.MESSAGE_ID_AREA_INFO);
 
-            SmsManager manager = SmsManager.getDefault();
+            ChannelRangeSet desiredRanges = new ChannelRangeSet();
             if (enableEmergencyAlerts) {
-                if (DBG) Log.d(TAG, "enabling emergency cell broadcast channels");
-                if (!TextUtils.isEmpty(emergencyIdRange)) {
-                    setChannelRange(manager, emergencyIdRange, true, false);
-                } else {
-                    // No emergency channel system property, enable all emergency channels
-                    manager.enableCellBroadcastRange(
-                            SmsCbConstants.MESSAGE_ID_PWS_FIRST_IDENTIFIER,
-                            SmsCbConstants.MESSAGE_ID_PWS_LAST_IDENTIFIER);
-
-                    // CMAS Presidential must be on (See 3GPP TS 22.268 Section 6.2).
-                    manager.enableCellBroadcast(
-                            SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL);
-                }
-                if (DBG) Log.d(TAG, "enabled emergency cell broadcast channels");
-            } else {
-                // we may have enabled these channels previously, so try to disable them
-                if (DBG) Log.d(TAG, "disabling emergency cell broadcast channels");
-                if (!TextUtils.isEmpty(emergencyIdRange)) {
-                    setChannelRange(manager, emergencyIdRange, false, false);
-                } else {
-                    // No emergency channel system property, disable all emergency channels
-                    // except for CMAS Presidential (See 3GPP TS 22.268 Section 6.2)
-                    manager.disableCellBroadcastRange(
-                            SmsCbConstants.MESSAGE_ID_PWS_FIRST_IDENTIFIER,
-                            SmsCbConstants.MESSAGE_ID_PWS_LAST_IDENTIFIER);
-
-                    manager.enableCellBroadcast(
-                            SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL);
-
-                }
-                if (DBG) Log.d(TAG, "disabled emergency cell broadcast channels");
+                desiredRanges.addAll(emergencyRanges);
             }
-
+            if (carrierRanges != null) {
+                managedRanges.addAll(carrierRanges);
+                desiredRanges.addAll(carrierRanges);
+            }
+            // CMAS Presidential must be on (See 3GPP TS 22.268 Section 6.2).
+            desiredRanges.add(presidentialId, presidentialId);
             if (enableChannel50Alerts) {
-                if (DBG) Log.d(TAG, "enabling cell broadcast channel 50");
-                manager.enableCellBroadcast(50);
-                if (DBG) Log.d(TAG, "enabled cell broadcast channel 50");
-            } else {
-                if (DBG) Log.d(TAG, "disabling cell broadcast channel 50");
-                manager.disableCellBroadcast(50);
-                if (DBG) Log.d(TAG, "disabled cell broadcast channel 50");
+                desiredRanges.add(CellBroadcastClassifier.MESSAGE_ID_AREA_INFO,
+                        CellBroadcastClassifier.MESSAGE_ID_AREA_INFO);
             }
+
+            applyChannelRanges(prefs, PREF_KEY_APPLIED_GSM_CHANNELS,
+                    PREF_KEY_MANAGED_GSM_CHANNELS, desiredRanges, managedRanges, false,
+                    fullPass);
         } catch (Exception ex) {
             Log.e(TAG, "exception enabling cell broadcast channels", ex);
         }
     }
 
-    private void configCdmaChannels() {
+    private void configCdmaChannels(boolean fullPass) {
         try {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-            Resources res = getResources();
-
-            // Check for system property defining the emergency channel ranges to enable
-            String emergencyIdRange = SystemProperties.get(
-                    CdmaBroadcastMessage.EMERGENCY_BROADCAST_RANGE);
 
             boolean enableEmergencyAlerts = prefs.getBoolean(
                     CellBroadcastSettings.KEY_ENABLE_EMERGENCY_ALERTS, true);
 
-            SmsManager manager = SmsManager.getDefault();
+            ChannelRangeSet emergencyRanges = getEmergencyRanges(
+                    TelephonyManager.PHONE_TYPE_CDMA,
+                    CdmaBroadcastMessage.EMERGENCY_BROADCAST_RANGE,
+                    CdmaBroadcastMessage.CMAS_FIRST_IDENTIFIER,
+                    CdmaBroadcastMessage.CMAS_LAST_IDENTIFIER);
+            ChannelRangeSet carrierRanges = CellBroadcastClassifier.getCarrierRanges(this,
+                    TelephonyManager.PHONE_TYPE_CDMA, false);
+            int presidentialId = CdmaBroadcastMessage.CMAS_PRESIDENTIAL;
+
+            ChannelRangeSet managedRanges = new ChannelRangeSet();
+            managedRanges.addAll(emergencyRanges);
+            managedRanges.add(presidentialId, presidentialId);
+
+            ChannelRangeSet desiredRanges = new ChannelRangeSet();
             if (enableEmergencyAlerts) {
-                if (DBG) Log.d(TAG, "enabling emergency cdma broadcast channels");
-                if (!TextUtils.isEmpty(emergencyIdRange)) {
-                    setChannelRange(manager, emergencyIdRange, true, true);
-                } else {
-                    // No emergency channel system property, enable all emergency channels
-                    manager.enableCdmaBroadcastRange(
-                            CdmaBroadcastMessage.CMAS_FIRST_IDENTIFIER,
-                            CdmaBroadcastMessage.CMAS_LAST_IDENTIFIER);
-
-                    // CMAS Presidential must be on.
-                    manager.enableCdmaBroadcast(CdmaBroadcastMessage.CMAS_PRESIDENTIAL);
-                }
-                if (DBG) Log.d(TAG, "enabled emergency cdma broadcast channels");
-            } else {
-                // we may have enabled these channels previously, so try to
-                // disable them
-                if (DBG) Log.d(TAG, "disabling emergency cdma broadcast channels");
-                if (!TextUtils.isEmpty(emergencyIdRange)) {
-                    setChannelRange(manager, emergencyIdRange, false, true);
-                } else {
-                    // No emergency channel system property, disable all emergency channels
-                    manager.disableCdmaBroadcastRange(
-                            CdmaBroadcastMessage.CMAS_FIRST_IDENTIFIER,
-                            CdmaBroadcastMessage.CMAS_LAST_IDENTIFIER);
-
-                    // CMAS Presidential must be on.
-                    manager.enableCdmaBroadcast(CdmaBroadcastMessage.CMAS_PRESIDENTIAL);
-                }
-                if (DBG) Log.d(TAG, "disabled emergency cdma broadcast channels");
+                desiredRanges.addAll(emergencyRanges);
+            }
+            if (carrierRanges != null) {
+                managedRanges.addAll(carrierRanges);
+                desiredRanges.addAll(carrierRanges);
             }
+            // CMAS Presidential must be on.
+            desiredRanges.add(presidentialId, presidentialId);
+
+            applyChannelRanges(prefs, PREF_KEY_APPLIED_CDMA_CHANNELS,
+                    PREF_KEY_MANAGED_CDMA_CHANNELS, desiredRanges, managedRanges, true,
+                    fullPass);
         } catch (Exception ex) {
             Log.e(TAG, "exception enabling cdma broadcast channels", ex);
         }
     }
+
+    /**
+     * Return the emergency channel ranges of the carrier profile. Carriers without
+     * emergency ranges in their profile use the system property, or the default range
+     * if the property isn't set.
+     * @param format the message format
+     * @param property the system property of the operator defined emergency ranges
+     * @param firstId the first identifier of the default range
+     * @param lastId the last identifier of the default range
+     */
+    private ChannelRangeSet getEmergencyRanges(int format, String property, int firstId,
+            int lastId) {
+        ChannelRangeSet carrierRanges =
+                CellBroadcastClassifier.getCarrierRanges(this, format, true);
+        if (carrierRanges != null) {
+            return carrierRanges;
+        }
+        String emergencyIdRange = SystemProperties.get(property);
+        if (TextUtils.isEmpty(emergencyIdRange)) {
+            ChannelRangeSet ranges = new ChannelRangeSet();
+            ranges.add(firstId, lastId);
+            return ranges;
+        }
+        try {
+            return ChannelRangeSet.parse(emergencyIdRange);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Number Format Exception parsing emergency channel range", e);
+            return new ChannelRangeSet();
+        }
+    }
+
+    /**
+     * Enable the desired channel ranges and disable the others. Only the ranges that
+     * changed since the last configuration are sent to the radio. In a full pass, or if
+     * the ranges applied are unknown (the first configuration after boot), every desired
+     * range is enabled and every other managed range is disabled.
+     * @param prefs the preferences that keep the ranges applied and managed
+     * @param key the preference key of the ranges applied
+     * @param managedKey the preference key of the ranges managed by earlier passes
+     * @param desiredRanges the ranges to enable
+     * @param managedRanges all ranges that this service may enable with the current
+     *        carrier profile; the ranges managed by earlier passes are added
+     * @param isCdma true to configure CDMA broadcasts, false for GSM
+     * @param fullPass true if the radio may have forgotten the ranges applied
+     */
+    private static void applyChannelRanges(SharedPreferences prefs, String key,
+            String managedKey, ChannelRangeSet desiredRanges, ChannelRangeSet managedRanges,
+            final boolean isCdma, boolean fullPass) {
+        final SmsManager manager = SmsManager.getDefault();
+        ChannelRangeSet previousManagedRanges = getStoredRanges(prefs, managedKey);
+        if (previousManagedRanges != null) {
+            managedRanges.addAll(previousManagedRanges);
+        }
+        ChannelRangeSet appliedRanges = getStoredRanges(prefs, key);
+        if (fullPass && appliedRanges != null) {
+            // the radio may still have them, disable those no longer desired
+            managedRanges.addAll(appliedRanges);
+            appliedRanges = null;
+        }
+        ChannelConfigBatch batch = new ChannelConfigBatch(desiredRanges, managedRanges,
+                appliedRanges);
+        appliedRanges = batch.execute(new ChannelConfigBatch.Radio() {
+            public boolean setChannelRange(int startId, int endId, boolean enable) {
+                return CellBroadcastConfigService.setChannelRange(manager, startId, endId,
+                        enable, isCdma);
+            }
+        });
+
+        prefs.edit()
+                .putString(key, appliedRanges.toString())
+                .putString(managedKey, managedRanges.toString())
+                .apply();
+
+        int issuedCalls = batch.getCallCount();
+        if (DBG) Log.d(TAG, "applied channels " + appliedRanges + ": " + issuedCalls
+                + " calls issued");
+        for (int i = 0; i < issuedCalls; i++) {
+            CellBroadcastMetrics.recordLatency(CellBroadcastMetrics.CHANNEL_CALL,
+                    batch.getCallNanos(i) / 1000000);
+        }
+        CellBroadcastMetrics.incrementCounter(CellBroadcastMetrics.CHANNEL_CALLS_ISSUED,
+                issuedCalls);
+        CellBroadcastMetrics.incrementCounter(CellBroadcastMetrics.CHANNEL_CALLS_SKIPPED,
+                Math.max(0, batch.getFullCallCount() - issuedCalls));
+    }
+
+    /**
+     * Return the ranges stored under a preference key, or null if none are stored, e.g.
+     * the ranges applied if there was no configuration since boot: the ranges applied
+     * are forgotten at boot, see {@link #forgetAppliedRanges}.
+     */
+    private static ChannelRangeSet getStoredRanges(SharedPreferences prefs, String key) {
+        if (!prefs.contains(key)) {
+            return null;
+        }
+        try {
+            return ChannelRangeSet.parse(prefs.getString(key, null));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "invalid channel ranges in " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Enable or disable a channel range.
+     * @return true if the radio accepted the call
+     */
+    private static boolean setChannelRange(SmsManager manager, int startId, int endId,
+            boolean enable, boolean isCdma) {
+        if (startId == endId) {
+            if (enable) {
+                if (DBG) Log.d(TAG, "enabling emergency message ID " + startId);
+                return isCdma ? manager.enableCdmaBroadcast(startId)
+                        : manager.enableCellBroadcast(startId);
+            } else {
+                if (DBG) Log.d(TAG, "disabling emergency message ID " + startId);
+                return isCdma ? manager.disableCdmaBroadcast(startId)
+                        : manager.disableCellBroadcast(startId);
+            }
+        }
+        if (enable) {
+            if (DBG) Log.d(TAG, "enabling emergency IDs " + startId + '-' + endId);
+            return isCdma ? manager.enableCdmaBroadcastRange(startId, endId)
+                    : manager.enableCellBroadcastRange(startId, endId);
+        } else {
+            if (DBG) Log.d(TAG, "disabling emergency IDs " + startId + '-' + endId);
+            return isCdma ? manager.disableCdmaBroadcastRange(startId, endId)
+                    : manager.disableCellBroadcastRange(startId, endId);
+        }
+    }
 }
@@ -16,11 +16,17 @@
 
 package com.android.cellbroadcastreceiver;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
+import android.telephony.TelephonyManager;
+
+import java.util.ArrayList;
 
 public class CellBroadcastDatabase {
     private static final String TAG = "CellBroadcastDatabase";
@@ -30,7 +36,35 @@ public class CellBroadcastDatabase {
     static final String DATABASE_NAME = "cell_broadcasts.db";
     static final String TABLE_NAME = "broadcasts";
 
-    static final int DATABASE_VERSION = 1;
+    /** Maximum length of {@link Columns#SNIPPET}: enough to fill a single list row. */
+    static final int SNIPPET_LENGTH = 160;
+
+    /** Index for reverse chronological paging of the broadcast history. */
+    static final String INDEX_DATE_ID = "broadcasts_date_id_index";
+
+    /** Index for grouping broadcasts with their updates, see {@link GroupKey}. */
+    static final String INDEX_GROUP = "broadcasts_group_index";
+
+    /*
+     * Indexes for the history filters and sort orders, see CellBroadcastFilter. Each
+     * criterion has an index in date order and one in priority order.
+     */
+    static final String INDEX_CATEGORY = "broadcasts_category_group_index";
+    static final String INDEX_SEVERITY = "broadcasts_severity_index";
+    static final String INDEX_URGENCY = "broadcasts_urgency_index";
+    static final String INDEX_CERTAINTY = "broadcasts_certainty_index";
+    static final String INDEX_UNREAD = "broadcasts_read_index";
+    static final String INDEX_PRIORITY = "broadcasts_priority_index";
+    static final String INDEX_CATEGORY_PRIORITY = "broadcasts_category_group_priority_index";
+    static final String INDEX_SEVERITY_PRIORITY = "broadcasts_severity_priority_index";
+    static final String INDEX_URGENCY_PRIORITY = "broadcasts_urgency_priority_index";
+    static final String INDEX_CERTAINTY_PRIORITY = "broadcasts_certainty_priority_index";
+    static final String INDEX_UNREAD_PRIORITY = "broadcasts_read_priority_index";
+
+    /** Index on the category (not the group) in versions 6 and 7 of the database. */
+    private static final String OLD_INDEX_CATEGORY = "broadcasts_category_index";
+
+    static final int DATABASE_VERSION = 9;
 
     static final class Columns implements BaseColumns {
 
@@ -108,9 +142,47 @@ public class CellBroadcastDatabase {
          */
         public static final String CERTAINTY = "certainty";
 
+        /**
+         * Classification flags computed at insert time. See {@link CellBroadcastClassifier}.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String CLASS_FLAGS = "class_flags";
 
         /**
-         * Query for list view adapter.
+         * Display category computed at insert time. See {@link CellBroadcastClassifier}.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String CATEGORY = "category";
+
+        /**
+         * Start of the message body shown in the list view, computed at insert time.
+         * See {@link CellBroadcastDatabase#makeSnippet}.
+         * <P>Type: TEXT</P>
+         */
+        public static final String SNIPPET = "snippet";
+
+        /**
+         * Whether {@link #SNIPPET} is shorter than the message body, computed at insert time.
+         * <P>Type: INTEGER (boolean)</P>
+         */
+        public static final String SNIPPET_TRUNCATED = "snippet_truncated";
+
+        /**
+         * Sort priority computed at insert time from the category.
+         * See {@link CellBroadcastClassifier#getPriority}.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String PRIORITY = "priority";
+
+        /**
+         * Alert type filter matching the category, computed at insert time.
+         * See {@link CellBroadcastFilter#getCategoryGroup}.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String CATEGORY_GROUP = "category_group";
+
+        /**
+         * Query for a complete message, e.g. for {@link BroadcastMessage#createFromCursor}.
          */
         static final String[] QUERY_COLUMNS = {
                 _ID,
@@ -125,7 +197,34 @@ public class CellBroadcastDatabase {
                 MESSAGE_FORMAT,
                 SEVERITY,
                 URGENCY,
-                CERTAINTY
+                CERTAINTY,
+                CLASS_FLAGS,
+                CATEGORY,
+                PRIORITY
+        };
+
+        /**
+         * Query for list view adapter: same as {@link #QUERY_COLUMNS}, but with
+         * {@link #SNIPPET} instead of the full message body.
+         */
+        static final String[] LIST_QUERY_COLUMNS = {
+                _ID,
+                GEOGRAPHICAL_SCOPE,
+                SERIAL_NUMBER,
+                MESSAGE_CODE,
+                MESSAGE_IDENTIFIER,
+                LANGUAGE_CODE,
+                SNIPPET,
+                DELIVERY_TIME,
+                MESSAGE_READ,
+                MESSAGE_FORMAT,
+                SEVERITY,
+                URGENCY,
+                CERTAINTY,
+                CLASS_FLAGS,
+                CATEGORY,
+                PRIORITY,
+                SNIPPET_TRUNCATED
         };
     }
 
@@ -138,12 +237,28 @@ public class CellBroadcastDatabase {
     static final int COLUMN_MESSAGE_IDENTIFIER  = 4;
     static final int COLUMN_LANGUAGE_CODE       = 5;
     static final int COLUMN_MESSAGE_BODY        = 6;
+    static final int COLUMN_SNIPPET             = 6;    // in LIST_QUERY_COLUMNS
     static final int COLUMN_DELIVERY_TIME       = 7;
     static final int COLUMN_MESSAGE_READ        = 8;
     static final int COLUMN_FORMAT              = 9;
     static final int COLUMN_SEVERITY            = 10;
     static final int COLUMN_URGENCY             = 11;
     static final int COLUMN_CERTAINTY           = 12;
+    static final int COLUMN_CLASS_FLAGS         = 13;
+    static final int COLUMN_CATEGORY            = 14;
+    static final int COLUMN_PRIORITY            = 15;
+    static final int COLUMN_SNIPPET_TRUNCATED   = 16;   // in LIST_QUERY_COLUMNS
+
+    /* Additional columns of the group cursor, see getGroupCursor(). */
+
+    static final String GROUP_COUNT = "group_count";
+    static final String GROUP_UNREAD_COUNT = "group_unread_count";
+
+    static final int COLUMN_GROUP_COUNT         = 17;
+    static final int COLUMN_GROUP_UNREAD_COUNT  = 18;
+
+    /** The helper shared by the history UI, see {@link #getReadHelper}. */
+    private static DatabaseHelper sReadHelper;
 
     static class DatabaseHelper extends SQLiteOpenHelper {
 
@@ -166,13 +281,183 @@ public class CellBroadcastDatabase {
                     + Columns.MESSAGE_FORMAT + " INTEGER,"
                     + Columns.SEVERITY + " INTEGER,"
                     + Columns.URGENCY + " INTEGER,"
-                    + Columns.CERTAINTY + " INTEGER);");
+                    + Columns.CERTAINTY + " INTEGER,"
+                    + Columns.CLASS_FLAGS + " INTEGER,"
+                    + Columns.CATEGORY + " INTEGER,"
+                    + Columns.SNIPPET + " TEXT,"
+                    + Columns.PRIORITY + " INTEGER,"
+                    + Columns.SNIPPET_TRUNCATED + " INTEGER,"
+                    + Columns.CATEGORY_GROUP + " INTEGER);");
+            createDateIndex(db);
+            createGroupIndex(db);
+            createFilterIndexes(db);
+        }
+
+        private static void createFilterIndexes(SQLiteDatabase db) {
+            createIndex(db, INDEX_CATEGORY, Columns.CATEGORY_GROUP);
+            createIndex(db, INDEX_SEVERITY, Columns.SEVERITY);
+            createIndex(db, INDEX_URGENCY, Columns.URGENCY);
+            createIndex(db, INDEX_CERTAINTY, Columns.CERTAINTY);
+            createIndex(db, INDEX_UNREAD, Columns.MESSAGE_READ);
+            createIndex(db, INDEX_PRIORITY, Columns.PRIORITY);
+            createIndex(db, INDEX_CATEGORY_PRIORITY, Columns.CATEGORY_GROUP + ", "
+                    + Columns.PRIORITY);
+            createIndex(db, INDEX_SEVERITY_PRIORITY, Columns.SEVERITY + ", " + Columns.PRIORITY);
+            createIndex(db, INDEX_URGENCY_PRIORITY, Columns.URGENCY + ", " + Columns.PRIORITY);
+            createIndex(db, INDEX_CERTAINTY_PRIORITY, Columns.CERTAINTY + ", "
+                    + Columns.PRIORITY);
+            createIndex(db, INDEX_UNREAD_PRIORITY, Columns.MESSAGE_READ + ", "
+                    + Columns.PRIORITY);
+        }
+
+        /**
+         * Create an index on (columns, date), so matching rows are found in the order
+         * of the columns, then date. The row ID at the end of each index entry breaks
+         * ties, as in {@link #LIST_SORT_ORDER}.
+         */
+        private static void createIndex(SQLiteDatabase db, String index, String columns) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + index + " ON " + TABLE_NAME
+                    + " (" + columns + ", " + Columns.DELIVERY_TIME + ");");
+        }
+
+        private static void createGroupIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_GROUP + " ON " + TABLE_NAME
+                    + " (" + GROUP_BY_COLUMNS + ", " + Columns.DELIVERY_TIME + ");");
+        }
+
+        private static void createDateIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_DATE_ID + " ON " + TABLE_NAME
+                    + " (" + Columns.DELIVERY_TIME + ", " + Columns._ID + ");");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // ignored for now
+            if (oldVersion < 2) {
+                // Existing rows are classified by the next reclassification pass.
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + Columns.CLASS_FLAGS + " INTEGER;");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + Columns.CATEGORY + " INTEGER;");
+            }
+            if (oldVersion < 3) {
+                createDateIndex(db);
+            }
+            if (oldVersion < 4) {
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + Columns.SNIPPET + " TEXT;");
+                // close enough to makeSnippet(): substr() counts code points, not chars
+                db.execSQL("UPDATE " + TABLE_NAME + " SET " + Columns.SNIPPET + "=substr("
+                        + Columns.MESSAGE_BODY + ", 1, " + SNIPPET_LENGTH + ");");
+            }
+            if (oldVersion < 5) {
+                createGroupIndex(db);
+            }
+            if (oldVersion < 6) {
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + Columns.PRIORITY + " INTEGER;");
+                StringBuilder sb = new StringBuilder("UPDATE ").append(TABLE_NAME)
+                        .append(" SET ").append(Columns.PRIORITY).append("=CASE ")
+                        .append(Columns.CATEGORY);
+                // CATEGORY_CMAS_OPERATOR_DEFINED was the last category in this version
+                for (int category = 0;
+                        category <= CellBroadcastClassifier.CATEGORY_CMAS_OPERATOR_DEFINED;
+                        category++) {
+                    sb.append(" WHEN ").append(category).append(" THEN ")
+                            .append(CellBroadcastClassifier.getPriority(category));
+                }
+                sb.append(" ELSE 0 END;");
+                db.execSQL(sb.toString());
+                // the filter indexes are created with the category group, below
+            }
+            if (oldVersion < 7) {
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + Columns.SNIPPET_TRUNCATED + " INTEGER;");
+                db.execSQL("UPDATE " + TABLE_NAME + " SET " + Columns.SNIPPET_TRUNCATED + "=("
+                        + Columns.SNIPPET + " IS NOT " + Columns.MESSAGE_BODY + ");");
+            }
+            if (oldVersion < 8) {
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + Columns.CATEGORY_GROUP + " INTEGER;");
+                StringBuilder sb = new StringBuilder("UPDATE ").append(TABLE_NAME)
+                        .append(" SET ").append(Columns.CATEGORY_GROUP).append("=CASE ")
+                        .append(Columns.CATEGORY);
+                for (int category = 0;
+                        category <= CellBroadcastClassifier.CATEGORY_CMAS_OPERATOR_DEFINED;
+                        category++) {
+                    sb.append(" WHEN ").append(category).append(" THEN ")
+                            .append(CellBroadcastFilter.getCategoryGroup(category));
+                }
+                sb.append(" ELSE ").append(CellBroadcastFilter.CATEGORIES_OTHER)
+                        .append(" END;");
+                db.execSQL(sb.toString());
+                db.execSQL("DROP INDEX IF EXISTS " + OLD_INDEX_CATEGORY + ";");
+                createFilterIndexes(db);
+            }
+            if (oldVersion < 9) {
+                // area info broadcasts were in the other category before
+                int category = CellBroadcastClassifier.CATEGORY_AREA_INFO;
+                db.execSQL("UPDATE " + TABLE_NAME + " SET "
+                        + Columns.CATEGORY + "=" + category + ", "
+                        + Columns.CATEGORY_GROUP + "="
+                        + CellBroadcastFilter.getCategoryGroup(category) + ", "
+                        + Columns.PRIORITY + "=" + CellBroadcastClassifier.getPriority(category)
+                        + " WHERE " + Columns.MESSAGE_FORMAT + "="
+                        + TelephonyManager.PHONE_TYPE_GSM + " AND "
+                        + Columns.MESSAGE_IDENTIFIER + "="
+                        + CellBroadcastClassifier.MESSAGE_ID_AREA_INFO + " AND "
+                        + Columns.CATEGORY + "=" + CellBroadcastClassifier.CATEGORY_OTHER + ";");
+            }
+        }
+    }
+
+    /** Sort order for the list view adapter: reverse chronological, ties broken by row ID. */
+    static final String LIST_SORT_ORDER =
+            Columns.DELIVERY_TIME + " DESC, " + Columns._ID + " DESC";
+
+    /** Sort order for the list view adapter by priority, then as {@link #LIST_SORT_ORDER}. */
+    static final String PRIORITY_SORT_ORDER = Columns.PRIORITY + " DESC, " + LIST_SORT_ORDER;
+
+    /**
+     * Return the helper shared by the history UI to read the database. The helper is
+     * never closed, so that each loader and each click doesn't open the database again.
+     * @param context the context to use
+     * @return the shared helper
+     */
+    static synchronized DatabaseHelper getReadHelper(Context context) {
+        if (sReadHelper == null) {
+            sReadHelper = new DatabaseHelper(context.getApplicationContext());
+        }
+        return sReadHelper;
+    }
+
+    /**
+     * Put the list view snippet of a message body and whether it is truncated.
+     * @param cv the values to insert
+     * @param body the full message body, may be null
+     */
+    static void putSnippet(ContentValues cv, String body) {
+        String snippet = makeSnippet(body);
+        cv.put(Columns.SNIPPET, snippet);
+        // makeSnippet() returns the body itself unless it truncates it
+        cv.put(Columns.SNIPPET_TRUNCATED, snippet != body);
+    }
+
+    /**
+     * Return the list view snippet for a message body.
+     * @param body the full message body, may be null
+     * @return the first {@link #SNIPPET_LENGTH} characters of the body (one less if
+     *  the last would be the first half of a surrogate pair), or the body itself if it
+     *  isn't longer
+     */
+    static String makeSnippet(String body) {
+        if (body == null || body.length() <= SNIPPET_LENGTH) {
+            return body;
+        }
+        int end = SNIPPET_LENGTH;
+        if (Character.isHighSurrogate(body.charAt(end - 1))) {
+            end--;      // don't split a surrogate pair
         }
+        return body.substring(0, end);
     }
 
     /**
@@ -181,7 +466,423 @@ public class CellBroadcastDatabase {
      * @return the cursor for the list view adapter
      */
     static Cursor getCursor(SQLiteDatabase db) {
+        return db.query(false, TABLE_NAME, Columns.LIST_QUERY_COLUMNS,
+                null, null, null, null, LIST_SORT_ORDER, null);
+    }
+
+    /**
+     * The sort key of a row of the list view adapter, for keyset pagination: the
+     * priority (if sorted by priority), delivery time and row ID.
+     */
+    static final class RowKey {
+        final int mPriority;
+        final long mDate;
+        final long mRowId;
+
+        RowKey(int priority, long date, long rowId) {
+            mPriority = priority;
+            mDate = date;
+            mRowId = rowId;
+        }
+
+        /**
+         * Return the key of the current row of a list cursor.
+         * @param cursor a cursor with {@link Columns#LIST_QUERY_COLUMNS}
+         * @return the key of the row
+         */
+        static RowKey fromCursor(Cursor cursor) {
+            return new RowKey(cursor.getInt(COLUMN_PRIORITY),
+                    cursor.getLong(COLUMN_DELIVERY_TIME), cursor.getLong(COLUMN_ID));
+        }
+    }
+
+    /**
+     * Build the query for a page of the list view adapter. Every combination of group
+     * and filter is served by a search of one of the indexes on the table, in the sort
+     * order, so a page is read without sorting the matching rows.
+     * @param group the group to list, or null to list all broadcasts
+     * @param filter the filter and sort order, or null to list all broadcasts by date
+     * @param after the key of the last row of the previous page, or null for the first page
+     * @param limit the maximum number of rows to return
+     * @param selectionArgs the list to add the query arguments to
+     * @return the SQL query
+     */
+    static String buildListQuery(GroupKey group, CellBroadcastFilter filter, RowKey after,
+            int limit, ArrayList<String> selectionArgs) {
+        StringBuilder selection = buildSelection(group, filter, selectionArgs);
+        // All the broadcasts of a group have the same category, so the same priority.
+        boolean byPriority = (filter != null && filter.mSortByPriority && group == null);
+        if (after != null) {
+            if (selection.length() != 0) {
+                selection.append(" AND ");
+            }
+            // the leading "<=" term lets the index range scan start at the key
+            if (byPriority) {
+                selection.append(Columns.PRIORITY).append("<=? AND (")
+                        .append(Columns.PRIORITY).append("<? OR (");
+                selectionArgs.add(Integer.toString(after.mPriority));
+                selectionArgs.add(Integer.toString(after.mPriority));
+            }
+            selection.append(Columns.DELIVERY_TIME).append("<=? AND (")
+                    .append(Columns.DELIVERY_TIME).append("<? OR ")
+                    .append(Columns._ID).append("<?)");
+            if (byPriority) {
+                selection.append("))");
+            }
+            String dateString = Long.toString(after.mDate);
+            selectionArgs.add(dateString);
+            selectionArgs.add(dateString);
+            selectionArgs.add(Long.toString(after.mRowId));
+        }
+        return SQLiteQueryBuilder.buildQueryString(false, TABLE_NAME,
+                Columns.LIST_QUERY_COLUMNS, (selection.length() != 0) ? selection.toString() : null,
+                null, null, byPriority ? PRIORITY_SORT_ORDER : LIST_SORT_ORDER,
+                Integer.toString(limit));
+    }
+
+    /**
+     * Returns a Cursor for the first page of the list view adapter. The query is
+     * served by an index (see {@link #buildListQuery}), so the time to load a page
+     * doesn't depend on the size of the table.
+     * @param db an open readable database
+     * @param group the group to list, or null to list all broadcasts
+     * @param filter the filter and sort order, or null to list all broadcasts by date
+     * @param limit the maximum number of rows to return
+     * @return the cursor for the first page of the list view adapter
+     */
+    static Cursor getCursor(SQLiteDatabase db, GroupKey group, CellBroadcastFilter filter,
+            int limit) {
+        ArrayList<String> args = new ArrayList<String>();
+        String sql = buildListQuery(group, filter, null, limit, args);
+        return db.rawQuery(sql, args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Returns a Cursor for the page of the list view adapter following the row with
+     * the specified key, using keyset pagination.
+     * @param db an open readable database
+     * @param group the group to list, or null to list all broadcasts
+     * @param filter the filter and sort order, or null to list all broadcasts by date
+     * @param after the key of the last row of the previous page
+     * @param limit the maximum number of rows to return
+     * @return the cursor for the next page of the list view adapter
+     */
+    static Cursor getCursorAfter(SQLiteDatabase db, GroupKey group, CellBroadcastFilter filter,
+            RowKey after, int limit) {
+        ArrayList<String> args = new ArrayList<String>();
+        String sql = buildListQuery(group, filter, after, limit, args);
+        return db.rawQuery(sql, args.toArray(new String[args.size()]));
+    }
+
+    /** SQLite's default limit on the number of arguments of a statement. */
+    private static final int MAX_SQL_ARGS = 999;
+
+    /**
+     * Build the selection for a group and filter, if any.
+     * @param group the group, or null
+     * @param filter the filter, or null
+     * @param selectionArgs the list to add the selection arguments to
+     * @return the selection, possibly empty
+     */
+    private static StringBuilder buildSelection(GroupKey group, CellBroadcastFilter filter,
+            ArrayList<String> selectionArgs) {
+        StringBuilder selection = new StringBuilder();
+        if (group != null) {
+            selection.append(group.getSelection());
+            group.addSelectionArgs(selectionArgs);
+        }
+        if (filter != null) {
+            filter.appendSelection(selection, selectionArgs);
+        }
+        return selection;
+    }
+
+    /**
+     * Return the delivery time of the oldest broadcast in a list.
+     * @param db an open readable database
+     * @param group the group to list, or null to list all broadcasts
+     * @param filter the filter, or null to list all broadcasts
+     * @return the oldest delivery time, or -1 if the list is empty
+     */
+    static long getOldestDeliveryTime(SQLiteDatabase db, GroupKey group,
+            CellBroadcastFilter filter) {
+        ArrayList<String> args = new ArrayList<String>();
+        StringBuilder selection = buildSelection(group, filter, args);
+        Cursor cursor = db.query(TABLE_NAME, new String[] {"min(" + Columns.DELIVERY_TIME + ")"},
+                (selection.length() != 0) ? selection.toString() : null,
+                args.toArray(new String[args.size()]), null, null, null);
+        try {
+            return (cursor.moveToFirst() && !cursor.isNull(0)) ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Count the broadcasts of a list in consecutive ranges of delivery time. Each
+     * range is counted by an index range scan, in a single statement for all the
+     * ranges (or a few statements, for very many ranges).
+     * @param db an open readable database
+     * @param group the group to list, or null to list all broadcasts
+     * @param filter the filter, or null to list all broadcasts
+     * @param starts the start time of each range, in descending order; each range
+     *        ends at the start of the previous range, and the first is unbounded
+     * @return the number of broadcasts in each range
+     */
+    static int[] countByDeliveryTime(SQLiteDatabase db, GroupKey group,
+            CellBroadcastFilter filter, long[] starts) {
+        ArrayList<String> filterArgs = new ArrayList<String>();
+        String filterSelection = buildSelection(group, filter, filterArgs).toString();
+        int rangesPerStatement = Math.max(1, MAX_SQL_ARGS / (filterArgs.size() + 2));
+        int[] counts = new int[starts.length];
+
+        for (int first = 0; first < starts.length; first += rangesPerStatement) {
+            int end = Math.min(starts.length, first + rangesPerStatement);
+            StringBuilder sql = new StringBuilder();
+            ArrayList<String> args = new ArrayList<String>();
+            for (int i = first; i < end; i++) {
+                if (i != first) {
+                    sql.append(" UNION ALL ");
+                }
+                sql.append("SELECT ").append(i).append(", count(*) FROM ").append(TABLE_NAME)
+                        .append(" WHERE ");
+                if (filterSelection.length() != 0) {
+                    sql.append(filterSelection).append(" AND ");
+                    args.addAll(filterArgs);
+                }
+                sql.append(Columns.DELIVERY_TIME).append(">=?");
+                args.add(Long.toString(starts[i]));
+                if (i != 0) {
+                    sql.append(" AND ").append(Columns.DELIVERY_TIME).append("<?");
+                    args.add(Long.toString(starts[i - 1]));
+                }
+            }
+            Cursor cursor = db.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+            try {
+                while (cursor.moveToNext()) {
+                    counts[cursor.getInt(0)] = cursor.getInt(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return counts;
+    }
+
+    /** Columns identifying a group of broadcasts, in the order of {@link #INDEX_GROUP}. */
+    private static final String GROUP_BY_COLUMNS = Columns.MESSAGE_FORMAT + ", "
+            + Columns.MESSAGE_IDENTIFIER + ", " + Columns.GEOGRAPHICAL_SCOPE + ", "
+            + Columns.MESSAGE_CODE;
+
+    /**
+     * Build the query for the grouped list view.
+     * @param filter the filter and sort order, or null to list all groups by date
+     * @param selectionArgs the list to add the query arguments to
+     * @return the SQL query
+     */
+    static String buildGroupQuery(CellBroadcastFilter filter, ArrayList<String> selectionArgs) {
+        StringBuilder sb = new StringBuilder("SELECT ");
+        for (String column : Columns.LIST_QUERY_COLUMNS) {
+            sb.append(TABLE_NAME).append('.').append(column).append(", ");
+        }
+        // Without a filter, the GROUP BY is served by INDEX_GROUP. The row with
+        // the highest ID is the most recently received broadcast of the group.
+        sb.append("g.").append(GROUP_COUNT).append(", g.").append(GROUP_UNREAD_COUNT)
+                .append(" FROM ").append(TABLE_NAME).append(" JOIN (SELECT max(")
+                .append(Columns._ID).append(") AS latest_id, count(*) AS ").append(GROUP_COUNT)
+                .append(", sum(").append(Columns.MESSAGE_READ).append("=0) AS ")
+                .append(GROUP_UNREAD_COUNT).append(" FROM ").append(TABLE_NAME);
+        if (filter != null) {
+            StringBuilder selection = new StringBuilder();
+            filter.appendSelection(selection, selectionArgs);
+            if (selection.length() != 0) {
+                sb.append(" WHERE ").append(selection);
+            }
+        }
+        sb.append(" GROUP BY ").append(GROUP_BY_COLUMNS).append(") AS g ON ")
+                .append(TABLE_NAME).append('.').append(Columns._ID).append("=g.latest_id")
+                .append(" ORDER BY ");
+        if (filter != null && filter.mSortByPriority) {
+            sb.append(TABLE_NAME).append('.').append(Columns.PRIORITY).append(" DESC, ");
+        }
+        sb.append(TABLE_NAME).append('.').append(Columns.DELIVERY_TIME).append(" DESC, ")
+                .append(TABLE_NAME).append('.').append(Columns._ID).append(" DESC");
+        return sb.toString();
+    }
+
+    /**
+     * Returns a Cursor with one row per group of broadcasts: the columns of the most
+     * recent broadcast in the group ({@link Columns#LIST_QUERY_COLUMNS}), followed by
+     * {@link #GROUP_COUNT} and {@link #GROUP_UNREAD_COUNT}, in reverse chronological
+     * order of the most recent broadcasts (or by priority first).
+     * @param db an open readable database
+     * @param filter the filter and sort order, or null to list all groups by date
+     * @return the cursor for the grouped list view
+     */
+    static Cursor getGroupCursor(SQLiteDatabase db, CellBroadcastFilter filter) {
+        ArrayList<String> args = new ArrayList<String>();
+        String sql = buildGroupQuery(filter, args);
+        return db.rawQuery(sql, args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Return whether a list cursor is a group cursor from {@link #getGroupCursor}.
+     * @param cursor a list cursor
+     * @return true if the cursor has the group columns
+     */
+    static boolean isGroupCursor(Cursor cursor) {
+        return cursor.getColumnCount() > COLUMN_GROUP_UNREAD_COUNT;
+    }
+
+    /**
+     * Identifies a broadcast and its updates: the message format and identifier,
+     * and the serial number without its update number, i.e. the geographical
+     * scope and message code (which are null for CDMA broadcasts).
+     */
+    static final class GroupKey {
+        final int mFormat;
+        final int mMessageIdentifier;
+        final Integer mGeographicalScope;
+        final Integer mMessageCode;
+
+        private GroupKey(int format, int messageId, Integer geoScope, Integer messageCode) {
+            mFormat = format;
+            mMessageIdentifier = messageId;
+            mGeographicalScope = geoScope;
+            mMessageCode = messageCode;
+        }
+
+        /**
+         * Return the group of the current row of a list cursor.
+         * @param cursor a cursor with {@link Columns#LIST_QUERY_COLUMNS}
+         * @return the group key
+         */
+        static GroupKey fromCursor(Cursor cursor) {
+            return new GroupKey(cursor.getInt(COLUMN_FORMAT),
+                    cursor.getInt(COLUMN_MESSAGE_IDENTIFIER),
+                    cursor.isNull(COLUMN_GEOGRAPHICAL_SCOPE) ? null
+                            : cursor.getInt(COLUMN_GEOGRAPHICAL_SCOPE),
+                    cursor.isNull(COLUMN_MESSAGE_CODE) ? null
+                            : cursor.getInt(COLUMN_MESSAGE_CODE));
+        }
+
+        /** Return the selection for the rows of this group, using INDEX_GROUP. */
+        String getSelection() {
+            return Columns.MESSAGE_FORMAT + "=? AND " + Columns.MESSAGE_IDENTIFIER + "=? AND "
+                    + Columns.GEOGRAPHICAL_SCOPE
+                    + (mGeographicalScope != null ? "=?" : " IS NULL") + " AND "
+                    + Columns.MESSAGE_CODE + (mMessageCode != null ? "=?" : " IS NULL");
+        }
+
+        /**
+         * Add the arguments for {@link #getSelection}.
+         * @param selectionArgs the list to add the arguments to
+         */
+        void addSelectionArgs(ArrayList<String> selectionArgs) {
+            selectionArgs.add(Integer.toString(mFormat));
+            selectionArgs.add(Integer.toString(mMessageIdentifier));
+            if (mGeographicalScope != null) {
+                selectionArgs.add(mGeographicalScope.toString());
+            }
+            if (mMessageCode != null) {
+                selectionArgs.add(mMessageCode.toString());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "GroupKey{format=" + mFormat + " id=" + mMessageIdentifier
+                    + " geoScope=" + mGeographicalScope + " code=" + mMessageCode + '}';
+        }
+    }
+
+    /**
+     * Returns a Cursor for the complete message with the specified row ID, e.g. to
+     * read the full message body of a row in the list view.
+     * @param db an open readable database
+     * @param rowId the row ID of the message
+     * @return the cursor, with {@link Columns#QUERY_COLUMNS}, for at most one row
+     */
+    static Cursor getMessageCursor(SQLiteDatabase db, long rowId) {
         return db.query(false, TABLE_NAME, Columns.QUERY_COLUMNS,
-                null, null, null, null, Columns.DELIVERY_TIME + " DESC", null);
+                Columns._ID + "=?", new String[] {Long.toString(rowId)},
+                null, null, null, null);
+    }
+
+    /**
+     * Delete broadcasts by row ID, in a single transaction.
+     * @param db an open writable database
+     * @param rowIds the row IDs of the broadcasts to delete
+     * @return the number of rows deleted
+     */
+    static int deleteBroadcasts(SQLiteDatabase db, long[] rowIds) {
+        return executeForRowIds(db, "DELETE FROM " + TABLE_NAME + " WHERE ", rowIds);
+    }
+
+    /**
+     * Mark broadcasts as read by row ID, in a single transaction.
+     * @param db an open writable database
+     * @param rowIds the row IDs of the broadcasts to mark read
+     * @return the number of rows changed (excluding rows that were already read)
+     */
+    static int markBroadcastsRead(SQLiteDatabase db, long[] rowIds) {
+        return executeForRowIds(db, "UPDATE " + TABLE_NAME + " SET " + Columns.MESSAGE_READ
+                + "=1 WHERE " + Columns.MESSAGE_READ + "=0 AND ", rowIds);
+    }
+
+    /**
+     * Execute an update or delete statement for a set of rows, as one statement per
+     * chunk of {@link #MAX_SQL_ARGS} row IDs (plus one for the remainder), all in a
+     * single transaction.
+     * @param db an open writable database
+     * @param sqlPrefix the statement, up to the "_id IN (...)" selection
+     * @param rowIds the row IDs to select
+     * @return the total number of rows changed
+     */
+    private static int executeForRowIds(SQLiteDatabase db, String sqlPrefix, long[] rowIds) {
+        int rowCount = 0;
+        SQLiteStatement chunkStatement = null;
+        db.beginTransaction();
+        try {
+            for (int start = 0; start < rowIds.length; start += MAX_SQL_ARGS) {
+                int chunkSize = Math.min(MAX_SQL_ARGS, rowIds.length - start);
+                SQLiteStatement statement;
+                if (chunkSize == MAX_SQL_ARGS && chunkStatement != null) {
+                    statement = chunkStatement;
+                } else {
+                    statement = db.compileStatement(buildInStatement(sqlPrefix, chunkSize));
+                }
+                try {
+                    for (int i = 0; i < chunkSize; i++) {
+                        statement.bindLong(i + 1, rowIds[start + i]);
+                    }
+                    rowCount += statement.executeUpdateDelete();
+                } finally {
+                    if (chunkSize == MAX_SQL_ARGS) {
+                        // reused for the next full chunk
+                        chunkStatement = statement;
+                        statement.clearBindings();
+                    } else {
+                        statement.close();
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (chunkStatement != null) {
+                chunkStatement.close();
+            }
+        }
+        return rowCount;
+    }
+
+    private static String buildInStatement(String sqlPrefix, int argCount) {
+        StringBuilder sql = new StringBuilder(sqlPrefix.length() + argCount * 2 + 16);
+        sql.append(sqlPrefix).append(Columns._ID).append(" IN (");
+        for (int i = 0; i < argCount; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')').toString();
     }
-}
\ No newline at end of file
+}
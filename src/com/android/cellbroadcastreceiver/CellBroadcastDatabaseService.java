@@ -19,12 +19,16 @@ package com.android.cellbroadcastreceiver;
 import android.app.IntentService;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
 /**
  * Service to update the SQLite database to add a new broadcast message,
- * or to delete one or all previously received broadcasts.
+ * to delete one, several or all previously received broadcasts, or to mark
+ * broadcasts read.
  */
 public class CellBroadcastDatabaseService extends IntentService {
     private static final String TAG = "CellBroadcastDatabaseService";
@@ -38,22 +42,35 @@ public class CellBroadcastDatabaseService extends IntentService {
     /** Action to mark a broadcast as read by the user (by row ID or delivery time extra). */
     static final String ACTION_MARK_BROADCAST_READ = "ACTION_MARK_BROADCAST_READ";
 
+    /** Action to delete several broadcasts (row IDs passed as long array extra). */
+    static final String ACTION_DELETE_BROADCASTS = "ACTION_DELETE_BROADCASTS";
+
+    /** Action to mark several broadcasts as read (row IDs passed as long array extra). */
+    static final String ACTION_MARK_BROADCASTS_READ = "ACTION_MARK_BROADCASTS_READ";
+
     /** Action to delete all broadcasts from database (no extras). */
     static final String ACTION_DELETE_ALL_BROADCASTS = "ACTION_DELETE_ALL_BROADCASTS";
 
+    /**
+     * Action to recompute the stored classification columns of all broadcasts (no extras).
+     * Started when the operator emergency ranges or the application version have changed.
+     */
+    static final String ACTION_RECLASSIFY_BROADCASTS = "ACTION_RECLASSIFY_BROADCASTS";
+
     /** Identifier for getExtra() for row ID to delete or mark read. */
     public static final String DATABASE_ROW_ID_EXTRA =
             "com.android.cellbroadcastreceiver.DATABASE_ROW_ID";
 
+    /** Identifier for getExtra() for row IDs to delete or mark read. */
+    public static final String DATABASE_ROW_IDS_EXTRA =
+            "com.android.cellbroadcastreceiver.DATABASE_ROW_IDS";
+
     /** Identifier for getExtra() for delivery time of broadcast to mark read. */
     public static final String DATABASE_DELIVERY_TIME_EXTRA =
             "com.android.cellbroadcastreceiver.DATABASE_DELIVERY_TIME";
 
     private SQLiteDatabase mBroadcastDb;
 
-    /** Callback for the active list activity when the contents change. */
-    private static CellBroadcastListActivity sActiveListActivity;
-
     public CellBroadcastDatabaseService() {
         super(TAG);     // use class name for worker thread name
     }
@@ -79,15 +96,10 @@ public class CellBroadcastDatabaseService extends IntentService {
         }
     }
 
-    static void setActiveListActivity(CellBroadcastListActivity activity) {
-        sActiveListActivity = activity;
-    }
-
     @Override
     public void onHandleIntent(Intent intent) {
         // TODO: security check to detect malicious broadcast injections
         String action = intent.getAction();
-        boolean notifyActiveListActivity = false;
         if (ACTION_INSERT_NEW_BROADCAST.equals(action)) {
             BroadcastMessage bm = intent.getParcelableExtra(
                     CellBroadcastMessage.SMS_CB_MESSAGE_EXTRA);
@@ -105,7 +117,7 @@ public class CellBroadcastDatabaseService extends IntentService {
             if (rowId == -1) {
                 Log.e(TAG, "failed to insert new broadcast into database!");
             } else {
-                notifyActiveListActivity = true;
+                CellBroadcastChangeDispatcher.notifyInserted(rowId);
             }
         } else if (ACTION_DELETE_BROADCAST.equals(action)) {
             long rowId = intent.getLongExtra(DATABASE_ROW_ID_EXTRA, -1);
@@ -118,11 +130,33 @@ public class CellBroadcastDatabaseService extends IntentService {
                     CellBroadcastDatabase.Columns._ID + "=?",
                     new String[]{Long.toString(rowId)});
             if (rowCount != 0) {
-                notifyActiveListActivity = true;
+                CellBroadcastChangeDispatcher.notifyDeleted(new long[] {rowId});
+            }
+        } else if (ACTION_DELETE_BROADCASTS.equals(action)) {
+            long[] rowIds = intent.getLongArrayExtra(DATABASE_ROW_IDS_EXTRA);
+            if (rowIds == null) {
+                Log.e(TAG, "ACTION_DELETE_BROADCASTS missing row IDs to delete");
+                return;
+            }
+            int rowCount = CellBroadcastDatabase.deleteBroadcasts(mBroadcastDb, rowIds);
+            if (DBG) Log.d(TAG, "deleted " + rowCount + " of " + rowIds.length + " broadcasts");
+            if (rowCount != 0) {
+                CellBroadcastChangeDispatcher.notifyDeleted(rowIds);
+            }
+        } else if (ACTION_MARK_BROADCASTS_READ.equals(action)) {
+            long[] rowIds = intent.getLongArrayExtra(DATABASE_ROW_IDS_EXTRA);
+            if (rowIds == null) {
+                Log.e(TAG, "ACTION_MARK_BROADCASTS_READ missing row IDs to mark read");
+                return;
+            }
+            int rowCount = CellBroadcastDatabase.markBroadcastsRead(mBroadcastDb, rowIds);
+            if (DBG) Log.d(TAG, "marked " + rowCount + " of " + rowIds.length + " read");
+            if (rowCount != 0) {
+                CellBroadcastChangeDispatcher.notifyUpdated(rowIds);
             }
         } else if (ACTION_DELETE_ALL_BROADCASTS.equals(action)) {
             mBroadcastDb.delete(CellBroadcastDatabase.TABLE_NAME, null, null);
-            notifyActiveListActivity = true;
+            CellBroadcastChangeDispatcher.notifyAllChanged();
         } else if (ACTION_MARK_BROADCAST_READ.equals(action)) {
             long rowId = intent.getLongExtra(DATABASE_ROW_ID_EXTRA, -1);
             long deliveryTime = intent.getLongExtra(DATABASE_DELIVERY_TIME_EXTRA, -1);
@@ -130,26 +164,104 @@ public class CellBroadcastDatabaseService extends IntentService {
                 Log.e(TAG, "ACTION_MARK_BROADCAST_READ missing row ID or delivery time");
                 return;
             }
-            ContentValues cv = new ContentValues(1);
-            cv.put(CellBroadcastDatabase.Columns.MESSAGE_READ, 1);
+            long[] rowIds;
             int rowCount;
-            if (rowId != -1) {
-                rowCount = mBroadcastDb.update(CellBroadcastDatabase.TABLE_NAME, cv,
-                    CellBroadcastDatabase.Columns._ID + "=?",
-                    new String[]{Long.toString(rowId)});
-            } else {
-                rowCount = mBroadcastDb.update(CellBroadcastDatabase.TABLE_NAME, cv,
-                    CellBroadcastDatabase.Columns.DELIVERY_TIME + "=?",
-                    new String[]{Long.toString(deliveryTime)});
+            // one transaction, so that rows marked read in between can't be reported
+            mBroadcastDb.beginTransaction();
+            try {
+                if (rowId != -1) {
+                    rowIds = new long[] {rowId};
+                } else {
+                    // find the affected rows so that listeners can update incrementally
+                    rowIds = queryUnreadRowIdsByDeliveryTime(deliveryTime);
+                }
+                rowCount = CellBroadcastDatabase.markBroadcastsRead(mBroadcastDb, rowIds);
+                mBroadcastDb.setTransactionSuccessful();
+            } finally {
+                mBroadcastDb.endTransaction();
             }
             if (rowCount != 0) {
-                notifyActiveListActivity = true;
+                CellBroadcastChangeDispatcher.notifyUpdated(rowIds);
+            }
+        } else if (ACTION_RECLASSIFY_BROADCASTS.equals(action)) {
+            if (reclassifyBroadcasts()) {
+                CellBroadcastChangeDispatcher.notifyAllChanged();
             }
         } else {
             Log.e(TAG, "ignoring unexpected Intent with action " + action);
         }
-        if (notifyActiveListActivity && sActiveListActivity != null) {
-            sActiveListActivity.databaseContentChanged();
+    }
+
+    /**
+     * Return the row IDs of the unread broadcasts with the specified delivery time.
+     * @param deliveryTime the delivery time of the broadcasts
+     * @return the row IDs (may be empty)
+     */
+    private long[] queryUnreadRowIdsByDeliveryTime(long deliveryTime) {
+        Cursor cursor = mBroadcastDb.query(CellBroadcastDatabase.TABLE_NAME,
+                new String[] {CellBroadcastDatabase.Columns._ID},
+                CellBroadcastDatabase.Columns.DELIVERY_TIME + "=? AND "
+                        + CellBroadcastDatabase.Columns.MESSAGE_READ + "=0",
+                new String[] {Long.toString(deliveryTime)}, null, null, null);
+        try {
+            long[] rowIds = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                rowIds[i] = cursor.getLong(0);
+            }
+            return rowIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Recompute the classification columns of every stored broadcast. Classification
+     * depends only on the message format and identifier, so each distinct pair is
+     * classified once and applied with a single update.
+     * @return true if any row was changed; false otherwise
+     */
+    private boolean reclassifyBroadcasts() {
+        String stamp = CellBroadcastClassifier.getClassificationStamp(this);
+        int rowCount = 0;
+        Cursor cursor = mBroadcastDb.query(true, CellBroadcastDatabase.TABLE_NAME,
+                new String[] {
+                        CellBroadcastDatabase.Columns.MESSAGE_FORMAT,
+                        CellBroadcastDatabase.Columns.MESSAGE_IDENTIFIER
+                }, null, null, null, null, null, null);
+        mBroadcastDb.beginTransaction();
+        try {
+            ContentValues cv = new ContentValues(4);
+            while (cursor.moveToNext()) {
+                int format = cursor.getInt(0);
+                int messageId = cursor.getInt(1);
+                int flags = CellBroadcastClassifier.computeClassFlags(format, messageId);
+                int category = CellBroadcastClassifier.computeCategory(format, messageId, flags);
+                int priority = CellBroadcastClassifier.getPriority(category);
+                int categoryGroup = CellBroadcastFilter.getCategoryGroup(category);
+                cv.put(CellBroadcastDatabase.Columns.CLASS_FLAGS, flags);
+                cv.put(CellBroadcastDatabase.Columns.CATEGORY, category);
+                cv.put(CellBroadcastDatabase.Columns.PRIORITY, priority);
+                cv.put(CellBroadcastDatabase.Columns.CATEGORY_GROUP, categoryGroup);
+                rowCount += mBroadcastDb.update(CellBroadcastDatabase.TABLE_NAME, cv,
+                        CellBroadcastDatabase.Columns.MESSAGE_FORMAT + "=? AND "
+                        + CellBroadcastDatabase.Columns.MESSAGE_IDENTIFIER + "=? AND ("
+                        + CellBroadcastDatabase.Columns.CLASS_FLAGS + " IS NOT ? OR "
+                        + CellBroadcastDatabase.Columns.CATEGORY + " IS NOT ? OR "
+                        + CellBroadcastDatabase.Columns.PRIORITY + " IS NOT ? OR "
+                        + CellBroadcastDatabase.Columns.CATEGORY_GROUP + " IS NOT ?)",
+                        new String[] {
+                                Integer.toString(format), Integer.toString(messageId),
+                                Integer.toString(flags), Integer.toString(category),
+                                Integer.toString(priority), Integer.toString(categoryGroup)
+                        });
+            }
+            mBroadcastDb.setTransactionSuccessful();
+        } finally {
+            mBroadcastDb.endTransaction();
+            cursor.close();
         }
+        CellBroadcastClassifier.setClassificationStamp(this, stamp);
+        if (DBG) Log.d(TAG, "reclassified " + rowCount + " broadcasts");
+        return rowCount != 0;
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+
+/**
+ * Filter and sort order for the broadcast history in {@link CellBroadcastListActivity}.
+ * Every criterion maps to a column with its own index (see
+ * {@link CellBroadcastDatabase.DatabaseHelper}), so each combination is answered
+ * by an index search rather than by filtering rows in the adapter.
+ */
+final class CellBroadcastFilter {
+
+    /** Value of the severity, urgency and certainty criteria to match any value. */
+    static final int ANY = -1;
+
+    /* Category filters, in the order of R.array.filter_category_entries. */
+    static final int CATEGORIES_ALL             = 0;
+    static final int CATEGORIES_PRESIDENTIAL    = 1;
+    static final int CATEGORIES_EXTREME         = 2;
+    static final int CATEGORIES_SEVERE          = 3;
+    static final int CATEGORIES_AMBER           = 4;
+    static final int CATEGORIES_TEST            = 5;
+    static final int CATEGORIES_ETWS            = 6;
+    static final int CATEGORIES_OTHER           = 7;
+    static final int CATEGORIES_AREA_INFO       = 8;
+
+    /** The categories matched by each category filter (null for all). */
+    private static final int[][] CATEGORY_FILTER_CATEGORIES = {
+            null,
+            {CellBroadcastClassifier.CATEGORY_CMAS_PRESIDENTIAL},
+            {CellBroadcastClassifier.CATEGORY_CMAS_EXTREME},
+            {CellBroadcastClassifier.CATEGORY_CMAS_SEVERE},
+            {CellBroadcastClassifier.CATEGORY_CMAS_AMBER},
+            {CellBroadcastClassifier.CATEGORY_ETWS_TEST, CellBroadcastClassifier.CATEGORY_CMAS_TEST,
+                    CellBroadcastClassifier.CATEGORY_CMAS_EXERCISE},
+            {CellBroadcastClassifier.CATEGORY_ETWS_EARTHQUAKE,
+                    CellBroadcastClassifier.CATEGORY_ETWS_TSUNAMI,
+                    CellBroadcastClassifier.CATEGORY_ETWS_EARTHQUAKE_TSUNAMI,
+                    CellBroadcastClassifier.CATEGORY_ETWS_OTHER},
+            {CellBroadcastClassifier.CATEGORY_OTHER, CellBroadcastClassifier.CATEGORY_PWS_OTHER,
+                    CellBroadcastClassifier.CATEGORY_CMAS_OPERATOR_DEFINED},
+            {CellBroadcastClassifier.CATEGORY_AREA_INFO},
+    };
+
+    /**
+     * Return the category filter matching a category, stored with each broadcast as
+     * {@link CellBroadcastDatabase.Columns#CATEGORY_GROUP}.
+     * @param category one of the CellBroadcastClassifier.CATEGORY_* constants
+     * @return one of the CATEGORIES_* constants other than CATEGORIES_ALL
+     */
+    static int getCategoryGroup(int category) {
+        for (int group = CATEGORIES_ALL + 1; group < CATEGORY_FILTER_CATEGORIES.length;
+                group++) {
+            for (int groupCategory : CATEGORY_FILTER_CATEGORIES[group]) {
+                if (groupCategory == category) {
+                    return group;
+                }
+            }
+        }
+        return CATEGORIES_OTHER;
+    }
+
+    /* Preference keys. */
+    private static final String KEY_CATEGORIES = "filter_categories";
+    private static final String KEY_SEVERITY = "filter_severity";
+    private static final String KEY_URGENCY = "filter_urgency";
+    private static final String KEY_CERTAINTY = "filter_certainty";
+    private static final String KEY_UNREAD_ONLY = "filter_unread_only";
+    private static final String KEY_SORT_BY_PRIORITY = "sort_by_priority";
+
+    /** One of the CATEGORIES_* constants. */
+    int mCategories = CATEGORIES_ALL;
+
+    /** CDMA severity ordinal to match, or {@link #ANY}. */
+    int mSeverity = ANY;
+
+    /** CDMA urgency ordinal to match, or {@link #ANY}. */
+    int mUrgency = ANY;
+
+    /** CDMA certainty ordinal to match, or {@link #ANY}. */
+    int mCertainty = ANY;
+
+    /** True to list only unread broadcasts. */
+    boolean mUnreadOnly;
+
+    /** True to sort by priority (see {@link CellBroadcastClassifier#getPriority}), then date. */
+    boolean mSortByPriority;
+
+    CellBroadcastFilter() {
+    }
+
+    CellBroadcastFilter(CellBroadcastFilter other) {
+        mCategories = other.mCategories;
+        mSeverity = other.mSeverity;
+        mUrgency = other.mUrgency;
+        mCertainty = other.mCertainty;
+        mUnreadOnly = other.mUnreadOnly;
+        mSortByPriority = other.mSortByPriority;
+    }
+
+    /**
+     * Read a filter saved by {@link #save}.
+     * @param prefs the shared preferences to read from
+     * @return the saved filter, or an empty filter
+     */
+    static CellBroadcastFilter load(SharedPreferences prefs) {
+        CellBroadcastFilter filter = new CellBroadcastFilter();
+        filter.mCategories = prefs.getInt(KEY_CATEGORIES, CATEGORIES_ALL);
+        if (filter.mCategories < 0 || filter.mCategories >= CATEGORY_FILTER_CATEGORIES.length) {
+            filter.mCategories = CATEGORIES_ALL;
+        }
+        filter.mSeverity = prefs.getInt(KEY_SEVERITY, ANY);
+        filter.mUrgency = prefs.getInt(KEY_URGENCY, ANY);
+        filter.mCertainty = prefs.getInt(KEY_CERTAINTY, ANY);
+        filter.mUnreadOnly = prefs.getBoolean(KEY_UNREAD_ONLY, false);
+        filter.mSortByPriority = prefs.getBoolean(KEY_SORT_BY_PRIORITY, false);
+        return filter;
+    }
+
+    /**
+     * Save this filter to be restored by {@link #load}.
+     * @param prefs the shared preferences to write to
+     */
+    void save(SharedPreferences prefs) {
+        prefs.edit()
+                .putInt(KEY_CATEGORIES, mCategories)
+                .putInt(KEY_SEVERITY, mSeverity)
+                .putInt(KEY_URGENCY, mUrgency)
+                .putInt(KEY_CERTAINTY, mCertainty)
+                .putBoolean(KEY_UNREAD_ONLY, mUnreadOnly)
+                .putBoolean(KEY_SORT_BY_PRIORITY, mSortByPriority)
+                .apply();
+    }
+
+    /** Return whether any broadcasts are filtered out (regardless of sort order). */
+    boolean isFiltering() {
+        return mCategories != CATEGORIES_ALL || mSeverity != ANY || mUrgency != ANY
+                || mCertainty != ANY || mUnreadOnly;
+    }
+
+    /** Clear the filter criteria, keeping the sort order. */
+    void clear() {
+        mCategories = CATEGORIES_ALL;
+        mSeverity = ANY;
+        mUrgency = ANY;
+        mCertainty = ANY;
+        mUnreadOnly = false;
+    }
+
+    /**
+     * Append the selection for this filter, if any.
+     * @param selection the selection to append to, with " AND " if not empty
+     * @param selectionArgs the selection arguments to append to
+     */
+    void appendSelection(StringBuilder selection, ArrayList<String> selectionArgs) {
+        if (mCategories != CATEGORIES_ALL) {
+            // a single term on the stored group, so that the index also gives the order
+            appendAnd(selection).append(CellBroadcastDatabase.Columns.CATEGORY_GROUP)
+                    .append("=?");
+            selectionArgs.add(Integer.toString(mCategories));
+        }
+        appendEquals(selection, selectionArgs, CellBroadcastDatabase.Columns.SEVERITY, mSeverity);
+        appendEquals(selection, selectionArgs, CellBroadcastDatabase.Columns.URGENCY, mUrgency);
+        appendEquals(selection, selectionArgs, CellBroadcastDatabase.Columns.CERTAINTY,
+                mCertainty);
+        if (mUnreadOnly) {
+            appendAnd(selection).append(CellBroadcastDatabase.Columns.MESSAGE_READ).append("=0");
+        }
+    }
+
+    private static StringBuilder appendAnd(StringBuilder selection) {
+        if (selection.length() != 0) {
+            selection.append(" AND ");
+        }
+        return selection;
+    }
+
+    private static void appendEquals(StringBuilder selection, ArrayList<String> selectionArgs,
+            String column, int value) {
+        if (value != ANY) {
+            appendAnd(selection).append(column).append("=?");
+            selectionArgs.add(Integer.toString(value));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CellBroadcastFilter{categories=" + mCategories + " severity=" + mSeverity
+                + " urgency=" + mUrgency + " certainty=" + mCertainty
+                + " unreadOnly=" + mUnreadOnly + " sortByPriority=" + mSortByPriority + '}';
+    }
+}
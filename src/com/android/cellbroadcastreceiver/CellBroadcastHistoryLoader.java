@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Loads the broadcast history for {@link CellBroadcastListActivity} in pages on a
+ * background thread. The first load returns a single page, so the first screen is
+ * shown in a bounded time regardless of the size of the table. Further pages are
+ * loaded with keyset pagination on the sort key (see {@link CellBroadcastDatabase.RowKey})
+ * when {@link #loadNextPage} is called,
+ * and returned as a new cursor that shares the previously loaded pages.
+ *
+ * When the content changes, the history is reloaded with at least as many rows as
+ * were previously loaded, so the current scroll position remains valid. Each result
+ * carries a snapshot of the row IDs and {@link #getRowVersion row versions}, so
+ * the list can find the rows that actually changed without moving the cursor.
+ *
+ * The loader lists either all broadcasts, the broadcasts of a single group (see
+ * {@link CellBroadcastDatabase.GroupKey}), or one row per group, optionally filtered
+ * and sorted by a {@link CellBroadcastFilter}. The grouped list is short, so it is
+ * loaded as a single page.
+ *
+ * Lists sorted by date also carry their {@link CellBroadcastSections} for the fast
+ * scroller. Appending rows keeps the sections, and after {@link #onRowsInserted}
+ * only today's section is recounted.
+ */
+public class CellBroadcastHistoryLoader extends AsyncTaskLoader<Cursor> {
+    private static final String TAG = "CellBroadcastHistoryLoader";
+
+    /** Number of rows to load per page. */
+    static final int PAGE_SIZE = 50;
+
+    private final CellBroadcastDatabase.DatabaseHelper mOpenHelper;
+
+    /** True to load one row per group of broadcasts. */
+    private final boolean mGrouped;
+
+    /** The group to list, or null to list all broadcasts (or groups). */
+    private final CellBroadcastDatabase.GroupKey mGroup;
+
+    /** The filter and sort order, or null to list all broadcasts by date. */
+    private final CellBroadcastFilter mFilter;
+
+    /** The most recently delivered result. */
+    private HistoryCursor mCursor;
+
+    /** True if the next load should append a page to the current result. */
+    private boolean mAppendPage;
+
+    /** The result to append a page to, captured on the main thread for the worker. */
+    private volatile HistoryCursor mAppendTo;
+
+    /** Minimum number of rows for a full reload, captured for the worker. */
+    private volatile int mReloadRowCount;
+
+    /** Number of rows to append by the next load, see {@link #loadRowsUpTo}. */
+    private int mAppendRowCount;
+
+    /** Number of rows to append, captured for the worker. */
+    private volatile int mAppendLimit;
+
+    /** True if the pending content change only inserted rows. */
+    private boolean mInsertOnly;
+
+    /** True if the content changed other than by inserting rows since the last load. */
+    private boolean mSectionsStale;
+
+    /** Sections to update instead of recounting them, captured for the worker. */
+    private volatile CellBroadcastSections mPreviousSections;
+
+    /** True while a load is in progress. */
+    private boolean mLoading;
+
+    public CellBroadcastHistoryLoader(Context context) {
+        this(context, false, null, null);
+    }
+
+    /**
+     * Create a loader for the grouped history, or for the broadcasts of a group.
+     * @param context the Context
+     * @param grouped true to load one row per group (the group is ignored)
+     * @param group the group to list, or null to list all broadcasts
+     * @param filter the filter and sort order (not modified), or null for all broadcasts
+     */
+    public CellBroadcastHistoryLoader(Context context, boolean grouped,
+            CellBroadcastDatabase.GroupKey group, CellBroadcastFilter filter) {
+        super(context);
+        mOpenHelper = CellBroadcastDatabase.getReadHelper(context);
+        mGrouped = grouped;
+        mGroup = grouped ? null : group;
+        mFilter = filter;
+    }
+
+    /**
+     * Return the version stamp of the current row of a list cursor. Rows with the
+     * same ID and version are displayed identically, so needn't be rebound.
+     * @param cursor a cursor with {@link CellBroadcastDatabase.Columns#LIST_QUERY_COLUMNS}
+     * @return the version of the row: its category and read state
+     */
+    static int getRowVersion(Cursor cursor) {
+        int version = (cursor.getInt(CellBroadcastDatabase.COLUMN_CATEGORY) << 1)
+                | (cursor.getInt(CellBroadcastDatabase.COLUMN_MESSAGE_READ) != 0 ? 1 : 0);
+        if (CellBroadcastDatabase.isGroupCursor(cursor)) {
+            // 13 bits for each count, so colliding versions need implausibly large groups
+            version = (version << 26)
+                    | ((cursor.getInt(CellBroadcastDatabase.COLUMN_GROUP_COUNT) & 0x1fff) << 13)
+                    | (cursor.getInt(CellBroadcastDatabase.COLUMN_GROUP_UNREAD_COUNT) & 0x1fff);
+        }
+        return version;
+    }
+
+    /**
+     * Return the version that a broadcast row will have once it has been read.
+     * @param version the row version of a broadcast (not a group)
+     * @return the version of the row with its read state set
+     */
+    static int getReadRowVersion(int version) {
+        return version | 1;
+    }
+
+    /**
+     * Start loading the next page of the history, unless a load is already in
+     * progress or the last page has been loaded. Must be called on the main thread.
+     */
+    public void loadNextPage() {
+        if (mLoading || mCursor == null || !mCursor.hasMorePages() || !isStarted()) {
+            return;
+        }
+        mAppendPage = true;
+        mAppendRowCount = PAGE_SIZE;
+        forceLoad();
+    }
+
+    /**
+     * Start loading rows until at least the specified number of rows are loaded
+     * (or there are no more), unless a load is already in progress. Used to scroll
+     * to a section beyond the loaded rows. Must be called on the main thread.
+     * @param count the number of rows to load
+     * @return true if a load is in progress; false if no more rows can be loaded
+     */
+    public boolean loadRowsUpTo(int count) {
+        if (mLoading) {
+            return true;
+        }
+        if (mCursor == null || !mCursor.hasMorePages() || !isStarted()
+                || count <= mCursor.getCount()) {
+            return false;
+        }
+        mAppendPage = true;
+        mAppendRowCount = Math.max(PAGE_SIZE, count - mCursor.getCount());
+        forceLoad();
+        return true;
+    }
+
+    /**
+     * Reload the history after broadcasts were inserted (and not otherwise changed).
+     * New broadcasts are always delivered today, so only today's section is recounted.
+     * Must be called on the main thread.
+     */
+    public void onRowsInserted() {
+        mInsertOnly = true;
+        onContentChanged();
+    }
+
+    /**
+     * Return whether a database change may change the current result. Updates (e.g.
+     * marking broadcasts read) don't move rows between pages or date sections, so in an
+     * unfiltered list by date, updates of rows that aren't loaded change nothing.
+     * Must be called on the main thread.
+     * @param event the coalesced changes
+     * @return false if the result needn't be reloaded
+     */
+    public boolean isAffectedBy(CellBroadcastChangeDispatcher.ChangeEvent event) {
+        if (mCursor == null || mCursor.isClosed() || event.mAllRowsChanged
+                || event.mInsertedRowIds.length != 0 || event.mDeletedRowIds.length != 0
+                || mGrouped || (mFilter != null && mFilter.isFiltering())) {
+            return true;
+        }
+        for (long rowId : event.mUpdatedRowIds) {
+            if (mCursor.findRow(rowId) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void onContentChanged() {
+        mAppendPage = false;
+        if (!mInsertOnly) {
+            mSectionsStale = true;
+        }
+        mInsertOnly = false;
+        super.onContentChanged();
+    }
+
+    @Override
+    protected void onForceLoad() {
+        mAppendTo = mAppendPage ? mCursor : null;
+        mAppendLimit = mAppendRowCount;
+        mReloadRowCount = (mCursor != null) ? mCursor.getCount() : 0;
+        if (!mAppendPage) {
+            mPreviousSections = (mCursor != null && !mSectionsStale)
+                    ? mCursor.getSections() : null;
+            mSectionsStale = false;
+        }
+        mAppendPage = false;
+        mLoading = true;
+        super.onForceLoad();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        if (mGrouped) {
+            Page page = new Page(CellBroadcastDatabase.getGroupCursor(db, mFilter));
+            if (DBG) Log.d(TAG, "loaded " + page.mCount + " groups");
+            return new HistoryCursor(new Page[] {page}, false, null);
+        }
+
+        HistoryCursor appendTo = mAppendTo;
+        Page[] previousPages = (appendTo != null) ? appendTo.acquirePages() : null;
+
+        if (previousPages == null) {
+            int limit = Math.max(PAGE_SIZE, mReloadRowCount);
+            Page page = new Page(CellBroadcastDatabase.getCursor(db, mGroup, mFilter, limit));
+            if (DBG) Log.d(TAG, "loaded first " + page.mCount + " rows");
+            CellBroadcastSections sections = CellBroadcastSections.load(getContext(), db,
+                    mGroup, mFilter, mPreviousSections);
+            return new HistoryCursor(new Page[] {page}, page.mCount >= limit, sections);
+        }
+
+        int limit = mAppendLimit;
+        Page lastPage = previousPages[previousPages.length - 1];
+        Page page = new Page(CellBroadcastDatabase.getCursorAfter(db, mGroup, mFilter,
+                lastPage.mLastKey, limit));
+        if (DBG) Log.d(TAG, "loaded next page of " + page.mCount + " rows");
+        if (page.mCount == 0) {
+            page.release();
+            return new HistoryCursor(previousPages, false, appendTo.getSections());
+        }
+        Page[] pages = new Page[previousPages.length + 1];
+        System.arraycopy(previousPages, 0, pages, 0, previousPages.length);
+        pages[previousPages.length] = page;
+        return new HistoryCursor(pages, page.mCount >= limit, appendTo.getSections());
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        mLoading = false;
+        if (isReset()) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        HistoryCursor oldCursor = mCursor;
+        mCursor = (HistoryCursor) cursor;
+
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+
+        // Pages shared with the new result stay open until it is closed too.
+        if (oldCursor != null && oldCursor != cursor && !oldCursor.isClosed()) {
+            oldCursor.close();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        mLoading = false;
+        mSectionsStale = true;      // the next reload can't rely on the current sections
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mCursor != null && !mCursor.isClosed()) {
+            mCursor.close();
+        }
+        mCursor = null;
+    }
+
+    /**
+     * A page of rows, reference counted so that it can be shared by successive
+     * results of the loader. The row IDs and versions, and the key of the last row,
+     * are read on the worker thread when the page is created, so that no cursor is
+     * moved while the UI uses it.
+     */
+    private static final class Page {
+        final Cursor mCursor;
+        final int mCount;
+        final long[] mRowIds;
+        final int[] mRowVersions;
+        CellBroadcastDatabase.RowKey mLastKey;
+        private int mRefCount = 1;
+
+        Page(Cursor cursor) {
+            mCursor = cursor;
+            mCount = cursor.getCount();     // fills the cursor window on this thread
+            mRowIds = new long[mCount];
+            mRowVersions = new int[mCount];
+            while (cursor.moveToNext()) {
+                int position = cursor.getPosition();
+                mRowIds[position] = cursor.getLong(CellBroadcastDatabase.COLUMN_ID);
+                mRowVersions[position] = getRowVersion(cursor);
+            }
+            if (cursor.moveToLast()) {
+                mLastKey = CellBroadcastDatabase.RowKey.fromCursor(cursor);
+            }
+            cursor.moveToPosition(-1);
+        }
+
+        /**
+         * Add a reference to this page.
+         * @return false if the page has already been closed
+         */
+        synchronized boolean acquire() {
+            if (mRefCount == 0) {
+                return false;
+            }
+            mRefCount++;
+            return true;
+        }
+
+        synchronized void release() {
+            if (mRefCount > 0 && --mRefCount == 0) {
+                mCursor.close();
+            }
+        }
+    }
+
+    /**
+     * The view of a shared page in one result. Closing it unregisters the observers that
+     * were registered through it, and releases the page instead of closing its cursor.
+     */
+    private static final class PageCursor extends CursorWrapper {
+        private final Page mPage;
+        private final ArrayList<ContentObserver> mContentObservers =
+                new ArrayList<ContentObserver>();
+        private final ArrayList<DataSetObserver> mDataSetObservers =
+                new ArrayList<DataSetObserver>();
+        private boolean mReleased;
+
+        PageCursor(Page page) {
+            super(page.mCursor);
+            mPage = page;
+        }
+
+        @Override
+        public void registerContentObserver(ContentObserver observer) {
+            super.registerContentObserver(observer);
+            mContentObservers.add(observer);
+        }
+
+        @Override
+        public void unregisterContentObserver(ContentObserver observer) {
+            if (mContentObservers.remove(observer)) {
+                super.unregisterContentObserver(observer);
+            }
+        }
+
+        @Override
+        public void registerDataSetObserver(DataSetObserver observer) {
+            super.registerDataSetObserver(observer);
+            mDataSetObservers.add(observer);
+        }
+
+        @Override
+        public void unregisterDataSetObserver(DataSetObserver observer) {
+            if (mDataSetObservers.remove(observer)) {
+                super.unregisterDataSetObserver(observer);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            for (ContentObserver observer : mContentObservers) {
+                super.unregisterContentObserver(observer);
+            }
+            mContentObservers.clear();
+            for (DataSetObserver observer : mDataSetObservers) {
+                super.unregisterDataSetObserver(observer);
+            }
+            mDataSetObservers.clear();
+            mPage.release();
+        }
+
+        @Override
+        public void deactivate() {
+            // the page may be shared with other results, it is only released by close()
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mReleased || super.isClosed();
+        }
+    }
+
+    /**
+     * The cursor delivered to the list adapter: the concatenation of the loaded pages.
+     * Each page is wrapped in a {@link PageCursor}, so closing this cursor releases the
+     * pages and the observers of this result without closing pages shared with others.
+     */
+    static final class HistoryCursor extends MergeCursor {
+        private final Page[] mPages;
+        /** Position of the first row of each page. */
+        private final int[] mPageStarts;
+        private final boolean mHasMorePages;
+        private final CellBroadcastSections mSections;
+        private boolean mPagesReleased;
+
+        private HistoryCursor(Page[] pages, boolean hasMorePages,
+                CellBroadcastSections sections) {
+            super(getCursors(pages));
+            mPages = pages;
+            mPageStarts = new int[pages.length];
+            int start = 0;
+            for (int i = 0; i < pages.length; i++) {
+                mPageStarts[i] = start;
+                start += pages[i].mCount;
+            }
+            mHasMorePages = hasMorePages;
+            mSections = sections;
+        }
+
+        private static Cursor[] getCursors(Page[] pages) {
+            Cursor[] cursors = new Cursor[pages.length];
+            for (int i = 0; i < pages.length; i++) {
+                cursors[i] = new PageCursor(pages[i]);
+            }
+            return cursors;
+        }
+
+        /** Return whether more rows may be available after the last loaded page. */
+        boolean hasMorePages() {
+            return mHasMorePages;
+        }
+
+        /** Return the date sections of the whole list, or null if not sorted by date. */
+        CellBroadcastSections getSections() {
+            return mSections;
+        }
+
+        /** Return the index of the page containing the row at a valid position. */
+        private int getPageIndex(int position) {
+            int index = Arrays.binarySearch(mPageStarts, position);
+            if (index < 0) {
+                index = -index - 2;     // the page starting before the position
+            }
+            // skip over empty pages starting at the same position
+            while (position - mPageStarts[index] >= mPages[index].mCount) {
+                index++;
+            }
+            return index;
+        }
+
+        /**
+         * Return the row ID at a position, without moving the cursor.
+         * @param position a position between 0 and getCount() - 1
+         * @return the row ID
+         */
+        long getRowId(int position) {
+            int index = getPageIndex(position);
+            return mPages[index].mRowIds[position - mPageStarts[index]];
+        }
+
+        /**
+         * Return the version of the row at a position, without moving the cursor.
+         * @param position a position between 0 and getCount() - 1
+         * @return the row version, see {@link CellBroadcastHistoryLoader#getRowVersion}
+         */
+        int getRowVersion(int position) {
+            int index = getPageIndex(position);
+            return mPages[index].mRowVersions[position - mPageStarts[index]];
+        }
+
+        /**
+         * Return the position of the row with the specified ID.
+         * @param rowId the row ID to find
+         * @return the position of the row, or -1 if it isn't in this cursor
+         */
+        int findRow(long rowId) {
+            for (int i = 0; i < mPages.length; i++) {
+                long[] rowIds = mPages[i].mRowIds;
+                for (int j = 0; j < rowIds.length; j++) {
+                    if (rowIds[j] == rowId) {
+                        return mPageStarts[i] + j;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Add a reference to every page, for sharing with a new result.
+         * @return the pages, or null if this cursor has already been closed
+         */
+        synchronized Page[] acquirePages() {
+            if (mPagesReleased) {
+                return null;
+            }
+            for (int i = 0; i < mPages.length; i++) {
+                if (!mPages[i].acquire()) {
+                    for (int j = 0; j < i; j++) {
+                        mPages[j].release();
+                    }
+                    return null;
+                }
+            }
+            return mPages.clone();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!mPagesReleased) {
+                mPagesReleased = true;
+                // closes the page cursors, which release the pages
+                super.close();
+            }
+        }
+
+        @Override
+        public synchronized boolean isClosed() {
+            return mPagesReleased;
+        }
+    }
+}
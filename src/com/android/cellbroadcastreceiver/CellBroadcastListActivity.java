@@ -18,43 +18,98 @@ package com.android.cellbroadcastreceiver;
 
 import android.app.AlertDialog;
 import android.app.ListActivity;
-import android.app.NotificationManager;
+import android.app.LoaderManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.Loader;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.telephony.EmergencyMessage.Certainty;
+import android.telephony.EmergencyMessage.Severity;
+import android.telephony.EmergencyMessage.Urgency;
 import android.util.Log;
+import android.view.ActionMode;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.SubMenu;
 import android.view.View;
 import android.view.View.OnCreateContextMenuListener;
+import android.widget.AbsListView;
+import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
 /**
  * This activity provides a list view of received cell broadcasts.
  */
-public class CellBroadcastListActivity extends ListActivity {
+public class CellBroadcastListActivity extends ListActivity
+        implements LoaderManager.LoaderCallbacks<Cursor>,
+        CellBroadcastChangeDispatcher.Listener, CellBroadcastListAdapter.RowLoader {
     private static final String TAG = "CellBroadcastListActivity";
 
     // IDs of the main menu items.
     public static final int MENU_DELETE_ALL           = 3;
     public static final int MENU_PREFERENCES          = 4;
+    public static final int MENU_GROUP                = 5;
+    public static final int MENU_FILTER               = 6;
+    public static final int MENU_FILTER_CATEGORY      = 7;
+    public static final int MENU_FILTER_SEVERITY      = 8;
+    public static final int MENU_FILTER_URGENCY       = 9;
+    public static final int MENU_FILTER_CERTAINTY     = 10;
+    public static final int MENU_FILTER_UNREAD        = 11;
+    public static final int MENU_SORT_BY_PRIORITY     = 12;
+    public static final int MENU_CLEAR_FILTER         = 13;
 
     // IDs of the context menu items for the list of broadcasts.
     public static final int MENU_DELETE               = 0;
     public static final int MENU_VIEW                 = 1;
 
+    // IDs of the action mode menu items for the selected broadcasts.
+    public static final int MENU_DELETE_SELECTED      = 14;
+    public static final int MENU_MARK_SELECTED_READ   = 15;
+
+    /** ID of the loader for the broadcast history. */
+    private static final int LOADER_HISTORY = 0;
+
+    /** Start loading the next page when the last visible row is this close to the end. */
+    private static final int PREFETCH_DISTANCE = CellBroadcastHistoryLoader.PAGE_SIZE / 2;
+
+    /** Preference key for showing the grouped list. */
+    private static final String KEY_GROUPED_LIST = "grouped_list";
+
     private CellBroadcastListAdapter mListAdapter;
 
-    private SQLiteDatabase mBroadcastDb;
+    /** True to show one item per group of broadcasts, see CellBroadcastDatabase.GroupKey. */
+    private boolean mGroupedList;
+
+    /** The filter and sort order of the list, saved in the default shared preferences. */
+    private CellBroadcastFilter mFilter;
+
+    /** The group whose broadcasts are shown in the grouped list, or null. */
+    private CellBroadcastDatabase.GroupKey mExpandedGroup;
+
+    /** Row ID of the item of the expanded group, to scroll back to it when collapsed. */
+    private long mExpandedGroupRowId = -1;
+
+    /** True if the next load is for a different list, so must reset the scroll position. */
+    private boolean mListChanged;
+
+    /** After the list changes, the row to scroll to, or -1 to scroll to the top. */
+    private long mScrollToRowId = -1;
 
-    private Cursor mAdapterCursor;
+    /** Position of a section the fast scroller moved to before it was loaded, or -1. */
+    private int mPendingScrollPosition = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -63,46 +118,295 @@ public class CellBroadcastListActivity extends ListActivity {
 
         ListView listView = getListView();
         listView.setOnCreateContextMenuListener(mOnCreateContextMenuListener);
+        listView.setOnScrollListener(mOnScrollListener);
+        listView.setMultiChoiceModeListener(mMultiChoiceModeListener);
 
-        if (mBroadcastDb == null) {
-            CellBroadcastDatabase.DatabaseHelper helper =
-                    new CellBroadcastDatabase.DatabaseHelper(this);
-            mBroadcastDb = helper.getReadableDatabase();
-        }
-
-        if (mAdapterCursor == null) {
-            mAdapterCursor = CellBroadcastDatabase.getCursor(mBroadcastDb);
-        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mGroupedList = prefs.getBoolean(KEY_GROUPED_LIST, false);
+        mFilter = CellBroadcastFilter.load(prefs);
 
-        mListAdapter = new CellBroadcastListAdapter(this, mAdapterCursor);
+        // The history is loaded in the background and swapped in by onLoadFinished().
+        mListAdapter = new CellBroadcastListAdapter(this, null);
+        mListAdapter.setRowLoader(this);
         setListAdapter(mListAdapter);
+        getLoaderManager().initLoader(LOADER_HISTORY, null, this);
+        updateChoiceMode();
 
-        CellBroadcastDatabaseService.setActiveListActivity(this);
+        CellBroadcastChangeDispatcher.register(this);
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        registerReceiver(mInvalidateCachesReceiver, filter);
 
         parseIntent(getIntent());
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // the user is looking at the broadcasts summarized by the notification
+        CellBroadcastSummaryNotification.clear(this);
+    }
+
     @Override
     protected void onDestroy() {
-        if (mAdapterCursor != null) {
-            mAdapterCursor.close();
-            mAdapterCursor = null;
+        unregisterReceiver(mInvalidateCachesReceiver);
+        CellBroadcastChangeDispatcher.unregister(this);
+        super.onDestroy();
+    }
+
+    /**
+     * Reformat the cached date strings after the time zone, clock or locale changes,
+     * and reload the list to recompute its date sections.
+     */
+    private final BroadcastReceiver mInvalidateCachesReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mListAdapter.invalidateCaches();
+            Loader<Cursor> loader = getLoaderManager().getLoader(LOADER_HISTORY);
+            if (loader != null) {
+                loader.onContentChanged();
+            }
+        }
+    };
+
+    /** Callback from CellBroadcastChangeDispatcher after content changes (main thread). */
+    public void onBroadcastsChanged(CellBroadcastChangeDispatcher.ChangeEvent event) {
+        CellBroadcastHistoryLoader loader = getHistoryLoader();
+        if (loader == null) {
+            return;
         }
-        if (mBroadcastDb != null) {
-            mBroadcastDb.close();
-            mBroadcastDb = null;
+        if (event.isInsertOnly()) {
+            // only today's date section needs recounting
+            loader.onRowsInserted();
+        } else if (loader.isAffectedBy(event)) {
+            loader.onContentChanged();
+        } else if (DBG) {
+            Log.d(TAG, "no loaded rows changed by " + event);
         }
-        CellBroadcastDatabaseService.setActiveListActivity(null);
-        super.onDestroy();
     }
 
-    /** Callback from CellBroadcastDatabaseService after content changes. */
-    void databaseContentChanged() {
-        runOnUiThread(new Runnable() {
-            public void run() {
-                mAdapterCursor.requery();
+    /** Callback from the list adapter when fast scrolling to a section that isn't loaded. */
+    public void onLoadRowsUpTo(int position) {
+        CellBroadcastHistoryLoader loader = getHistoryLoader();
+        if (loader != null && loader.loadRowsUpTo(
+                position + CellBroadcastHistoryLoader.PAGE_SIZE)) {
+            mPendingScrollPosition = position;
+        } else {
+            mPendingScrollPosition = -1;
+        }
+    }
+
+    private CellBroadcastHistoryLoader getHistoryLoader() {
+        return (CellBroadcastHistoryLoader) getLoaderManager().<Cursor>getLoader(LOADER_HISTORY);
+    }
+
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CellBroadcastHistoryLoader(this, mGroupedList && mExpandedGroup == null,
+                mExpandedGroup, new CellBroadcastFilter(mFilter));
+    }
+
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        if (mListChanged) {
+            mListChanged = false;
+            mPendingScrollPosition = -1;
+            mListAdapter.swapCursor(cursor);
+            int position = (mScrollToRowId != -1) ? mListAdapter.findRow(mScrollToRowId) : -1;
+            getListView().setSelection(Math.max(position, 0));
+            return;
+        }
+
+        // If the user has scrolled down, keep the first visible row in place when
+        // new broadcasts are inserted above it. At the top, show the new broadcasts.
+        ListView listView = getListView();
+        int firstPosition = listView.getFirstVisiblePosition();
+        View firstView = listView.getChildAt(0);
+        long anchorRowId = -1;
+        int anchorTop = 0;
+        if (firstView != null && (firstPosition > 0 || firstView.getTop() < 0)
+                && firstPosition < mListAdapter.getCount()) {
+            anchorRowId = mListAdapter.getRowId(firstPosition);
+            anchorTop = firstView.getTop();
+        }
+
+        // The loader owns the cursors: swap without closing the previous one.
+        mListAdapter.swapCursor(cursor);
+
+        if (mPendingScrollPosition != -1) {
+            int position = mPendingScrollPosition;
+            if (position < mListAdapter.getCount()) {
+                mPendingScrollPosition = -1;
+                listView.setSelection(position);
+                return;
+            }
+            // still loading up to the section
+            onLoadRowsUpTo(position);
+        }
+
+        if (anchorRowId != -1) {
+            int position = mListAdapter.findRow(anchorRowId);
+            if (position >= 0 && position != firstPosition) {
+                listView.setSelectionFromTop(position, anchorTop);
+            }
+        }
+    }
+
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mListAdapter.swapCursor(null);
+    }
+
+    /** Prefetch the next page of the history as the user scrolls towards the end. */
+    private final AbsListView.OnScrollListener mOnScrollListener =
+            new AbsListView.OnScrollListener() {
+                public void onScrollStateChanged(AbsListView view, int scrollState) {
+                }
+
+                public void onScroll(AbsListView view, int firstVisibleItem,
+                        int visibleItemCount, int totalItemCount) {
+                    if (totalItemCount > 0 && firstVisibleItem + visibleItemCount
+                            >= totalItemCount - PREFETCH_DISTANCE) {
+                        CellBroadcastHistoryLoader loader = getHistoryLoader();
+                        if (loader != null) {
+                            loader.loadNextPage();
+                        }
+                    }
+                }
+            };
+
+    /**
+     * Switch to a different list: grouped or not, or the broadcasts of a group.
+     * @param scrollToRowId the row to scroll to when loaded, or -1 for the top
+     */
+    private void reloadList(long scrollToRowId) {
+        mListChanged = true;
+        mScrollToRowId = scrollToRowId;
+        updateChoiceMode();
+        getLoaderManager().restartLoader(LOADER_HISTORY, null, this);
+    }
+
+    /**
+     * Allow selecting several broadcasts by long press, except in the list of groups,
+     * where a long press shows the context menu of the group.
+     */
+    private void updateChoiceMode() {
+        boolean showingGroups = mGroupedList && mExpandedGroup == null;
+        getListView().setChoiceMode(showingGroups ? ListView.CHOICE_MODE_NONE
+                : ListView.CHOICE_MODE_MULTIPLE_MODAL);
+    }
+
+    /** Action mode for deleting or marking read the selected broadcasts. */
+    private final AbsListView.MultiChoiceModeListener mMultiChoiceModeListener =
+            new AbsListView.MultiChoiceModeListener() {
+                public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                    menu.add(0, MENU_MARK_SELECTED_READ, 0, R.string.menu_mark_read);
+                    menu.add(0, MENU_DELETE_SELECTED, 0, R.string.menu_delete_selected).setIcon(
+                            android.R.drawable.ic_menu_delete);
+                    return true;
+                }
+
+                public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                    return false;
+                }
+
+                public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                        boolean checked) {
+                    mode.setTitle(getString(R.string.selected_count,
+                            getListView().getCheckedItemCount()));
+                }
+
+                public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                    long[] rowIds = getListView().getCheckedItemIds();
+                    switch (item.getItemId()) {
+                        case MENU_MARK_SELECTED_READ:
+                            markBroadcastsRead(rowIds);
+                            mode.finish();
+                            return true;
+
+                        case MENU_DELETE_SELECTED:
+                            confirmDeleteBroadcasts(rowIds, mode);
+                            return true;
+
+                        default:
+                            return false;
+                    }
+                }
+
+                public void onDestroyActionMode(ActionMode mode) {
+                }
+            };
+
+    /**
+     * Mark broadcasts read, showing them as read before the database is updated.
+     * @param rowIds the row IDs of the broadcasts
+     */
+    private void markBroadcastsRead(long[] rowIds) {
+        if (rowIds.length == 0) {
+            return;
+        }
+        mListAdapter.showRowsAsRead(rowIds);
+        Intent dbWriteIntent = new Intent(this, CellBroadcastDatabaseService.class);
+        dbWriteIntent.setAction(CellBroadcastDatabaseService.ACTION_MARK_BROADCASTS_READ);
+        dbWriteIntent.putExtra(CellBroadcastDatabaseService.DATABASE_ROW_IDS_EXTRA, rowIds);
+        startService(dbWriteIntent);
+    }
+
+    /**
+     * Confirm deleting the selected broadcasts, then hide them and delete them from
+     * the database.
+     * @param rowIds the row IDs of the broadcasts
+     * @param mode the action mode to finish when the broadcasts are deleted
+     */
+    private void confirmDeleteBroadcasts(final long[] rowIds, final ActionMode mode) {
+        if (rowIds.length == 0) {
+            mode.finish();
+            return;
+        }
+        showConfirmDeleteDialog(this, new OnClickListener() {
+            public void onClick(DialogInterface dialog, int whichButton) {
+                mListAdapter.hideRows(rowIds);
+                Intent dbWriteIntent = new Intent(CellBroadcastListActivity.this,
+                        CellBroadcastDatabaseService.class);
+                dbWriteIntent.setAction(CellBroadcastDatabaseService.ACTION_DELETE_BROADCASTS);
+                dbWriteIntent.putExtra(CellBroadcastDatabaseService.DATABASE_ROW_IDS_EXTRA,
+                        rowIds);
+                startService(dbWriteIntent);
+                mode.finish();
+                dialog.dismiss();
             }
-        });
+        }, getResources().getQuantityString(R.plurals.confirm_delete_selected_broadcasts,
+                rowIds.length, rowIds.length));
+    }
+
+    /** Show the broadcasts of the group at the current row of the grouped list. */
+    private void expandGroup(Cursor cursor) {
+        mExpandedGroup = CellBroadcastDatabase.GroupKey.fromCursor(cursor);
+        mExpandedGroupRowId = cursor.getLong(CellBroadcastDatabase.COLUMN_ID);
+        setTitle(CellBroadcastClassifier.getDialogTitleResource(
+                cursor.getInt(CellBroadcastDatabase.COLUMN_CATEGORY)));
+        reloadList(-1);
+    }
+
+    /** Return from the broadcasts of a group to the grouped list. */
+    private void collapseGroup() {
+        mExpandedGroup = null;
+        setTitle(R.string.app_label);
+        reloadList(mExpandedGroupRowId);
+    }
+
+    @Override
+    public void onBackPressed() {
+        if (mExpandedGroup != null) {
+            collapseGroup();
+        } else {
+            super.onBackPressed();
+        }
+    }
+
+    /** Return whether the current row is a group of more than one broadcast. */
+    private static boolean isMultipleGroup(Cursor cursor) {
+        return CellBroadcastDatabase.isGroupCursor(cursor)
+                && cursor.getInt(CellBroadcastDatabase.COLUMN_GROUP_COUNT) > 1;
     }
 
     @Override
@@ -121,6 +425,22 @@ public class CellBroadcastListActivity extends ListActivity {
                     android.R.drawable.ic_menu_delete);
         }
 
+        menu.add(0, MENU_GROUP, 0, mGroupedList ? R.string.menu_ungroup_broadcasts
+                : R.string.menu_group_broadcasts);
+
+        SubMenu filterMenu = menu.addSubMenu(0, MENU_FILTER, 0, R.string.menu_filter);
+        filterMenu.add(0, MENU_FILTER_CATEGORY, 0, R.string.menu_filter_category);
+        filterMenu.add(0, MENU_FILTER_SEVERITY, 0, R.string.menu_filter_severity);
+        filterMenu.add(0, MENU_FILTER_URGENCY, 0, R.string.menu_filter_urgency);
+        filterMenu.add(0, MENU_FILTER_CERTAINTY, 0, R.string.menu_filter_certainty);
+        filterMenu.add(0, MENU_FILTER_UNREAD, 0, R.string.menu_filter_unread)
+                .setCheckable(true).setChecked(mFilter.mUnreadOnly);
+        filterMenu.add(0, MENU_SORT_BY_PRIORITY, 0, R.string.menu_sort_by_priority)
+                .setCheckable(true).setChecked(mFilter.mSortByPriority);
+        if (mFilter.isFiltering()) {
+            filterMenu.add(0, MENU_CLEAR_FILTER, 0, R.string.menu_clear_filter);
+        }
+
         menu.add(0, MENU_PREFERENCES, 0, R.string.menu_preferences).setIcon(
                 android.R.drawable.ic_menu_preferences);
 
@@ -134,6 +454,57 @@ public class CellBroadcastListActivity extends ListActivity {
                 confirmDeleteThread(-1);
                 break;
 
+            case MENU_GROUP:
+                mGroupedList = !mGroupedList;
+                PreferenceManager.getDefaultSharedPreferences(this).edit()
+                        .putBoolean(KEY_GROUPED_LIST, mGroupedList).apply();
+                mExpandedGroup = null;
+                setTitle(R.string.app_label);
+                reloadList(-1);
+                break;
+
+            case MENU_FILTER_CATEGORY:
+                showFilterDialog(MENU_FILTER_CATEGORY, R.string.menu_filter_category,
+                        getResources().getTextArray(R.array.filter_category_entries),
+                        mFilter.mCategories);
+                break;
+
+            case MENU_FILTER_SEVERITY:
+                showFilterDialog(MENU_FILTER_SEVERITY, R.string.menu_filter_severity,
+                        getEnumFilterEntries(Severity.values(), R.array.filter_severity_entries,
+                                R.array.filter_severity_values),
+                        mFilter.mSeverity + 1);
+                break;
+
+            case MENU_FILTER_URGENCY:
+                showFilterDialog(MENU_FILTER_URGENCY, R.string.menu_filter_urgency,
+                        getEnumFilterEntries(Urgency.values(), R.array.filter_urgency_entries,
+                                R.array.filter_urgency_values),
+                        mFilter.mUrgency + 1);
+                break;
+
+            case MENU_FILTER_CERTAINTY:
+                showFilterDialog(MENU_FILTER_CERTAINTY, R.string.menu_filter_certainty,
+                        getEnumFilterEntries(Certainty.values(), R.array.filter_certainty_entries,
+                                R.array.filter_certainty_values),
+                        mFilter.mCertainty + 1);
+                break;
+
+            case MENU_FILTER_UNREAD:
+                mFilter.mUnreadOnly = !mFilter.mUnreadOnly;
+                onFilterChanged();
+                break;
+
+            case MENU_SORT_BY_PRIORITY:
+                mFilter.mSortByPriority = !mFilter.mSortByPriority;
+                onFilterChanged();
+                break;
+
+            case MENU_CLEAR_FILTER:
+                mFilter.clear();
+                onFilterChanged();
+                break;
+
             case MENU_PREFERENCES:
                 Intent intent = new Intent(this, CellBroadcastSettings.class);
                 startActivityIfNeeded(intent, -1);
@@ -145,11 +516,86 @@ public class CellBroadcastListActivity extends ListActivity {
         return false;
     }
 
+    /**
+     * Show a single choice dialog for a filter criterion.
+     * @param menuId the menu item of the criterion
+     * @param titleId the dialog title
+     * @param entries the choices; for CDMA criteria, "any" followed by the ordinals
+     * @param checkedItem the index of the current choice
+     */
+    private void showFilterDialog(final int menuId, int titleId, CharSequence[] entries,
+            int checkedItem) {
+        new AlertDialog.Builder(this)
+                .setTitle(titleId)
+                .setSingleChoiceItems(entries, checkedItem, new OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        switch (menuId) {
+                            case MENU_FILTER_CATEGORY:
+                                mFilter.mCategories = which;
+                                break;
+
+                            case MENU_FILTER_SEVERITY:
+                                mFilter.mSeverity = which - 1;
+                                break;
+
+                            case MENU_FILTER_URGENCY:
+                                mFilter.mUrgency = which - 1;
+                                break;
+
+                            case MENU_FILTER_CERTAINTY:
+                                mFilter.mCertainty = which - 1;
+                                break;
+
+                            default:
+                                break;
+                        }
+                        dialog.dismiss();
+                        onFilterChanged();
+                    }
+                })
+                .setNegativeButton(R.string.button_cancel, null)
+                .show();
+    }
+
+    /**
+     * Return the choices for a CDMA filter criterion: "any", then the enum values.
+     * @param values the enum values, in the order of their ordinals
+     * @param entriesId the display names of the enum values
+     * @param namesId the enum constant names matching the display names
+     */
+    private CharSequence[] getEnumFilterEntries(Enum<?>[] values, int entriesId, int namesId) {
+        CharSequence[] labels = getResources().getTextArray(entriesId);
+        String[] names = getResources().getStringArray(namesId);
+        CharSequence[] entries = new CharSequence[values.length + 1];
+        entries[0] = getText(R.string.filter_any);
+        for (int i = 0; i < values.length; i++) {
+            // a value added to the framework after the resources is shown by name
+            entries[i + 1] = values[i].name();
+            for (int j = 0; j < names.length; j++) {
+                if (names[j].equals(values[i].name())) {
+                    entries[i + 1] = labels[j];
+                    break;
+                }
+            }
+        }
+        return entries;
+    }
+
+    /** Save the changed filter and reload the list. */
+    private void onFilterChanged() {
+        mFilter.save(PreferenceManager.getDefaultSharedPreferences(this));
+        reloadList(-1);
+    }
+
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        Cursor cursor = mListAdapter.getCursor();
-        if (cursor != null && cursor.getPosition() >= 0) {
-            showDialogAndMarkRead(cursor);
+        Cursor cursor = (Cursor) mListAdapter.getItem(position);
+        if (cursor != null) {
+            if (isMultipleGroup(cursor)) {
+                expandGroup(cursor);
+            } else {
+                showDialogAndMarkRead(cursor);
+            }
         }
     }
 
@@ -158,21 +604,31 @@ public class CellBroadcastListActivity extends ListActivity {
                 public void onCreateContextMenu(ContextMenu menu, View v,
                         ContextMenuInfo menuInfo) {
                     menu.add(0, MENU_VIEW, 0, R.string.menu_view);
-                    menu.add(0, MENU_DELETE, 0, R.string.menu_delete);
+                    // groups are deleted one broadcast at a time, once expanded
+                    AdapterContextMenuInfo info = (AdapterContextMenuInfo) menuInfo;
+                    Cursor cursor = (Cursor) mListAdapter.getItem(info.position);
+                    if (cursor != null && !isMultipleGroup(cursor)) {
+                        menu.add(0, MENU_DELETE, 0, R.string.menu_delete);
+                    }
                 }
             };
 
     @Override
     public boolean onContextItemSelected(MenuItem item) {
-        Cursor cursor = mListAdapter.getCursor();
-        if (cursor != null && cursor.getPosition() >= 0) {
+        AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
+        Cursor cursor = (Cursor) mListAdapter.getItem(info.position);
+        if (cursor != null) {
             switch (item.getItemId()) {
                 case MENU_DELETE:
                     confirmDeleteThread(cursor.getLong(CellBroadcastDatabase.COLUMN_ID));
                     break;
 
                 case MENU_VIEW:
-                    showDialogAndMarkRead(cursor);
+                    if (isMultipleGroup(cursor)) {
+                        expandGroup(cursor);
+                    } else {
+                        showDialogAndMarkRead(cursor);
+                    }
                     break;
 
                 default:
@@ -183,16 +639,47 @@ public class CellBroadcastListActivity extends ListActivity {
     }
 
     private void showDialogAndMarkRead(Cursor cursor) {
-        BroadcastMessage bm = BroadcastMessage.createFromCursor(cursor);
-        boolean isAlertMessage = bm.isPublicAlertMessage() ||
-                bm.isOperatorDefinedEmergencyId();
+        // The list cursor only contains a snippet of the message body.
+        if (cursor.getInt(CellBroadcastDatabase.COLUMN_SNIPPET_TRUNCATED) == 0) {
+            // the snippet is the whole body
+            showDialog(BroadcastMessage.createFromCursor(cursor));
+        } else {
+            new LoadMessageTask().execute(cursor.getLong(CellBroadcastDatabase.COLUMN_ID));
+        }
+    }
+
+    private void showDialog(BroadcastMessage bm) {
         // show emergency alerts with the warning icon, but don't play alert tone
-        CellBroadcastAlertDialog dialog = new CellBroadcastAlertDialog(this,
-                bm.getDialogTitleResource(), bm.getMessageBody(),
-                isAlertMessage, bm.getDeliveryTime());
+        CellBroadcastAlertDialog dialog = new CellBroadcastAlertDialog(this, bm);
         dialog.show();
     }
 
+    /** Load the complete message with the specified row ID in the background, then show it. */
+    private class LoadMessageTask extends AsyncTask<Long, Void, BroadcastMessage> {
+        @Override
+        protected BroadcastMessage doInBackground(Long... rowIds) {
+            long rowId = rowIds[0];
+            Cursor cursor = CellBroadcastDatabase.getMessageCursor(CellBroadcastDatabase
+                    .getReadHelper(CellBroadcastListActivity.this).getReadableDatabase(), rowId);
+            try {
+                if (cursor.moveToFirst()) {
+                    return BroadcastMessage.createFromCursor(cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+            Log.w(TAG, "message at row " + rowId + " was deleted");
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(BroadcastMessage bm) {
+            if (bm != null && !isFinishing()) {
+                showDialog(bm);
+            }
+        }
+    }
+
     /**
      * Start the process of putting up a dialog to confirm deleting a broadcast.
      * @param rowId the row ID of the broadcast to delete, or -1 to delete all broadcasts
@@ -212,11 +699,16 @@ public class CellBroadcastListActivity extends ListActivity {
      */
     public static void confirmDeleteThreadDialog(DeleteThreadListener listener,
             boolean deleteAll, Context context) {
+        showConfirmDeleteDialog(context, listener, context.getString(deleteAll
+                ? R.string.confirm_delete_all_broadcasts
+                        : R.string.confirm_delete_broadcast));
+    }
+
+    private static void showConfirmDeleteDialog(Context context, OnClickListener listener,
+            CharSequence message) {
         View contents = View.inflate(context, R.layout.delete_broadcast_dialog_view, null);
         TextView msg = (TextView)contents.findViewById(R.id.message);
-        msg.setText(deleteAll
-                ? R.string.confirm_delete_all_broadcasts
-                        : R.string.confirm_delete_broadcast);
+        msg.setText(message);
 
         AlertDialog.Builder builder = new AlertDialog.Builder(context);
         builder.setTitle(R.string.confirm_dialog_title)
@@ -237,6 +729,7 @@ public class CellBroadcastListActivity extends ListActivity {
 
         public void onClick(DialogInterface dialog, int whichButton) {
             if (mRowId != -1) {
+                mListAdapter.hideRows(new long[] {mRowId});
                 // delete from database on a separate service thread
                 Intent dbWriteIntent = new Intent(CellBroadcastListActivity.this,
                         CellBroadcastDatabaseService.class);
@@ -254,34 +747,20 @@ public class CellBroadcastListActivity extends ListActivity {
         }
     }
 
+    /**
+     * Forward a broadcast to {@link CellBroadcastAlertActivity}, which presents the
+     * pending alerts. Notifications posted by previous versions open this activity.
+     */
     private void parseIntent(Intent intent) {
         if (intent == null) {
             return;
         }
-        // Dismiss the notification
-        NotificationManager notificationManager =
-            (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
-        notificationManager.cancelAll();
-
-        Bundle extras = intent.getExtras();
-        if (extras == null) {
-            return;
-        }
-        BroadcastMessage bm = extras.getParcelable(CellBroadcastMessage.SMS_CB_MESSAGE_EXTRA);
-        if (bm == null) {
-            bm = extras.getParcelable(CdmaBroadcastMessage.SMS_CDMA_MESSAGE_EXTRA);
-        }
-        if (bm != null) {
-            boolean isEmergencyAlert = bm.isPublicAlertMessage()
-                    || bm.isOperatorDefinedEmergencyId();
-
-            CellBroadcastAlertDialog dialog = new CellBroadcastAlertDialog(this,
-                    bm.getDialogTitleResource(), bm.getMessageBody(), isEmergencyAlert,
-                    bm.getDeliveryTime());
-            dialog.show();
-        } else {
-            // should never come here.
-            Log.e(TAG, "parseIntent did not have parcelable for gsm or cdma broadcast");
+        if (intent.hasExtra(CellBroadcastMessage.SMS_CB_MESSAGE_EXTRA)
+                || intent.hasExtra(CdmaBroadcastMessage.SMS_CDMA_MESSAGE_EXTRA)) {
+            Intent alertIntent = new Intent(intent);
+            alertIntent.setClass(this, CellBroadcastAlertActivity.class);
+            alertIntent.setFlags(0);
+            startActivity(alertIntent);
         }
     }
 }
@@ -22,15 +22,291 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
+import android.widget.SectionIndexer;
+
+import java.util.Arrays;
 
 /**
- * The back-end data adapter for {@link CellBroadcastListActivity}.
+ * The back-end data adapter for {@link CellBroadcastListActivity}. Also indexes the
+ * list by date for the fast scroller, from the {@link CellBroadcastSections} of the
+ * history cursor.
+ *
+ * Rows deleted or marked read from the list are updated optimistically: they are
+ * hidden, or shown as read, until a reloaded cursor reflects the database change.
+ * While rows are hidden, list positions are mapped to the cursor positions of the
+ * remaining rows.
  */
-public class CellBroadcastListAdapter extends CursorAdapter {
+public class CellBroadcastListAdapter extends CursorAdapter implements SectionIndexer {
     private static final String TAG = "CellBroadcastListAdapter";
 
+    private static final Object[] NO_SECTIONS = new Object[0];
+
+    private static final long[] NO_ROW_IDS = new long[0];
+
+    /** Callback to load rows beyond the loaded pages, to scroll to a section. */
+    interface RowLoader {
+        /**
+         * Called when the fast scroller moves to a row that isn't loaded yet.
+         * @param position the position of the row to load and scroll to
+         */
+        void onLoadRowsUpTo(int position);
+    }
+
+    /** Bind-time caches shared by the list items of this adapter. */
+    private final CellBroadcastListCache mCache;
+
+    /** Called to load the rows of sections beyond the loaded rows, or null. */
+    private RowLoader mRowLoader;
+
+    /** The current cursor, if it has a snapshot of its row IDs and versions. */
+    private CellBroadcastHistoryLoader.HistoryCursor mHistoryCursor;
+
+    /** Sorted IDs of rows deleted by the user that are still in the cursor. */
+    private long[] mHiddenRowIds = NO_ROW_IDS;
+
+    /** Sorted IDs of rows marked read by the user that are still unread in the cursor. */
+    private long[] mReadRowIds = NO_ROW_IDS;
+
+    /** The cursor position of each list position while rows are hidden, or null. */
+    private int[] mPositionMap;
+
     public CellBroadcastListAdapter(Context context, Cursor cursor) {
-        super(context, cursor, true);
+        // No auto-requery: the cursor is reloaded by CellBroadcastHistoryLoader.
+        super(context, cursor, 0);
+        mCache = new CellBroadcastListCache(context);
+        setHistoryCursor(cursor);
+    }
+
+    private void setHistoryCursor(Cursor cursor) {
+        mHistoryCursor = (cursor instanceof CellBroadcastHistoryLoader.HistoryCursor)
+                ? (CellBroadcastHistoryLoader.HistoryCursor) cursor : null;
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        setHistoryCursor(newCursor);
+        updatePendingRows();
+        return super.swapCursor(newCursor);
+    }
+
+    /**
+     * Hide rows that are being deleted, until a reloaded cursor no longer contains them.
+     * @param rowIds the IDs of the rows to hide
+     */
+    void hideRows(long[] rowIds) {
+        mHiddenRowIds = union(mHiddenRowIds, rowIds);
+        updatePendingRows();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Show rows that are being marked read as read, until a reloaded cursor has them read.
+     * @param rowIds the IDs of the rows to show as read
+     */
+    void showRowsAsRead(long[] rowIds) {
+        mReadRowIds = union(mReadRowIds, rowIds);
+        updatePendingRows();
+        notifyDataSetChanged();
+    }
+
+    private static long[] union(long[] sortedRowIds, long[] rowIds) {
+        long[] result = Arrays.copyOf(sortedRowIds, sortedRowIds.length + rowIds.length);
+        System.arraycopy(rowIds, 0, result, sortedRowIds.length, rowIds.length);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Drop the pending rows that the current cursor already reflects, and rebuild the
+     * position map for the hidden rows. Scans the snapshot of the cursor once, only
+     * while changes are pending.
+     */
+    private void updatePendingRows() {
+        CellBroadcastHistoryLoader.HistoryCursor cursor = mHistoryCursor;
+        mPositionMap = null;
+        if (cursor == null || cursor.isClosed() || CellBroadcastDatabase.isGroupCursor(cursor)) {
+            mHiddenRowIds = NO_ROW_IDS;
+            mReadRowIds = NO_ROW_IDS;
+            return;
+        }
+        if (mHiddenRowIds.length == 0 && mReadRowIds.length == 0) {
+            return;
+        }
+
+        int count = cursor.getCount();
+        int[] positionMap = new int[count];
+        int visibleCount = 0;
+        long[] hiddenRowIds = new long[mHiddenRowIds.length];
+        int hiddenCount = 0;
+        long[] readRowIds = new long[mReadRowIds.length];
+        int readCount = 0;
+        for (int position = 0; position < count; position++) {
+            long rowId = cursor.getRowId(position);
+            if (hiddenCount < hiddenRowIds.length
+                    && Arrays.binarySearch(mHiddenRowIds, rowId) >= 0) {
+                hiddenRowIds[hiddenCount++] = rowId;
+                continue;
+            }
+            positionMap[visibleCount++] = position;
+            if (readCount < readRowIds.length
+                    && Arrays.binarySearch(mReadRowIds, rowId) >= 0) {
+                int version = cursor.getRowVersion(position);
+                if (version != CellBroadcastHistoryLoader.getReadRowVersion(version)) {
+                    readRowIds[readCount++] = rowId;
+                }
+            }
+        }
+
+        mHiddenRowIds = Arrays.copyOf(hiddenRowIds, hiddenCount);
+        Arrays.sort(mHiddenRowIds);
+        mReadRowIds = Arrays.copyOf(readRowIds, readCount);
+        Arrays.sort(mReadRowIds);
+        if (hiddenCount != 0) {
+            mPositionMap = Arrays.copyOf(positionMap, visibleCount);
+        }
+    }
+
+    /** Return the cursor position of a list position. */
+    private int toCursorPosition(int position) {
+        int[] positionMap = mPositionMap;
+        if (positionMap != null && position >= 0 && position < positionMap.length) {
+            return positionMap[position];
+        }
+        return position;
+    }
+
+    /** Return the list position of a cursor position, or of the next row if it is hidden. */
+    private int toListPosition(int cursorPosition) {
+        int[] positionMap = mPositionMap;
+        if (positionMap == null) {
+            return cursorPosition;
+        }
+        int index = Arrays.binarySearch(positionMap, cursorPosition);
+        return (index >= 0) ? index : -index - 1;
+    }
+
+    /** Return whether a row is shown as read ahead of the cursor. */
+    private boolean isShownAsRead(long rowId) {
+        return mReadRowIds.length != 0 && Arrays.binarySearch(mReadRowIds, rowId) >= 0;
+    }
+
+    @Override
+    public int getCount() {
+        int[] positionMap = mPositionMap;
+        return (positionMap != null) ? positionMap.length : super.getCount();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return super.getItem(toCursorPosition(position));
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return super.getItemId(toCursorPosition(position));
+    }
+
+    /**
+     * Set the callback to load rows when scrolling to a section beyond the loaded rows.
+     * @param rowLoader the callback, or null
+     */
+    void setRowLoader(RowLoader rowLoader) {
+        mRowLoader = rowLoader;
+    }
+
+    private CellBroadcastSections getDateSections() {
+        return (mHistoryCursor != null) ? mHistoryCursor.getSections() : null;
+    }
+
+    public Object[] getSections() {
+        CellBroadcastSections sections = getDateSections();
+        return (sections != null) ? sections.getLabels() : NO_SECTIONS;
+    }
+
+    /**
+     * Return the position of the first row of a section. If the section starts
+     * beyond the loaded rows, return the last loaded row and ask the
+     * {@link RowLoader} to load up to the section.
+     */
+    public int getPositionForSection(int section) {
+        CellBroadcastSections sections = getDateSections();
+        if (sections == null) {
+            return 0;
+        }
+        int position = sections.getPositionForSection(section);
+        if (position >= mHistoryCursor.getCount()) {
+            if (mRowLoader != null) {
+                mRowLoader.onLoadRowsUpTo(position);
+            }
+            return Math.max(0, getCount() - 1);
+        }
+        return Math.min(toListPosition(position), Math.max(0, getCount() - 1));
+    }
+
+    public int getSectionForPosition(int position) {
+        CellBroadcastSections sections = getDateSections();
+        return (sections != null)
+                ? sections.getSectionForPosition(toCursorPosition(position)) : 0;
+    }
+
+    /**
+     * Return the row ID at a position from the snapshot of the history cursor.
+     * @param position a position between 0 and getCount() - 1
+     * @return the row ID, or -1 if the cursor has no snapshot
+     */
+    long getRowId(int position) {
+        return (mHistoryCursor != null)
+                ? mHistoryCursor.getRowId(toCursorPosition(position)) : -1;
+    }
+
+    /**
+     * Return the position of a row in the snapshot of the history cursor.
+     * @param rowId the row ID to find
+     * @return the position, or -1 if the row isn't loaded or shown, or the cursor
+     *         has no snapshot
+     */
+    int findRow(long rowId) {
+        int position = (mHistoryCursor != null) ? mHistoryCursor.findRow(rowId) : -1;
+        int[] positionMap = mPositionMap;
+        if (position < 0 || positionMap == null) {
+            return position;
+        }
+        int index = Arrays.binarySearch(positionMap, position);
+        return (index >= 0) ? index : -1;
+    }
+
+    /**
+     * Return the view for a position. When the data set changes, the list asks for
+     * every visible view again; views still showing the same version of the same row
+     * are only pointed at the new cursor, so only new and changed rows are rebound.
+     */
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        int cursorPosition = toCursorPosition(position);
+        if (convertView instanceof CellBroadcastListItem && mHistoryCursor != null
+                && !mHistoryCursor.isClosed() && cursorPosition < mHistoryCursor.getCount()) {
+            CellBroadcastListItem listItem = (CellBroadcastListItem) convertView;
+            long rowId = mHistoryCursor.getRowId(cursorPosition);
+            int version = mHistoryCursor.getRowVersion(cursorPosition);
+            if (isShownAsRead(rowId)) {
+                version = CellBroadcastHistoryLoader.getReadRowVersion(version);
+            }
+            if (listItem.isBoundTo(rowId, version, mCache.getGeneration())) {
+                // the previous cursor may be closed; read the text columns from this one
+                listItem.getMessage().moveTo(mHistoryCursor, cursorPosition);
+                return listItem;
+            }
+        }
+        return super.getView(cursorPosition, convertView, parent);
+    }
+
+    /**
+     * Discard the cached dates, previews and backgrounds and rebind the visible
+     * items. Called after a locale, time zone or clock setting change.
+     */
+    void invalidateCaches() {
+        mCache.invalidate();
+        notifyDataSetChanged();
     }
 
     /**
@@ -42,13 +318,11 @@ public class CellBroadcastListAdapter extends CursorAdapter {
      * @return the newly created view.
      */
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        BroadcastMessage message = BroadcastMessage.createFromCursor(cursor);
-
         LayoutInflater factory = LayoutInflater.from(context);
         CellBroadcastListItem listItem = (CellBroadcastListItem) factory.inflate(
                     R.layout.cell_broadcast_list_item, parent, false);
 
-        listItem.bind(message);
+        // CursorAdapter.getView() calls bindView() for the new view
         return listItem;
     }
 
@@ -60,8 +334,8 @@ public class CellBroadcastListAdapter extends CursorAdapter {
      * moved to the correct position.
      */
     public void bindView(View view, Context context, Cursor cursor) {
-        BroadcastMessage message = BroadcastMessage.createFromCursor(cursor);
         CellBroadcastListItem listItem = (CellBroadcastListItem) view;
-        listItem.bind(message);
+        listItem.bind(cursor, mCache,
+                isShownAsRead(cursor.getLong(CellBroadcastDatabase.COLUMN_ID)));
     }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.StyleSpan;
+import android.util.LruCache;
+
+/**
+ * Per-activity caches for binding {@link CellBroadcastListItem} views: the shared
+ * constant state of the read/unread backgrounds, the formatted date strings and
+ * the formatted (bold or normal) message previews.
+ *
+ * Date strings depend on the locale, time zone and 24-hour setting, so
+ * {@link CellBroadcastListActivity} calls {@link #invalidate} when any of these
+ * change. Drawables depend on the configuration: the activity, and so the cache,
+ * is recreated when a resource configuration changes.
+ */
+class CellBroadcastListCache {
+
+    /** Number of formatted date strings to keep (one per minute of delivery time). */
+    private static final int DATE_CACHE_SIZE = 200;
+
+    /** Number of formatted message previews to keep. */
+    private static final int PREVIEW_CACHE_SIZE = 100;
+
+    /** Date strings show minutes, so all times within the same minute share a string. */
+    private static final long MINUTE_MSEC = 60 * 1000;
+
+    private static final StyleSpan STYLE_BOLD = new StyleSpan(Typeface.BOLD);
+
+    private final Context mContext;
+
+    /** Incremented by {@link #invalidate}, so list items know to reload their backgrounds. */
+    private int mGeneration;
+
+    private Drawable.ConstantState mReadBackground;
+    private Drawable.ConstantState mUnreadBackground;
+
+    /** Date strings keyed by minute bucket of the delivery time. */
+    private final LruCache<Long, String> mDateStrings =
+            new LruCache<Long, String>(DATE_CACHE_SIZE);
+
+    /** Message previews keyed by row ID and read state, see {@link #previewKey}. */
+    private final LruCache<Long, CharSequence> mPreviews =
+            new LruCache<Long, CharSequence>(PREVIEW_CACHE_SIZE);
+
+    CellBroadcastListCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Return the number of times the cache has been invalidated.
+     * @return the cache generation
+     */
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Return a background drawable for a read or unread list item. The drawable
+     * shares its constant state with the other list items.
+     * @param isRead true for the read background; false for the unread background
+     * @return a new Drawable sharing the cached constant state
+     */
+    Drawable getBackground(boolean isRead) {
+        if (isRead) {
+            if (mReadBackground == null) {
+                mReadBackground = mContext.getResources().getDrawable(
+                        R.drawable.list_item_background_read).getConstantState();
+            }
+            return mReadBackground.newDrawable(mContext.getResources());
+        } else {
+            if (mUnreadBackground == null) {
+                mUnreadBackground = mContext.getResources().getDrawable(
+                        R.drawable.list_item_background_unread).getConstantState();
+            }
+            return mUnreadBackground.newDrawable(mContext.getResources());
+        }
+    }
+
+    /**
+     * Return the abbreviated date string for a delivery time.
+     * @param deliveryTime the delivery time
+     * @return the formatted date string
+     */
+    String getDateString(long deliveryTime) {
+        Long bucket = deliveryTime / MINUTE_MSEC;
+        String date = mDateStrings.get(bucket);
+        if (date == null) {
+            date = BroadcastMessage.formatDateString(mContext, deliveryTime);
+            mDateStrings.put(bucket, date);
+        }
+        return date;
+    }
+
+    /**
+     * Return the message preview for a list item: bold for unread messages.
+     * @param message the message to format
+     * @return the formatted preview
+     */
+    CharSequence getPreview(CursorBroadcastMessage message) {
+        Long key = previewKey(message.getRowId(), message.isRead());
+        CharSequence preview = mPreviews.get(key);
+        if (preview == null) {
+            preview = formatPreview(message.getSnippet(), message.isRead());
+            mPreviews.put(key, preview);
+        }
+        return preview;
+    }
+
+    private static long previewKey(long rowId, boolean isRead) {
+        return (rowId << 1) | (isRead ? 1 : 0);
+    }
+
+    private static CharSequence formatPreview(String snippet, boolean isRead) {
+        if (snippet == null) {
+            return "";
+        }
+        if (isRead) {
+            return snippet;
+        }
+        // Unread messages are shown in bold
+        SpannableString buf = new SpannableString(snippet);
+        buf.setSpan(STYLE_BOLD, 0, buf.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+        return buf;
+    }
+
+    /** Discard all cached values, e.g. after a locale or time zone change. */
+    void invalidate() {
+        mGeneration++;
+        mReadBackground = null;
+        mUnreadBackground = null;
+        mDateStrings.evictAll();
+        mPreviews.evictAll();
+    }
+}
@@ -17,11 +17,8 @@
 package com.android.cellbroadcastreceiver;
 
 import android.content.Context;
-import android.graphics.Typeface;
-import android.graphics.drawable.Drawable;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
-import android.text.style.StyleSpan;
+import android.content.res.Resources;
+import android.database.Cursor;
 import android.util.AttributeSet;
 import android.view.accessibility.AccessibilityEvent;
 import android.widget.RelativeLayout;
@@ -36,13 +33,23 @@ public class CellBroadcastListItem extends RelativeLayout {
     private static final String TAG = "CellBroadcastListItem";
     private static final boolean DEBUG = false;
 
-    private BroadcastMessage mMessage;
+    /** Reusable view of the bound row, to avoid allocating a message per bind. */
+    private final CursorBroadcastMessage mMessage = new CursorBroadcastMessage();
 
     private TextView mChannelView;
     private TextView mMessageView;
     private TextView mDateView;
 
-    private static final StyleSpan STYLE_BOLD = new StyleSpan(Typeface.BOLD);
+    /** Read state of the current background, so it is only replaced when it changes. */
+    private boolean mBackgroundIsRead;
+
+    /** Cache generation of the current background, or -1 if none has been set. */
+    private int mBackgroundGeneration = -1;
+
+    /* The bound row, see isBoundTo(). */
+    private long mBoundRowId = -1;
+    private int mBoundRowVersion;
+    private int mBoundGeneration = -1;
 
     public CellBroadcastListItem(Context context) {
         super(context);
@@ -52,10 +59,22 @@ public class CellBroadcastListItem extends RelativeLayout {
         super(context, attrs);
     }
 
-    BroadcastMessage getMessage() {
+    CursorBroadcastMessage getMessage() {
         return mMessage;
     }
 
+    /**
+     * Return whether this view already displays a row, so needn't be rebound.
+     * @param rowId the ID of the row
+     * @param rowVersion the version of the row, see {@link CellBroadcastHistoryLoader#getRowVersion}
+     * @param cacheGeneration the current generation of the list cache
+     * @return true if the row was last bound with the same version and cache generation
+     */
+    boolean isBoundTo(long rowId, int rowVersion, int cacheGeneration) {
+        return rowId == mBoundRowId && rowVersion == mBoundRowVersion
+                && cacheGeneration == mBoundGeneration;
+    }
+
     @Override
     protected void onFinishInflate() {
         super.onFinishInflate();
@@ -66,34 +85,41 @@ public class CellBroadcastListItem extends RelativeLayout {
     }
 
     /**
-     * Only used for header binding.
-     * @param message the message contents to bind
+     * Bind the row at the current position of the cursor.
+     * @param cursor the cursor, positioned on the row to bind
+     * @param cache the caches of the list activity
+     * @param showAsRead true to show the broadcast as read, although the row isn't yet
      */
-    public void bind(BroadcastMessage message) {
-        mMessage = message;
-
-        Drawable background = message.isRead() ?
-                getResources().getDrawable(R.drawable.list_item_background_read) :
-                getResources().getDrawable(R.drawable.list_item_background_unread);
-
-        setBackgroundDrawable(background);
-
-        mChannelView.setText(message.getDialogTitleResource());
-        mDateView.setText(message.getDateString(getContext()));
-        mMessageView.setText(formatMessage(message));
-    }
-
-    private static CharSequence formatMessage(BroadcastMessage message) {
-        String body = message.getMessageBody();
+    public void bind(Cursor cursor, CellBroadcastListCache cache, boolean showAsRead) {
+        CursorBroadcastMessage message = mMessage;
+        message.moveTo(cursor);
+        int rowVersion = CellBroadcastHistoryLoader.getRowVersion(cursor);
+        if (showAsRead) {
+            message.markRead();
+            rowVersion = CellBroadcastHistoryLoader.getReadRowVersion(rowVersion);
+        }
 
-        SpannableStringBuilder buf = new SpannableStringBuilder(body);
+        if (message.isRead() != mBackgroundIsRead
+                || cache.getGeneration() != mBackgroundGeneration) {
+            setBackgroundDrawable(cache.getBackground(message.isRead()));
+            mBackgroundIsRead = message.isRead();
+            mBackgroundGeneration = cache.getGeneration();
+        }
 
-        // Unread messages are shown in bold
-        if (!message.isRead()) {
-            buf.setSpan(STYLE_BOLD, 0, buf.length(),
-                    Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+        int groupCount = message.getGroupCount();
+        if (groupCount > 1) {
+            Resources res = getResources();
+            mChannelView.setText(res.getString(R.string.list_item_group_title,
+                    res.getString(message.getDialogTitleResource()), groupCount));
+        } else {
+            mChannelView.setText(message.getDialogTitleResource());
         }
-        return buf;
+        mDateView.setText(cache.getDateString(message.getDeliveryTime()));
+        mMessageView.setText(cache.getPreview(message));
+
+        mBoundRowId = message.getRowId();
+        mBoundRowVersion = rowVersion;
+        mBoundGeneration = cache.getGeneration();
     }
 
     @Override
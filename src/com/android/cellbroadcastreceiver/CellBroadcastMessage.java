@@ -21,8 +21,6 @@ import android.content.Context;
 import android.database.Cursor;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.os.SystemProperties;
-import android.telephony.SmsCbConstants;
 import android.telephony.SmsCbMessage;
 import android.text.format.DateUtils;
 
@@ -81,15 +79,18 @@ public class CellBroadcastMessage extends BroadcastMessage {
         out.writeString(mMessageBody);
         out.writeLong(mDeliveryTime);
         out.writeInt(mIsRead ? 1 : 0);
+        writeClassificationToParcel(out);
     }
 
     public static final Parcelable.Creator<CellBroadcastMessage> CREATOR
             = new Parcelable.Creator<CellBroadcastMessage>() {
         public CellBroadcastMessage createFromParcel(Parcel in) {
-            return new CellBroadcastMessage(
+            CellBroadcastMessage message = new CellBroadcastMessage(
                     in.readInt(), in.readInt(),
                     in.readInt(), in.readInt(), in.readString(),
                     in.readString(), in.readLong(), (in.readInt() != 0));
+            message.readClassificationFromParcel(in);
+            return message;
         }
 
         public CellBroadcastMessage[] newArray(int size) {
@@ -111,8 +112,10 @@ public class CellBroadcastMessage extends BroadcastMessage {
         String body = cursor.getString(CellBroadcastDatabase.COLUMN_MESSAGE_BODY);
         long deliveryTime = cursor.getLong(CellBroadcastDatabase.COLUMN_DELIVERY_TIME);
         boolean isRead = (cursor.getInt(CellBroadcastDatabase.COLUMN_MESSAGE_READ) != 0);
-        return new CellBroadcastMessage(geoScope, serialNum, messageCode, messageId,
-                language, body, deliveryTime, isRead);
+        CellBroadcastMessage message = new CellBroadcastMessage(geoScope, serialNum,
+                messageCode, messageId, language, body, deliveryTime, isRead);
+        message.readClassificationFromCursor(cursor);
+        return message;
     }
 
     /**
@@ -120,16 +123,18 @@ public class CellBroadcastMessage extends BroadcastMessage {
      * @return a new ContentValues object containing this object's data
      */
     public ContentValues getContentValues() {
-        ContentValues cv = new ContentValues(9);
+        ContentValues cv = new ContentValues(13);
         cv.put(CellBroadcastDatabase.Columns.GEOGRAPHICAL_SCOPE, mGeographicalScope);
         cv.put(CellBroadcastDatabase.Columns.SERIAL_NUMBER, mSerialNumber);
         cv.put(CellBroadcastDatabase.Columns.MESSAGE_CODE, mMessageCode);
         cv.put(CellBroadcastDatabase.Columns.MESSAGE_IDENTIFIER, mMessageIdentifier);
         cv.put(CellBroadcastDatabase.Columns.LANGUAGE_CODE, mLanguageCode);
         cv.put(CellBroadcastDatabase.Columns.MESSAGE_BODY, mMessageBody);
+        CellBroadcastDatabase.putSnippet(cv, mMessageBody);
         cv.put(CellBroadcastDatabase.Columns.DELIVERY_TIME, mDeliveryTime);
         cv.put(CellBroadcastDatabase.Columns.MESSAGE_READ, mIsRead);
         cv.put(CellBroadcastDatabase.Columns.MESSAGE_FORMAT, getFormat());
+        putClassification(cv);
         return cv;
     }
 
@@ -145,47 +150,6 @@ public class CellBroadcastMessage extends BroadcastMessage {
         return mMessageCode;
     }
 
-    /**
-     * Return whether the broadcast is an emergency (PWS) message type.
-     * This includes lower priority test messages and Amber alerts.
-     *
-     * All public alerts show the flashing warning icon in the dialog,
-     * but only emergency alerts play the alert sound and speak the message.
-     *
-     * @return true if the message is PWS type; false otherwise
-     */
-    public boolean isPublicAlertMessage() {
-        return SmsCbHeader.isEmergencyMessage(mMessageIdentifier);
-    }
-
-    /**
-     * Returns whether the broadcast is an emergency (PWS) message type,
-     * including test messages, but excluding lower priority Amber alert broadcasts.
-     *
-     * @return true if the message is PWS type, excluding Amber alerts
-     */
-    public boolean isEmergencyAlertMessage() {
-        int id = mMessageIdentifier;
-        return SmsCbHeader.isEmergencyMessage(id) &&
-                id != SmsCbConstants.MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY;
-    }
-
-    /**
-     * Return whether the broadcast is an ETWS emergency message type.
-     * @return true if the message is ETWS emergency type; false otherwise
-     */
-    public boolean isEtwsMessage() {
-        return SmsCbHeader.isEtwsMessage(mMessageIdentifier);
-    }
-
-    /**
-     * Return whether the broadcast is a CMAS emergency message type.
-     * @return true if the message is CMAS emergency type; false otherwise
-     */
-    public boolean isCmasMessage() {
-        return SmsCbHeader.isCmasMessage(mMessageIdentifier);
-    }
-
     /**
      * Return whether the broadcast is an ETWS popup alert.
      * This method checks the message ID and the message code.
@@ -206,66 +170,7 @@ public class CellBroadcastMessage extends BroadcastMessage {
                 SmsCbHeader.isEtwsEmergencyUserAlert(mMessageCode);
     }
 
-    public int getDialogTitleResource() {
-        switch (mMessageIdentifier) {
-            case SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_WARNING:
-                return R.string.etws_earthquake_warning;
-
-            case SmsCbConstants.MESSAGE_ID_ETWS_TSUNAMI_WARNING:
-                return R.string.etws_tsunami_warning;
-
-            case SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_AND_TSUNAMI_WARNING:
-                return R.string.etws_earthquake_and_tsunami_warning;
-
-            case SmsCbConstants.MESSAGE_ID_ETWS_TEST_MESSAGE:
-                return R.string.etws_test_message;
-
-            case SmsCbConstants.MESSAGE_ID_ETWS_OTHER_EMERGENCY_TYPE:
-                return R.string.etws_other_emergency_type;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL:
-                return R.string.cmas_presidential_level_alert;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED:
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_LIKELY:
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_EXPECTED_OBSERVED:
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_EXPECTED_LIKELY:
-                return R.string.cmas_extreme_alert;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_IMMEDIATE_OBSERVED:
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_IMMEDIATE_LIKELY:
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_OBSERVED:
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_LIKELY:
-                return R.string.cmas_severe_alert;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY:
-                return R.string.cmas_amber_alert;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST:
-                return R.string.cmas_required_monthly_test;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXERCISE:
-                return R.string.cmas_exercise_alert;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_OPERATOR_DEFINED_USE:
-                return R.string.cmas_operator_defined_alert;
-
-            default:
-                if (SmsCbHeader.isEmergencyMessage(mMessageIdentifier) ||
-                        isOperatorDefinedEmergencyId()) {
-                    return R.string.pws_other_message_identifiers;
-                } else {
-                    return R.string.cb_other_message_identifiers;
-                }
-        }
-    }
-
     public String getIntentExtraName() {
         return SMS_CB_MESSAGE_EXTRA;
     }
-
-    boolean isOperatorDefinedEmergencyId() {
-        return isOperatorDefinedEmergencyId(
-                SystemProperties.get(EMERGENCY_BROADCAST_RANGE));
-    }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * In-process latency metrics and counters. Each sample is logged when it is recorded,
+ * and the summary of each metric (count, min, median and max of the recent samples) and
+ * the value of each counter are printed by dumpsys, see {@link CellBroadcastAlertActivity}.
+ * May be used from any thread.
+ */
+final class CellBroadcastMetrics {
+    private static final String TAG = "CellBroadcastMetrics";
+
+    /** Time from receiving an alert to the first frame of the alert dialog. */
+    static final String ALERT_FIRST_FRAME = "alert_first_frame";
+
+    /** {@link #ALERT_FIRST_FRAME} for presidential alerts only. */
+    static final String PRESIDENTIAL_ALERT_FIRST_FRAME = "presidential_alert_first_frame";
+
+    /** Time to start playing the attention signal of an alert. */
+    static final String ALERT_TONE_START = "alert_tone_start";
+
+    /** Time to bind and initialize the text-to-speech engine. */
+    static final String TTS_INIT = "tts_init";
+
+    /** Time of one channel enable/disable call to the radio. */
+    static final String CHANNEL_CALL = "channel_call";
+
+    /** Counter of the channel enable/disable calls sent to the radio. */
+    static final String CHANNEL_CALLS_ISSUED = "channel_calls_issued";
+
+    /** Counter of the channel enable/disable calls skipped because nothing changed. */
+    static final String CHANNEL_CALLS_SKIPPED = "channel_calls_skipped";
+
+    /** Number of recent samples kept for the median of each metric. */
+    private static final int RECENT_SAMPLES = 32;
+
+    /** Samples of a metric. */
+    private static final class Latency {
+        final long[] mRecent = new long[RECENT_SAMPLES];
+        int mCount;
+        long mMin = Long.MAX_VALUE;
+        long mMax;
+
+        void add(long latencyMillis) {
+            mRecent[mCount % RECENT_SAMPLES] = latencyMillis;
+            mCount++;
+            mMin = Math.min(mMin, latencyMillis);
+            mMax = Math.max(mMax, latencyMillis);
+        }
+
+        long getRecentMedian() {
+            long[] recent = Arrays.copyOf(mRecent, Math.min(mCount, RECENT_SAMPLES));
+            Arrays.sort(recent);
+            return recent[recent.length / 2];
+        }
+    }
+
+    private static final LinkedHashMap<String, Latency> sLatencies =
+            new LinkedHashMap<String, Latency>();
+
+    private static final LinkedHashMap<String, Long> sCounters =
+            new LinkedHashMap<String, Long>();
+
+    private CellBroadcastMetrics() {}
+
+    /**
+     * Record a latency sample.
+     * @param metric the name of the metric
+     * @param latencyMillis the latency in milliseconds
+     */
+    static void recordLatency(String metric, long latencyMillis) {
+        synchronized (sLatencies) {
+            Latency latency = sLatencies.get(metric);
+            if (latency == null) {
+                latency = new Latency();
+                sLatencies.put(metric, latency);
+            }
+            latency.add(latencyMillis);
+        }
+        Log.i(TAG, metric + ": " + latencyMillis + " ms");
+    }
+
+    /**
+     * Add to a counter.
+     * @param counter the name of the counter
+     * @param delta the amount to add
+     */
+    static void incrementCounter(String counter, int delta) {
+        long value;
+        synchronized (sCounters) {
+            Long previous = sCounters.get(counter);
+            value = (previous != null ? previous : 0) + delta;
+            sCounters.put(counter, value);
+        }
+        if (DBG) Log.d(TAG, counter + ": " + value);
+    }
+
+    /**
+     * Print the summary of every metric.
+     * @param prefix the prefix of each line
+     * @param writer the writer to print to
+     */
+    static void dump(String prefix, PrintWriter writer) {
+        synchronized (sLatencies) {
+            writer.print(prefix);
+            writer.println("Latency metrics (ms):");
+            for (String metric : sLatencies.keySet()) {
+                Latency latency = sLatencies.get(metric);
+                writer.print(prefix);
+                writer.print("  ");
+                writer.print(metric);
+                writer.print(": count=");
+                writer.print(latency.mCount);
+                writer.print(" min=");
+                writer.print(latency.mMin);
+                writer.print(" median=");
+                writer.print(latency.getRecentMedian());
+                writer.print(" max=");
+                writer.println(latency.mMax);
+            }
+        }
+        synchronized (sCounters) {
+            writer.print(prefix);
+            writer.println("Counters:");
+            for (String counter : sCounters.keySet()) {
+                writer.print(prefix);
+                writer.print("  ");
+                writer.print(counter);
+                writer.print('=');
+                writer.println(sCounters.get(counter));
+            }
+        }
+    }
+}
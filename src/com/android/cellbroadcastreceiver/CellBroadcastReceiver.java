@@ -22,19 +22,34 @@ import android.content.Intent;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.provider.Telephony;
-import android.telephony.PhoneStateListener;
 import android.telephony.ServiceState;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import com.android.internal.telephony.ITelephony;
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.TelephonyIntents;
 
 public class CellBroadcastReceiver extends BroadcastReceiver {
     private static final String TAG = "CellBroadcastReceiver";
     static final boolean DBG = true;    // TODO: change to false before ship
-    private ServiceStateListener mSsl = new ServiceStateListener();
-    private Context mC;
-    private int mSs = -1;
+
+    /** The active phone type, asked from the phone once per process. */
+    private static final PhoneTypeCache sPhoneTypeCache = new PhoneTypeCache(
+            new PhoneTypeCache.Source() {
+                public int getActivePhoneType() {
+                    try {
+                        ITelephony phone = ITelephony.Stub.asInterface(
+                                ServiceManager.checkService("phone"));
+                        if (phone != null) {
+                            return phone.getActivePhoneType();
+                        }
+                    } catch (RemoteException e) {
+                        Log.w(TAG, "phone.getActivePhoneType() failed", e);
+                    }
+                    return PhoneTypeCache.UNKNOWN;
+                }
+            });
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -47,16 +62,24 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
         String action = intent.getAction();
 
         if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
-            mC = context;
-            Log.d(TAG, "Registering for ServiceState updates");
-            TelephonyManager tm = (TelephonyManager)context.getSystemService(
-                    Context.TELEPHONY_SERVICE);
-            tm.listen(mSsl, PhoneStateListener.LISTEN_SERVICE_STATE);
+            CellBroadcastConfigScheduler.onBootCompleted(context);
+        } else if (TelephonyIntents.ACTION_SERVICE_STATE_CHANGED.equals(action)) {
+            // received in the manifest, so that it isn't lost when the process dies
+            ServiceState serviceState = ServiceState.newFromBundle(intent.getExtras());
+            updatePhoneType(context, getPhoneType(serviceState.getRadioTechnology()));
+            CellBroadcastConfigScheduler.onServiceStateChanged(context, serviceState);
+        } else if (TelephonyIntents.ACTION_RADIO_TECHNOLOGY_CHANGED.equals(action)) {
+            String phoneName = intent.getStringExtra(Phone.PHONE_NAME_KEY);
+            if ("CDMA".equals(phoneName)) {
+                updatePhoneType(context, TelephonyManager.PHONE_TYPE_CDMA);
+            } else if ("GSM".equals(phoneName)) {
+                updatePhoneType(context, TelephonyManager.PHONE_TYPE_GSM);
+            }
         } else if (Intent.ACTION_AIRPLANE_MODE_CHANGED.equals(action)) {
             boolean airplaneModeOn = intent.getBooleanExtra("state", false);
             Log.d(TAG, "airplaneModeOn: " + airplaneModeOn);
             if (!airplaneModeOn) {
-                startConfigService(context);
+                CellBroadcastConfigScheduler.scheduleFullConfig(context);
             }
         } else if (Telephony.Sms.Intents.SMS_EMERGENCY_CB_RECEIVED_ACTION.equals(action) ||
                 Telephony.Sms.Intents.SMS_CB_RECEIVED_ACTION.equals(action) ||
@@ -77,46 +100,49 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
     }
 
     /**
-     * Tell {@link CellBroadcastConfigService} to enable the CB channels.
-     * @param context the broadcast receiver context
+     * @return true if the phone is a CDMA phone type
      */
-    static void startConfigService(Context context) {
-        String action = CellBroadcastConfigService.ACTION_ENABLE_CHANNELS_GSM;
-        if (phoneIsCdma()) {
-            action = CellBroadcastConfigService.ACTION_ENABLE_CHANNELS_CDMA;
-        }
-        Intent serviceIntent = new Intent(action, null,
-                context, CellBroadcastConfigService.class);
-        context.startService(serviceIntent);
+    static boolean phoneIsCdma() {
+        return sPhoneTypeCache.getPhoneType() == TelephonyManager.PHONE_TYPE_CDMA;
     }
 
     /**
-     * @return true if the phone is a CDMA phone type
+     * Update the cached phone type, and configure the channels of the new format if the
+     * phone switched between GSM and CDMA.
      */
-    private static boolean phoneIsCdma() {
-        boolean isCdma = false;
-        try {
-            ITelephony phone = ITelephony.Stub.asInterface(ServiceManager.checkService("phone"));
-            if (phone != null) {
-                isCdma = (phone.getActivePhoneType() == TelephonyManager.PHONE_TYPE_CDMA);
-            }
-        } catch (RemoteException e) {
-            Log.w(TAG, "phone.getActivePhoneType() failed", e);
+    private static void updatePhoneType(Context context, int phoneType) {
+        if (sPhoneTypeCache.update(phoneType)) {
+            Log.d(TAG, "phone type changed to " + phoneType);
+            CellBroadcastConfigScheduler.onPhoneTypeChanged(context);
         }
-        return isCdma;
     }
 
-    private class ServiceStateListener extends PhoneStateListener {
-        @Override
-        public void onServiceStateChanged(ServiceState ss) {
-            if (ss.getState() != mSs) {
-                Log.d(TAG, "Service state changed! " + ss.getState() + " Full: " + ss);
-                if (ss.getState() == ServiceState.STATE_IN_SERVICE ||
-                    ss.getState() == ServiceState.STATE_EMERGENCY_ONLY    ) {
-                    mSs = ss.getState();
-                    startConfigService(mC);
-                }
-            }
+    /**
+     * Return the phone type that uses a radio technology.
+     * @return the phone type, or {@link PhoneTypeCache#UNKNOWN} if the technology is
+     *  unknown, or used by both GSM and CDMA phones (LTE)
+     */
+    private static int getPhoneType(int radioTechnology) {
+        switch (radioTechnology) {
+            case ServiceState.RADIO_TECHNOLOGY_GPRS:
+            case ServiceState.RADIO_TECHNOLOGY_EDGE:
+            case ServiceState.RADIO_TECHNOLOGY_UMTS:
+            case ServiceState.RADIO_TECHNOLOGY_HSDPA:
+            case ServiceState.RADIO_TECHNOLOGY_HSUPA:
+            case ServiceState.RADIO_TECHNOLOGY_HSPA:
+                return TelephonyManager.PHONE_TYPE_GSM;
+
+            case ServiceState.RADIO_TECHNOLOGY_IS95A:
+            case ServiceState.RADIO_TECHNOLOGY_IS95B:
+            case ServiceState.RADIO_TECHNOLOGY_1xRTT:
+            case ServiceState.RADIO_TECHNOLOGY_EVDO_0:
+            case ServiceState.RADIO_TECHNOLOGY_EVDO_A:
+            case ServiceState.RADIO_TECHNOLOGY_EVDO_B:
+            case ServiceState.RADIO_TECHNOLOGY_EHRPD:
+                return TelephonyManager.PHONE_TYPE_CDMA;
+
+            default:
+                return PhoneTypeCache.UNKNOWN;
         }
     }
 }
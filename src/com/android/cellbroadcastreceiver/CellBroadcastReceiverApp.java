@@ -17,10 +17,12 @@
 package com.android.cellbroadcastreceiver;
 
 import android.app.Application;
-import android.content.SharedPreferences;
+import android.content.Intent;
 import android.util.Log;
 import android.preference.PreferenceManager;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
 
 /**
@@ -31,6 +33,15 @@ public class CellBroadcastReceiverApp extends Application {
     public static final String LOG_TAG = "CellBroadcastReceiverApp";
     public static final String PREF_KEY_NOTIFICATION_ID = "notification_id";
 
+    /** Notification IDs wrap around before they get dangerous. */
+    private static final int MAX_NOTIFICATION_ID = 32765;
+
+    /** Number of notification IDs reserved by each write of the preference. */
+    private static final int NOTIFICATION_ID_BATCH = 32;
+
+    /** The last allocated notification ID. */
+    private final AtomicInteger mLastNotificationId = new AtomicInteger();
+
     static CellBroadcastReceiverApp gCellBroadcastReceiverApp;
 
     @Override
@@ -38,29 +49,50 @@ public class CellBroadcastReceiverApp extends Application {
         super.onCreate();
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
         gCellBroadcastReceiverApp = this;
+        // continue after the batch reserved by the previous process (the saved ID may not
+        // be the end of a batch if it was saved before IDs were reserved in batches)
+        int savedId = PreferenceManager.getDefaultSharedPreferences(this)
+                .getInt(PREF_KEY_NOTIFICATION_ID, 0);
+        int batchEnd = (savedId + NOTIFICATION_ID_BATCH - 1) / NOTIFICATION_ID_BATCH
+                * NOTIFICATION_ID_BATCH;
+        mLastNotificationId.set(Math.min(batchEnd, MAX_NOTIFICATION_ID));
+
+        // Reclassify stored broadcasts if the operator ranges or our version changed.
+        if (CellBroadcastClassifier.needsReclassification(this)) {
+            Intent intent = new Intent(this, CellBroadcastDatabaseService.class);
+            intent.setAction(CellBroadcastDatabaseService.ACTION_RECLASSIFY_BROADCASTS);
+            startService(intent);
+        }
     }
 
     public static CellBroadcastReceiverApp getCellBroadcastReceiverApp() {
         return gCellBroadcastReceiverApp;
     }
 
-    // Each incoming CB gets its own notification. We have to use a new unique notification id
-    // for each one.
+    /**
+     * Allocate a notification ID for an emergency alert. IDs are allocated in memory;
+     * the preference is only written once per {@link #NOTIFICATION_ID_BATCH} IDs, to
+     * reserve the next batch.
+     * @return a notification ID between 1 and {@link #MAX_NOTIFICATION_ID}
+     */
     public int getNextNotificationId() {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        int notificationId = prefs.getInt(PREF_KEY_NOTIFICATION_ID, 0);
-        ++notificationId;
-        if (notificationId > 32765) {
-            notificationId = 1;     // wrap around before it gets dangerous
-        }
+        int lastId;
+        int notificationId;
+        do {
+            lastId = mLastNotificationId.get();
+            notificationId = (lastId >= MAX_NOTIFICATION_ID) ? 1 : lastId + 1;
+        } while (!mLastNotificationId.compareAndSet(lastId, notificationId));
 
-        // Save the updated notificationId in SharedPreferences
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putInt(PREF_KEY_NOTIFICATION_ID, notificationId);
-        editor.apply();
+        if ((notificationId - 1) % NOTIFICATION_ID_BATCH == 0) {
+            // first ID of a batch: reserve the rest of the batch
+            int reservedId = Math.min(notificationId + NOTIFICATION_ID_BATCH - 1,
+                    MAX_NOTIFICATION_ID);
+            PreferenceManager.getDefaultSharedPreferences(this).edit()
+                    .putInt(PREF_KEY_NOTIFICATION_ID, reservedId).apply();
+            if (DBG) Log.d(LOG_TAG, "reserved notification IDs up to " + reservedId);
+        }
 
         if (DBG) Log.d(LOG_TAG, "getNextNotificationId: " + notificationId);
-
         return notificationId;
     }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Date sections of the broadcast history for the fast scroller: Today, Yesterday,
+ * then one section per month. The position of each section is computed from the
+ * number of broadcasts in each date range (see
+ * {@link CellBroadcastDatabase#countByDeliveryTime}), not by reading the rows, so
+ * sections are available for the whole history when only its first page is loaded.
+ *
+ * Sections are immutable; after broadcasts are inserted, {@link #load} only
+ * recounts today's broadcasts and shifts the other sections.
+ */
+final class CellBroadcastSections {
+    private static final String TAG = "CellBroadcastSections";
+
+    /** Index of the Today range in {@link #mStarts}. */
+    private static final int RANGE_TODAY = 0;
+
+    /** Start of today when the sections were computed. */
+    private final long mTodayStart;
+
+    /** Start time of each date range, newest first, including empty ranges. */
+    private final long[] mStarts;
+
+    /** Number of broadcasts in each date range. */
+    private final int[] mCounts;
+
+    /** Labels of the non-empty ranges, returned by {@link #getLabels}. */
+    private final String[] mLabels;
+
+    /** Position of the first row of each non-empty range. */
+    private final int[] mPositions;
+
+    private CellBroadcastSections(Context context, long todayStart, long[] starts,
+            int[] counts) {
+        mTodayStart = todayStart;
+        mStarts = starts;
+        mCounts = counts;
+
+        int sectionCount = 0;
+        for (int count : counts) {
+            if (count != 0) {
+                sectionCount++;
+            }
+        }
+        mLabels = new String[sectionCount];
+        mPositions = new int[sectionCount];
+        int section = 0;
+        int position = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                mLabels[section] = getLabel(context, i, starts[i]);
+                mPositions[section] = position;
+                section++;
+                position += counts[i];
+            }
+        }
+    }
+
+    private static String getLabel(Context context, int range, long start) {
+        switch (range) {
+            case RANGE_TODAY:
+                return context.getString(R.string.section_today);
+
+            case RANGE_TODAY + 1:
+                return context.getString(R.string.section_yesterday);
+
+            default:
+                return DateUtils.formatDateTime(context, start, DateUtils.FORMAT_SHOW_DATE
+                        | DateUtils.FORMAT_NO_MONTH_DAY | DateUtils.FORMAT_SHOW_YEAR);
+        }
+    }
+
+    /** Return the start of the day containing the specified time, in the local time zone. */
+    private static long getDayStart(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Return the start times of the date ranges: today, yesterday, the rest of
+     * this month (if yesterday was in this month), then each previous month back
+     * to the month containing the oldest broadcast.
+     */
+    private static long[] getRangeStarts(long todayStart, long oldest) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(todayStart);
+        calendar.add(Calendar.DAY_OF_MONTH, -1);
+        long yesterdayStart = calendar.getTimeInMillis();
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+
+        long[] starts = new long[16];
+        int count = 0;
+        starts[count++] = todayStart;
+        starts[count++] = yesterdayStart;
+        long monthStart = calendar.getTimeInMillis();
+        if (monthStart == yesterdayStart) {
+            // yesterday was the first day of the month
+            calendar.add(Calendar.MONTH, -1);
+            monthStart = calendar.getTimeInMillis();
+        }
+        while (true) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+            }
+            starts[count++] = monthStart;
+            if (monthStart <= oldest) {
+                break;
+            }
+            calendar.add(Calendar.MONTH, -1);
+            monthStart = calendar.getTimeInMillis();
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    /**
+     * Compute the sections of a list. Called on a worker thread.
+     * @param context the Context, for the section labels
+     * @param db an open readable database
+     * @param group the group to list, or null to list all broadcasts
+     * @param filter the filter and sort order, or null to list all broadcasts by date
+     * @param previous the sections of the same list before broadcasts were inserted
+     *        (so only today's broadcasts need recounting), or null to count all ranges
+     * @return the sections, or null if the list isn't sorted by date
+     */
+    static CellBroadcastSections load(Context context, SQLiteDatabase db,
+            CellBroadcastDatabase.GroupKey group, CellBroadcastFilter filter,
+            CellBroadcastSections previous) {
+        // the broadcasts of a group are listed by date, see buildListQuery()
+        if (filter != null && filter.mSortByPriority && group == null) {
+            return null;
+        }
+        long todayStart = getDayStart(System.currentTimeMillis());
+
+        if (previous != null && previous.mTodayStart == todayStart) {
+            int[] todayCount = CellBroadcastDatabase.countByDeliveryTime(db, group, filter,
+                    new long[] {todayStart});
+            int[] counts = previous.mCounts.clone();
+            counts[RANGE_TODAY] = todayCount[0];
+            if (DBG) Log.d(TAG, "recounted today: " + counts[RANGE_TODAY]);
+            return new CellBroadcastSections(context, todayStart, previous.mStarts, counts);
+        }
+
+        long oldest = CellBroadcastDatabase.getOldestDeliveryTime(db, group, filter);
+        long[] starts = getRangeStarts(todayStart, (oldest == -1) ? todayStart : oldest);
+        int[] counts = CellBroadcastDatabase.countByDeliveryTime(db, group, filter, starts);
+        if (DBG) Log.d(TAG, "counted " + starts.length + " date ranges");
+        return new CellBroadcastSections(context, todayStart, starts, counts);
+    }
+
+    /** Return the labels of the sections, for {@link android.widget.SectionIndexer}. */
+    String[] getLabels() {
+        return mLabels;
+    }
+
+    /**
+     * Return the position of the first row of a section.
+     * @param section the index of the section
+     * @return the position, which may be beyond the loaded rows
+     */
+    int getPositionForSection(int section) {
+        if (mPositions.length == 0) {
+            return 0;
+        }
+        return mPositions[Math.max(0, Math.min(section, mPositions.length - 1))];
+    }
+
+    /**
+     * Return the section containing a row.
+     * @param position the position of the row
+     * @return the index of the section
+     */
+    int getSectionForPosition(int position) {
+        int index = Arrays.binarySearch(mPositions, position);
+        if (index < 0) {
+            index = -index - 2;     // the section starting before the position
+        }
+        return Math.max(0, index);
+    }
+}
@@ -76,7 +76,7 @@ public class CellBroadcastSettings extends PreferenceActivity {
         if (!res.getBoolean(R.bool.show_cmas_settings)) {
             getPreferenceScreen().removePreference(findPreference(KEY_CATEGORY_CMAS_SETTINGS));
         }
-        if (!res.getBoolean(R.bool.show_brazil_settings)) {
+        if (!CellBroadcastClassifier.isChannel50Supported(this)) {
             getPreferenceScreen().removePreference(findPreference(KEY_CATEGORY_BRAZIL_SETTINGS));
         }
 
@@ -94,7 +94,8 @@ public class CellBroadcastSettings extends PreferenceActivity {
         Preference.OnPreferenceChangeListener startConfigServiceListener =
                 new Preference.OnPreferenceChangeListener() {
                     public boolean onPreferenceChange(Preference pref, Object newValue) {
-                        CellBroadcastReceiver.startConfigService(pref.getContext());
+                        // the pass runs after the new value is saved
+                        CellBroadcastConfigScheduler.scheduleConfig(pref.getContext());
                         return true;
                     }
                 };
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * A single notification summarizing the non-emergency broadcasts received since the
+ * user last opened the broadcast list: the number of broadcasts and the most recent
+ * one. Emergency alerts keep a notification each (see {@link CellBroadcastAlertService}).
+ *
+ * Updates are rate limited: the notification is posted at most once every
+ * {@link #MIN_UPDATE_INTERVAL_MSEC}, and broadcasts received in between are coalesced
+ * into one silent update, posted by an alarm. The summary is kept in the preferences,
+ * so it survives the process. Must only be used on the main thread.
+ */
+final class CellBroadcastSummaryNotification {
+    private static final String TAG = "CellBroadcastSummaryNotification";
+
+    /** Tag of the summary notification, so its ID can't collide with alert notifications. */
+    private static final String NOTIFICATION_TAG = "summary";
+    private static final int NOTIFICATION_ID = 1;
+
+    /** Minimum time between two updates of the notification. */
+    private static final int MIN_UPDATE_INTERVAL_MSEC = 2000;
+
+    /** Preference key for the number of broadcasts summarized. */
+    private static final String PREF_KEY_COUNT = "summary_count";
+
+    /** Preference key for the channel name of the most recent broadcast. */
+    private static final String PREF_KEY_TITLE = "summary_title";
+
+    /** Preference key for the text of the most recent broadcast. */
+    private static final String PREF_KEY_BODY = "summary_body";
+
+    /** Preference key for the delivery time of the most recent broadcast. */
+    private static final String PREF_KEY_DELIVERY_TIME = "summary_delivery_time";
+
+    /** Preference key for the elapsed realtime of the last posted update. */
+    private static final String PREF_KEY_LAST_UPDATE_TIME = "summary_last_update_time";
+
+    /** Preference key for the elapsed realtime of the scheduled update, if any. */
+    private static final String PREF_KEY_PENDING_TIME = "summary_pending_time";
+
+    private CellBroadcastSummaryNotification() {}
+
+    /**
+     * Add a non-emergency broadcast to the summary.
+     * @param context the Context
+     * @param message the received broadcast
+     */
+    static void add(Context context, BroadcastMessage message) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int count = prefs.getInt(PREF_KEY_COUNT, 0) + 1;
+        SharedPreferences.Editor editor = prefs.edit()
+                .putInt(PREF_KEY_COUNT, count)
+                .putString(PREF_KEY_TITLE,
+                        context.getString(message.getDialogTitleResource()))
+                .putString(PREF_KEY_BODY, message.getMessageBody())
+                .putLong(PREF_KEY_DELIVERY_TIME, message.getDeliveryTime());
+
+        // times ahead of now were set in the previous boot
+        long now = SystemClock.elapsedRealtime();
+        long pendingTime = prefs.getLong(PREF_KEY_PENDING_TIME, 0);
+        if (pendingTime > now && pendingTime <= now + MIN_UPDATE_INTERVAL_MSEC) {
+            if (DBG) Log.d(TAG, "coalescing broadcast " + count);
+            editor.apply();
+            return;
+        }
+        long lastUpdateTime = prefs.getLong(PREF_KEY_LAST_UPDATE_TIME, 0);
+        long nextUpdateTime = lastUpdateTime + MIN_UPDATE_INTERVAL_MSEC;
+        if (lastUpdateTime == 0 || lastUpdateTime > now || now >= nextUpdateTime) {
+            editor.apply();
+            postNotification(context, false);
+        } else {
+            editor.putLong(PREF_KEY_PENDING_TIME, nextUpdateTime).apply();
+            AlarmManager alarmManager =
+                    (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME, nextUpdateTime,
+                    getUpdateIntent(context));
+        }
+    }
+
+    /**
+     * Post the update scheduled by {@link #add}, from the alarm.
+     * @param context the Context
+     */
+    static void onUpdateAlarm(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .remove(PREF_KEY_PENDING_TIME).apply();
+        // coalesced updates don't play the notification sound again
+        postNotification(context, true);
+    }
+
+    /**
+     * Cancel the notification and reset the summary, e.g. when the user opens the
+     * broadcast list.
+     * @param context the Context
+     */
+    static void clear(Context context) {
+        onDismissed(context);
+        NotificationManager notificationManager = (NotificationManager)
+                context.getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.cancel(NOTIFICATION_TAG, NOTIFICATION_ID);
+    }
+
+    /**
+     * Reset the summary after the user has cleared the notification.
+     * @param context the Context
+     */
+    static void onDismissed(Context context) {
+        AlarmManager alarmManager =
+                (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getUpdateIntent(context));
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .remove(PREF_KEY_COUNT)
+                .remove(PREF_KEY_TITLE)
+                .remove(PREF_KEY_BODY)
+                .remove(PREF_KEY_DELIVERY_TIME)
+                .remove(PREF_KEY_PENDING_TIME)
+                .apply();
+    }
+
+    private static PendingIntent getUpdateIntent(Context context) {
+        Intent intent = new Intent(context, CellBroadcastAlertService.class);
+        intent.setAction(CellBroadcastAlertService.ACTION_SUMMARY_UPDATE);
+        return PendingIntent.getService(context, 0, intent, 0);
+    }
+
+    private static void postNotification(Context context, boolean silent) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int count = prefs.getInt(PREF_KEY_COUNT, 0);
+        if (count == 0) {
+            return;     // cleared since the update was scheduled
+        }
+        prefs.edit().putLong(PREF_KEY_LAST_UPDATE_TIME, SystemClock.elapsedRealtime()).apply();
+
+        String channelName = prefs.getString(PREF_KEY_TITLE, null);
+        CharSequence title = (count == 1) ? channelName
+                : context.getString(R.string.notification_summary_title, count);
+        String body = prefs.getString(PREF_KEY_BODY, null);
+
+        // Open the broadcast list, which clears the summary.
+        PendingIntent contentIntent = PendingIntent.getActivity(context, 0,
+                new Intent(context, CellBroadcastListActivity.class), 0);
+        Intent deleteIntent = new Intent(context, CellBroadcastAlertService.class);
+        deleteIntent.setAction(CellBroadcastAlertService.ACTION_SUMMARY_DISMISSED);
+
+        Notification.Builder builder = new Notification.Builder(context)
+                .setSmallIcon(R.drawable.stat_color_warning)
+                .setTicker(channelName)
+                .setWhen(prefs.getLong(PREF_KEY_DELIVERY_TIME, 0))
+                .setContentTitle(title)
+                .setContentText((count == 1) ? body
+                        : context.getString(R.string.notification_summary_latest,
+                                channelName, body))
+                .setNumber(count)
+                .setContentIntent(contentIntent)
+                .setDeleteIntent(PendingIntent.getService(context, 0, deleteIntent, 0))
+                .setAutoCancel(true)
+                .setOnlyAlertOnce(silent)
+                .setDefaults(Notification.DEFAULT_ALL);
+
+        if (DBG) Log.d(TAG, "posting summary of " + count + " broadcasts, silent=" + silent);
+        NotificationManager notificationManager = (NotificationManager)
+                context.getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.notify(NOTIFICATION_TAG, NOTIFICATION_ID,
+                builder.getNotification());
+    }
+}
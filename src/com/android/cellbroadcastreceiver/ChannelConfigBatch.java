@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+/**
+ * The channel enable/disable calls that configure the radio from the ranges applied
+ * before to the desired ranges. The desired ranges are coalesced into disjoint ranges
+ * first, so that overlapping and adjacent identifiers take a single call. All calls are
+ * made in one pass by {@link #execute}, which times each call.
+ *
+ * Uses no Android APIs: the radio is reached through the {@link Radio} interface, so
+ * the batch can be tested on the host.
+ */
+final class ChannelConfigBatch {
+
+    /** The radio calls to enable and disable channel ranges. */
+    interface Radio {
+        /**
+         * Enable or disable a channel range.
+         * @return true if the radio accepted the call
+         */
+        boolean setChannelRange(int startId, int endId, boolean enable);
+    }
+
+    private final ChannelRangeSet mEnableRanges;
+    private final ChannelRangeSet mDisableRanges;
+    private final ChannelRangeSet mAppliedRanges;
+    private final int mFullCallCount;
+
+    /** Duration of each call of the last {@link #execute}, enable calls first. */
+    private final long[] mCallNanos;
+
+    /**
+     * Create the calls that configure the radio.
+     * @param desiredRanges the ranges to enable
+     * @param managedRanges all ranges that may have been enabled; when the ranges applied
+     *  are unknown, those that aren't covered by the desired ranges are disabled
+     * @param appliedRanges the ranges applied by the last configuration, or null if
+     *  unknown (the first configuration after boot)
+     */
+    ChannelConfigBatch(ChannelRangeSet desiredRanges, ChannelRangeSet managedRanges,
+            ChannelRangeSet appliedRanges) {
+        ChannelRangeSet coalescedRanges = desiredRanges.coalesce();
+        mAppliedRanges = new ChannelRangeSet();
+        if (appliedRanges != null) {
+            mEnableRanges = coalescedRanges.minus(appliedRanges);
+            mDisableRanges = appliedRanges.minus(coalescedRanges);
+            mAppliedRanges.addAll(appliedRanges);
+        } else {
+            mEnableRanges = coalescedRanges;
+            // a managed range inside a desired range (e.g. CMAS Presidential inside the
+            // PWS range) must stay on, so only the ranges with undesired identifiers
+            mDisableRanges = managedRanges.minusCovered(coalescedRanges);
+        }
+        // one call per desired range, and one per managed range with undesired identifiers
+        mFullCallCount = desiredRanges.size()
+                + managedRanges.minusCovered(coalescedRanges).size();
+        mCallNanos = new long[getCallCount()];
+    }
+
+    /** Return the number of calls to the radio. */
+    int getCallCount() {
+        return mEnableRanges.size() + mDisableRanges.size();
+    }
+
+    /** Return the number of calls that configuring every range one by one would make. */
+    int getFullCallCount() {
+        return mFullCallCount;
+    }
+
+    /**
+     * Make the calls. The new ranges are enabled before the old ones are disabled, so
+     * that no identifier that stays enabled is off in between. A call that fails isn't
+     * recorded in the ranges applied, so it is made again by the next configuration.
+     * @param radio the radio to configure
+     * @return the ranges applied
+     */
+    ChannelRangeSet execute(Radio radio) {
+        int call = 0;
+        for (int i = 0; i < mEnableRanges.size(); i++, call++) {
+            int startId = mEnableRanges.getStartId(i);
+            int endId = mEnableRanges.getEndId(i);
+            long start = System.nanoTime();
+            boolean success = radio.setChannelRange(startId, endId, true);
+            mCallNanos[call] = System.nanoTime() - start;
+            if (success) {
+                mAppliedRanges.add(startId, endId);
+            }
+        }
+        for (int i = 0; i < mDisableRanges.size(); i++, call++) {
+            int startId = mDisableRanges.getStartId(i);
+            int endId = mDisableRanges.getEndId(i);
+            long start = System.nanoTime();
+            boolean success = radio.setChannelRange(startId, endId, false);
+            mCallNanos[call] = System.nanoTime() - start;
+            if (success) {
+                mAppliedRanges.remove(startId, endId);
+            }
+        }
+        return mAppliedRanges;
+    }
+
+    /**
+     * Return the duration of a call made by {@link #execute}.
+     * @param call the index of the call, from 0 to {@link #getCallCount} - 1
+     */
+    long getCallNanos(int call) {
+        return mCallNanos[call];
+    }
+}
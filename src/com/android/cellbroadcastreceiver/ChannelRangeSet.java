@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import java.util.ArrayList;
+
+/**
+ * A set of message identifier ranges to enable on the radio, in the format of the
+ * emergency broadcast range system properties, e.g. "0x1112-0x1116,4370".
+ *
+ * Ranges are compared as a whole and only merged by {@link #coalesce}: the phone only
+ * disables a range that was enabled with the same start and end, so {@link #minus}
+ * returns the ranges to enable or disable as they were (or will be) enabled.
+ */
+final class ChannelRangeSet {
+
+    /** Ranges as {start, end}, sorted by start, then end. */
+    private final ArrayList<int[]> mRanges = new ArrayList<int[]>();
+
+    /**
+     * Parse a comma separated list of ranges ("start-end") and single identifiers.
+     * Identifiers may be decimal or hexadecimal ("0x...").
+     * @param ranges the list to parse, may be null or empty
+     * @throws NumberFormatException if an identifier is invalid
+     */
+    static ChannelRangeSet parse(String ranges) {
+        ChannelRangeSet set = new ChannelRangeSet();
+        if (ranges == null) {
+            return set;
+        }
+        for (String channelRange : ranges.split(",")) {
+            channelRange = channelRange.trim();
+            if (channelRange.length() == 0) {
+                continue;
+            }
+            int dashIndex = channelRange.indexOf('-');
+            if (dashIndex != -1) {
+                set.add(Integer.decode(channelRange.substring(0, dashIndex).trim()),
+                        Integer.decode(channelRange.substring(dashIndex + 1).trim()));
+            } else {
+                int messageId = Integer.decode(channelRange);
+                set.add(messageId, messageId);
+            }
+        }
+        return set;
+    }
+
+    /** Add a range, unless it is in the set already. */
+    void add(int startId, int endId) {
+        int index = 0;
+        while (index < mRanges.size() && compare(mRanges.get(index), startId, endId) < 0) {
+            index++;
+        }
+        if (index == mRanges.size() || compare(mRanges.get(index), startId, endId) != 0) {
+            mRanges.add(index, new int[] {startId, endId});
+        }
+    }
+
+    /** Add all ranges of another set. */
+    void addAll(ChannelRangeSet other) {
+        for (int[] range : other.mRanges) {
+            add(range[0], range[1]);
+        }
+    }
+
+    /** Remove a range, if it is in the set. */
+    void remove(int startId, int endId) {
+        for (int i = 0; i < mRanges.size(); i++) {
+            if (compare(mRanges.get(i), startId, endId) == 0) {
+                mRanges.remove(i);
+                return;
+            }
+        }
+    }
+
+    boolean contains(int startId, int endId) {
+        for (int[] range : mRanges) {
+            if (compare(range, startId, endId) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return whether every identifier of a range is in the ranges of this set, unlike
+     * {@link #contains}, which only matches a range with the same start and end.
+     */
+    boolean covers(int startId, int endId) {
+        int nextId = startId;
+        for (int[] range : mRanges) {
+            // sorted by start: once a range starts after the next identifier, it's a gap
+            if (range[0] > nextId) {
+                break;
+            }
+            nextId = Math.max(nextId, range[1] + 1);
+            if (nextId > endId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the ranges of this set that are not covered by the ranges of another set. */
+    ChannelRangeSet minusCovered(ChannelRangeSet other) {
+        ChannelRangeSet difference = new ChannelRangeSet();
+        for (int[] range : mRanges) {
+            if (!other.covers(range[0], range[1])) {
+                difference.mRanges.add(range);
+            }
+        }
+        return difference;
+    }
+
+    /** Return the ranges of this set that are not in another set. */
+    ChannelRangeSet minus(ChannelRangeSet other) {
+        ChannelRangeSet difference = new ChannelRangeSet();
+        for (int[] range : mRanges) {
+            if (!other.contains(range[0], range[1])) {
+                difference.mRanges.add(range);
+            }
+        }
+        return difference;
+    }
+
+    /**
+     * Return the minimal set of disjoint ranges with the same identifiers, merging the
+     * ranges that overlap or are adjacent, e.g. "4370,4371-4379,4380" to "4370-4380".
+     */
+    ChannelRangeSet coalesce() {
+        ChannelRangeSet coalesced = new ChannelRangeSet();
+        int[] last = null;
+        for (int[] range : mRanges) {
+            // sorted by start, so a range can only extend the last merged range
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                last = new int[] {range[0], range[1]};
+                coalesced.mRanges.add(last);
+            }
+        }
+        return coalesced;
+    }
+
+    /** Return the number of ranges. */
+    int size() {
+        return mRanges.size();
+    }
+
+    int getStartId(int index) {
+        return mRanges.get(index)[0];
+    }
+
+    int getEndId(int index) {
+        return mRanges.get(index)[1];
+    }
+
+    private static int compare(int[] range, int startId, int endId) {
+        if (range[0] != startId) {
+            return range[0] < startId ? -1 : 1;
+        }
+        if (range[1] != endId) {
+            return range[1] < endId ? -1 : 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ChannelRangeSet)) {
+            return false;
+        }
+        ChannelRangeSet other = (ChannelRangeSet) o;
+        return size() == other.size() && minus(other).size() == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int[] range : mRanges) {
+            hash = hash * 31 + range[0] * 17 + range[1];
+        }
+        return hash;
+    }
+
+    /** Return the ranges in the format read by {@link #parse}. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int[] range : mRanges) {
+            if (sb.length() != 0) {
+                sb.append(',');
+            }
+            sb.append(range[0]);
+            if (range[1] != range[0]) {
+                sb.append('-').append(range[1]);
+            }
+        }
+        return sb.toString();
+    }
+}
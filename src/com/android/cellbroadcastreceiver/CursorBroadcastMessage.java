@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.database.Cursor;
+
+/**
+ * Reusable, read-only view of a broadcast row in a list cursor. Exposes the same
+ * getters as {@link BroadcastMessage} without allocating a message object per bind:
+ * {@link #moveTo} copies the numeric columns of the current row, and the text
+ * columns are read from the cursor on demand. List cursors contain only a snippet
+ * of the message body, see {@link CellBroadcastDatabase.Columns#LIST_QUERY_COLUMNS}.
+ *
+ * One instance is owned by each {@link CellBroadcastListItem} and rebound as the
+ * list scrolls. Use {@link CellBroadcastDatabase#getMessageCursor} to read the
+ * complete message (e.g. for a dialog).
+ */
+final class CursorBroadcastMessage {
+
+    private Cursor mCursor;
+    private int mPosition = -1;
+
+    private long mRowId;
+    private int mFormat;
+    private int mMessageIdentifier;
+    private long mDeliveryTime;
+    private boolean mIsRead;
+    private int mClassFlags;
+    private int mCategory;
+    private int mSeverity;
+    private int mUrgency;
+    private int mCertainty;
+    private int mGroupCount;
+
+    /**
+     * Point this view at the current row of the cursor.
+     * @param cursor an open cursor with
+     *        {@link CellBroadcastDatabase.Columns#LIST_QUERY_COLUMNS},
+     *        positioned on the row to view
+     */
+    void moveTo(Cursor cursor) {
+        mCursor = cursor;
+        mPosition = cursor.getPosition();
+
+        mRowId = cursor.getLong(CellBroadcastDatabase.COLUMN_ID);
+        mFormat = cursor.getInt(CellBroadcastDatabase.COLUMN_FORMAT);
+        mMessageIdentifier = cursor.getInt(CellBroadcastDatabase.COLUMN_MESSAGE_IDENTIFIER);
+        mDeliveryTime = cursor.getLong(CellBroadcastDatabase.COLUMN_DELIVERY_TIME);
+        mIsRead = cursor.getInt(CellBroadcastDatabase.COLUMN_MESSAGE_READ) != 0;
+        mSeverity = cursor.getInt(CellBroadcastDatabase.COLUMN_SEVERITY);
+        mUrgency = cursor.getInt(CellBroadcastDatabase.COLUMN_URGENCY);
+        mCertainty = cursor.getInt(CellBroadcastDatabase.COLUMN_CERTAINTY);
+
+        if (CellBroadcastDatabase.isGroupCursor(cursor)) {
+            // a group is read when all of its broadcasts have been read
+            mGroupCount = cursor.getInt(CellBroadcastDatabase.COLUMN_GROUP_COUNT);
+            mIsRead = cursor.getInt(CellBroadcastDatabase.COLUMN_GROUP_UNREAD_COUNT) == 0;
+        } else {
+            mGroupCount = 1;
+        }
+
+        if (!cursor.isNull(CellBroadcastDatabase.COLUMN_CLASS_FLAGS)
+                && !cursor.isNull(CellBroadcastDatabase.COLUMN_CATEGORY)) {
+            mClassFlags = cursor.getInt(CellBroadcastDatabase.COLUMN_CLASS_FLAGS);
+            mCategory = cursor.getInt(CellBroadcastDatabase.COLUMN_CATEGORY);
+        } else {
+            // not yet reclassified after a database upgrade
+            mClassFlags = CellBroadcastClassifier.computeClassFlags(mFormat, mMessageIdentifier);
+            mCategory = CellBroadcastClassifier.computeCategory(mFormat, mMessageIdentifier,
+                    mClassFlags);
+        }
+    }
+
+    /**
+     * Point this view at the same row in a new cursor, e.g. after a reload, without
+     * reading the row again. The text columns are then read from the new cursor.
+     * @param cursor an open cursor with the same columns as the viewed row's cursor
+     * @param position the position of the viewed row in the cursor
+     */
+    void moveTo(Cursor cursor, int position) {
+        mCursor = cursor;
+        mPosition = position;
+    }
+
+    /** Move the cursor back to the viewed row before reading a text column. */
+    private Cursor getCursorAtRow() {
+        if (mCursor == null || mCursor.isClosed()) {
+            return null;
+        }
+        if (mCursor.getPosition() != mPosition) {
+            mCursor.moveToPosition(mPosition);
+        }
+        return mCursor;
+    }
+
+    long getRowId() {
+        return mRowId;
+    }
+
+    int getFormat() {
+        return mFormat;
+    }
+
+    int getMessageIdentifier() {
+        return mMessageIdentifier;
+    }
+
+    long getDeliveryTime() {
+        return mDeliveryTime;
+    }
+
+    /** Return whether the broadcast (or all broadcasts of the group) have been read. */
+    boolean isRead() {
+        return mIsRead;
+    }
+
+    /** Show the broadcast as read, before the database has been updated. */
+    void markRead() {
+        mIsRead = true;
+    }
+
+    /** Return the number of broadcasts in the group, or 1 if not from a group cursor. */
+    int getGroupCount() {
+        return mGroupCount;
+    }
+
+    /** Return the CDMA severity ordinal (GSM rows return 0). */
+    int getSeverity() {
+        return mSeverity;
+    }
+
+    /** Return the CDMA urgency ordinal (GSM rows return 0). */
+    int getUrgency() {
+        return mUrgency;
+    }
+
+    /** Return the CDMA certainty ordinal (GSM rows return 0). */
+    int getCertainty() {
+        return mCertainty;
+    }
+
+    /**
+     * Return the start of the message body, read from the cursor.
+     * @return the snippet, or null if the cursor has been closed
+     */
+    String getSnippet() {
+        Cursor cursor = getCursorAtRow();
+        return (cursor != null) ? cursor.getString(CellBroadcastDatabase.COLUMN_SNIPPET)
+                : null;
+    }
+
+    /**
+     * Return the language code, read from the cursor.
+     * @return the language code, or null if the cursor has been closed
+     */
+    String getLanguageCode() {
+        Cursor cursor = getCursorAtRow();
+        return (cursor != null) ? cursor.getString(CellBroadcastDatabase.COLUMN_LANGUAGE_CODE)
+                : null;
+    }
+
+    int getClassFlags() {
+        return mClassFlags;
+    }
+
+    int getCategory() {
+        return mCategory;
+    }
+
+    boolean isPublicAlertMessage() {
+        return (mClassFlags & CellBroadcastClassifier.FLAG_PUBLIC_ALERT) != 0;
+    }
+
+    boolean isEmergencyAlertMessage() {
+        return (mClassFlags & CellBroadcastClassifier.FLAG_EMERGENCY_ALERT) != 0;
+    }
+
+    boolean isEtwsMessage() {
+        return (mClassFlags & CellBroadcastClassifier.FLAG_ETWS) != 0;
+    }
+
+    boolean isCmasMessage() {
+        return (mClassFlags & CellBroadcastClassifier.FLAG_CMAS) != 0;
+    }
+
+    boolean isOperatorDefinedEmergencyId() {
+        return (mClassFlags & CellBroadcastClassifier.FLAG_OPERATOR_EMERGENCY) != 0;
+    }
+
+    int getDialogTitleResource() {
+        return CellBroadcastClassifier.getDialogTitleResource(mCategory);
+    }
+
+    String getDateString(Context context) {
+        return BroadcastMessage.formatDateString(context, mDeliveryTime);
+    }
+
+    String getSpokenDateString(Context context) {
+        return BroadcastMessage.formatSpokenDateString(context, mDeliveryTime);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+/**
+ * Caches the active phone type, so that the phone is asked (a Binder call) once per
+ * process instead of once per channel configuration. The cached type is updated from
+ * the service state and radio technology broadcasts when the phone switches between
+ * GSM and CDMA.
+ *
+ * Uses no Android APIs: the phone is reached through the {@link Source} interface, so
+ * the cache can be tested on the host. May be used from any thread.
+ */
+final class PhoneTypeCache {
+
+    /** Phone type when the phone can't be reached, or a broadcast doesn't tell. */
+    static final int UNKNOWN = -1;
+
+    /** Source of the active phone type. */
+    interface Source {
+        /**
+         * Return the active phone type, as TelephonyManager.PHONE_TYPE_*.
+         * @return the phone type, or {@link #UNKNOWN} if the phone can't be reached
+         */
+        int getActivePhoneType();
+    }
+
+    private final Source mSource;
+
+    /** The cached phone type, or {@link #UNKNOWN} until known. */
+    private int mPhoneType = UNKNOWN;
+
+    PhoneTypeCache(Source source) {
+        mSource = source;
+    }
+
+    /**
+     * Return the active phone type, asking the phone if it isn't known yet. A failed
+     * lookup isn't cached, so the phone is asked again next time.
+     */
+    synchronized int getPhoneType() {
+        if (mPhoneType == UNKNOWN) {
+            mPhoneType = mSource.getActivePhoneType();
+        }
+        return mPhoneType;
+    }
+
+    /**
+     * Update the phone type from a broadcast.
+     * @param phoneType the phone type, or {@link #UNKNOWN} if the broadcast doesn't tell
+     * @return true if the phone switched from another known type
+     */
+    synchronized boolean update(int phoneType) {
+        if (phoneType == UNKNOWN || phoneType == mPhoneType) {
+            return false;
+        }
+        boolean switched = (mPhoneType != UNKNOWN);
+        mPhoneType = phoneType;
+        return switched;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Splits the text of an alert into chunks that are spoken one after the other, so that
+ * the TTS engine can start speaking the first chunk while it synthesizes the rest. The
+ * message body doesn't keep the page boundaries of multi-page broadcasts, so the text
+ * is split at line breaks (which end paragraphs and usually pages), then at sentence
+ * boundaries. Sentences longer than {@link #MAX_CHUNK_LENGTH} are split at the last
+ * space that fits, or else between the last characters that fit.
+ */
+final class SpeechChunker {
+
+    /** Maximum length of a chunk. */
+    static final int MAX_CHUNK_LENGTH = 200;
+
+    private SpeechChunker() {}
+
+    /**
+     * Split a text into chunks to speak.
+     * @param text the text of the alert
+     * @param locale the language of the text, for the sentence boundaries
+     * @return the non-empty chunks, in order
+     */
+    static ArrayList<String> split(String text, Locale locale) {
+        ArrayList<String> chunks = new ArrayList<String>();
+        BreakIterator sentences = BreakIterator.getSentenceInstance(locale);
+        for (String paragraph : text.split("[\r\n]+")) {
+            sentences.setText(paragraph);
+            int start = sentences.first();
+            for (int end = sentences.next(); end != BreakIterator.DONE;
+                    start = end, end = sentences.next()) {
+                addSentence(chunks, paragraph.substring(start, end).trim());
+            }
+        }
+        return chunks;
+    }
+
+    private static void addSentence(ArrayList<String> chunks, String sentence) {
+        while (sentence.length() > MAX_CHUNK_LENGTH) {
+            int split = sentence.lastIndexOf(' ', MAX_CHUNK_LENGTH);
+            if (split <= 0) {
+                split = MAX_CHUNK_LENGTH;   // no space, e.g. Japanese text
+                if (Character.isHighSurrogate(sentence.charAt(split - 1))) {
+                    split--;                // don't split a surrogate pair, e.g. an emoji
+                }
+            }
+            chunks.add(sentence.substring(0, split).trim());
+            sentence = sentence.substring(split).trim();
+        }
+        if (sentence.length() != 0) {
+            chunks.add(sentence);
+        }
+    }
+}
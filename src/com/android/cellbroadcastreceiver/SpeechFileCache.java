@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of synthesized speech files, so that rebroadcasts and
+ * repeated test messages don't have to be synthesized again. Files are keyed by a hash
+ * of the text, the language and the TTS engine, and the least recently used files are
+ * deleted when the total size exceeds the limit. Pinned files, e.g. those of alerts that
+ * are queued but not yet spoken, are not deleted until they are unpinned. The order of
+ * use is kept in the last modified time of the files, so it survives process restarts.
+ * Not thread safe.
+ */
+final class SpeechFileCache {
+
+    /** Suffix of the cached files. */
+    private static final String FILE_SUFFIX = ".wav";
+
+    /** Suffix of files being synthesized. */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+
+    private final long mMaxBytes;
+
+    /** Cached files by key, least recently used first. */
+    private final LinkedHashMap<String, File> mFiles =
+            new LinkedHashMap<String, File>(16, 0.75f, true);
+
+    /** Keys of the files that must not be evicted, see {@link #pin}. */
+    private final HashSet<String> mPinnedKeys = new HashSet<String>();
+
+    /** Total size of the cached files. */
+    private long mTotalBytes;
+
+    /**
+     * Create a cache, loading the files cached by a previous process.
+     * @param directory the directory of the cached files, created if necessary
+     * @param maxBytes the maximum total size of the cached files
+     */
+    SpeechFileCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        directory.mkdirs();
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                long lhsTime = lhs.lastModified();
+                long rhsTime = rhs.lastModified();
+                return (lhsTime < rhsTime) ? -1 : ((lhsTime == rhsTime) ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(FILE_SUFFIX)) {
+                mFiles.put(name.substring(0, name.length() - FILE_SUFFIX.length()), file);
+                mTotalBytes += file.length();
+            } else {
+                file.delete();  // left over from an interrupted synthesis
+            }
+        }
+        trimToSize();
+    }
+
+    /**
+     * Return the cache key of a text.
+     * @param text the text to speak
+     * @param language the language, or null for the default language of the engine
+     * @param engine the package name of the TTS engine
+     * @return the key, usable as a file name
+     */
+    static String getKey(String text, String language, String engine) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((engine + '\n' + language + '\n').getBytes("UTF-8"));
+            byte[] hash = digest.digest(text.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the cached file of a key and mark it as most recently used.
+     * @param key the key
+     * @return the file, or null if not cached
+     */
+    File get(String key) {
+        File file = mFiles.get(key);
+        if (file != null) {
+            if (!file.exists()) {
+                remove(key);
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return file;
+    }
+
+    /** Return the file to synthesize the speech of a key to, before {@link #put}. */
+    File getTempFile(String key) {
+        return new File(mDirectory, key + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Add the file synthesized to {@link #getTempFile} to the cache, and delete the
+     * least recently used files if the cache is too large.
+     * @param key the key
+     * @return the cached file, or null if the synthesis failed
+     */
+    File put(String key) {
+        File tempFile = getTempFile(key);
+        if (tempFile.length() == 0) {
+            tempFile.delete();
+            return null;
+        }
+        remove(key);
+        File file = new File(mDirectory, key + FILE_SUFFIX);
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return null;
+        }
+        mFiles.put(key, file);
+        mTotalBytes += file.length();
+        trimToSize();
+        return mFiles.get(key);
+    }
+
+    /**
+     * Keep the file of a key, cached or not yet synthesized, until {@link #unpinAll}. The
+     * cache may exceed its limit meanwhile.
+     * @param key the key
+     */
+    void pin(String key) {
+        mPinnedKeys.add(key);
+    }
+
+    /** Allow all pinned files to be evicted, and evict them if the cache is too large. */
+    void unpinAll() {
+        mPinnedKeys.clear();
+        trimToSize();
+    }
+
+    /** Return the total size of the cached files. */
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    private void remove(String key) {
+        File file = mFiles.remove(key);
+        if (file != null) {
+            mTotalBytes -= file.length();
+            file.delete();
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, File>> it = mFiles.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, File> entry = it.next();
+            if (mPinnedKeys.contains(entry.getKey())) {
+                continue;
+            }
+            File file = entry.getValue();
+            mTotalBytes -= file.length();
+            file.delete();
+            it.remove();
+        }
+    }
+}
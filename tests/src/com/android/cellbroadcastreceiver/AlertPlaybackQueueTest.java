@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for the scheduling of overlapping alerts by {@link AlertPlaybackQueue}, with a
+ * fake clock and a fake player. Uses no Android APIs, so it also runs on the host with
+ * plain JUnit.
+ */
+public class AlertPlaybackQueueTest extends TestCase {
+
+    private static final int PAUSE = AlertPlaybackQueue.PAUSE_DURATION_BEFORE_SPEAKING_MSEC;
+
+    /** Clock that only advances when told to, running the callbacks that are due. */
+    private static final class FakeClock implements AlertPlaybackQueue.Clock {
+        private final ArrayList<Runnable> mRunnables = new ArrayList<Runnable>();
+        private final ArrayList<Long> mTimes = new ArrayList<Long>();
+        long mNow;
+
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            mRunnables.add(runnable);
+            mTimes.add(mNow + delayMillis);
+        }
+
+        public void removeCallbacks(Runnable runnable) {
+            int index;
+            while ((index = mRunnables.indexOf(runnable)) != -1) {
+                mRunnables.remove(index);
+                mTimes.remove(index);
+            }
+        }
+
+        void advance(long millis) {
+            long end = mNow + millis;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < mTimes.size(); i++) {
+                    long time = mTimes.get(i);
+                    if (time <= end && (next == -1 || time < mTimes.get(next))) {
+                        next = i;
+                    }
+                }
+                if (next == -1) {
+                    break;
+                }
+                mNow = mTimes.remove(next);
+                mRunnables.remove(next).run();
+            }
+            mNow = end;
+        }
+    }
+
+    /** Player that records what it plays, as "tone", "-tone", "speak:<text>", etc. */
+    private static final class FakePlayer implements AlertPlaybackQueue.Player {
+        final ArrayList<String> mEvents = new ArrayList<String>();
+        FakeClock mClock;
+        boolean mCanSpeak = true;
+
+        private void record(String event) {
+            mEvents.add(mClock.mNow + " " + event);
+        }
+
+        public void startTone() {
+            record("tone");
+        }
+
+        public void stopTone() {
+            record("-tone");
+        }
+
+        public boolean speak(AlertPlaybackQueue.Alert alert) {
+            if (!mCanSpeak) {
+                return false;
+            }
+            record("speak:" + alert.mMessageBody);
+            return true;
+        }
+
+        public void stopSpeaking() {
+            record("-speak");
+        }
+
+        public void onQueueEmpty() {
+            record("empty");
+        }
+    }
+
+    private FakeClock mClock;
+    private FakePlayer mPlayer;
+    private long mNextDeliveryTime;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mPlayer = new FakePlayer();
+        mPlayer.mClock = mClock;
+    }
+
+    private AlertPlaybackQueue.Alert alert(int priority, int duration, String body) {
+        return new AlertPlaybackQueue.Alert(mNextDeliveryTime++, priority, duration, body, "en");
+    }
+
+    private void assertEvents(String... expected) {
+        ArrayList<String> expectedEvents = new ArrayList<String>();
+        for (String event : expected) {
+            expectedEvents.add(event);
+        }
+        assertEquals(expectedEvents, mPlayer.mEvents);
+    }
+
+    public void testSingleAlert() {
+        AlertPlaybackQueue queue = new AlertPlaybackQueue(mClock, mPlayer,
+                AlertPlaybackQueue.TONE_POLICY_MERGE);
+        queue.add(alert(5, 4000, "a"));
+        mClock.advance(10000);
+        queue.onSpeechCompleted();
+        assertEvents("0 tone", "4000 -tone", (4000 + PAUSE) + " speak:a", "10000 empty");
+        assertEquals(0, queue.size());
+    }
+
+    public void testAlertWithoutSpeech() {
+        AlertPlaybackQueue queue = new AlertPlaybackQueue(mClock, mPlayer,
+                AlertPlaybackQueue.TONE_POLICY_MERGE);
+        queue.add(alert(5, 4000, null));
+        mPlayer.mCanSpeak = false;
+        queue.add(alert(5, 2000, "b"));     // can't be spoken
+        mClock.advance(10000);
+        assertEvents("0 tone", "4000 -tone", (4000 + PAUSE) + " empty");
+    }
+
+    public void testEqualPriorityQueuesBehind() {
+        AlertPlaybackQueue queue = new AlertPlaybackQueue(mClock, mPlayer,
+                AlertPlaybackQueue.TONE_POLICY_SEPARATE);
+        queue.add(alert(5, 4000, "a"));
+        mClock.advance(2000);
+        queue.add(alert(5, 4000, "b"));
+        mClock.advance(6000);
+        queue.onSpeechCompleted();          // a is not cut off
+        mClock.advance(10000);
+        queue.onSpeechCompleted();
+        assertEvents("0 tone", "4000 -tone", "5000 speak:a",
+                "8000 tone", "12000 -tone", "13000 speak:b", "18000 empty");
+    }
+
+    public void testMergedTone() {
+        AlertPlaybackQueue queue = new AlertPlaybackQueue(mClock, mPlayer,
+                AlertPlaybackQueue.TONE_POLICY_MERGE);
+        queue.add(alert(5, 4000, "a"));
+        mClock.advance(1000);
+        queue.add(alert(3, 6000, "b"));     // extends the tone to 6 s from its start
+        mClock.advance(1000);
+        queue.add(alert(5, 2000, "c"));     // shorter: doesn't extend it
+        mClock.advance(7000);
+        queue.onSpeechCompleted();
+        mClock.advance(1000);
+        queue.onSpeechCompleted();
+        mClock.advance(1000);
+        queue.onSpeechCompleted();
+        // c has the same priority as a, so it is spoken before b
+        assertEvents("0 tone", "6000 -tone", "7000 speak:a", "10000 speak:c",
+                "11000 speak:b", "11000 empty");
+    }
+
+    public void testHigherPriorityPreemptsSpeech() {
+        AlertPlaybackQueue queue = new AlertPlaybackQueue(mClock, mPlayer,
+                AlertPlaybackQueue.TONE_POLICY_MERGE);
+        queue.add(alert(5, 4000, "a"));
+        queue.add(alert(5, 4000, "b"));
+        mClock.advance(6000);
+        queue.add(alert(10, 3000, "p"));    // presidential alert
+        mClock.advance(4000);
+        queue.onSpeechCompleted();
+        mClock.advance(1000);
+        queue.onSpeechCompleted();
+        mClock.advance(1000);
+        queue.onSpeechCompleted();
+        // a is spoken again after p, before b, without its tone
+        assertEvents("0 tone", "4000 -tone", "5000 speak:a", "6000 -speak",
+                "6000 tone", "9000 -tone", "10000 speak:p", "11000 speak:a",
+                "12000 speak:b", "12000 empty");
+    }
+
+    public void testHigherPriorityPreemptsTone() {
+        AlertPlaybackQueue queue = new AlertPlaybackQueue(mClock, mPlayer,
+                AlertPlaybackQueue.TONE_POLICY_SEPARATE);
+        queue.add(alert(5, 4000, "a"));
+        mClock.advance(3000);
+        queue.add(alert(10, 4000, "p"));    // the tone continues for 4 s
+        mClock.advance(6000);
+        queue.onSpeechCompleted();
+        mClock.advance(1000);
+        queue.onSpeechCompleted();
+        assertEvents("0 tone", "7000 -tone", "8000 speak:p", "10000 speak:a", "10000 empty");
+    }
+
+    public void testClear() {
+        AlertPlaybackQueue queue = new AlertPlaybackQueue(mClock, mPlayer,
+                AlertPlaybackQueue.TONE_POLICY_MERGE);
+        queue.add(alert(5, 4000, "a"));
+        queue.add(alert(5, 4000, "b"));
+        mClock.advance(1000);
+        queue.clear();
+        mClock.advance(10000);
+        assertEvents("0 tone", "1000 -tone");
+        assertEquals(0, queue.size());
+    }
+
+    public void testRemoveQueued() {
+        AlertPlaybackQueue queue = new AlertPlaybackQueue(mClock, mPlayer,
+                AlertPlaybackQueue.TONE_POLICY_MERGE);
+        queue.add(alert(5, 4000, "a"));
+        AlertPlaybackQueue.Alert b = alert(5, 4000, "b");
+        queue.add(b);
+        queue.add(alert(5, 4000, "c"));
+        mClock.advance(1000);
+        queue.remove(b.mDeliveryTime);      // a keeps playing
+        assertEquals(2, queue.size());
+        mClock.advance(5000);
+        queue.onSpeechCompleted();
+        mClock.advance(1000);
+        queue.onSpeechCompleted();
+        assertEvents("0 tone", "4000 -tone", "5000 speak:a", "7000 speak:c", "7000 empty");
+    }
+
+    public void testRemovePlaying() {
+        AlertPlaybackQueue queue = new AlertPlaybackQueue(mClock, mPlayer,
+                AlertPlaybackQueue.TONE_POLICY_MERGE);
+        AlertPlaybackQueue.Alert a = alert(5, 4000, "a");
+        queue.add(a);
+        queue.add(alert(5, 4000, "b"));     // joins the tone
+        mClock.advance(1000);
+        queue.remove(a.mDeliveryTime);
+        mClock.advance(1000);
+        queue.onSpeechCompleted();
+        assertEvents("0 tone", "1000 -tone", "2000 speak:b", "2000 empty");
+        assertEquals(0, queue.size());
+    }
+
+    public void testRemoveSpeaking() {
+        AlertPlaybackQueue queue = new AlertPlaybackQueue(mClock, mPlayer,
+                AlertPlaybackQueue.TONE_POLICY_SEPARATE);
+        AlertPlaybackQueue.Alert a = alert(5, 4000, "a");
+        queue.add(a);
+        queue.add(alert(5, 2000, "b"));
+        mClock.advance(6000);
+        queue.remove(a.mDeliveryTime);
+        mClock.advance(3000);
+        queue.onSpeechCompleted();
+        queue.remove(a.mDeliveryTime);      // already removed
+        assertEvents("0 tone", "4000 -tone", "5000 speak:a", "6000 -speak",
+                "6000 tone", "8000 -tone", "9000 speak:b", "9000 empty");
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Start latency benchmark for the alert tone: compares starting a tone that has to be
+ * loaded first with starting the resident tone, on a fake audio sink that simulates
+ * the loading cost, and on the real sink.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class \
+ *             com.android.cellbroadcastreceiver.AlertTonePlayerBenchmark \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class AlertTonePlayerBenchmark extends AndroidTestCase {
+    private static final String TAG = "AlertTonePlayerBenchmark";
+
+    private static final int ITERATIONS = 100;
+
+    /** Simulated time to load the tone. */
+    private static final long FAKE_LOAD_MILLIS = 20;
+
+    /** Audio sink that records calls instead of playing audio. */
+    private static final class FakeAudioSink implements AlertTonePlayer.AudioSink {
+        boolean mLoaded;
+        int mLoadCount;
+        int mStartCount;
+        int mStopCount;
+        long mStartTimeNanos;
+
+        public boolean isLoaded() {
+            return mLoaded;
+        }
+
+        public void load() {
+            try {
+                Thread.sleep(FAKE_LOAD_MILLIS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("interrupted");
+            }
+            mLoaded = true;
+            mLoadCount++;
+        }
+
+        public void start(float volume) {
+            mStartTimeNanos = System.nanoTime();
+            mStartCount++;
+        }
+
+        public void stop() {
+            mStopCount++;
+        }
+
+        public void release() {
+            mLoaded = false;
+        }
+    }
+
+    /** Return the mean time in microseconds from calling start to the sink starting. */
+    private static long measureStartMicros(AlertTonePlayer player, FakeAudioSink sink,
+            boolean unloadEachTime) {
+        long totalNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (unloadEachTime) {
+                sink.release();
+            }
+            long startTime = System.nanoTime();
+            assertTrue(player.start(1.0f));
+            totalNanos += sink.mStartTimeNanos - startTime;
+            player.stop();
+        }
+        return totalNanos / ITERATIONS / 1000;
+    }
+
+    public void testFakeSinkStartLatency() {
+        FakeAudioSink sink = new FakeAudioSink();
+        AlertTonePlayer player = new AlertTonePlayer(sink);
+
+        long coldMicros = measureStartMicros(player, sink, true);
+        assertEquals(ITERATIONS, sink.mLoadCount);
+
+        sink.mLoadCount = 0;
+        assertTrue(player.load());
+        long residentMicros = measureStartMicros(player, sink, false);
+        Log.i(TAG, "start latency: loading=" + coldMicros + " us, resident="
+                + residentMicros + " us");
+
+        // the resident tone is loaded once and starts without the loading cost
+        assertEquals(1, sink.mLoadCount);
+        assertEquals(2 * ITERATIONS, sink.mStartCount);
+        assertEquals(2 * ITERATIONS, sink.mStopCount);
+        assertTrue("resident start took " + residentMicros + " us",
+                residentMicros < FAKE_LOAD_MILLIS * 1000 / 2);
+    }
+
+    public void testAudioTrackStartLatency() {
+        AlertTonePlayer.AudioTrackSink sink = new AlertTonePlayer.AudioTrackSink();
+        AlertTonePlayer player = new AlertTonePlayer(sink);
+        try {
+            long startTime = System.nanoTime();
+            assertTrue(player.start(0.0f));     // silent
+            long coldMicros = (System.nanoTime() - startTime) / 1000;
+            player.stop();
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                assertTrue(player.start(0.0f));
+                player.stop();
+            }
+            long residentMicros = (System.nanoTime() - startTime) / ITERATIONS / 1000;
+            Log.i(TAG, "AudioTrack start+stop latency: loading=" + coldMicros
+                    + " us, resident=" + residentMicros + " us");
+        } finally {
+            sink.release();
+        }
+    }
+}
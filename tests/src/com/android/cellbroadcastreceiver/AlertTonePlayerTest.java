@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the resident alert tone plays again after it was stopped: a static
+ * AudioTrack that is stopped rather than paused loses its samples, and plays silence.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class \
+ *             com.android.cellbroadcastreceiver.AlertTonePlayerTest \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class AlertTonePlayerTest extends AndroidTestCase {
+
+    /** Time to let the tone play; shorter than the first tone of the cadence. */
+    private static final long PLAY_MILLIS = 300;
+
+    /** Fail unless the playback head of the playing tone moves forward. */
+    private static void assertPlaying(AlertTonePlayer.AudioTrackSink sink)
+            throws InterruptedException {
+        int startPosition = sink.getPlaybackHeadPosition();
+        Thread.sleep(PLAY_MILLIS);
+        int position = sink.getPlaybackHeadPosition();
+        assertTrue("playback head stuck at " + position, position > startPosition);
+    }
+
+    public void testPlaysAgainAfterStop() throws InterruptedException {
+        AlertTonePlayer.AudioTrackSink sink = new AlertTonePlayer.AudioTrackSink();
+        AlertTonePlayer player = new AlertTonePlayer(sink);
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(player.start(0.0f));     // silent
+                assertPlaying(sink);
+                player.stop();
+            }
+            assertTrue(sink.isLoaded());
+        } finally {
+            player.stop();
+            sink.release();
+        }
+    }
+}
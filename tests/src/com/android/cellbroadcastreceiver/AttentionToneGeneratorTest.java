@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the samples of the synthesized attention signal. AttentionToneGenerator has no
+ * Android dependencies, so this test also runs on the host with plain JUnit.
+ */
+public class AttentionToneGeneratorTest extends TestCase {
+
+    /** Return the power of a frequency in a block of samples (Goertzel algorithm). */
+    private static double getPower(short[] samples, int offset, int length, int frequency) {
+        double coefficient = 2 * Math.cos(2 * Math.PI * frequency
+                / AttentionToneGenerator.SAMPLE_RATE);
+        double s1 = 0;
+        double s2 = 0;
+        for (int i = offset; i < offset + length; i++) {
+            double s0 = samples[i] + coefficient * s1 - s2;
+            s2 = s1;
+            s1 = s0;
+        }
+        return (s1 * s1 + s2 * s2 - coefficient * s1 * s2) / ((double) length * length);
+    }
+
+    public void testToneTableFrequencies() {
+        short[] table = AttentionToneGenerator.generateToneTable();
+        assertEquals(AttentionToneGenerator.SAMPLE_RATE, table.length);
+
+        // a sine wave of amplitude A has power A^2 / 4 in its own bin
+        double expectedPower = AttentionToneGenerator.TONE_AMPLITUDE
+                * (double) AttentionToneGenerator.TONE_AMPLITUDE / 4;
+        double power1 = getPower(table, 0, table.length,
+                AttentionToneGenerator.TONE_FREQUENCY_1);
+        double power2 = getPower(table, 0, table.length,
+                AttentionToneGenerator.TONE_FREQUENCY_2);
+        assertEquals(expectedPower, power1, expectedPower * 0.01);
+        assertEquals(expectedPower, power2, expectedPower * 0.01);
+
+        // no energy at other frequencies
+        for (int frequency : new int[] { 440, 852, 854, 906, 959, 961, 1000, 1813 }) {
+            assertTrue("power at " + frequency + " Hz",
+                    getPower(table, 0, table.length, frequency) < expectedPower * 0.0001);
+        }
+    }
+
+    public void testToneTableRepeatsSeamlessly() {
+        short[] table = AttentionToneGenerator.generateToneTable();
+        int maxSample = 0;
+        for (short sample : table) {
+            maxSample = Math.max(maxSample, Math.abs(sample));
+        }
+        assertTrue(maxSample <= 2 * AttentionToneGenerator.TONE_AMPLITUDE);
+        assertTrue(maxSample > AttentionToneGenerator.TONE_AMPLITUDE);
+
+        // starts at a zero crossing, and the last sample leads back to it smoothly
+        assertEquals(0, table[0]);
+        int maxStep = (int) Math.ceil(2 * Math.PI * AttentionToneGenerator.TONE_AMPLITUDE
+                * (AttentionToneGenerator.TONE_FREQUENCY_1
+                        + AttentionToneGenerator.TONE_FREQUENCY_2)
+                / AttentionToneGenerator.SAMPLE_RATE);
+        assertTrue(Math.abs(table[table.length - 1] - table[0]) <= maxStep);
+    }
+
+    public void testCadence() {
+        short[] table = AttentionToneGenerator.generateToneTable();
+        short[] samples = AttentionToneGenerator.generateCadence();
+
+        int offset = 0;
+        for (int segment = 0; segment < AttentionToneGenerator.getSegmentCount(); segment++) {
+            int length = AttentionToneGenerator.getSegmentLength(segment);
+            for (int i = 0; i < length; i++) {
+                if (segment % 2 == 0) {
+                    assertEquals(table[i % table.length], samples[offset + i]);
+                } else {
+                    assertEquals(0, samples[offset + i]);
+                }
+            }
+            offset += length;
+        }
+        assertEquals(offset, samples.length);
+        // CMAS cadence: 2 s + 0.5 s + 1 s + 0.5 s + 1 s + 0.5 s
+        assertEquals(AttentionToneGenerator.SAMPLE_RATE * 11 / 2, samples.length);
+    }
+
+    public void testVibratePatternMatchesCadence() {
+        long[] pattern = AttentionToneGenerator.getVibratePattern();
+        assertEquals(AttentionToneGenerator.getSegmentCount() + 1, pattern.length);
+        assertEquals(0, pattern[0]);
+        for (int i = 1; i < pattern.length; i++) {
+            assertEquals(AttentionToneGenerator.getSegmentLength(i - 1),
+                    pattern[i] * AttentionToneGenerator.SAMPLE_RATE / 1000);
+        }
+    }
+}
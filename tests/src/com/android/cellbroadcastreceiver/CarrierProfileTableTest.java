@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for the lookups and validation of {@link CarrierProfileTable}, on tables built
+ * in the format written by the CarrierProfileCompiler tool. Uses no Android APIs, so it
+ * also runs on the host with plain JUnit.
+ */
+public class CarrierProfileTableTest extends TestCase {
+
+    private static final int EMERGENCY = CarrierProfileTable.RANGE_FLAG_EMERGENCY;
+
+    /**
+     * Build a table of three profiles:
+     * 310/260: GSM 4370-4375 (emergency), 4383 (emergency), 50; CDMA 4096-4100 (emergency)
+     * 310/*: GSM 4400-4410 (emergency)
+     * 724/*: channel 50, no ranges
+     */
+    private static ByteBuffer buildTable() {
+        ByteBuffer buffer = ByteBuffer.allocate(CarrierProfileTable.HEADER_SIZE
+                + 3 * CarrierProfileTable.PROFILE_SIZE + 5 * CarrierProfileTable.RANGE_SIZE);
+        buffer.putInt(CarrierProfileTable.MAGIC);
+        buffer.putInt(CarrierProfileTable.VERSION);
+        buffer.putInt(3);
+        buffer.putInt(5);
+        putProfile(buffer, CarrierProfileTable.getKey(310, 260), 0, 0, 3, 3, 1);
+        putProfile(buffer, CarrierProfileTable.getKey(310, CarrierProfileTable.MNC_ANY), 0,
+                4, 1, 5, 0);
+        putProfile(buffer, CarrierProfileTable.getKey(724, CarrierProfileTable.MNC_ANY),
+                CarrierProfileTable.PROFILE_FLAG_CHANNEL_50, 5, 0, 5, 0);
+        putRange(buffer, 50, 50, 0);
+        putRange(buffer, 4370, 4375, EMERGENCY);
+        putRange(buffer, 4383, 4383, EMERGENCY);
+        putRange(buffer, 4096, 4100, EMERGENCY);
+        putRange(buffer, 4400, 4410, EMERGENCY);
+        return buffer;
+    }
+
+    private static void putProfile(ByteBuffer buffer, int key, int flags, int gsmFirst,
+            int gsmCount, int cdmaFirst, int cdmaCount) {
+        buffer.putInt(key);
+        buffer.putInt(flags);
+        buffer.putInt(gsmFirst);
+        buffer.putInt(gsmCount);
+        buffer.putInt(cdmaFirst);
+        buffer.putInt(cdmaCount);
+    }
+
+    private static void putRange(ByteBuffer buffer, int startId, int endId, int flags) {
+        buffer.putChar((char) startId);
+        buffer.putChar((char) endId);
+        buffer.putChar((char) flags);
+    }
+
+    public void testFindProfile() throws IOException {
+        CarrierProfileTable table = new CarrierProfileTable(buildTable());
+        assertEquals(3, table.getProfileCount());
+        assertEquals(0, table.findProfile(310, 260));
+        assertEquals(1, table.findProfile(310, 410));      // country profile
+        assertEquals(2, table.findProfile(724, 5));
+        assertEquals(-1, table.findProfile(311, 260));
+        assertEquals(-1, table.findProfile(0, 0));
+        assertEquals(CarrierProfileTable.PROFILE_FLAG_CHANNEL_50, table.getProfileFlags(2));
+    }
+
+    public void testFindRange() throws IOException {
+        CarrierProfileTable table = new CarrierProfileTable(buildTable());
+        int gsm = CarrierProfileTable.FORMAT_GSM;
+        assertEquals(3, table.getRangeCount(0, gsm));
+        assertEquals(0, table.findRange(0, gsm, 50));
+        assertEquals(-1, table.findRange(0, gsm, 49));
+        assertEquals(-1, table.findRange(0, gsm, 51));
+        assertEquals(1, table.findRange(0, gsm, 4370));
+        assertEquals(1, table.findRange(0, gsm, 4375));
+        assertEquals(-1, table.findRange(0, gsm, 4376));
+        assertEquals(2, table.findRange(0, gsm, 4383));
+        assertEquals(-1, table.findRange(0, gsm, 4384));
+        assertEquals(4370, table.getRangeStartId(0, gsm, 1));
+        assertEquals(4375, table.getRangeEndId(0, gsm, 1));
+        assertEquals(0, table.getRangeFlags(0, gsm, 0));
+        assertEquals(EMERGENCY, table.getRangeFlags(0, gsm, 2));
+
+        // the ranges of the other format and profiles are separate
+        int cdma = CarrierProfileTable.FORMAT_CDMA;
+        assertEquals(-1, table.findRange(0, cdma, 50));
+        assertEquals(0, table.findRange(0, cdma, 4098));
+        assertEquals(-1, table.findRange(1, gsm, 4370));
+        assertEquals(0, table.findRange(1, gsm, 4400));
+        assertEquals(-1, table.findRange(2, gsm, 50));
+    }
+
+    public void testHasRange() throws IOException {
+        CarrierProfileTable table = new CarrierProfileTable(buildTable());
+        assertTrue(table.hasRange(0, CarrierProfileTable.FORMAT_GSM, EMERGENCY));
+        assertTrue(table.hasRange(1, CarrierProfileTable.FORMAT_GSM, 0));
+        assertFalse(table.hasRange(1, CarrierProfileTable.FORMAT_CDMA, 0));
+        assertFalse(table.hasRange(2, CarrierProfileTable.FORMAT_GSM, EMERGENCY));
+    }
+
+    public void testInvalidTables() {
+        ByteBuffer buffer = buildTable();
+        buffer.putInt(0, 0);
+        assertInvalid(buffer);
+
+        buffer = buildTable();
+        buffer.putInt(4, CarrierProfileTable.VERSION + 1);
+        assertInvalid(buffer);
+
+        buffer = buildTable();
+        buffer.limit(buffer.capacity() - 1);
+        assertInvalid(buffer.slice());
+
+        // the ranges of the last profile end past the range array
+        buffer = buildTable();
+        buffer.putInt(CarrierProfileTable.HEADER_SIZE + 2 * CarrierProfileTable.PROFILE_SIZE
+                + 12, 1);
+        assertInvalid(buffer);
+
+        assertInvalid(ByteBuffer.allocate(4));
+    }
+
+    private static void assertInvalid(ByteBuffer buffer) {
+        try {
+            new CarrierProfileTable(buffer);
+            fail("invalid table accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testMap() throws IOException {
+        // the table of an asset starts at an offset in the package file
+        File file = File.createTempFile("carrier_profiles", ".dat");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            ByteBuffer buffer = buildTable();
+            raf.seek(100);
+            raf.write(buffer.array());
+            CarrierProfileTable table = CarrierProfileTable.map(raf.getChannel(), 100,
+                    buffer.capacity());
+            assertEquals(0, table.findProfile(310, 260));
+            assertEquals(2, table.findRange(0, CarrierProfileTable.FORMAT_GSM, 4383));
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+}
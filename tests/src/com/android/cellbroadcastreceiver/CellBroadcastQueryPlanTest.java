@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.telephony.TelephonyManager;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that every combination of history filter, sort
+ * order, group and page is served by an index search in the sort order, rather than
+ * a table scan or a sort.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class \
+ *             com.android.cellbroadcastreceiver.CellBroadcastQueryPlanTest \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class CellBroadcastQueryPlanTest extends AndroidTestCase {
+
+    /** Values tried for each of the CDMA severity, urgency and certainty criteria. */
+    private static final int[] CDMA_CRITERIA = {CellBroadcastFilter.ANY, 0};
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        new CellBroadcastDatabase.DatabaseHelper(getContext()).onCreate(mDb);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    /** Return every combination of filter criteria and sort order. */
+    private static ArrayList<CellBroadcastFilter> getAllFilters() {
+        ArrayList<CellBroadcastFilter> filters = new ArrayList<CellBroadcastFilter>();
+        for (int categories = CellBroadcastFilter.CATEGORIES_ALL;
+                categories <= CellBroadcastFilter.CATEGORIES_AREA_INFO; categories++) {
+            for (int severity : CDMA_CRITERIA) {
+                for (int urgency : CDMA_CRITERIA) {
+                    for (int certainty : CDMA_CRITERIA) {
+                        for (int flags = 0; flags < 4; flags++) {
+                            CellBroadcastFilter filter = new CellBroadcastFilter();
+                            filter.mCategories = categories;
+                            filter.mSeverity = severity;
+                            filter.mUrgency = urgency;
+                            filter.mCertainty = certainty;
+                            filter.mUnreadOnly = (flags & 1) != 0;
+                            filter.mSortByPriority = (flags & 2) != 0;
+                            filters.add(filter);
+                        }
+                    }
+                }
+            }
+        }
+        return filters;
+    }
+
+    /** Return the group of a GSM broadcast, as read from a list cursor. */
+    private static CellBroadcastDatabase.GroupKey getGsmGroup() {
+        MatrixCursor cursor = new MatrixCursor(CellBroadcastDatabase.Columns.LIST_QUERY_COLUMNS);
+        cursor.addRow(new Object[] {
+                1L, 0, 1, 100, 4370, "en", "snippet", 0L, 0,
+                TelephonyManager.PHONE_TYPE_GSM, null, null, null, 0, 0, 0, 0
+        });
+        cursor.moveToFirst();
+        CellBroadcastDatabase.GroupKey group = CellBroadcastDatabase.GroupKey.fromCursor(cursor);
+        cursor.close();
+        return group;
+    }
+
+    /** Matches a plan step reading the broadcasts table, in any SQLite version's format. */
+    private static final String TABLE_ACCESS =
+            "(SCAN|SEARCH) (TABLE )?" + CellBroadcastDatabase.TABLE_NAME + "\\b.*";
+
+    /** Return the details of the plan of a query. */
+    private ArrayList<String> getQueryPlan(String sql, ArrayList<String> args) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql,
+                args.toArray(new String[args.size()]));
+        try {
+            int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            ArrayList<String> plan = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailColumn));
+            }
+            assertTrue("no query plan for " + sql, !plan.isEmpty());
+            return plan;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Fail unless a page query reads the broadcasts table with an index search in the
+     * sort order, i.e. without sorting the matching rows in a temporary b-tree.
+     * @param sql the query
+     * @param args the query arguments
+     * @param scanIndex the index that a query without selection may scan instead (in
+     *        order, up to the limit), or null to require a search
+     * @param description the description of the query for failures
+     */
+    private void assertIndexedQuery(String sql, ArrayList<String> args, String scanIndex,
+            Object description) {
+        boolean accessed = false;
+        for (String detail : getQueryPlan(sql, args)) {
+            if (detail.contains("TEMP B-TREE")) {
+                fail("sort (" + detail + ") for " + description + ": " + sql);
+            }
+            if (detail.matches(TABLE_ACCESS)) {
+                accessed = true;
+                if (!detail.matches("SEARCH (TABLE )?" + CellBroadcastDatabase.TABLE_NAME
+                        + " USING (COVERING )?INDEX .*") && (scanIndex == null
+                        || !detail.matches("SCAN (TABLE )?" + CellBroadcastDatabase.TABLE_NAME
+                                + " USING (COVERING )?INDEX " + scanIndex + "\\b.*"))) {
+                    fail("no index search (" + detail + ") for " + description + ": " + sql);
+                }
+            }
+        }
+        assertTrue("no access to the table for " + description + ": " + sql, accessed);
+    }
+
+    public void testListQueriesUseIndexes() {
+        CellBroadcastDatabase.RowKey after = new CellBroadcastDatabase.RowKey(5, 1000L, 10L);
+        CellBroadcastDatabase.GroupKey[] groups = {null, getGsmGroup()};
+        for (CellBroadcastFilter filter : getAllFilters()) {
+            for (CellBroadcastDatabase.GroupKey group : groups) {
+                // only the first page of all broadcasts has no selection
+                String scanIndex = null;
+                if (group == null && !filter.isFiltering()) {
+                    scanIndex = filter.mSortByPriority ? CellBroadcastDatabase.INDEX_PRIORITY
+                            : CellBroadcastDatabase.INDEX_DATE_ID;
+                }
+                ArrayList<String> args = new ArrayList<String>();
+                String sql = CellBroadcastDatabase.buildListQuery(group, filter, null,
+                        CellBroadcastHistoryLoader.PAGE_SIZE, args);
+                assertIndexedQuery(sql, args, scanIndex, filter + " " + group);
+
+                args.clear();
+                sql = CellBroadcastDatabase.buildListQuery(group, filter, after,
+                        CellBroadcastHistoryLoader.PAGE_SIZE, args);
+                assertIndexedQuery(sql, args, null, filter + " " + group + " after key");
+            }
+        }
+    }
+
+    public void testUnfilteredListQueryUsesIndex() {
+        ArrayList<String> args = new ArrayList<String>();
+        String sql = CellBroadcastDatabase.buildListQuery(null, null, null,
+                CellBroadcastHistoryLoader.PAGE_SIZE, args);
+        assertIndexedQuery(sql, args, CellBroadcastDatabase.INDEX_DATE_ID, "unfiltered");
+    }
+
+    /**
+     * The grouped list isn't paged: it reads every matching broadcast to count the
+     * groups, and sorts the one row per group. Check that the broadcasts are read
+     * with an index search or, without a filter, in the order of the group index.
+     */
+    public void testGroupQueriesUseIndexes() {
+        for (CellBroadcastFilter filter : getAllFilters()) {
+            ArrayList<String> args = new ArrayList<String>();
+            String sql = CellBroadcastDatabase.buildGroupQuery(filter, args);
+            for (String detail : getQueryPlan(sql, args)) {
+                if (detail.matches(TABLE_ACCESS) && !detail.matches(".* USING (COVERING )?INDEX "
+                        + (filter.isFiltering() ? "" : CellBroadcastDatabase.INDEX_GROUP) + ".*")
+                        && !detail.contains(" USING INTEGER PRIMARY KEY ")) {
+                    fail("no index (" + detail + ") for " + filter + ": " + sql);
+                }
+            }
+        }
+    }
+
+    public void testCategoryGroups() {
+        assertEquals(CellBroadcastFilter.CATEGORIES_PRESIDENTIAL,
+                CellBroadcastFilter.getCategoryGroup(
+                        CellBroadcastClassifier.CATEGORY_CMAS_PRESIDENTIAL));
+        assertEquals(CellBroadcastFilter.CATEGORIES_TEST, CellBroadcastFilter.getCategoryGroup(
+                CellBroadcastClassifier.CATEGORY_CMAS_EXERCISE));
+        assertEquals(CellBroadcastFilter.CATEGORIES_ETWS, CellBroadcastFilter.getCategoryGroup(
+                CellBroadcastClassifier.CATEGORY_ETWS_OTHER));
+        assertEquals(CellBroadcastFilter.CATEGORIES_OTHER, CellBroadcastFilter.getCategoryGroup(
+                CellBroadcastClassifier.CATEGORY_PWS_OTHER));
+        assertEquals(CellBroadcastFilter.CATEGORIES_AREA_INFO,
+                CellBroadcastFilter.getCategoryGroup(
+                        CellBroadcastClassifier.CATEGORY_AREA_INFO));
+    }
+
+    private void insertBroadcast(long deliveryTime, boolean isRead) {
+        ContentValues cv = new ContentValues();
+        cv.put(CellBroadcastDatabase.Columns.DELIVERY_TIME, deliveryTime);
+        cv.put(CellBroadcastDatabase.Columns.MESSAGE_READ, isRead ? 1 : 0);
+        cv.put(CellBroadcastDatabase.Columns.CATEGORY, CellBroadcastClassifier.CATEGORY_OTHER);
+        mDb.insert(CellBroadcastDatabase.TABLE_NAME, null, cv);
+    }
+
+    public void testCountByDeliveryTime() {
+        insertBroadcast(3000L, false);
+        insertBroadcast(2500L, true);
+        insertBroadcast(2000L, false);
+        insertBroadcast(1000L, true);
+        insertBroadcast(500L, false);
+
+        long[] starts = {3000L, 2000L, 1500L, 0L};
+        int[] counts = CellBroadcastDatabase.countByDeliveryTime(mDb, null, null, starts);
+        assertEquals(4, counts.length);
+        assertEquals(1, counts[0]);     // [3000, ...)
+        assertEquals(2, counts[1]);     // [2000, 3000)
+        assertEquals(0, counts[2]);     // [1500, 2000)
+        assertEquals(2, counts[3]);     // [0, 1500)
+
+        CellBroadcastFilter unread = new CellBroadcastFilter();
+        unread.mUnreadOnly = true;
+        counts = CellBroadcastDatabase.countByDeliveryTime(mDb, null, unread, starts);
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(0, counts[2]);
+        assertEquals(1, counts[3]);
+
+        assertEquals(500L, CellBroadcastDatabase.getOldestDeliveryTime(mDb, null, null));
+        mDb.delete(CellBroadcastDatabase.TABLE_NAME, null, null);
+        assertEquals(-1L, CellBroadcastDatabase.getOldestDeliveryTime(mDb, null, null));
+    }
+
+    private int countRows(String selection) {
+        Cursor cursor = mDb.query(CellBroadcastDatabase.TABLE_NAME, new String[] {"count(*)"},
+                selection, null, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testBulkUpdatesInChunks() {
+        int rowCount = 2500;    // more than two chunks of SQL arguments
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < rowCount; i++) {
+                insertBroadcast(i, false);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        // mark the even rows read (row IDs start at 1)
+        long[] rowIds = new long[rowCount / 2];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = (i + 1) * 2;
+        }
+        assertEquals(rowIds.length, CellBroadcastDatabase.markBroadcastsRead(mDb, rowIds));
+        assertEquals(rowIds.length, countRows(CellBroadcastDatabase.Columns.MESSAGE_READ + "=1"));
+        // rows that are already read are not counted again
+        assertEquals(0, CellBroadcastDatabase.markBroadcastsRead(mDb, rowIds));
+
+        assertEquals(rowIds.length, CellBroadcastDatabase.deleteBroadcasts(mDb, rowIds));
+        assertEquals(rowCount - rowIds.length, countRows(null));
+        assertEquals(0, countRows(CellBroadcastDatabase.Columns.MESSAGE_READ + "=1"));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for the radio calls made by {@link ChannelConfigBatch}, with a fake radio that
+ * records them. Uses no Android APIs, so it also runs on the host with plain JUnit.
+ */
+public class ChannelConfigBatchTest extends TestCase {
+
+    /** Radio that records the calls, as "+start-end" and "-start-end". */
+    private static final class RecordingRadio implements ChannelConfigBatch.Radio {
+        final ArrayList<String> mCalls = new ArrayList<String>();
+        boolean mSuccess = true;
+
+        public boolean setChannelRange(int startId, int endId, boolean enable) {
+            mCalls.add((enable ? "+" : "-") + startId + '-' + endId);
+            return mSuccess;
+        }
+    }
+
+    private RecordingRadio mRadio;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRadio = new RecordingRadio();
+    }
+
+    private void assertCalls(String... expected) {
+        ArrayList<String> expectedCalls = new ArrayList<String>();
+        for (String call : expected) {
+            expectedCalls.add(call);
+        }
+        assertEquals(expectedCalls, mRadio.mCalls);
+    }
+
+    public void testCoalescesDesiredRanges() {
+        ChannelRangeSet desired = ChannelRangeSet.parse("4370,4371-4379,4380,4375,50");
+        ChannelConfigBatch batch = new ChannelConfigBatch(desired, desired,
+                new ChannelRangeSet());
+        assertEquals(2, batch.getCallCount());
+        assertEquals(5, batch.getFullCallCount());
+
+        ChannelRangeSet applied = batch.execute(mRadio);
+        assertCalls("+50-50", "+4370-4380");
+        assertEquals("50,4370-4380", applied.toString());
+    }
+
+    public void testUnknownAppliedRanges() {
+        ChannelRangeSet managed = ChannelRangeSet.parse("4352-4400,4370,50");
+        ChannelRangeSet desired = ChannelRangeSet.parse("4370");
+        ChannelConfigBatch batch = new ChannelConfigBatch(desired, managed, null);
+        assertEquals(3, batch.getCallCount());
+
+        ChannelRangeSet applied = batch.execute(mRadio);
+        assertCalls("+4370-4370", "-50-50", "-4352-4400");
+        assertEquals("4370", applied.toString());
+    }
+
+    public void testCoveredRangesStayEnabled() {
+        // CMAS Presidential is inside the PWS range: it must not be disabled
+        ChannelRangeSet managed = ChannelRangeSet.parse("4352-6399,4370,50");
+        ChannelConfigBatch batch = new ChannelConfigBatch(managed, managed, null);
+        assertEquals(2, batch.getCallCount());
+        assertEquals(3, batch.getFullCallCount());
+        ChannelRangeSet applied = batch.execute(mRadio);
+        assertCalls("+50-50", "+4352-6399");
+        assertEquals("50,4352-6399", applied.toString());
+
+        // partly covered ranges are disabled
+        mRadio.mCalls.clear();
+        ChannelRangeSet desired = ChannelRangeSet.parse("4370-4380,4381-4390,50");
+        managed = ChannelRangeSet.parse("4370-4390,4385-4395,50");
+        new ChannelConfigBatch(desired, managed, null).execute(mRadio);
+        assertCalls("+50-50", "+4370-4390", "-4385-4395");
+    }
+
+    public void testOnlyChangedRanges() {
+        ChannelRangeSet managed = ChannelRangeSet.parse("4352-4400,4370,50");
+        ChannelRangeSet applied = new ChannelConfigBatch(managed, managed, null)
+                .execute(mRadio);
+        assertCalls("+50-50", "+4352-4400");
+        assertEquals("50,4352-4400", applied.toString());
+
+        // nothing changed
+        mRadio.mCalls.clear();
+        ChannelConfigBatch batch = new ChannelConfigBatch(managed, managed, applied);
+        assertEquals(0, batch.getCallCount());
+        assertEquals(3, batch.getFullCallCount());
+        applied = batch.execute(mRadio);
+        assertCalls();
+
+        // emergency alerts disabled: the new range is enabled before the old is disabled
+        ChannelRangeSet desired = ChannelRangeSet.parse("4370,50");
+        applied = new ChannelConfigBatch(desired, managed, applied).execute(mRadio);
+        assertCalls("+4370-4370", "-4352-4400");
+        assertEquals("50,4370", applied.toString());
+    }
+
+    public void testFailedCallsAreRetried() {
+        ChannelRangeSet desired = ChannelRangeSet.parse("4370,50");
+        mRadio.mSuccess = false;
+        ChannelRangeSet applied = new ChannelConfigBatch(desired, desired, null)
+                .execute(mRadio);
+        assertEquals(0, applied.size());
+
+        mRadio.mCalls.clear();
+        mRadio.mSuccess = true;
+        applied = new ChannelConfigBatch(desired, desired, applied).execute(mRadio);
+        assertCalls("+50-50", "+4370-4370");
+        assertEquals(desired, applied);
+    }
+
+    public void testCallTiming() {
+        ChannelRangeSet desired = ChannelRangeSet.parse("4370,50");
+        ChannelConfigBatch batch = new ChannelConfigBatch(desired, desired, null);
+        batch.execute(new ChannelConfigBatch.Radio() {
+            public boolean setChannelRange(int startId, int endId, boolean enable) {
+                try {
+                    Thread.sleep(startId == 50 ? 20 : 1);
+                } catch (InterruptedException e) {
+                    fail("interrupted");
+                }
+                return true;
+            }
+        });
+        assertTrue(batch.getCallNanos(0) >= 20 * 1000000L);
+        assertTrue(batch.getCallNanos(1) >= 1000000L);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the parsing and the differences of {@link ChannelRangeSet}. Uses no Android
+ * APIs, so it also runs on the host with plain JUnit.
+ */
+public class ChannelRangeSetTest extends TestCase {
+
+    public void testParse() {
+        ChannelRangeSet set = ChannelRangeSet.parse(" 0x1100-0x1104, 4370,,50 ");
+        assertEquals(3, set.size());
+        assertEquals(50, set.getStartId(0));
+        assertEquals(50, set.getEndId(0));
+        assertEquals(0x1100, set.getStartId(1));
+        assertEquals(0x1104, set.getEndId(1));
+        assertTrue(set.contains(4370, 4370));
+        assertEquals("50,4352-4356,4370", set.toString());
+        assertEquals(set, ChannelRangeSet.parse(set.toString()));
+
+        assertEquals(0, ChannelRangeSet.parse(null).size());
+        assertEquals(0, ChannelRangeSet.parse("").size());
+        try {
+            ChannelRangeSet.parse("4352-abc");
+            fail("expected NumberFormatException");
+        } catch (NumberFormatException expected) {
+        }
+    }
+
+    public void testRangesAreNotMerged() {
+        ChannelRangeSet set = new ChannelRangeSet();
+        set.add(4352, 4359);
+        set.add(4352, 4359);
+        set.add(4360, 4360);
+        set.add(4352, 4360);
+        assertEquals("4352-4359,4352-4360,4360", set.toString());
+
+        set.remove(4352, 4360);
+        set.remove(4352, 4353);     // not in the set
+        assertEquals("4352-4359,4360", set.toString());
+    }
+
+    public void testMinus() {
+        ChannelRangeSet applied = ChannelRangeSet.parse("4352-4360,4370,50");
+        ChannelRangeSet desired = ChannelRangeSet.parse("4352-4359,4370");
+        assertEquals("4352-4359", desired.minus(applied).toString());
+        assertEquals("50,4352-4360", applied.minus(desired).toString());
+        assertEquals(0, applied.minus(applied).size());
+    }
+
+    public void testCovers() {
+        ChannelRangeSet set = ChannelRangeSet.parse("4352-4360,4361-4365,4363-4370,50");
+        assertTrue(set.covers(4370, 4370));
+        assertTrue(set.covers(4352, 4370));     // across adjacent and overlapping ranges
+        assertTrue(set.covers(50, 50));
+        assertFalse(set.covers(4352, 4371));
+        assertFalse(set.covers(49, 50));
+        assertFalse(set.covers(51, 51));
+        assertFalse(new ChannelRangeSet().covers(50, 50));
+        assertEquals("4360-4380", ChannelRangeSet.parse("50,4360-4380,4370,4352-4356")
+                .minusCovered(set).toString());
+    }
+
+    public void testCoalesce() {
+        ChannelRangeSet set = ChannelRangeSet.parse("4370,4371-4379,4380,4375-4376,50,52");
+        assertEquals("50,52,4370-4380", set.coalesce().toString());
+        assertEquals(6, set.size());    // unchanged
+        assertEquals("4352-4400", ChannelRangeSet.parse("4352-4400,4370").coalesce()
+                .toString());
+    }
+
+    public void testEquals() {
+        assertEquals(ChannelRangeSet.parse("50,4370"), ChannelRangeSet.parse("4370,50"));
+        assertEquals(ChannelRangeSet.parse("50,4370").hashCode(),
+                ChannelRangeSet.parse("4370,50").hashCode());
+        assertFalse(ChannelRangeSet.parse("50").equals(ChannelRangeSet.parse("50,4370")));
+        assertFalse(ChannelRangeSet.parse("50,4370").equals(ChannelRangeSet.parse("50")));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.database.MatrixCursor;
+import android.os.Debug;
+import android.telephony.SmsCbConstants;
+import android.telephony.TelephonyManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.view.View;
+import android.widget.ListView;
+
+/**
+ * Allocation benchmark for binding the broadcast list: flings through 10,000 rows
+ * and counts the objects allocated per row.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class \
+ *             com.android.cellbroadcastreceiver.CursorBroadcastMessageBenchmark \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class CursorBroadcastMessageBenchmark extends AndroidTestCase {
+    private static final String TAG = "CursorBroadcastMessageBenchmark";
+
+    private static final int ROW_COUNT = 10000;
+
+    private MatrixCursor mCursor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCursor = new MatrixCursor(CellBroadcastDatabase.Columns.LIST_QUERY_COLUMNS, ROW_COUNT);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            boolean isCdma = (i % 4) == 0;
+            int messageId = isCdma ? CdmaBroadcastMessage.CMAS_EXTREME
+                    : SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_LIKELY;
+            int format = isCdma ? TelephonyManager.PHONE_TYPE_CDMA
+                    : TelephonyManager.PHONE_TYPE_GSM;
+            int flags = CellBroadcastClassifier.computeClassFlags(format, messageId);
+            int category = CellBroadcastClassifier.computeCategory(format, messageId, flags);
+            mCursor.addRow(new Object[] {
+                    (long) (ROW_COUNT - i),     // _id
+                    0,                          // geo scope
+                    0,                          // serial number
+                    0,                          // message code
+                    messageId,
+                    "en",
+                    "Benchmark broadcast message body number " + i,     // snippet
+                    now - i * 60000L,           // delivery time
+                    i % 2,                      // read
+                    format,
+                    0, 0, 0,                    // severity, urgency, certainty
+                    flags,
+                    category,
+                    CellBroadcastClassifier.getPriority(category),
+                    0                           // snippet truncated
+            });
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCursor.close();
+        super.tearDown();
+    }
+
+    /** Read the getters used when binding a list item from a message object. */
+    private static int readMessage(BroadcastMessage message) {
+        return message.getDialogTitleResource() + (message.isRead() ? 1 : 0)
+                + (int) message.getDeliveryTime() + message.getMessageBody().length();
+    }
+
+    /** Read the getters used when binding a list item from the flyweight. */
+    private static int readMessage(CursorBroadcastMessage message) {
+        return message.getDialogTitleResource() + (message.isRead() ? 1 : 0)
+                + (int) message.getDeliveryTime() + message.getSnippet().length();
+    }
+
+    private int countAllocationsCreateFromCursor() {
+        int checksum = 0;
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        mCursor.moveToPosition(-1);
+        while (mCursor.moveToNext()) {
+            checksum += readMessage(BroadcastMessage.createFromCursor(mCursor));
+        }
+        Debug.stopAllocCounting();
+        assertTrue(checksum != 0);
+        return Debug.getThreadAllocCount();
+    }
+
+    private int countAllocationsFlyweight() {
+        CursorBroadcastMessage message = new CursorBroadcastMessage();
+        int checksum = 0;
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        mCursor.moveToPosition(-1);
+        while (mCursor.moveToNext()) {
+            message.moveTo(mCursor);
+            checksum += readMessage(message);
+        }
+        Debug.stopAllocCounting();
+        assertTrue(checksum != 0);
+        return Debug.getThreadAllocCount();
+    }
+
+    public void testFlyweightAllocations() {
+        int messageAllocations = countAllocationsCreateFromCursor();
+        int flyweightAllocations = countAllocationsFlyweight();
+        Log.i(TAG, "allocations for " + ROW_COUNT + " rows: createFromCursor="
+                + messageAllocations + " flyweight=" + flyweightAllocations);
+
+        // The flyweight must not allocate per row; createFromCursor allocates at least
+        // one message object per row.
+        assertTrue(messageAllocations >= ROW_COUNT);
+        assertTrue("flyweight allocated " + flyweightAllocations + " objects",
+                flyweightAllocations < ROW_COUNT / 100);
+    }
+
+    public void testFlingThroughAdapter() {
+        CellBroadcastListAdapter adapter = new CellBroadcastListAdapter(getContext(), mCursor);
+        ListView parent = new ListView(getContext());
+        View convertView = adapter.getView(0, null, parent);
+
+        long startTime = System.nanoTime();
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int position = 0; position < ROW_COUNT; position++) {
+            convertView = adapter.getView(position, convertView, parent);
+        }
+        Debug.stopAllocCounting();
+        long elapsedNanos = System.nanoTime() - startTime;
+
+        Log.i(TAG, "fling through " + ROW_COUNT + " rows: "
+                + (Debug.getThreadAllocCount() / (float) ROW_COUNT) + " allocations/row, "
+                + (elapsedNanos / ROW_COUNT / 1000) + " us/row");
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the lookups and updates of {@link PhoneTypeCache}, with a fake phone that
+ * counts the lookups. Uses no Android APIs, so it also runs on the host with plain JUnit.
+ */
+public class PhoneTypeCacheTest extends TestCase {
+
+    // TelephonyManager.PHONE_TYPE_GSM and PHONE_TYPE_CDMA
+    private static final int PHONE_TYPE_GSM = 1;
+    private static final int PHONE_TYPE_CDMA = 2;
+
+    /** Phone that returns a fixed type, like ITelephony.getActivePhoneType(). */
+    private static final class FakePhone implements PhoneTypeCache.Source {
+        int mPhoneType = PHONE_TYPE_GSM;
+        int mLookups;
+
+        public int getActivePhoneType() {
+            mLookups++;
+            return mPhoneType;
+        }
+    }
+
+    private FakePhone mPhone;
+    private PhoneTypeCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPhone = new FakePhone();
+        mCache = new PhoneTypeCache(mPhone);
+    }
+
+    public void testLooksUpOnce() {
+        assertEquals(PHONE_TYPE_GSM, mCache.getPhoneType());
+        assertEquals(PHONE_TYPE_GSM, mCache.getPhoneType());
+        assertEquals(1, mPhone.mLookups);
+    }
+
+    public void testFailedLookupIsRetried() {
+        mPhone.mPhoneType = PhoneTypeCache.UNKNOWN;     // phone service not running yet
+        assertEquals(PhoneTypeCache.UNKNOWN, mCache.getPhoneType());
+        mPhone.mPhoneType = PHONE_TYPE_CDMA;
+        assertEquals(PHONE_TYPE_CDMA, mCache.getPhoneType());
+        assertEquals(PHONE_TYPE_CDMA, mCache.getPhoneType());
+        assertEquals(2, mPhone.mLookups);
+    }
+
+    public void testUpdates() {
+        assertEquals(PHONE_TYPE_GSM, mCache.getPhoneType());
+        assertFalse(mCache.update(PhoneTypeCache.UNKNOWN));
+        assertFalse(mCache.update(PHONE_TYPE_GSM));
+        assertTrue(mCache.update(PHONE_TYPE_CDMA));
+        assertEquals(PHONE_TYPE_CDMA, mCache.getPhoneType());
+        assertTrue(mCache.update(PHONE_TYPE_GSM));
+        assertEquals(PHONE_TYPE_GSM, mCache.getPhoneType());
+        assertEquals(1, mPhone.mLookups);
+    }
+
+    public void testUpdateBeforeLookup() {
+        // not a switch: the type may have been the same before
+        assertFalse(mCache.update(PHONE_TYPE_CDMA));
+        assertEquals(PHONE_TYPE_CDMA, mCache.getPhoneType());
+        assertEquals(0, mPhone.mLookups);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Tests for splitting alert text into chunks to speak. Uses no Android APIs, so it also
+ * runs on the host with plain JUnit.
+ */
+public class SpeechChunkerTest extends TestCase {
+
+    public void testSplitsSentences() {
+        ArrayList<String> chunks = SpeechChunker.split(
+                "Tornado warning in this area until 5 PM. Take shelter now! Check media.",
+                Locale.ENGLISH);
+        assertEquals(3, chunks.size());
+        assertEquals("Tornado warning in this area until 5 PM.", chunks.get(0));
+        assertEquals("Take shelter now!", chunks.get(1));
+        assertEquals("Check media.", chunks.get(2));
+    }
+
+    public void testSplitsLinesAndSkipsPadding() {
+        ArrayList<String> chunks = SpeechChunker.split(
+                "Flash flood warning\r\r\rAvoid low lying areas\n\nPresidential alert\r\r",
+                Locale.ENGLISH);
+        assertEquals(3, chunks.size());
+        assertEquals("Flash flood warning", chunks.get(0));
+        assertEquals("Avoid low lying areas", chunks.get(1));
+        assertEquals("Presidential alert", chunks.get(2));
+    }
+
+    public void testSplitsLongSentences() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("word ");
+        }
+        ArrayList<String> chunks = SpeechChunker.split(text.toString(), Locale.ENGLISH);
+        StringBuilder joined = new StringBuilder();
+        for (String chunk : chunks) {
+            assertTrue(chunk.length() <= SpeechChunker.MAX_CHUNK_LENGTH);
+            assertFalse(chunk.startsWith(" ") || chunk.endsWith(" "));
+            joined.append(chunk).append(' ');
+        }
+        assertEquals(3, chunks.size());
+        assertEquals(text.toString(), joined.toString());     // split between words
+
+        // no spaces: split at the maximum length
+        text.setLength(0);
+        for (int i = 0; i < 250; i++) {
+            text.append('\u8b66');     // Japanese, no spaces
+        }
+        chunks = SpeechChunker.split(text.toString(), Locale.JAPANESE);
+        assertEquals(2, chunks.size());
+        assertEquals(SpeechChunker.MAX_CHUNK_LENGTH, chunks.get(0).length());
+        assertEquals(50, chunks.get(1).length());
+    }
+
+    public void testKeepsSurrogatePairs() {
+        // a supplementary character straddles the maximum length
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < SpeechChunker.MAX_CHUNK_LENGTH - 1; i++) {
+            text.append('\u8b66');
+        }
+        text.append("\ud842\udfb7\u8b66");      // U+20BB7, then one more character
+        ArrayList<String> chunks = SpeechChunker.split(text.toString(), Locale.JAPANESE);
+        assertEquals(2, chunks.size());
+        assertEquals(SpeechChunker.MAX_CHUNK_LENGTH - 1, chunks.get(0).length());
+        assertEquals("\ud842\udfb7\u8b66", chunks.get(1));
+    }
+
+    public void testEmptyText() {
+        assertTrue(SpeechChunker.split("", Locale.ENGLISH).isEmpty());
+        assertTrue(SpeechChunker.split("\r\r\r", Locale.ENGLISH).isEmpty());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests for the keys, the LRU eviction and the pinning of {@link SpeechFileCache}. Uses
+ * no Android APIs, so it also runs on the host with plain JUnit.
+ */
+public class SpeechFileCacheTest extends TestCase {
+
+    private static final int FILE_BYTES = 1000;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("speech", null);
+        mDirectory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    /** Write a fake synthesized file for a key and add it to the cache. */
+    private static File synthesize(SpeechFileCache cache, String key) throws IOException {
+        FileOutputStream out = new FileOutputStream(cache.getTempFile(key));
+        try {
+            out.write(new byte[FILE_BYTES]);
+        } finally {
+            out.close();
+        }
+        return cache.put(key);
+    }
+
+    public void testKeys() {
+        String key = SpeechFileCache.getKey("Test alert", "en", "com.svox.pico");
+        assertEquals(40, key.length());
+        assertEquals(key, SpeechFileCache.getKey("Test alert", "en", "com.svox.pico"));
+        assertFalse(key.equals(SpeechFileCache.getKey("Test alert.", "en", "com.svox.pico")));
+        assertFalse(key.equals(SpeechFileCache.getKey("Test alert", "ja", "com.svox.pico")));
+        assertFalse(key.equals(SpeechFileCache.getKey("Test alert", "en", "com.other.tts")));
+        assertFalse(key.equals(SpeechFileCache.getKey("Test alert", null, "com.svox.pico")));
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        SpeechFileCache cache = new SpeechFileCache(mDirectory, 3 * FILE_BYTES);
+        File a = synthesize(cache, "a");
+        File b = synthesize(cache, "b");
+        File c = synthesize(cache, "c");
+        assertEquals(3 * FILE_BYTES, cache.getTotalBytes());
+
+        assertEquals(a, cache.get("a"));    // b is now the least recently used
+        synthesize(cache, "d");
+        assertEquals(3 * FILE_BYTES, cache.getTotalBytes());
+        assertNull(cache.get("b"));
+        assertFalse(b.exists());
+        assertEquals(a, cache.get("a"));
+        assertEquals(c, cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    public void testKeepsPinnedFiles() throws IOException {
+        SpeechFileCache cache = new SpeechFileCache(mDirectory, 2 * FILE_BYTES);
+        cache.pin("a");     // queued alert, pinned before its synthesis completes
+        File a = synthesize(cache, "a");
+        File b = synthesize(cache, "b");
+        synthesize(cache, "c");
+        assertEquals(a, cache.get("a"));
+        assertFalse(b.exists());
+
+        // with nothing left to evict, the cache exceeds its limit
+        cache.pin("c");
+        cache.pin("d");
+        synthesize(cache, "d");
+        assertEquals(3 * FILE_BYTES, cache.getTotalBytes());
+        assertTrue(a.exists());
+
+        cache.unpinAll();
+        assertEquals(2 * FILE_BYTES, cache.getTotalBytes());
+        assertNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertNotNull(cache.get("a"));
+    }
+
+    public void testFailedSynthesis() throws IOException {
+        SpeechFileCache cache = new SpeechFileCache(mDirectory, 3 * FILE_BYTES);
+        assertNull(cache.put("missing"));
+        cache.getTempFile("empty").createNewFile();
+        assertNull(cache.put("empty"));
+        assertFalse(cache.getTempFile("empty").exists());
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    public void testReloadsCachedFiles() throws IOException {
+        SpeechFileCache cache = new SpeechFileCache(mDirectory, 3 * FILE_BYTES);
+        File a = synthesize(cache, "a");
+        synthesize(cache, "b");
+        cache.getTempFile("interrupted").createNewFile();
+
+        cache = new SpeechFileCache(mDirectory, 3 * FILE_BYTES);
+        assertEquals(2 * FILE_BYTES, cache.getTotalBytes());
+        assertEquals(a, cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertFalse(cache.getTempFile("interrupted").exists());
+
+        // a smaller limit evicts files when the cache is loaded
+        cache = new SpeechFileCache(mDirectory, FILE_BYTES);
+        assertEquals(FILE_BYTES, cache.getTotalBytes());
+    }
+}
@@ -0,0 +1,33 @@
+# Copyright 2012 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# Host tool that compiles carrier_profiles.txt into ../assets/carrier_profiles.dat.
+# After editing the profiles, regenerate the table with:
+#   java -jar $ANDROID_HOST_OUT/framework/cellbroadcast-profile-compiler.jar \
+#       carrier_profiles.txt ../assets/carrier_profiles.dat
+
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := optional
+
+# The compiler writes the format read by the app, so it shares the table class.
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+        ../src/com/android/cellbroadcastreceiver/CarrierProfileTable.java
+
+LOCAL_JAR_MANIFEST := manifest.txt
+
+LOCAL_MODULE := cellbroadcast-profile-compiler
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Host tool that compiles the carrier channel profiles (tools/carrier_profiles.txt) into
+ * the binary table read by {@link CarrierProfileTable}. The profiles are sorted by key
+ * and the ranges by start identifier, so that the device can binary-search the table.
+ *
+ * Usage: CarrierProfileCompiler &lt;carrier_profiles.txt&gt; &lt;carrier_profiles.dat&gt;
+ */
+public final class CarrierProfileCompiler {
+
+    private static final class Range {
+        final int mStartId;
+        final int mEndId;
+        final int mFlags;
+
+        Range(int startId, int endId, int flags) {
+            mStartId = startId;
+            mEndId = endId;
+            mFlags = flags;
+        }
+    }
+
+    private static final class Profile {
+        final int mKey;
+        final int mLine;
+        int mFlags;
+        final List<Range> mGsmRanges = new ArrayList<Range>();
+        final List<Range> mCdmaRanges = new ArrayList<Range>();
+
+        Profile(int key, int line) {
+            mKey = key;
+            mLine = line;
+        }
+    }
+
+    private static final Comparator<Profile> PROFILE_ORDER = new Comparator<Profile>() {
+        public int compare(Profile lhs, Profile rhs) {
+            return lhs.mKey < rhs.mKey ? -1 : (lhs.mKey == rhs.mKey ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Range> RANGE_ORDER = new Comparator<Range>() {
+        public int compare(Range lhs, Range rhs) {
+            return lhs.mStartId - rhs.mStartId;
+        }
+    };
+
+    private CarrierProfileCompiler() {}
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("usage: CarrierProfileCompiler <profiles.txt> <profiles.dat>");
+            System.exit(2);
+        }
+        try {
+            List<Profile> profiles = parse(args[0]);
+            write(profiles, args[1]);
+        } catch (IOException e) {
+            System.err.println("CarrierProfileCompiler: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static List<Profile> parse(String fileName) throws IOException {
+        List<Profile> profiles = new ArrayList<Profile>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment != -1) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                try {
+                    profiles.add(parseProfile(line, lineNumber));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(fileName + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        Collections.sort(profiles, PROFILE_ORDER);
+        for (int i = 1; i < profiles.size(); i++) {
+            if (profiles.get(i).mKey == profiles.get(i - 1).mKey) {
+                throw new IOException(fileName + ":" + profiles.get(i).mLine
+                        + ": duplicate profile");
+            }
+        }
+        return profiles;
+    }
+
+    private static Profile parseProfile(String line, int lineNumber) {
+        String[] fields = line.split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("expected 5 fields, found " + fields.length);
+        }
+        int mcc = parseNumber(fields[0]);
+        if (mcc < 0 || mcc > 999) {
+            throw new IllegalArgumentException("invalid mcc " + fields[0]);
+        }
+        int mnc = CarrierProfileTable.MNC_ANY;
+        if (!fields[1].equals("*")) {
+            mnc = parseNumber(fields[1]);
+            if (mnc < 0 || mnc > 999) {
+                throw new IllegalArgumentException("invalid mnc " + fields[1]);
+            }
+        }
+
+        Profile profile = new Profile(CarrierProfileTable.getKey(mcc, mnc), lineNumber);
+        if (!fields[2].equals("-")) {
+            for (String flag : fields[2].split(",")) {
+                if (flag.equals("channel_50")) {
+                    profile.mFlags |= CarrierProfileTable.PROFILE_FLAG_CHANNEL_50;
+                } else {
+                    throw new IllegalArgumentException("unknown profile flag " + flag);
+                }
+            }
+        }
+        parseRanges(fields[3], profile.mGsmRanges);
+        parseRanges(fields[4], profile.mCdmaRanges);
+        return profile;
+    }
+
+    private static void parseRanges(String field, List<Range> ranges) {
+        if (field.equals("-")) {
+            return;
+        }
+        for (String range : field.split(",")) {
+            int flags = 0;
+            int colon = range.indexOf(':');
+            if (colon != -1) {
+                String flag = range.substring(colon + 1);
+                if (flag.equals("emergency")) {
+                    flags |= CarrierProfileTable.RANGE_FLAG_EMERGENCY;
+                } else {
+                    throw new IllegalArgumentException("unknown range flag " + flag);
+                }
+                range = range.substring(0, colon);
+            }
+            int startId;
+            int endId;
+            int dash = range.indexOf('-');
+            if (dash != -1) {
+                startId = parseNumber(range.substring(0, dash));
+                endId = parseNumber(range.substring(dash + 1));
+            } else {
+                startId = endId = parseNumber(range);
+            }
+            if (startId < 0 || endId > 0xffff || startId > endId) {
+                throw new IllegalArgumentException("invalid range " + range);
+            }
+            ranges.add(new Range(startId, endId, flags));
+        }
+
+        Collections.sort(ranges, RANGE_ORDER);
+        for (int i = 1; i < ranges.size(); i++) {
+            if (ranges.get(i).mStartId <= ranges.get(i - 1).mEndId) {
+                throw new IllegalArgumentException("overlapping ranges in " + field);
+            }
+        }
+    }
+
+    private static int parseNumber(String number) {
+        try {
+            if (number.startsWith("0x") || number.startsWith("0X")) {
+                return Integer.parseInt(number.substring(2), 16);
+            }
+            return Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number " + number);
+        }
+    }
+
+    private static void write(List<Profile> profiles, String fileName) throws IOException {
+        int rangeCount = 0;
+        for (Profile profile : profiles) {
+            rangeCount += profile.mGsmRanges.size() + profile.mCdmaRanges.size();
+        }
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(fileName)));
+        try {
+            out.writeInt(CarrierProfileTable.MAGIC);
+            out.writeInt(CarrierProfileTable.VERSION);
+            out.writeInt(profiles.size());
+            out.writeInt(rangeCount);
+
+            int firstRange = 0;
+            for (Profile profile : profiles) {
+                out.writeInt(profile.mKey);
+                out.writeInt(profile.mFlags);
+                out.writeInt(firstRange);
+                out.writeInt(profile.mGsmRanges.size());
+                firstRange += profile.mGsmRanges.size();
+                out.writeInt(firstRange);
+                out.writeInt(profile.mCdmaRanges.size());
+                firstRange += profile.mCdmaRanges.size();
+            }
+
+            for (Profile profile : profiles) {
+                writeRanges(out, profile.mGsmRanges);
+                writeRanges(out, profile.mCdmaRanges);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeRanges(DataOutputStream out, List<Range> ranges)
+            throws IOException {
+        for (Range range : ranges) {
+            out.writeChar(range.mStartId);
+            out.writeChar(range.mEndId);
+            out.writeChar(range.mFlags);
+        }
+    }
+}